@@ -0,0 +1,169 @@
+package com.filestorage.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Uploads {@value #BATCH} small files over HTTP per invocation, either one
+ * request per file through {@code POST /files/upload} or in a single
+ * {@code POST /files/batch} request as multipart parts or a tar stream, so
+ * the scores read as files per second. Every invocation uploads new names, so
+ * all three create files.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(BatchUploadBenchmark.BATCH)
+@State(Scope.Benchmark)
+// One request per file varies a lot between JVMs, so the scores are averaged over several forks
+@Fork(3)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 10, time = 5)
+public class BatchUploadBenchmark {
+
+    static final int BATCH = 100;
+    private static final String BOUNDARY = "----batch-upload-benchmark";
+
+    @Param({ "1024" })
+    private int fileSize;
+
+    private ConfigurableApplicationContext context;
+    private Path root;
+    private String baseUrl;
+    private byte[] content;
+    private int invocation;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        root = Paths.get("target", "benchmark-storage", "batch-upload").toAbsolutePath();
+        FileSystemUtils.deleteRecursively(root.toFile());
+        content = new byte[fileSize];
+        new Random(BenchmarkStorage.SEED).nextBytes(content);
+
+        context = BenchmarkStorage.startServer(root, "file.storage.index.enabled=false");
+        baseUrl = "http://localhost:" + context.getEnvironment().getProperty("local.server.port") + "/files";
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+        FileSystemUtils.deleteRecursively(root.toFile());
+    }
+
+    @Benchmark
+    public int singleFile() throws IOException {
+        int prefix = invocation++;
+        int status = 0;
+        for (int i = 0; i < BATCH; i++) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            writePart(body, "file", fileName(prefix, i));
+            body.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+            status += post("/upload", "multipart/form-data; boundary=" + BOUNDARY, body.toByteArray());
+        }
+        return status;
+    }
+
+    @Benchmark
+    public int multipartBatch() throws IOException {
+        int prefix = invocation++;
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int i = 0; i < BATCH; i++) {
+            writePart(body, "files", fileName(prefix, i));
+        }
+        body.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        return post("/batch", "multipart/form-data; boundary=" + BOUNDARY, body.toByteArray());
+    }
+
+    @Benchmark
+    public int tarBatch() throws IOException {
+        int prefix = invocation++;
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int i = 0; i < BATCH; i++) {
+            writeTarEntry(body, fileName(prefix, i));
+        }
+        body.write(new byte[1024]);
+        return post("/batch", "application/x-tar", body.toByteArray());
+    }
+
+    private static String fileName(int prefix, int index) {
+        return String.format("batch_%06d_%03d.txt", prefix, index);
+    }
+
+    private void writePart(ByteArrayOutputStream body, String field, String fileName) throws IOException {
+        body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + field + "\"; filename=\""
+                + fileName + "\"\r\nContent-Type: text/plain\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        body.write(content);
+        body.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void writeTarEntry(ByteArrayOutputStream body, String fileName) throws IOException {
+        byte[] header = new byte[512];
+        byte[] name = fileName.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(name, 0, header, 0, name.length);
+        putOctal(header, 100, 8, 0644);
+        putOctal(header, 124, 12, content.length);
+        putOctal(header, 136, 12, 0);
+        header[156] = '0';
+        System.arraycopy(("ustar\0" + "00").getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+        long sum = 8 * ' ';
+        for (byte b : header) {
+            sum += b & 0xff;
+        }
+        putOctal(header, 148, 7, sum);
+        body.write(header);
+        body.write(content);
+        body.write(new byte[(512 - content.length % 512) % 512]);
+    }
+
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        String octal = String.format("%0" + (length - 1) + "o", value);
+        System.arraycopy(octal.getBytes(StandardCharsets.US_ASCII), 0, header, offset, length - 1);
+    }
+
+    private int post(String path, String contentType, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        connection.setRequestProperty("Content-Type", contentType);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        int status = connection.getResponseCode();
+        if (status != 200) {
+            throw new IOException("Upload failed with status " + status);
+        }
+        byte[] buffer = new byte[8192];
+        try (InputStream in = connection.getInputStream()) {
+            while (in.read(buffer) >= 0) {
+                // Drain the response so the connection is reused
+            }
+        }
+        return status;
+    }
+}
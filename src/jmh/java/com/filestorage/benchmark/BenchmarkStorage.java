@@ -0,0 +1,126 @@
+package com.filestorage.benchmark;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.springframework.boot.Banner;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.filestorage.FilestorageApplication;
+import com.filestorage.util.FileStorageUtil;
+
+/**
+ * Shared fixtures for the benchmarks: generated storage trees and a
+ * non-web application context pointed at them.
+ */
+public final class BenchmarkStorage {
+
+    /** Seed of the trees and samples used by all benchmarks. */
+    public static final long SEED = 42L;
+
+    private static final Path TREES_DIR = Paths.get("target", "benchmark-storage");
+    private static final String COMPLETE_MARKER = ".complete";
+    private static final String[] FAMILIES = { "users_", "demo1and1_", "invoice_2024_", "report_" };
+
+    private BenchmarkStorage() {
+    }
+
+    /**
+     * Returns a storage tree holding the given number of files, generating it
+     * on first use. Trees are keyed by size and seed and reused across runs;
+     * an interrupted generation is resumed on the next run.
+     */
+    public static Path tree(int fileCount, long seed) throws IOException {
+        Path root = TREES_DIR.resolve(fileCount + "-" + seed).toAbsolutePath();
+        if (Files.exists(root.resolve(COMPLETE_MARKER))) {
+            return root;
+        }
+
+        FileStorageUtil fileStorageUtil = new FileStorageUtil(root.toString());
+        try {
+            IntStream.range(0, fileCount).parallel().forEach(i -> {
+                Path filePath = fileStorageUtil.resolveFilePath(fileName(i, seed));
+                try {
+                    Files.createDirectories(filePath.getParent());
+                    Files.createFile(filePath);
+                } catch (FileAlreadyExistsException e) {
+                    // Left by an interrupted generation
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Files.createFile(root.resolve(COMPLETE_MARKER));
+        return root;
+    }
+
+    /**
+     * Returns the name of the file at the given position of the tree
+     * generated with the given seed: a name family prefix picked by the seed,
+     * the position in hex and a {@code .txt} extension.
+     */
+    public static String fileName(int index, long seed) {
+        long hash = (seed + index) * 0x9e3779b97f4a7c15L;
+        hash ^= hash >>> 32;
+        String family = FAMILIES[(int) ((hash & Long.MAX_VALUE) % FAMILIES.length)];
+        return family + String.format("%08x", index) + ".txt";
+    }
+
+    /**
+     * Returns the names stored in the tree generated for the given size and
+     * seed, in generation order.
+     */
+    public static List<String> fileNames(int fileCount, long seed) {
+        List<String> names = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            names.add(fileName(i, seed));
+        }
+        return names;
+    }
+
+    /**
+     * Starts the application without the web layer against the given storage
+     * directory.
+     */
+    public static ConfigurableApplicationContext start(Path root, String... properties) {
+        return run(WebApplicationType.NONE, root, properties);
+    }
+
+    /**
+     * Starts the application with an embedded server on a random port; the
+     * port is available as the {@code local.server.port} property.
+     */
+    public static ConfigurableApplicationContext startServer(Path root, String... properties) {
+        List<String> args = new ArrayList<>(Arrays.asList(properties));
+        args.add("server.port=0");
+        return run(WebApplicationType.SERVLET, root, args.toArray(new String[0]));
+    }
+
+    private static ConfigurableApplicationContext run(WebApplicationType type, Path root, String... properties) {
+        System.setProperty("spring.devtools.restart.enabled", "false");
+        List<String> args = new ArrayList<>(Arrays.asList(
+                "file.storage.location=" + root,
+                "logging.level.root=WARN",
+                "logging.level.com.filestorage=WARN",
+                "logging.file.name=target/benchmark.log"));
+        args.addAll(Arrays.asList(properties));
+        // Passed as command line arguments so they take precedence over application.properties
+        return new SpringApplicationBuilder(FilestorageApplication.class)
+                .web(type)
+                .bannerMode(Banner.Mode.OFF)
+                .logStartupInfo(false)
+                .run(args.stream().map(arg -> "--" + arg).toArray(String[]::new));
+    }
+}
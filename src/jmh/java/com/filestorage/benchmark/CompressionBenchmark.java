@@ -0,0 +1,160 @@
+package com.filestorage.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.filestorage.util.GzipCodec;
+
+/**
+ * Measures what stored-file compression costs and saves, per compression
+ * level and kind of content: {@code compress} is the upload side, a file
+ * gzipped into the storage, {@code decompress} the download side for clients
+ * that do not accept gzip, and {@code sample} the check that sends
+ * incompressible files through as they are.
+ *
+ * Throughput is reported in MB of uncompressed content per second
+ * ({@code Transfer.megabytes}) and, for {@code compress}, in MB of gzip
+ * written per second ({@code Stored.storedMegabytes}). The second divided by
+ * the first is the size of the stored file as a fraction of the content, so
+ * CPU can be traded against disk and network bandwidth; it is not a counter
+ * of its own because JMH adds such counters up over the iterations.
+ * {@code content=text} is generated log lines, {@code content=random}
+ * incompressible bytes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CompressionBenchmark {
+
+    private static final int CONTENT_SIZE = 4 * 1024 * 1024;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final String[] LEVELS = { "INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR" };
+    private static final String[] EVENTS = { "request served", "cache miss", "file stored", "file deleted",
+            "upload rejected", "segment compacted" };
+
+    @Param({ "text", "random" })
+    private String content;
+
+    @Param({ "1", "6", "9" })
+    private int level;
+
+    private byte[] raw;
+    private byte[] stored;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Transfer {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Stored {
+        public double storedMegabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            storedMegabytes = 0;
+        }
+    }
+
+    /**
+     * Discards what is written, counting it.
+     */
+    private static final class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Random random = new Random(BenchmarkStorage.SEED);
+        if ("random".equals(content)) {
+            raw = new byte[CONTENT_SIZE];
+            random.nextBytes(raw);
+        } else {
+            StringBuilder text = new StringBuilder(CONTENT_SIZE + 256);
+            long time = 1_700_000_000_000L;
+            while (text.length() < CONTENT_SIZE) {
+                time += random.nextInt(5000);
+                text.append(time).append(' ').append(LEVELS[random.nextInt(LEVELS.length)]).append(" [worker-")
+                        .append(random.nextInt(64)).append("] ").append(EVENTS[random.nextInt(EVENTS.length)])
+                        .append(" file=users_").append(random.nextInt(1_000_000)).append(".txt bytes=")
+                        .append(random.nextInt(1 << 20)).append(" ms=").append(random.nextInt(250)).append('\n');
+            }
+            raw = text.substring(0, CONTENT_SIZE).getBytes(StandardCharsets.US_ASCII);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(CONTENT_SIZE);
+        try (OutputStream gzip = GzipCodec.compress(out, level)) {
+            gzip.write(raw);
+        }
+        stored = out.toByteArray();
+    }
+
+    @Benchmark
+    public long compress(Transfer transfer, Stored output) throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        try (OutputStream gzip = GzipCodec.compress(out, level)) {
+            gzip.write(raw);
+        }
+        transfer.megabytes += raw.length / (1024.0 * 1024.0);
+        output.storedMegabytes += out.count / (1024.0 * 1024.0);
+        return out.count;
+    }
+
+    @Benchmark
+    public long decompress(Transfer transfer) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long read = 0;
+        try (InputStream in = GzipCodec.decompress(ByteBuffer.wrap(stored))) {
+            for (int n; (n = in.read(buffer)) != -1;) {
+                read += n;
+            }
+        }
+        transfer.megabytes += read / (1024.0 * 1024.0);
+        return read;
+    }
+
+    @Benchmark
+    public double sample(Transfer transfer) {
+        transfer.megabytes += SAMPLE_SIZE / (1024.0 * 1024.0);
+        return GzipCodec.ratio(raw, SAMPLE_SIZE, level);
+    }
+}
@@ -0,0 +1,100 @@
+package com.filestorage.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.filestorage.dto.FileDto;
+import com.filestorage.service.FileStorageService;
+
+/**
+ * Stress test of concurrent writes: every thread replaces 1 KiB files in a
+ * loop. With {@code names=distinct} each thread writes its own files, which
+ * only contend for the disk; with {@code names=shared} all threads write the
+ * same 16 files and are serialized per name. Run with increasing thread
+ * counts ({@code -t 1}, {@code -t 4}, ...) to see throughput scale.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ConcurrentWriteBenchmark {
+
+    private static final int FILES_PER_THREAD = 16;
+    private static final int FILE_SIZE = 1024;
+
+    @State(Scope.Benchmark)
+    public static class Storage {
+
+        @Param({ "distinct", "shared" })
+        private String names;
+
+        private ConfigurableApplicationContext context;
+        private FileStorageService fileStorageService;
+        private byte[] content;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            Path root = BenchmarkStorage.tree(10000, BenchmarkStorage.SEED);
+            context = BenchmarkStorage.start(root);
+            fileStorageService = context.getBean(FileStorageService.class);
+            content = new byte[FILE_SIZE];
+            new Random(BenchmarkStorage.SEED).nextBytes(content);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            // Leave the shared tree as it was generated
+            for (FileDto file : fileStorageService.listFilesMatchingRegex("stress_.*", 0, 100000).getData()
+                    .getFiles()) {
+                fileStorageService.deleteFile(file.getFileName());
+            }
+            context.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+
+        private String[] fileNames;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setup(Storage storage, ThreadParams threads) {
+            int owner = "shared".equals(storage.names) ? 0 : threads.getThreadIndex();
+            fileNames = new String[FILES_PER_THREAD];
+            for (int i = 0; i < fileNames.length; i++) {
+                fileNames[i] = String.format("stress_%03d_%02d.txt", owner, i);
+            }
+        }
+
+        private String nextName() {
+            next = (next + 1) & (FILES_PER_THREAD - 1);
+            return fileNames[next];
+        }
+    }
+
+    @Benchmark
+    public String storeFile(Storage storage, Writer writer) {
+        return storage.fileStorageService.storeFile(writer.nextName(), new ByteArrayInputStream(storage.content),
+                FILE_SIZE);
+    }
+}
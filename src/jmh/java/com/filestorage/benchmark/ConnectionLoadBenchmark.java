@@ -0,0 +1,268 @@
+package com.filestorage.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.FileSystemUtils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Holds {@code connections} raw uploads open at once, each having sent half
+ * of its body, then lets them finish, with requests handled on Tomcat's pool
+ * of 200 platform threads ({@code threads=platform}) or on virtual threads
+ * ({@code threads=virtual}, which needs a build with the
+ * {@code virtual-threads} profile on JDK 21). The score is the time to
+ * complete all the uploads. While they are held, the benchmark records:
+ * <ul>
+ * <li>{@code Load.concurrentUploads}: uploads inside the storage service,
+ * i.e. holding a request thread;</li>
+ * <li>{@code Load.probeMs}: latency of a {@code GET /files/count} sent
+ * meanwhile;</li>
+ * <li>{@code Load.rssKbPerConnection}: resident memory of the process above
+ * the idle server, per connection;</li>
+ * <li>{@code Load.platformThreads}: live platform threads.</li>
+ * </ul>
+ * The client uses one blocking socket per connection from the benchmark
+ * thread, so it adds no threads of its own.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 1, time = 5)
+// A single iteration, as JMH adds up event counters over iterations
+@Measurement(iterations = 1, time = 15)
+public class ConnectionLoadBenchmark {
+
+    private static final int FILE_SIZE = 8 * 1024;
+
+    @Param({ "platform", "virtual" })
+    private String threads;
+
+    @Param({ "100", "1000" })
+    private int connections;
+
+    @Param({ "1000" })
+    private int holdMs;
+
+    private ConfigurableApplicationContext context;
+    private Path root;
+    private InetSocketAddress address;
+    private URL probeUrl;
+    private MeterRegistry meterRegistry;
+    private long idleRssKb;
+    private int invocation;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Load {
+        private int invocations;
+        private long concurrentUploads;
+        private long probeMillis;
+        private long rssKb;
+        private long connections;
+        private long platformThreads;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            invocations = 0;
+            concurrentUploads = 0;
+            probeMillis = 0;
+            rssKb = 0;
+            connections = 0;
+            platformThreads = 0;
+        }
+
+        public double concurrentUploads() {
+            return invocations == 0 ? 0 : (double) concurrentUploads / invocations;
+        }
+
+        public double probeMs() {
+            return invocations == 0 ? 0 : (double) probeMillis / invocations;
+        }
+
+        public double rssKbPerConnection() {
+            return connections == 0 ? 0 : (double) rssKb / connections;
+        }
+
+        public double platformThreads() {
+            return invocations == 0 ? 0 : (double) platformThreads / invocations;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        boolean virtual = "virtual".equals(threads);
+        if (virtual && !hasVirtualThreadSupport()) {
+            throw new IllegalStateException(
+                    "threads=virtual needs a build with -Pvirtual-threads on JDK 21; run with -p threads=platform");
+        }
+        root = Paths.get("target", "benchmark-storage", "connection-load").toAbsolutePath();
+        FileSystemUtils.deleteRecursively(root.toFile());
+        context = BenchmarkStorage.startServer(root, "file.storage.index.enabled=false",
+                "file.storage.virtual-threads.enabled=" + virtual);
+        int port = Integer.parseInt(context.getEnvironment().getProperty("local.server.port"));
+        address = new InetSocketAddress("localhost", port);
+        probeUrl = new URL("http://localhost:" + port + "/files/count");
+        meterRegistry = context.getBean(MeterRegistry.class);
+
+        probe();
+        System.gc();
+        idleRssKb = residentKb();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+        FileSystemUtils.deleteRecursively(root.toFile());
+    }
+
+    @Benchmark
+    public int holdUploads(Load load) throws Exception {
+        int batch = invocation++;
+        byte[] rest = new byte[FILE_SIZE / 2];
+        List<SocketChannel> channels = new ArrayList<>(connections);
+        try {
+            for (int i = 0; i < connections; i++) {
+                SocketChannel channel = SocketChannel.open(address);
+                channels.add(channel);
+                writeFully(channel, head(String.format("load_%04d_%05d.bin", batch, i)));
+            }
+
+            Thread.sleep(holdMs / 2);
+            load.concurrentUploads += (long) meterRegistry.get("filestorage.operations.active")
+                    .tag("operation", "store").gauge().value();
+            load.rssKb += Math.max(0, residentKb() - idleRssKb);
+            load.connections += connections;
+            load.platformThreads += ManagementFactory.getThreadMXBean().getThreadCount();
+            long[] probeMillis = new long[1];
+            Thread prober = new Thread(() -> probeMillis[0] = probe(), "connection-load-probe");
+            prober.start();
+            Thread.sleep(holdMs / 2);
+
+            for (SocketChannel channel : channels) {
+                writeFully(channel, rest);
+            }
+            int created = 0;
+            for (SocketChannel channel : channels) {
+                if (readStatus(channel) == 200) {
+                    created++;
+                }
+            }
+            prober.join();
+            if (created != connections) {
+                throw new IOException("Only " + created + " of " + connections + " uploads succeeded");
+            }
+            load.probeMillis += probeMillis[0];
+            load.invocations++;
+            return created;
+        } finally {
+            for (SocketChannel channel : channels) {
+                channel.close();
+            }
+        }
+    }
+
+    private static boolean hasVirtualThreadSupport() {
+        try {
+            Class.forName("com.filestorage.config.VirtualThreadConfiguration");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static byte[] head(String fileName) {
+        byte[] headers = ("PUT /files/" + fileName + " HTTP/1.1\r\nHost: localhost\r\n"
+                + "Content-Type: application/octet-stream\r\nContent-Length: " + FILE_SIZE + "\r\n"
+                + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] head = new byte[headers.length + FILE_SIZE / 2];
+        System.arraycopy(headers, 0, head, 0, headers.length);
+        return head;
+    }
+
+    private static void writeFully(SocketChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads the response, up to the end of the connection or the first 4 KiB,
+     * and returns its status code.
+     */
+    private static int readStatus(SocketChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // The server closes the connection after the response
+        }
+        String response = new String(buffer.array(), 0, Math.min(buffer.position(), 12), StandardCharsets.US_ASCII);
+        return response.startsWith("HTTP/1.1 ") ? Integer.parseInt(response.substring(9, 12)) : -1;
+    }
+
+    /**
+     * Counts the files and returns how long the request took, in
+     * milliseconds.
+     */
+    private long probe() {
+        long started = System.nanoTime();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) probeUrl.openConnection();
+            try (InputStream in = connection.getInputStream()) {
+                while (in.read() >= 0) {
+                    // Drain the response
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Probe request failed", e);
+        }
+        return (System.nanoTime() - started) / 1_000_000;
+    }
+
+    /**
+     * Returns the resident set size of the process, or 0 where
+     * {@code /proc} is not available.
+     */
+    private static long residentKb() throws IOException {
+        Path status = Paths.get("/proc/self/status");
+        if (!Files.exists(status)) {
+            return 0;
+        }
+        for (String line : Files.readAllLines(status, StandardCharsets.US_ASCII)) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("[^0-9]", ""));
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,143 @@
+package com.filestorage.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.filestorage.util.FileStorageUtil;
+
+/**
+ * Downloads a large file over HTTP through the zero-copy endpoint and through
+ * the previous {@link LegacyDownloadController} path, reporting throughput in
+ * MB/s ({@code Transfer.megabytes}) and process CPU time per GB transferred
+ * ({@code Cpu.cpuMsPerGb}). The client runs in the same process and costs the
+ * same in both cases, so differences in CPU come from the server side.
+ *
+ * {@code range=single} requests the second half of the file with a
+ * {@code Range} header, as a resumed download would.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 5)
+public class DownloadBenchmark {
+
+    private static final String FILE_NAME = "download_benchmark.bin";
+
+    @Param({ "zeroCopy", "legacy" })
+    private String path;
+
+    @Param({ "none", "single" })
+    private String range;
+
+    @Param({ "64" })
+    private int sizeMb;
+
+    private ConfigurableApplicationContext context;
+    private URL url;
+    private long fileSize;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Transfer {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Cpu {
+        private long bytes;
+        private long cpuNanos;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+            cpuNanos = 0;
+        }
+
+        public double cpuMsPerGb() {
+            return bytes == 0 ? 0 : cpuNanos / 1e6 / (bytes / 1e9);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Path root = Paths.get("target", "benchmark-storage", "download-" + sizeMb).toAbsolutePath();
+        Path filePath = new FileStorageUtil(root.toString()).resolveFilePath(FILE_NAME);
+        Files.createDirectories(filePath.getParent());
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(42L).nextBytes(chunk);
+        try (OutputStream out = Files.newOutputStream(filePath)) {
+            for (int i = 0; i < sizeMb; i++) {
+                out.write(chunk);
+            }
+        }
+        fileSize = Files.size(filePath);
+
+        context = BenchmarkStorage.startServer(root, "file.storage.index.enabled=false");
+        String port = context.getEnvironment().getProperty("local.server.port");
+        String endpoint = "zeroCopy".equals(path) ? "/files/download/" : "/benchmark/legacy-download/";
+        url = new URL("http://localhost:" + port + endpoint + FILE_NAME);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public long download(Transfer transfer, Cpu cpu) throws IOException {
+        long cpuBefore = processCpuTime();
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if ("single".equals(range)) {
+            connection.setRequestProperty("Range", "bytes=" + fileSize / 2 + "-");
+        }
+        long read = 0;
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = connection.getInputStream()) {
+            for (int n; (n = in.read(buffer)) > 0;) {
+                read += n;
+            }
+        }
+        cpu.cpuNanos += processCpuTime() - cpuBefore;
+        cpu.bytes += read;
+        transfer.megabytes += read / (1024.0 * 1024.0);
+        return read;
+    }
+
+    private static long processCpuTime() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                .getProcessCpuTime();
+    }
+}
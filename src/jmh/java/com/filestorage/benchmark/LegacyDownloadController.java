@@ -0,0 +1,37 @@
+package com.filestorage.benchmark;
+
+import java.nio.file.Path;
+
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.UrlResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.filestorage.service.FileStorageService;
+
+/**
+ * The download endpoint as it was before ranged zero-copy downloads: the file
+ * is wrapped in a {@link UrlResource} and copied by Spring's resource message
+ * converters, which also answer range requests by copying regions through a
+ * heap buffer. Only on the classpath of the benchmark profile.
+ */
+@RestController
+public class LegacyDownloadController {
+
+    private final FileStorageService fileStorageService;
+
+    public LegacyDownloadController(FileStorageService fileStorageService) {
+        this.fileStorageService = fileStorageService;
+    }
+
+    @GetMapping("/benchmark/legacy-download/{fileName}")
+    public ResponseEntity<Resource> getFile(@PathVariable String fileName) throws Exception {
+        Path filePath = fileStorageService.getFile(fileName);
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"")
+                .body(new UrlResource(filePath.toUri()));
+    }
+}
@@ -0,0 +1,85 @@
+package com.filestorage.benchmark;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.filestorage.model.BaseResponseMetadata;
+import com.filestorage.model.GetFileResponse;
+import com.filestorage.service.FileStorageService;
+
+/**
+ * Measures searches whose regex has a literal prefix, suffix or exact name
+ * against the same searches written so that no literal can be extracted
+ * ({@code pruned=false}), which forces the regex to run on every name.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RegexPruningBenchmark {
+
+    @Param({ "100000" })
+    private int fileCount;
+
+    @Param({ "prefix", "suffix", "exact" })
+    private String query;
+
+    @Param({ "true", "false" })
+    private boolean pruned;
+
+    @Param({ "true", "false" })
+    private boolean indexEnabled;
+
+    private ConfigurableApplicationContext context;
+    private FileStorageService fileStorageService;
+    private String regex;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Path root = BenchmarkStorage.tree(fileCount, BenchmarkStorage.SEED);
+        context = BenchmarkStorage.start(root, "file.storage.index.enabled=" + indexEnabled);
+        fileStorageService = context.getBean(FileStorageService.class);
+
+        String literalRegex;
+        switch (query) {
+            case "prefix":
+                literalRegex = "invoice_2024_.*";
+                break;
+            case "suffix":
+                literalRegex = ".*0f\\.txt";
+                break;
+            default:
+                literalRegex = Pattern.quote(BenchmarkStorage.fileName(fileCount / 2, BenchmarkStorage.SEED));
+        }
+        // Wrapping in a non-capturing group matches the same names but hides the literals
+        regex = pruned ? literalRegex : "(?:" + literalRegex + ")";
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public BaseResponseMetadata<GetFileResponse> search() {
+        return fileStorageService.listFilesMatchingRegex(regex, 0, 10);
+    }
+}
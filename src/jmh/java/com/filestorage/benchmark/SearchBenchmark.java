@@ -0,0 +1,72 @@
+package com.filestorage.benchmark;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.filestorage.model.BaseResponseMetadata;
+import com.filestorage.model.GetFileResponse;
+import com.filestorage.service.FileStorageService;
+
+/**
+ * Compares {@code /files/search} answered from the in-memory name index with
+ * the directory scan it replaces.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SearchBenchmark {
+
+    @Param({ "10000", "100000" })
+    private int fileCount;
+
+    @Param({ "true", "false" })
+    private boolean indexEnabled;
+
+    private ConfigurableApplicationContext context;
+    private FileStorageService fileStorageService;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Path root = BenchmarkStorage.tree(fileCount, BenchmarkStorage.SEED);
+        context = BenchmarkStorage.start(root, "file.storage.index.enabled=" + indexEnabled);
+        fileStorageService = context.getBean(FileStorageService.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public BaseResponseMetadata<GetFileResponse> firstPage() {
+        return fileStorageService.listFilesMatchingRegex("users_.*", 0, 10);
+    }
+
+    @Benchmark
+    public BaseResponseMetadata<GetFileResponse> deepPage() {
+        return fileStorageService.listFilesMatchingRegex("users_.*", 100, 10);
+    }
+
+    @Benchmark
+    public BaseResponseMetadata<GetFileResponse> matchAll() {
+        return fileStorageService.listFilesMatchingRegex(".*", 0, 100);
+    }
+}
@@ -0,0 +1,93 @@
+package com.filestorage.benchmark;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.filestorage.util.ShardLayout;
+import com.filestorage.util.ShardingStrategy;
+
+/**
+ * Measures placing a file name in its shard folder with the original hashing
+ * code ({@code strategy=legacy}: a new SHA-256 digest and a 64 character hex
+ * string per call) against the {@link ShardingStrategy} implementations.
+ * {@code shard} computes the folder name only, {@code resolve} the whole
+ * storage path. Run with {@code -prof gc} to compare allocations per call
+ * ({@code gc.alloc.rate.norm}).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ShardingBenchmark {
+
+    private static final Path ROOT = Paths.get("data-storage");
+
+    @Param({ "legacy", "sha256", "fnv1a" })
+    private String strategy;
+
+    private String[] names;
+    private ShardLayout layout;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        List<String> fileNames = BenchmarkStorage.fileNames(1024, BenchmarkStorage.SEED);
+        names = fileNames.toArray(new String[0]);
+        layout = "legacy".equals(strategy) ? null : ShardLayout.of(1, 256, ShardingStrategy.forName(strategy));
+    }
+
+    private String nextName() {
+        next = (next + 1) & (names.length - 1);
+        return names[next];
+    }
+
+    @Benchmark
+    public String shard() {
+        String fileName = nextName();
+        return layout == null ? legacyHash(fileName).substring(0, 2) : layout.shardOf(fileName);
+    }
+
+    @Benchmark
+    public Path resolve() {
+        String fileName = nextName();
+        return layout == null ? Paths.get(ROOT.toString(), legacyHash(fileName).substring(0, 2), fileName)
+                : layout.resolve(ROOT, fileName);
+    }
+
+    /**
+     * The hashing of the original FileStorageUtil.generateFileHash, without
+     * its debug logging.
+     */
+    private static String legacyHash(String fileName) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hashBytes = digest.digest(fileName.getBytes());
+            StringBuilder hexString = new StringBuilder();
+            for (byte b : hashBytes) {
+                hexString.append(String.format("%02x", b));
+            }
+            return hexString.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Error hashing file name", e);
+        }
+    }
+}
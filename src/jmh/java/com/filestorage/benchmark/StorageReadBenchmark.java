@@ -0,0 +1,103 @@
+package com.filestorage.benchmark;
+
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.filestorage.model.BaseResponseMetadata;
+import com.filestorage.model.GetFileResponse;
+import com.filestorage.service.FileStorageService;
+import com.filestorage.service.StoredFile;
+import com.filestorage.util.FileStorageUtil;
+
+/**
+ * Measures the read paths of the storage against generated trees: path
+ * resolution and name validation, reading a stored file, the first page of a
+ * search and the file count. Files are picked from a fixed sample of the tree
+ * drawn with {@link BenchmarkStorage#SEED}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StorageReadBenchmark {
+
+    private static final int SAMPLE_SIZE = 1024;
+
+    @Param({ "10000", "1000000", "10000000" })
+    private int fileCount;
+
+    private ConfigurableApplicationContext context;
+    private FileStorageService fileStorageService;
+    private FileStorageUtil fileStorageUtil;
+    private String[] names;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Path root = BenchmarkStorage.tree(fileCount, BenchmarkStorage.SEED);
+        context = BenchmarkStorage.start(root);
+        fileStorageService = context.getBean(FileStorageService.class);
+        fileStorageUtil = context.getBean(FileStorageUtil.class);
+
+        Random random = new Random(BenchmarkStorage.SEED);
+        names = new String[SAMPLE_SIZE];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = BenchmarkStorage.fileName(random.nextInt(fileCount), BenchmarkStorage.SEED);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    private String nextName() {
+        next = (next + 1) & (SAMPLE_SIZE - 1);
+        return names[next];
+    }
+
+    @Benchmark
+    public Path resolveFilePath() {
+        return fileStorageUtil.resolveFilePath(nextName());
+    }
+
+    @Benchmark
+    public String validateFileName() {
+        String fileName = nextName();
+        fileStorageUtil.validateFileName(fileName);
+        return fileName;
+    }
+
+    @Benchmark
+    public StoredFile getFile() throws Exception {
+        return fileStorageService.getStoredFile(nextName());
+    }
+
+    @Benchmark
+    public BaseResponseMetadata<GetFileResponse> listFilesMatchingRegex() {
+        return fileStorageService.listFilesMatchingRegex("users_.*", 0, 10);
+    }
+
+    @Benchmark
+    public long countFiles() {
+        return fileStorageService.countFiles();
+    }
+}
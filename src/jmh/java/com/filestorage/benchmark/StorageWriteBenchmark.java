@@ -0,0 +1,119 @@
+package com.filestorage.benchmark;
+
+import java.io.FileNotFoundException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+import com.filestorage.service.FileStorageService;
+
+/**
+ * Measures uploading, updating and deleting 1 KiB files in generated trees.
+ *
+ * Each invocation handles a batch of files of its own, named outside the
+ * generated families, so the shared tree is left as it was: the files to
+ * update or delete are uploaded before the iteration and whatever an
+ * iteration leaves behind is deleted after it. Scores are per file.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+public class StorageWriteBenchmark {
+
+    private static final int BATCH = 1000;
+    private static final int FILE_SIZE = 1024;
+
+    @Param({ "10000", "1000000", "10000000" })
+    private int fileCount;
+
+    private ConfigurableApplicationContext context;
+    private FileStorageService fileStorageService;
+    private final MultipartFile[] files = new MultipartFile[BATCH];
+    private byte[] content;
+    private int iteration;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Path root = BenchmarkStorage.tree(fileCount, BenchmarkStorage.SEED);
+        context = BenchmarkStorage.start(root);
+        fileStorageService = context.getBean(FileStorageService.class);
+        content = new byte[FILE_SIZE];
+        new Random(BenchmarkStorage.SEED).nextBytes(content);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Setup(Level.Iteration)
+    public void prepareBatch(BenchmarkParams params) {
+        iteration++;
+        for (int i = 0; i < BATCH; i++) {
+            String fileName = String.format("bench_%04d_%04d.txt", iteration, i);
+            files[i] = new MockMultipartFile("file", fileName, "text/plain", content);
+        }
+        if (!params.getBenchmark().endsWith(".saveFile")) {
+            for (MultipartFile file : files) {
+                fileStorageService.saveFile(file);
+            }
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void removeBatch() throws Exception {
+        for (MultipartFile file : files) {
+            try {
+                fileStorageService.deleteFile(file.getOriginalFilename());
+            } catch (FileNotFoundException e) {
+                // Deleted by the benchmark
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void saveFile() {
+        for (MultipartFile file : files) {
+            fileStorageService.saveFile(file);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void updateFile() throws Exception {
+        for (MultipartFile file : files) {
+            fileStorageService.updateFile(file.getOriginalFilename(), file);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void deleteFile() throws Exception {
+        for (MultipartFile file : files) {
+            fileStorageService.deleteFile(file.getOriginalFilename());
+        }
+    }
+}
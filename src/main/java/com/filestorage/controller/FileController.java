@@ -1,21 +1,51 @@
 package com.filestorage.controller;
 
 import org.springframework.http.HttpHeaders;
-import org.springframework.core.io.Resource;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.filestorage.dto.ArchiveRequest;
+import com.filestorage.dto.BatchFileResult;
+import com.filestorage.dto.BulkDeleteRequest;
+import com.filestorage.dto.FileDto;
 import com.filestorage.model.BaseResponse;
 import com.filestorage.model.BaseResponseMetadata;
 import com.filestorage.model.GetFileResponse;
+import com.filestorage.service.ArchiveService;
+import com.filestorage.service.BatchUploadService;
+import com.filestorage.service.BulkDeleteJob;
+import com.filestorage.service.BulkDeleteService;
 import com.filestorage.service.FileStorageService;
+import com.filestorage.service.StorageMetrics;
+import com.filestorage.service.StoredFile;
+import com.filestorage.util.AsyncBodyReceiver;
+import com.filestorage.util.FileNameMatcher;
+import com.filestorage.util.FileRangeWriter;
+import com.filestorage.util.GzipCodec;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.springframework.core.io.UrlResource;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.method.support.ModelAndViewContainer;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import java.nio.file.Path;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * REST Controller for file storage operations.
@@ -25,10 +55,32 @@ import java.nio.file.Path;
 public class FileController {
 
     private static final Logger logger = LogManager.getLogger(FileController.class);
+    private static final String NDJSON = "application/x-ndjson";
+    private static final String TAR = "application/x-tar";
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final int STREAM_FLUSH_INTERVAL = 1000;
+
+    // Writing a line must not close the response stream
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
     private final FileStorageService fileStorageService;
+    private final StorageMetrics storageMetrics;
+    private final BatchUploadService batchUploadService;
+    private final BulkDeleteService bulkDeleteService;
+    private final ArchiveService archiveService;
+
+    // Uploads and downloads wait for the client without holding a request thread
+    @Value("${file.storage.io.non-blocking:false}")
+    private boolean nonBlockingIo;
 
-    public FileController(FileStorageService fileStorageService) {
+    public FileController(FileStorageService fileStorageService, StorageMetrics storageMetrics,
+            BatchUploadService batchUploadService, BulkDeleteService bulkDeleteService,
+            ArchiveService archiveService) {
         this.fileStorageService = fileStorageService;
+        this.storageMetrics = storageMetrics;
+        this.batchUploadService = batchUploadService;
+        this.bulkDeleteService = bulkDeleteService;
+        this.archiveService = archiveService;
     }
 
     /**
@@ -47,6 +99,47 @@ public class FileController {
         }
     }
 
+    /**
+     * Uploads many files in one multipart request, written in parallel. Each
+     * file gets a result: {@code created}, {@code exists} (left as it was),
+     * {@code stored} (with {@code overwrite}), {@code invalid} or
+     * {@code failed}.
+     */
+    @PostMapping(value = "/batch", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<BaseResponse<List<BatchFileResult>>> uploadFiles(
+            @RequestParam("files") List<MultipartFile> files,
+            @RequestParam(defaultValue = "false") boolean overwrite) {
+        try {
+            logger.info("FileController.uploadFiles(): In... files={}, overwrite={}", files.size(), overwrite);
+            List<BatchFileResult> results = batchUploadService.uploadFiles(files, overwrite);
+            logger.info("FileController.uploadFiles(): Out...");
+            return ResponseEntity.ok(new BaseResponse<>(results));
+        } catch (Exception e) {
+            logger.error("FileController.uploadFiles(): Error", e);
+            throw e;
+        }
+    }
+
+    /**
+     * Uploads the files of an {@code application/x-tar} body, named by their
+     * path in the archive. The archive is streamed, so the multipart size
+     * limits do not apply.
+     */
+    @PostMapping(value = "/batch", consumes = TAR)
+    public ResponseEntity<BaseResponse<List<BatchFileResult>>> uploadTar(
+            @RequestParam(defaultValue = "false") boolean overwrite, HttpServletRequest request) throws Exception {
+        try {
+            logger.info("FileController.uploadTar(): In... contentLength={}, overwrite={}",
+                    request.getContentLengthLong(), overwrite);
+            List<BatchFileResult> results = batchUploadService.uploadTar(request.getInputStream(), overwrite);
+            logger.info("FileController.uploadTar(): Out...");
+            return ResponseEntity.ok(new BaseResponse<>(results));
+        } catch (Exception e) {
+            logger.error("FileController.uploadTar(): Error", e);
+            throw e;
+        }
+    }
+
     /**
      * Updates an existing file with new content.
      */
@@ -65,30 +158,201 @@ public class FileController {
     }
 
     /**
-     * Serves a file as a downloadable resource.
+     * Creates or replaces a file from a raw {@code application/octet-stream}
+     * body, streamed straight to storage without multipart parsing, so the
+     * multipart size limits do not apply.
      */
-    @GetMapping("/download/{fileName}")
-    public ResponseEntity<Resource> getFile(@PathVariable String fileName) throws Exception {
+    @PutMapping(value = "/{fileName}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<BaseResponse<String>> putFile(@PathVariable String fileName, HttpServletRequest request)
+            throws Exception {
+        try {
+            logger.info("FileController.putFile(): In... fileName={}, contentLength={}", fileName,
+                    request.getContentLengthLong());
+            if (nonBlockingIo && request.isAsyncSupported()) {
+                receiveFile(fileName, request);
+                logger.info("FileController.putFile(): Out... Receiving without blocking");
+                return null;
+            }
+            String filePath = fileStorageService.storeFile(fileName, request.getInputStream(),
+                    request.getContentLengthLong());
+            logger.info("FileController.putFile(): Out...");
+            return ResponseEntity.ok(new BaseResponse<>(filePath));
+        } catch (Exception e) {
+            logger.error("FileController.putFile(): Error", e);
+            throw e;
+        }
+    }
+
+    /**
+     * Receives a {@link #putFile(String, HttpServletRequest)} body with
+     * servlet non-blocking reads into a temporary file, then stores it. The
+     * response is produced once the body is complete, through a
+     * {@link DeferredResult} so errors reach the exception handlers.
+     */
+    private void receiveFile(String fileName, HttpServletRequest request) throws Exception {
+        FileStorageService.Upload upload = fileStorageService.createUpload(fileName);
+        DeferredResult<ResponseEntity<BaseResponse<String>>> result = new DeferredResult<>();
+        try {
+            // The redispatch renders the result with the context's model, which a REST handler leaves empty
+            WebAsyncUtils.getAsyncManager(request).startDeferredResultProcessing(result, new ModelAndViewContainer());
+        } catch (Exception e) {
+            upload.discard();
+            throw e;
+        }
         try {
-            logger.info("FileController.getFile(): In... fileName={}", fileName);
-            Path filePath = fileStorageService.getFile(fileName);
-            Resource fileResource = new UrlResource(filePath.toUri());
+            upload.receive(request.getInputStream(), request.getContentLengthLong(),
+                    new AsyncBodyReceiver.Completion() {
+                        @Override
+                        public void completed(long bytes) {
+                            try {
+                                String filePath = fileStorageService.storeUpload(upload);
+                                result.setResult(ResponseEntity.ok(new BaseResponse<>(filePath)));
+                            } catch (RuntimeException e) {
+                                logger.error("FileController.putFile(): Error", e);
+                                result.setErrorResult(e);
+                            }
+                        }
 
-            if (!fileResource.exists() || !fileResource.isReadable()) {
-                logger.debug("FileController.getFile(): Out... File not found");
-                return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+                        @Override
+                        public void failed(Throwable error) {
+                            logger.error("FileController.putFile(): Upload of {} failed", fileName, error);
+                            upload.discard();
+                            result.setErrorResult(error);
+                        }
+                    });
+        } catch (IOException | RuntimeException e) {
+            // The request is asynchronous by now, so the error must complete it
+            logger.error("FileController.putFile(): Error", e);
+            upload.discard();
+            result.setErrorResult(e);
+        }
+    }
+
+    /**
+     * Serves a file as a downloadable resource. Supports single and multiple
+     * byte ranges ({@code Range}, {@code If-Range}) so clients can resume
+     * interrupted downloads; the bytes are sent with a zero-copy transfer, or
+     * from memory for files held by the read cache. Conditional requests
+     * ({@code If-None-Match}, {@code If-Modified-Since}) for an unchanged
+     * file are answered with 304 Not Modified without reading its content.
+     * Files stored compressed are sent as stored with
+     * {@code Content-Encoding: gzip} to clients accepting it, and
+     * decompressed on the fly for the others.
+     */
+    @GetMapping("/download/{fileName}")
+    public void getFile(@PathVariable String fileName, HttpServletRequest request, HttpServletResponse response)
+            throws Exception {
+        try {
+            logger.info("FileController.getFile(): In... fileName={}, range={}", fileName,
+                    request.getHeader(HttpHeaders.RANGE));
+            StoredFile storedFile = fileStorageService.getDownloadFile(fileName);
+            String etag = storedFile.getEtag();
+            boolean gzip = storedFile.isCompressed()
+                    && GzipCodec.isAccepted(request.getHeader(HttpHeaders.ACCEPT_ENCODING));
+            if (storedFile.isCompressed()) {
+                response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+                // The gzip encoded body is another representation, with a tag of its own
+                etag = gzip && etag != null ? etag + "-" + GzipCodec.ENCODING : etag;
+            }
+            if (new ServletWebRequest(request, response).checkNotModified(etag, storedFile.getLastModified())) {
+                logger.info("FileController.getFile(): Out... Not modified");
+                return;
             }
 
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"");
+            MediaType contentType = MediaTypeFactory.getMediaType(fileName).orElse(MediaType.APPLICATION_OCTET_STREAM);
+            long sent;
+            if (storedFile.isCompressed() && !gzip) {
+                sent = FileRangeWriter.writeDecompressed(request, response, storedFile.getPath(),
+                        storedFile.getOffset(), storedFile.getContent(), storedFile.getUncompressedLength(),
+                        contentType, storedFile.getLastModified(), etag);
+            } else {
+                if (gzip) {
+                    response.setHeader(HttpHeaders.CONTENT_ENCODING, GzipCodec.ENCODING);
+                }
+                sent = storedFile.isInMemory()
+                        ? FileRangeWriter.write(request, response, storedFile.getContent(), contentType,
+                                storedFile.getLastModified(), etag)
+                        : FileRangeWriter.write(request, response, storedFile.getPath(), storedFile.getOffset(),
+                                storedFile.getLength(), contentType, storedFile.getLastModified(), etag,
+                                nonBlockingIo);
+            }
+            storageMetrics.recordBytesOut(sent);
             logger.info("FileController.getFile(): Out...");
-            return ResponseEntity.ok()
-                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"")
-                    .body(fileResource);
         } catch (Exception e) {
             logger.error("FileController.getFile(): Error", e);
             throw e;
         }
     }
 
+    /**
+     * Streams every file matching a regex as one ZIP or TAR archive, built on
+     * the fly. ZIP entries are stored uncompressed unless {@code compress} is
+     * set. The regex and format are validated before the response starts, so
+     * invalid ones still yield a 400.
+     */
+    @GetMapping("/archive")
+    public ResponseEntity<StreamingResponseBody> downloadArchive(@RequestParam String regex,
+            @RequestParam(defaultValue = ArchiveService.ZIP) String format,
+            @RequestParam(defaultValue = "false") boolean compress) {
+        logger.info("FileController.downloadArchive(): In... regex={}, format={}, compress={}", regex, format,
+                compress);
+        ArchiveService.validateFormat(format);
+        FileNameMatcher matcher = fileStorageService.compileMatcher(regex);
+        return archiveResponse(format, out -> archiveService.writeMatching(matcher, format, compress, out));
+    }
+
+    /**
+     * Streams the files matching a regex or named in a list as one ZIP or TAR
+     * archive, for name lists too long for a query string.
+     */
+    @PostMapping("/archive")
+    public ResponseEntity<StreamingResponseBody> downloadArchive(@RequestBody ArchiveRequest request,
+            @RequestParam(defaultValue = ArchiveService.ZIP) String format,
+            @RequestParam(defaultValue = "false") boolean compress) {
+        logger.info("FileController.downloadArchive(): In... regex={}, fileNames={}, format={}, compress={}",
+                request.getRegex(), request.getFileNames() != null ? request.getFileNames().size() : null, format,
+                compress);
+        if ((request.getRegex() == null) == (request.getFileNames() == null)) {
+            throw new IllegalArgumentException("Either regex or fileNames must be given");
+        }
+        ArchiveService.validateFormat(format);
+        if (request.getRegex() != null) {
+            FileNameMatcher matcher = fileStorageService.compileMatcher(request.getRegex());
+            return archiveResponse(format, out -> archiveService.writeMatching(matcher, format, compress, out));
+        }
+        return archiveResponse(format,
+                out -> archiveService.writeNamed(request.getFileNames(), format, compress, out));
+    }
+
+    private ResponseEntity<StreamingResponseBody> archiveResponse(String format, ArchiveBody archive) {
+        StreamingResponseBody body = outputStream -> {
+            OutputStream out = new BufferedOutputStream(outputStream, STREAM_BUFFER_SIZE);
+            try {
+                long files = archive.write(out);
+                out.flush();
+                logger.info("FileController.downloadArchive(): Out... Archived {} files", files);
+            } catch (IOException e) {
+                // Usually the client went away, which ends the archive as well
+                logger.warn("FileController.downloadArchive(): Archive aborted: {}", e.getMessage());
+                throw e;
+            }
+        };
+        MediaType contentType = ArchiveService.ZIP.equals(format) ? MediaType.parseMediaType("application/zip")
+                : MediaType.parseMediaType(TAR);
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"files." + format + "\"")
+                .contentType(contentType)
+                .body(body);
+    }
+
+    /**
+     * Writes an archive to the response.
+     */
+    private interface ArchiveBody {
+        long write(OutputStream out) throws IOException;
+    }
+
     /**
      * Deletes a file from storage.
      */
@@ -106,18 +370,79 @@ public class FileController {
     }
 
     /**
-     * Lists all files matching a regex with pagination.
+     * Starts deleting the files matching a regex or named in a list in the
+     * background. Responds 202 with the job, whose progress is polled with
+     * its id.
+     */
+    @PostMapping("/bulk-delete")
+    public ResponseEntity<BaseResponse<BulkDeleteJob>> bulkDelete(@RequestBody BulkDeleteRequest request) {
+        try {
+            logger.info("FileController.bulkDelete(): In... regex={}, fileNames={}", request.getRegex(),
+                    request.getFileNames() != null ? request.getFileNames().size() : null);
+            if ((request.getRegex() == null) == (request.getFileNames() == null)) {
+                throw new IllegalArgumentException("Either regex or fileNames must be given");
+            }
+            BulkDeleteJob job = request.getRegex() != null
+                    ? bulkDeleteService.deleteMatching(request.getRegex())
+                    : bulkDeleteService.deleteNamed(request.getFileNames());
+            logger.info("FileController.bulkDelete(): Out... jobId={}", job.getId());
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(new BaseResponse<>(job));
+        } catch (Exception e) {
+            logger.error("FileController.bulkDelete(): Error", e);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the progress of a bulk delete.
+     */
+    @GetMapping("/bulk-delete/{jobId}")
+    public ResponseEntity<BaseResponse<BulkDeleteJob>> getBulkDelete(@PathVariable String jobId) throws Exception {
+        try {
+            logger.info("FileController.getBulkDelete(): In... jobId={}", jobId);
+            BulkDeleteJob job = bulkDeleteService.getJob(jobId);
+            logger.info("FileController.getBulkDelete(): Out... status={}", job.getStatus());
+            return ResponseEntity.ok(new BaseResponse<>(job));
+        } catch (Exception e) {
+            logger.error("FileController.getBulkDelete(): Error", e);
+            throw e;
+        }
+    }
+
+    /**
+     * Cancels a running bulk delete. Files already deleted stay deleted.
+     */
+    @DeleteMapping("/bulk-delete/{jobId}")
+    public ResponseEntity<BaseResponse<BulkDeleteJob>> cancelBulkDelete(@PathVariable String jobId)
+            throws Exception {
+        try {
+            logger.info("FileController.cancelBulkDelete(): In... jobId={}", jobId);
+            BulkDeleteJob job = bulkDeleteService.cancel(jobId);
+            logger.info("FileController.cancelBulkDelete(): Out...");
+            return ResponseEntity.ok(new BaseResponse<>(job));
+        } catch (Exception e) {
+            logger.error("FileController.cancelBulkDelete(): Error", e);
+            throw e;
+        }
+    }
+
+    /**
+     * Lists all files matching a regex with pagination. When a cursor from a
+     * previous response is given, the listing resumes right after it and the
+     * page parameter is ignored.
      */
     @GetMapping("/search")
     public ResponseEntity<BaseResponseMetadata<GetFileResponse>> listFiles(
             @RequestParam String regex,
             @RequestParam(defaultValue = "0") int page,
-            @RequestParam(defaultValue = "10") int size) {
+            @RequestParam(defaultValue = "10") int size,
+            @RequestParam(required = false) String cursor) {
         try {
-            logger.info("FileController.listFiles(): In... regex={}, page={}, size={}", regex, page, size);
-            BaseResponseMetadata<GetFileResponse> baseResponseMetadata = fileStorageService.listFilesMatchingRegex(
-                    regex,
-                    page, size);
+            logger.info("FileController.listFiles(): In... regex={}, page={}, size={}, cursor={}", regex, page, size,
+                    cursor);
+            BaseResponseMetadata<GetFileResponse> baseResponseMetadata = cursor != null
+                    ? fileStorageService.listFilesMatchingRegex(regex, cursor, size)
+                    : fileStorageService.listFilesMatchingRegex(regex, page, size);
             logger.info("FileController.listFiles(): Out...");
             return ResponseEntity.ok(baseResponseMetadata);
         } catch (Exception e) {
@@ -126,6 +451,45 @@ public class FileController {
         }
     }
 
+    /**
+     * Streams every file matching a regex as newline-delimited JSON, one
+     * {@link FileDto} per line, writing each match as soon as it is found. The
+     * regex is validated before the response starts, so an invalid pattern
+     * still yields a 400.
+     */
+    @GetMapping(value = "/search/stream", produces = NDJSON)
+    public ResponseEntity<StreamingResponseBody> streamFiles(@RequestParam String regex) {
+        logger.info("FileController.streamFiles(): In... regex={}", regex);
+        FileNameMatcher matcher = fileStorageService.compileMatcher(regex);
+
+        StreamingResponseBody body = outputStream -> {
+            OutputStream out = new BufferedOutputStream(outputStream, STREAM_BUFFER_SIZE);
+            AtomicLong written = new AtomicLong();
+            try {
+                fileStorageService.streamFilesMatching(matcher, fileName -> {
+                    try {
+                        objectMapper.writeValue(out, new FileDto(fileName));
+                        out.write('\n');
+                        // Flush the first line right away, then in batches
+                        if (written.getAndIncrement() % STREAM_FLUSH_INTERVAL == 0) {
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                out.flush();
+            } catch (UncheckedIOException e) {
+                // The client went away, which ends the scan as well, or a folder could not be listed
+                logger.warn("FileController.streamFiles(): Stream aborted after {} files: {}", written.get(),
+                        e.getCause().getMessage());
+                throw e.getCause();
+            }
+            logger.info("FileController.streamFiles(): Out... Streamed {} files", written.get());
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON)).body(body);
+    }
+
     /**
      * Returns the total number of files stored.
      */
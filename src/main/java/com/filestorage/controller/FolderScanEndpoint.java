@@ -0,0 +1,55 @@
+package com.filestorage.controller;
+
+import com.filestorage.util.FolderScanner;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Actuator endpoint of the {@link FolderScanner}: {@code GET /actuator/scans}
+ * returns the progress and throughput of the scans of the storage directory
+ * running now and of the last ones completed.
+ */
+@Component
+@Endpoint(id = "scans")
+public class FolderScanEndpoint {
+
+    private final FolderScanner folderScanner;
+
+    public FolderScanEndpoint(FolderScanner folderScanner) {
+        this.folderScanner = folderScanner;
+    }
+
+    @ReadOperation
+    public Map<String, Object> scans() {
+        Map<String, Object> scans = new LinkedHashMap<>();
+        scans.put("parallelism", folderScanner.getParallelism());
+        scans.put("scannedFolders", folderScanner.getScannedFolders());
+        scans.put("listedEntries", folderScanner.getListedEntries());
+        scans.put("running", toMaps(folderScanner.getRunningScans()));
+        scans.put("completed", toMaps(folderScanner.getCompletedScans()));
+        return scans;
+    }
+
+    private static List<Map<String, Object>> toMaps(List<FolderScanner.Progress> scans) {
+        List<Map<String, Object>> maps = new ArrayList<>();
+        for (FolderScanner.Progress progress : scans) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("name", progress.getName());
+            map.put("folders", progress.getFolders());
+            map.put("scannedFolders", progress.getScannedFolders());
+            map.put("entries", progress.getEntries());
+            map.put("elapsedMs", progress.getElapsedMillis());
+            map.put("foldersPerSecond", Math.round(progress.getFoldersPerSecond()));
+            map.put("entriesPerSecond", Math.round(progress.getEntriesPerSecond()));
+            maps.add(map);
+        }
+        return maps;
+    }
+}
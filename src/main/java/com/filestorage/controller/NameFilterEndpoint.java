@@ -0,0 +1,55 @@
+package com.filestorage.controller;
+
+import com.filestorage.service.NameFilter;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Actuator endpoint of the {@link NameFilter}: {@code GET /actuator/namefilter}
+ * returns its state and {@code POST /actuator/namefilter} rebuilds it from
+ * the storage directory, e.g. after files were copied in by hand.
+ */
+@Component
+@Endpoint(id = "namefilter")
+public class NameFilterEndpoint {
+
+    private static final Logger logger = LogManager.getLogger(NameFilterEndpoint.class);
+
+    private final NameFilter nameFilter;
+
+    public NameFilterEndpoint(NameFilter nameFilter) {
+        this.nameFilter = nameFilter;
+    }
+
+    @ReadOperation
+    public Map<String, Object> state() {
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put("enabled", nameFilter.isEnabled());
+        state.put("names", nameFilter.getNames());
+        state.put("deletesSinceBuild", nameFilter.getDeletesSinceBuild());
+        state.put("layers", nameFilter.getLayers());
+        state.put("sizeBytes", nameFilter.getSizeBytes());
+        state.put("rejected", nameFilter.getRejected());
+        return state;
+    }
+
+    /**
+     * Rebuilds the filter and returns its new state. The request waits for
+     * the scan of the storage directory.
+     */
+    @WriteOperation
+    public Map<String, Object> rebuild() {
+        logger.info("NameFilterEndpoint.rebuild(): In...");
+        nameFilter.rebuild();
+        logger.info("NameFilterEndpoint.rebuild(): Out...");
+        return state();
+    }
+}
@@ -0,0 +1,29 @@
+package com.filestorage.dto;
+
+import java.util.List;
+
+/**
+ * DTO for an archive download: either a regex matching the files to include
+ * or the list of their names.
+ */
+public class ArchiveRequest {
+
+    private String regex;
+    private List<String> fileNames;
+
+    public String getRegex() {
+        return regex;
+    }
+
+    public void setRegex(String regex) {
+        this.regex = regex;
+    }
+
+    public List<String> getFileNames() {
+        return fileNames;
+    }
+
+    public void setFileNames(List<String> fileNames) {
+        this.fileNames = fileNames;
+    }
+}
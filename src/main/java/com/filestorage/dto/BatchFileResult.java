@@ -0,0 +1,52 @@
+package com.filestorage.dto;
+
+/**
+ * DTO for the outcome of one file of a batch upload.
+ */
+public class BatchFileResult {
+
+    public static final String CREATED = "created";
+    public static final String STORED = "stored";
+    public static final String EXISTS = "exists";
+    public static final String INVALID = "invalid";
+    public static final String FAILED = "failed";
+
+    private String fileName;
+    private String status;
+    private String message;
+
+    public BatchFileResult(String fileName, String status, String message) {
+        this.fileName = fileName;
+        this.status = status;
+        this.message = message;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * One of {@code created}, {@code stored} (replaced or created with
+     * {@code overwrite}), {@code exists} (left as it was), {@code invalid}
+     * or {@code failed}.
+     */
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+}
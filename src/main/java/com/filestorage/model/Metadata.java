@@ -5,6 +5,7 @@ package com.filestorage.model;
  */
 public class Metadata {
     BasePagination pagination;
+    String nextCursor;
 
     public Metadata() {
     }
@@ -13,6 +14,15 @@ public class Metadata {
         this.pagination = new BasePagination(totalRecords, page, size);
     }
 
+    public Metadata(Integer totalRecords, Integer page, Integer size, String nextCursor) {
+        this.pagination = new BasePagination(totalRecords, page, size);
+        this.nextCursor = nextCursor;
+    }
+
+    public Metadata(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
     public BasePagination getPagination() {
         return pagination;
     }
@@ -20,4 +30,16 @@ public class Metadata {
     public void setPagination(BasePagination pagination) {
         this.pagination = pagination;
     }
+
+    /**
+     * Opaque cursor resuming the search right after the last returned file, or
+     * null when there are no more results.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
 }
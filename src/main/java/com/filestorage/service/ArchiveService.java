@@ -0,0 +1,291 @@
+package com.filestorage.service;
+
+import com.filestorage.util.FileNameMatcher;
+import com.filestorage.util.FileStorageUtil;
+import com.filestorage.util.GzipCodec;
+import com.filestorage.util.TarWriter;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.stereotype.Service;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams many stored files as one ZIP or TAR archive, built as the files are
+ * found so neither the archive nor the list of files is held in memory or on
+ * disk.
+ *
+ * ZIP entries are stored uncompressed unless asked otherwise, which keeps the
+ * CPU cost to a CRC per file: the CRC of a stored entry precedes its content,
+ * so each file is read twice through the same open file, the second time
+ * usually from the page cache. Archives of more than 65535 files or 4 GB use
+ * the ZIP64 extensions. Each file is looked up and opened under the lock of
+ * its name, so an entry holds one version of the file even if it is updated
+ * while it is copied. Files deleted while the archive is written are left
+ * out. Files stored compressed are decompressed into the archive.
+ */
+@Service
+public class ArchiveService {
+
+    private static final Logger logger = LogManager.getLogger(ArchiveService.class);
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    public static final String ZIP = "zip";
+    public static final String TAR = "tar";
+
+    private final FileStorageService fileStorageService;
+    private final FileStorageUtil fileStorageUtil;
+    private final StorageMetrics storageMetrics;
+
+    public ArchiveService(FileStorageService fileStorageService, FileStorageUtil fileStorageUtil,
+            StorageMetrics storageMetrics) {
+        this.fileStorageService = fileStorageService;
+        this.fileStorageUtil = fileStorageUtil;
+        this.storageMetrics = storageMetrics;
+    }
+
+    /**
+     * Checks an archive format, {@code zip} or {@code tar}.
+     *
+     * @throws IllegalArgumentException If the format is not supported.
+     */
+    public static void validateFormat(String format) {
+        if (!ZIP.equals(format) && !TAR.equals(format)) {
+            throw new IllegalArgumentException("Unsupported archive format: " + format);
+        }
+    }
+
+    /**
+     * Writes every file matching a search as an archive.
+     *
+     * @param matcher  The search compiled with
+     *                 {@link FileStorageService#compileMatcher(String)}.
+     * @param format   {@code zip} or {@code tar}.
+     * @param compress Whether to deflate ZIP entries; ignored for TAR.
+     * @param out      The stream receiving the archive, left open.
+     * @return The number of files written.
+     */
+    public long writeMatching(FileNameMatcher matcher, String format, boolean compress, OutputStream out)
+            throws IOException {
+        logger.info("ArchiveService.writeMatching(): In... regex={}, format={}", matcher.getPattern(), format);
+        ArchiveWriter writer = writer(format, compress, out);
+        try {
+            fileStorageService.streamFilesMatching(matcher, writer);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        writer.finish();
+        logger.info("ArchiveService.writeMatching(): Out... Archived {} files", writer.files);
+        return writer.files;
+    }
+
+    /**
+     * Writes the files of a name list as an archive, in list order. Invalid
+     * and missing names are left out.
+     *
+     * @param fileNames The names of the files.
+     * @param format    {@code zip} or {@code tar}.
+     * @param compress  Whether to deflate ZIP entries; ignored for TAR.
+     * @param out       The stream receiving the archive, left open.
+     * @return The number of files written.
+     */
+    public long writeNamed(List<String> fileNames, String format, boolean compress, OutputStream out)
+            throws IOException {
+        logger.info("ArchiveService.writeNamed(): In... files={}, format={}", fileNames.size(), format);
+        ArchiveWriter writer = writer(format, compress, out);
+        try {
+            for (String fileName : fileNames) {
+                if (isValid(fileName)) {
+                    writer.accept(fileName);
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        writer.finish();
+        logger.info("ArchiveService.writeNamed(): Out... Archived {} files", writer.files);
+        return writer.files;
+    }
+
+    private ArchiveWriter writer(String format, boolean compress, OutputStream out) {
+        validateFormat(format);
+        return ZIP.equals(format) ? new ZipArchiveWriter(out, compress) : new TarArchiveWriter(out);
+    }
+
+    private boolean isValid(String fileName) {
+        if (fileName == null) {
+            return false;
+        }
+        try {
+            fileStorageUtil.validateFileName(fileName);
+            return true;
+        } catch (IllegalArgumentException e) {
+            logger.debug("ArchiveService.isValid(): Skipping invalid file name {}", fileName);
+            return false;
+        }
+    }
+
+    /**
+     * Receives the content of a file, in chunks.
+     */
+    private interface ChunkSink {
+        void write(byte[] b, int off, int len) throws IOException;
+    }
+
+    /**
+     * Copies the content of a stored file from a channel open on it,
+     * decompressed if it is stored compressed.
+     */
+    private static void copy(FileChannel channel, StoredFile storedFile, byte[] buffer, ChunkSink sink)
+            throws IOException {
+        if (storedFile.isCompressed()) {
+            // Not closed, which would close the channel the caller owns
+            InputStream in = GzipCodec.decompress(Channels.newInputStream(channel.position(storedFile.getOffset())));
+            long copied = 0;
+            for (int n; (n = in.read(buffer)) != -1;) {
+                sink.write(buffer, 0, n);
+                copied += n;
+            }
+            if (copied != storedFile.getUncompressedLength()) {
+                throw new IOException("Compressed content does not match its recorded length: " + storedFile.getPath());
+            }
+            return;
+        }
+        long position = storedFile.getOffset();
+        long end = position + storedFile.getLength();
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        while (position < end) {
+            byteBuffer.clear().limit((int) Math.min(buffer.length, end - position));
+            int n = channel.read(byteBuffer, position);
+            if (n < 0) {
+                throw new IOException("File shorter than expected: " + storedFile.getPath());
+            }
+            sink.write(buffer, 0, n);
+            position += n;
+        }
+    }
+
+    /**
+     * Adds each file passed by name to the archive, skipping files that no
+     * longer exist.
+     */
+    private abstract class ArchiveWriter implements Consumer<String> {
+
+        protected final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        private long files;
+
+        @Override
+        public void accept(String fileName) {
+            StoredFile storedFile = null;
+            FileChannel channel = null;
+            for (int attempt = 0; channel == null; attempt++) {
+                // Looked up and opened under the name lock, so no update lands in between; reading an open
+                // file is then unaffected by a replace
+                Lock lock = fileStorageService.getNameLocks().lockFor(fileName);
+                lock.lock();
+                try {
+                    storedFile = fileStorageService.getStoredFile(fileName);
+                    channel = FileChannel.open(storedFile.getPath(), StandardOpenOption.READ);
+                } catch (FileNotFoundException e) {
+                    logger.debug("ArchiveService.accept(): Skipping missing file {}", fileName);
+                    return;
+                } catch (NoSuchFileException e) {
+                    // Compaction moves packed files to another segment without the name lock, look it up again
+                    if (attempt > 0) {
+                        logger.debug("ArchiveService.accept(): Skipping file {} deleted meanwhile", fileName);
+                        return;
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            try (FileChannel open = channel) {
+                write(fileName, storedFile, open);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            storageMetrics.recordBytesOut(storedFile.getContentLength());
+            files++;
+        }
+
+        protected abstract void write(String fileName, StoredFile storedFile, FileChannel channel)
+                throws IOException;
+
+        protected abstract void finish() throws IOException;
+    }
+
+    private final class ZipArchiveWriter extends ArchiveWriter {
+
+        private final ZipOutputStream zip;
+        private final boolean compress;
+        private final CRC32 crc = new CRC32();
+
+        private ZipArchiveWriter(OutputStream out, boolean compress) {
+            this.zip = new ZipOutputStream(out);
+            this.compress = compress;
+            zip.setMethod(compress ? ZipOutputStream.DEFLATED : ZipOutputStream.STORED);
+        }
+
+        @Override
+        protected void write(String fileName, StoredFile storedFile, FileChannel channel) throws IOException {
+            ZipEntry entry = new ZipEntry(fileName);
+            entry.setLastModifiedTime(FileTime.fromMillis(storedFile.getLastModified()));
+            if (!compress) {
+                crc.reset();
+                copy(channel, storedFile, buffer, crc::update);
+                entry.setSize(storedFile.getContentLength());
+                entry.setCompressedSize(storedFile.getContentLength());
+                entry.setCrc(crc.getValue());
+            }
+            zip.putNextEntry(entry);
+            copy(channel, storedFile, buffer, zip::write);
+            zip.closeEntry();
+        }
+
+        @Override
+        protected void finish() throws IOException {
+            // Writes the central directory without closing the response stream
+            zip.finish();
+        }
+    }
+
+    private final class TarArchiveWriter extends ArchiveWriter {
+
+        private final TarWriter tar;
+
+        private TarArchiveWriter(OutputStream out) {
+            this.tar = new TarWriter(out);
+        }
+
+        @Override
+        protected void write(String fileName, StoredFile storedFile, FileChannel channel) throws IOException {
+            tar.putEntry(fileName, storedFile.getContentLength(), storedFile.getLastModified());
+            copy(channel, storedFile, buffer, tar::write);
+            tar.closeEntry();
+        }
+
+        @Override
+        protected void finish() throws IOException {
+            tar.finish();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.filestorage.service;
+
+import com.filestorage.dto.BatchFileResult;
+import com.filestorage.util.FileStorageUtil;
+import com.filestorage.util.TarReader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.annotation.PreDestroy;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores many files sent in one request, either as the parts of a multipart
+ * request or as the entries of a tar stream.
+ *
+ * The files are written in parallel by a bounded pool shared by all batches.
+ * When the pool and its queue are full, the request thread writes the next
+ * file itself, which also slows down reading the request. Tar entries are read
+ * into memory to be handed to the pool, up to a size above which they are
+ * written straight from the stream. Each file gets its own result, so one
+ * invalid name or failed write does not fail the others.
+ */
+@Service
+public class BatchUploadService {
+
+    private static final Logger logger = LogManager.getLogger(BatchUploadService.class);
+
+    // Larger tar entries are written by the request thread without buffering them
+    private static final int MAX_BUFFERED_ENTRY_SIZE = 1024 * 1024;
+
+    private final FileStorageService fileStorageService;
+    private final FileStorageUtil fileStorageUtil;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Opens the content of a file to store.
+     */
+    private interface ContentSource {
+        InputStream open() throws IOException;
+    }
+
+    public BatchUploadService(FileStorageService fileStorageService, FileStorageUtil fileStorageUtil,
+            @Value("${file.storage.batch.threads:8}") int threads,
+            @Value("${file.storage.batch.queue-size:64}") int queueSize) {
+        this.fileStorageService = fileStorageService;
+        this.fileStorageUtil = fileStorageUtil;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), runnable -> {
+                    Thread thread = new Thread(runnable, "batch-upload-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Stores the files of a multipart request.
+     *
+     * @param files     The uploaded files, named by their original file name.
+     * @param overwrite Whether to replace existing files; otherwise they are
+     *                  left as they are.
+     * @return One result per file, in request order.
+     */
+    public List<BatchFileResult> uploadFiles(List<MultipartFile> files, boolean overwrite) {
+        logger.info("BatchUploadService.uploadFiles(): In... files={}, overwrite={}", files.size(), overwrite);
+        List<Future<BatchFileResult>> results = new ArrayList<>(files.size());
+        for (MultipartFile file : files) {
+            String fileName = file.getOriginalFilename();
+            BatchFileResult invalid = validate(fileName);
+            results.add(invalid != null ? CompletableFuture.completedFuture(invalid)
+                    : executor.submit(() -> store(fileName, file::getInputStream, file.getSize(), overwrite)));
+        }
+
+        List<BatchFileResult> batch = collect(results);
+        logger.info("BatchUploadService.uploadFiles(): Out... Processed {} files", batch.size());
+        return batch;
+    }
+
+    /**
+     * Stores the regular files of a tar stream, named by their path in the
+     * archive. A malformed archive ends the batch with a {@code failed} result
+     * without a file name, after the results of the entries read before it.
+     *
+     * @param tar       The tar stream.
+     * @param overwrite Whether to replace existing files; otherwise they are
+     *                  left as they are.
+     * @return One result per file, in archive order.
+     */
+    public List<BatchFileResult> uploadTar(InputStream tar, boolean overwrite) {
+        logger.info("BatchUploadService.uploadTar(): In... overwrite={}", overwrite);
+        List<Future<BatchFileResult>> results = new ArrayList<>();
+        BatchFileResult streamError = null;
+        try {
+            TarReader reader = new TarReader(tar);
+            for (TarReader.Entry entry; (entry = reader.next()) != null;) {
+                String fileName = entry.getName().startsWith("./") ? entry.getName().substring(2) : entry.getName();
+                BatchFileResult invalid = validate(fileName);
+                if (invalid != null) {
+                    results.add(CompletableFuture.completedFuture(invalid));
+                } else if (entry.getSize() <= MAX_BUFFERED_ENTRY_SIZE) {
+                    byte[] content = readFully(entry.getContent(), (int) entry.getSize());
+                    results.add(executor.submit(() -> store(fileName, () -> new ByteArrayInputStream(content),
+                            content.length, overwrite)));
+                } else {
+                    InputStream content = entry.getContent();
+                    results.add(CompletableFuture.completedFuture(
+                            store(fileName, () -> content, entry.getSize(), overwrite)));
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("BatchUploadService.uploadTar(): Invalid tar stream: {}", e.getMessage());
+            streamError = new BatchFileResult(null, BatchFileResult.FAILED, "Invalid tar stream: " + e.getMessage());
+        }
+
+        List<BatchFileResult> batch = collect(results);
+        if (streamError != null) {
+            batch.add(streamError);
+        }
+        logger.info("BatchUploadService.uploadTar(): Out... Processed {} files", batch.size());
+        return batch;
+    }
+
+    /**
+     * Returns the {@code invalid} result of a file name, or null if it is
+     * valid.
+     */
+    private BatchFileResult validate(String fileName) {
+        if (fileName == null || fileName.isEmpty()) {
+            return new BatchFileResult(fileName, BatchFileResult.INVALID, "File name cannot be empty");
+        }
+        try {
+            fileStorageUtil.validateFileName(fileName);
+            return null;
+        } catch (IllegalArgumentException e) {
+            return new BatchFileResult(fileName, BatchFileResult.INVALID, e.getMessage());
+        }
+    }
+
+    private BatchFileResult store(String fileName, ContentSource source, long contentLength, boolean overwrite) {
+        try (InputStream content = source.open()) {
+            if (overwrite) {
+                fileStorageService.storeFile(fileName, content, contentLength);
+                return new BatchFileResult(fileName, BatchFileResult.STORED, null);
+            }
+            boolean created = fileStorageService.createFile(fileName, content, contentLength);
+            return new BatchFileResult(fileName, created ? BatchFileResult.CREATED : BatchFileResult.EXISTS, null);
+        } catch (IllegalArgumentException e) {
+            return new BatchFileResult(fileName, BatchFileResult.INVALID, e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            logger.error("BatchUploadService.store(): Error storing file {}", fileName, e);
+            String message = e.getCause() != null ? e.getMessage() + ": " + e.getCause().getMessage() : e.getMessage();
+            return new BatchFileResult(fileName, BatchFileResult.FAILED, message);
+        }
+    }
+
+    /**
+     * Waits for every write of a batch, so none is still running once the
+     * response is sent.
+     */
+    private static List<BatchFileResult> collect(List<Future<BatchFileResult>> results) {
+        List<BatchFileResult> batch = new ArrayList<>(results.size());
+        boolean interrupted = false;
+        for (Future<BatchFileResult> result : results) {
+            while (true) {
+                try {
+                    batch.add(result.get());
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    batch.add(new BatchFileResult(null, BatchFileResult.FAILED, e.getCause().getMessage()));
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return batch;
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(bytes, read, length - read);
+            if (n < 0) {
+                throw new EOFException("Tar stream ended inside an entry");
+            }
+            read += n;
+        }
+        return bytes;
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,274 @@
+package com.filestorage.service;
+
+import com.filestorage.util.ExtendedAttributes;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Content-addressed store that keeps a single copy of identical file
+ * contents when deduplication is enabled.
+ *
+ * Each distinct content is stored once as a blob under
+ * {@code <storage>/.blobs/<2 hex>/<sha256>}, and every stored name is a hard
+ * link to its blob. The file system therefore holds the name to blob table
+ * and the link count of a blob is its reference count: both survive crashes
+ * without a separate table, and reads, ranges and sendfile keep working on
+ * the name's path unchanged. The content hash is also kept in a
+ * {@code user.} extended attribute so deletes find the blob without reading
+ * the file. A blob whose only remaining link is its own is garbage.
+ *
+ * Deduplication needs hard links and link counts (POSIX file systems); it is
+ * disabled with a warning elsewhere.
+ */
+@Component
+public class BlobStore {
+
+    private static final Logger logger = LogManager.getLogger(BlobStore.class);
+
+    private static final String BLOBS_DIR = ".blobs";
+    private static final String HASH_ATTRIBUTE = "filestorage.sha256";
+    private static final int MAX_LINK_ATTEMPTS = 3;
+
+    private final Path blobRoot;
+    private final boolean enabled;
+    private final LongAdder deduplicatedFiles = new LongAdder();
+    private final LongAdder deduplicatedBytes = new LongAdder();
+
+    public BlobStore(@Value("${file.storage.location:data-storage}") String storageDir,
+            @Value("${file.storage.dedup.enabled:false}") boolean enabled) {
+        this.blobRoot = Paths.get(storageDir, BLOBS_DIR);
+        boolean supported = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+        if (enabled && !supported) {
+            logger.warn("BlobStore(): Deduplication needs hard link counts, which this file system lacks. Disabled.");
+        }
+        this.enabled = enabled && supported;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns a digest for hashing content as it is written.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Error creating content digest", e);
+        }
+    }
+
+    /**
+     * Makes a fully written temporary file share its content with the blob of
+     * the same hash. If the blob exists, the temporary file is replaced with a
+     * link to it and its own copy is dropped; otherwise it becomes the blob.
+     * Either way the temporary file can then be moved to its final name.
+     *
+     * @param tempFile The written temporary file.
+     * @param digest   The SHA-256 of its content.
+     */
+    public void deduplicate(Path tempFile, byte[] digest) throws IOException {
+        String hash = toHex(digest);
+        Path blob = blobPath(hash);
+        writeHash(tempFile, hash);
+
+        for (int attempt = 0; attempt < MAX_LINK_ATTEMPTS; attempt++) {
+            if (Files.exists(blob)) {
+                Path link = tempFile.resolveSibling(tempFile.getFileName() + ".link");
+                try {
+                    Files.createLink(link, blob);
+                } catch (NoSuchFileException e) {
+                    continue; // Collected in the meantime, store it again
+                } catch (FileSystemException e) {
+                    // Typically the file system's limit on links per file (65000 on ext4)
+                    logger.debug("BlobStore.deduplicate(): Cannot link blob {}: {}", hash, e.getReason());
+                    return;
+                }
+                long size;
+                try {
+                    size = Files.size(tempFile);
+                    Files.move(link, tempFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    // Gone once moved; otherwise it would be left in the shard folder
+                    Files.deleteIfExists(link);
+                }
+                deduplicatedFiles.increment();
+                deduplicatedBytes.add(size);
+                logger.debug("BlobStore.deduplicate(): Reused blob {}", hash);
+                return;
+            }
+            Files.createDirectories(blob.getParent());
+            try {
+                Files.createLink(blob, tempFile);
+                logger.debug("BlobStore.deduplicate(): Stored new blob {}", hash);
+                return;
+            } catch (FileAlreadyExistsException e) {
+                // Another upload of the same content stored it first
+            }
+        }
+        logger.warn("BlobStore.deduplicate(): Keeping a private copy of {} after concurrent changes", hash);
+    }
+
+    /**
+     * Returns the hash of the blob a stored file shares its content with, or
+     * null if the file is missing or not deduplicated.
+     */
+    public String hashOf(Path file) {
+        try {
+            if (linkCount(file) < 2) {
+                return null;
+            }
+            String hash = readHash(file);
+            return hash != null ? hash : toHex(hashContent(file));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.warn("BlobStore.hashOf(): Could not read content hash of {}", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Drops the blob of the given hash if no stored name refers to it anymore.
+     * Called after a name pointing to it was deleted or replaced.
+     */
+    public void release(String hash) {
+        if (hash == null) {
+            return;
+        }
+        collect(blobPath(hash));
+    }
+
+    /**
+     * Deletes blobs left without references, for example by a crash between
+     * storing a blob and linking its name.
+     */
+    @Scheduled(initialDelayString = "${file.storage.dedup.gc-interval-ms:3600000}",
+            fixedDelayString = "${file.storage.dedup.gc-interval-ms:3600000}")
+    public void collectGarbage() {
+        if (!enabled || !Files.isDirectory(blobRoot)) {
+            return;
+        }
+        logger.debug("BlobStore.collectGarbage(): In...");
+        long collected = 0;
+        try (DirectoryStream<Path> folders = Files.newDirectoryStream(blobRoot)) {
+            for (Path folder : folders) {
+                try (DirectoryStream<Path> blobs = Files.newDirectoryStream(folder)) {
+                    for (Path blob : blobs) {
+                        if (collect(blob)) {
+                            collected++;
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.error("BlobStore.collectGarbage(): Error listing blobs", e);
+        }
+        logger.debug("BlobStore.collectGarbage(): Out... Collected {} blobs", collected);
+    }
+
+    /**
+     * Returns the number of writes whose content was already stored.
+     */
+    public long getDeduplicatedFiles() {
+        return deduplicatedFiles.sum();
+    }
+
+    /**
+     * Returns the bytes those writes did not have to keep.
+     */
+    public long getDeduplicatedBytes() {
+        return deduplicatedBytes.sum();
+    }
+
+    private boolean collect(Path blob) {
+        try {
+            if (linkCount(blob) <= 1) {
+                Files.deleteIfExists(blob);
+                logger.debug("BlobStore.collect(): Deleted unreferenced blob {}", blob.getFileName());
+                return true;
+            }
+        } catch (NoSuchFileException e) {
+            // Already collected
+        } catch (IOException e) {
+            logger.warn("BlobStore.collect(): Could not collect blob {}", blob, e);
+        }
+        return false;
+    }
+
+    private Path blobPath(String hash) {
+        return blobRoot.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    /**
+     * Records the SHA-256 of a file's content in an extended attribute of the
+     * file, which travels with it when it is moved into place. Does nothing on
+     * file systems without extended attributes.
+     */
+    public static void recordHash(Path file, byte[] digest) {
+        writeHash(file, toHex(digest));
+    }
+
+    /**
+     * Returns the SHA-256 recorded for a file's content, in hex, or null if
+     * none was recorded.
+     */
+    public static String readRecordedHash(Path file) {
+        return readHash(file);
+    }
+
+    private static int linkCount(Path file) throws IOException {
+        return (Integer) Files.getAttribute(file, "unix:nlink");
+    }
+
+    private static void writeHash(Path file, String hash) {
+        try {
+            ExtendedAttributes.write(file, HASH_ATTRIBUTE, hash);
+        } catch (IOException e) {
+            logger.debug("BlobStore.writeHash(): Extended attributes unavailable for {}", file);
+        }
+    }
+
+    private static String readHash(Path file) {
+        return ExtendedAttributes.read(file, HASH_ATTRIBUTE);
+    }
+
+    private static byte[] hashContent(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int read; (read = in.read(buffer)) != -1;) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,138 @@
+package com.filestorage.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of a bulk delete run by {@link BulkDeleteService}, returned as is
+ * by the job endpoints. The counters are updated while the job runs.
+ */
+public class BulkDeleteJob {
+
+    public static final String RUNNING = "running";
+    public static final String COMPLETED = "completed";
+    public static final String CANCELLED = "cancelled";
+    public static final String FAILED = "failed";
+
+    private final String id;
+    private final String regex;
+    private final long requestedFiles;
+    private final long startedAt;
+    private final AtomicLong matched = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong missing = new AtomicLong();
+    private final AtomicLong invalid = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile String status = RUNNING;
+    private volatile String error;
+    private volatile long finishedAt;
+    private volatile boolean cancelRequested;
+
+    public BulkDeleteJob(String id, String regex, long requestedFiles) {
+        this.id = id;
+        this.regex = regex;
+        this.requestedFiles = requestedFiles;
+        this.startedAt = System.currentTimeMillis();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Returns the regex of the files to delete, or null for a name list.
+     */
+    public String getRegex() {
+        return regex;
+    }
+
+    /**
+     * Returns the length of the name list, or -1 for a regex.
+     */
+    public long getRequestedFiles() {
+        return requestedFiles;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the names found so far: matching the regex, or read from the
+     * list.
+     */
+    public long getMatched() {
+        return matched.get();
+    }
+
+    public long getDeleted() {
+        return deleted.get();
+    }
+
+    /**
+     * Returns the names that no longer had a file when their turn came.
+     */
+    public long getMissing() {
+        return missing.get();
+    }
+
+    public long getInvalid() {
+        return invalid.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * Returns when the job ended, or 0 while it runs.
+     */
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    public boolean isDone() {
+        return !RUNNING.equals(status);
+    }
+
+    AtomicLong matchedCounter() {
+        return matched;
+    }
+
+    AtomicLong deletedCounter() {
+        return deleted;
+    }
+
+    AtomicLong missingCounter() {
+        return missing;
+    }
+
+    AtomicLong invalidCounter() {
+        return invalid;
+    }
+
+    AtomicLong failedCounter() {
+        return failed;
+    }
+
+    boolean isCancelRequested() {
+        return cancelRequested;
+    }
+
+    void requestCancel() {
+        cancelRequested = true;
+    }
+
+    void finish(String status, String error) {
+        this.error = error;
+        this.finishedAt = System.currentTimeMillis();
+        this.status = status;
+    }
+}
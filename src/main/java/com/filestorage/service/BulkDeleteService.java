@@ -0,0 +1,295 @@
+package com.filestorage.service;
+
+import com.filestorage.util.FileNameMatcher;
+import com.filestorage.util.FileStorageUtil;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Deletes the files matching a regex or named in a list as background jobs,
+ * polled by id.
+ *
+ * A job streams the names to delete shard folder by shard folder, so it never
+ * holds them all, and hands them in chunks to a pool shared by all jobs, so
+ * consecutive chunks from different folders are deleted in parallel. Each
+ * file is deleted through {@link FileStorageService#deleteIfExists(String)},
+ * under its name lock and with the listeners notified, which keeps the name
+ * index and the file counter in step. An optional rate limit spreads the
+ * deletes over time to leave disk bandwidth to regular requests.
+ */
+@Service
+public class BulkDeleteService {
+
+    private static final Logger logger = LogManager.getLogger(BulkDeleteService.class);
+    private static final int CHUNK_SIZE = 256;
+    private static final int MAX_RETAINED_JOBS = 100;
+
+    private final FileStorageService fileStorageService;
+    private final FileStorageUtil fileStorageUtil;
+    private final int filesPerSecond;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, BulkDeleteJob> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * Ends the name stream of a cancelled job.
+     */
+    private static final class CancelledException extends RuntimeException {
+        private CancelledException() {
+            super(null, null, false, false);
+        }
+    }
+
+    public BulkDeleteService(FileStorageService fileStorageService, FileStorageUtil fileStorageUtil,
+            @Value("${file.storage.bulk-delete.threads:4}") int threads,
+            @Value("${file.storage.bulk-delete.files-per-second:0}") int filesPerSecond) {
+        this.fileStorageService = fileStorageService;
+        this.fileStorageUtil = fileStorageUtil;
+        this.filesPerSecond = filesPerSecond;
+        AtomicInteger threadCount = new AtomicInteger();
+        // The job thread deletes a chunk itself when the pool is busy, which paces the name stream
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * 2), runnable -> {
+                    Thread thread = new Thread(runnable, "bulk-delete-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts deleting every file matching a regex.
+     *
+     * @throws IllegalArgumentException If the regex is invalid.
+     */
+    public BulkDeleteJob deleteMatching(String regex) {
+        logger.info("BulkDeleteService.deleteMatching(): In... regex={}", regex);
+        FileNameMatcher matcher = fileStorageService.compileMatcher(regex);
+        BulkDeleteJob job = register(new BulkDeleteJob(UUID.randomUUID().toString(), regex, -1));
+        start(job, batcher -> fileStorageService.streamFilesMatching(matcher, batcher::add));
+        logger.info("BulkDeleteService.deleteMatching(): Out... jobId={}", job.getId());
+        return job;
+    }
+
+    /**
+     * Starts deleting the files of a name list. Invalid names are counted and
+     * skipped.
+     */
+    public BulkDeleteJob deleteNamed(List<String> fileNames) {
+        logger.info("BulkDeleteService.deleteNamed(): In... files={}", fileNames.size());
+        BulkDeleteJob job = register(new BulkDeleteJob(UUID.randomUUID().toString(), null, fileNames.size()));
+        start(job, batcher -> {
+            for (String fileName : fileNames) {
+                if (isValid(fileName)) {
+                    batcher.add(fileName);
+                } else {
+                    job.invalidCounter().incrementAndGet();
+                }
+            }
+        });
+        logger.info("BulkDeleteService.deleteNamed(): Out... jobId={}", job.getId());
+        return job;
+    }
+
+    /**
+     * Returns the progress of a job.
+     *
+     * @throws FileNotFoundException If no such job is known, or it ended long
+     *                               enough ago to be forgotten.
+     */
+    public BulkDeleteJob getJob(String jobId) throws FileNotFoundException {
+        BulkDeleteJob job = jobs.get(jobId);
+        if (job == null) {
+            throw new FileNotFoundException("Job not found: " + jobId);
+        }
+        return job;
+    }
+
+    /**
+     * Stops a running job after the chunks already handed out. Files
+     * deleted so far stay deleted.
+     */
+    public BulkDeleteJob cancel(String jobId) throws FileNotFoundException {
+        BulkDeleteJob job = getJob(jobId);
+        if (!job.isDone()) {
+            logger.info("BulkDeleteService.cancel(): Cancelling jobId={}", jobId);
+            job.requestCancel();
+        }
+        return job;
+    }
+
+    @PreDestroy
+    public void stop() {
+        jobs.values().forEach(BulkDeleteJob::requestCancel);
+        executor.shutdown();
+    }
+
+    private BulkDeleteJob register(BulkDeleteJob job) {
+        if (jobs.size() >= MAX_RETAINED_JOBS) {
+            // Forget the jobs that ended first
+            jobs.values().stream()
+                    .filter(BulkDeleteJob::isDone)
+                    .sorted((a, b) -> Long.compare(a.getFinishedAt(), b.getFinishedAt()))
+                    .limit(jobs.size() - MAX_RETAINED_JOBS + 1)
+                    .forEach(done -> jobs.remove(done.getId()));
+        }
+        jobs.put(job.getId(), job);
+        return job;
+    }
+
+    /**
+     * Runs a job on its own thread, feeding the names it finds to a
+     * {@link Batcher}, and ends it once every chunk handed out is done.
+     */
+    private void start(BulkDeleteJob job, Consumer<Batcher> work) {
+        Thread thread = new Thread(() -> {
+            long start = System.nanoTime();
+            Batcher batcher = new Batcher(job);
+            String status = BulkDeleteJob.COMPLETED;
+            String error = null;
+            try {
+                work.accept(batcher);
+                batcher.flush();
+            } catch (CancelledException e) {
+                status = BulkDeleteJob.CANCELLED;
+            } catch (RuntimeException e) {
+                logger.error("BulkDeleteService.start(): Job {} failed", job.getId(), e);
+                status = BulkDeleteJob.FAILED;
+                error = e.getMessage();
+            } finally {
+                batcher.awaitChunks();
+            }
+            if (job.isCancelRequested() && BulkDeleteJob.COMPLETED.equals(status)) {
+                status = BulkDeleteJob.CANCELLED;
+            }
+            job.finish(status, error);
+            logger.info("BulkDeleteService.start(): Job {} {}: {} deleted, {} missing, {} invalid, {} failed in {} ms",
+                    job.getId(), job.getStatus(), job.getDeleted(), job.getMissing(), job.getInvalid(),
+                    job.getFailed(), (System.nanoTime() - start) / 1_000_000);
+        }, "bulk-delete-job-" + job.getId().substring(0, 8));
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private boolean isValid(String fileName) {
+        if (fileName == null) {
+            return false;
+        }
+        try {
+            fileStorageUtil.validateFileName(fileName);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Collects the names of a job into chunks handed to the pool.
+     */
+    private final class Batcher {
+
+        private final BulkDeleteJob job;
+        private final long start = System.nanoTime();
+        private final AtomicLong slots = new AtomicLong();
+        private final Phaser pending = new Phaser(1);
+        private List<String> chunk = new ArrayList<>(CHUNK_SIZE);
+
+        private Batcher(BulkDeleteJob job) {
+            this.job = job;
+        }
+
+        private void add(String fileName) {
+            if (job.isCancelRequested()) {
+                throw new CancelledException();
+            }
+            job.matchedCounter().incrementAndGet();
+            chunk.add(fileName);
+            if (chunk.size() == CHUNK_SIZE) {
+                submit();
+            }
+        }
+
+        private void flush() {
+            if (!chunk.isEmpty()) {
+                submit();
+            }
+        }
+
+        private void awaitChunks() {
+            pending.arriveAndAwaitAdvance();
+        }
+
+        private void submit() {
+            List<String> names = chunk;
+            chunk = new ArrayList<>(CHUNK_SIZE);
+            pending.register();
+            try {
+                executor.execute(() -> {
+                    try {
+                        delete(names);
+                    } finally {
+                        pending.arriveAndDeregister();
+                    }
+                });
+            } catch (RuntimeException e) {
+                // Rejected on shutdown
+                pending.arriveAndDeregister();
+                throw e;
+            }
+        }
+
+        private void delete(List<String> names) {
+            for (Iterator<String> it = names.iterator(); it.hasNext() && !job.isCancelRequested();) {
+                String fileName = it.next();
+                try {
+                    throttle();
+                    if (fileStorageService.deleteIfExists(fileName)) {
+                        job.deletedCounter().incrementAndGet();
+                    } else {
+                        job.missingCounter().incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (RuntimeException e) {
+                    logger.error("BulkDeleteService.delete(): Error deleting file {}", fileName, e);
+                    job.failedCounter().incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * Waits for the turn of the next delete of the job under the rate
+         * limit, shared by the threads working on it.
+         */
+        private void throttle() throws InterruptedException {
+            if (filesPerSecond <= 0) {
+                return;
+            }
+            long slot = slots.getAndIncrement();
+            long wait = start + slot * 1_000_000_000L / filesPerSecond - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+}
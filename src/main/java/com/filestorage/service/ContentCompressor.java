@@ -0,0 +1,210 @@
+package com.filestorage.service;
+
+import com.filestorage.util.ExtendedAttributes;
+import com.filestorage.util.FileStorageUtil;
+import com.filestorage.util.GzipCodec;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Decides which uploads are stored gzip-compressed, and records which stored
+ * files are. Off by default.
+ *
+ * Files with one of the configured extensions are compressed as they are
+ * written to their own file, unless a sample of their first bytes shows the
+ * content does not shrink below {@code max-ratio} of its size, e.g. text
+ * files that already hold compressed data; those are stored as they are.
+ * Files packed into segments are small and never compressed.
+ *
+ * A compressed file carries its uncompressed length in an extended
+ * attribute, which is the only thing telling it apart from a stored file
+ * that happens to hold gzip data. Reads check for the attribute whatever the
+ * configuration, so files compressed earlier stay readable after compression
+ * is turned off or an extension removed. Compression is disabled with a
+ * warning where the storage lacks extended attributes.
+ *
+ * Published meters: {@code filestorage.compression.files} (by
+ * {@code result}: compressed, skipped), {@code filestorage.compression.bytes}
+ * (by {@code stage}: raw, stored) and {@code filestorage.compression.ratio}.
+ */
+@Component
+public class ContentCompressor {
+
+    private static final Logger logger = LogManager.getLogger(ContentCompressor.class);
+
+    private static final String LENGTH_ATTRIBUTE = "filestorage.gzip.length";
+
+    private final boolean enabled;
+    private final Set<String> extensions;
+    private final int level;
+    private final double maxRatio;
+
+    private final LongAdder compressedFiles = new LongAdder();
+    private final LongAdder skippedFiles = new LongAdder();
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder storedBytes = new LongAdder();
+
+    @Autowired
+    public ContentCompressor(FileStorageUtil fileStorageUtil,
+            @Value("${file.storage.compression.enabled:false}") boolean enabled,
+            @Value("${file.storage.compression.extensions:txt}") String extensions,
+            @Value("${file.storage.compression.level:6}") int level,
+            @Value("${file.storage.compression.max-ratio:0.9}") double maxRatio,
+            MeterRegistry registry) {
+        if (level < 1 || level > 9) {
+            throw new IllegalArgumentException("Compression level must be between 1 and 9: " + level);
+        }
+        boolean supported = !enabled || ExtendedAttributes.isSupported(existingAncestor(
+                Paths.get(fileStorageUtil.getStorageDir())));
+        if (enabled && !supported) {
+            logger.warn("ContentCompressor(): Compressed files are marked with extended attributes, which the "
+                    + "storage lacks. Disabled.");
+        }
+        this.enabled = enabled && supported;
+        this.extensions = Arrays.stream(extensions.split(","))
+                .map(extension -> extension.trim().toLowerCase(Locale.ROOT))
+                .filter(extension -> !extension.isEmpty())
+                .collect(Collectors.toSet());
+        this.level = level;
+        this.maxRatio = maxRatio;
+        if (this.enabled) {
+            registerMeters(registry);
+            logger.info("ContentCompressor(): Compressing *.{} at level {}", this.extensions, level);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns whether uploads of this name are candidates for compression.
+     */
+    public boolean appliesTo(String fileName) {
+        if (!enabled) {
+            return false;
+        }
+        int dot = fileName.lastIndexOf('.');
+        return dot >= 0 && extensions.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns whether content starting with this sample shrinks enough to be
+     * stored compressed. Content that does not is counted as skipped.
+     */
+    public boolean isWorthCompressing(byte[] sample, int length) {
+        if (GzipCodec.ratio(sample, length, level) <= maxRatio) {
+            return true;
+        }
+        skippedFiles.increment();
+        return false;
+    }
+
+    /**
+     * Wraps the stream of a file being written so that it is stored
+     * compressed.
+     */
+    public OutputStream compressing(OutputStream out) throws IOException {
+        return GzipCodec.compress(out, level);
+    }
+
+    /**
+     * Marks a fully written file as compressed, before it is moved into
+     * place. If the mark cannot be written the file must not be stored, as it
+     * would be served as gzip data.
+     *
+     * @param file   The compressed file.
+     * @param length The length of its content once uncompressed.
+     */
+    public void markCompressed(Path file, long length) throws IOException {
+        ExtendedAttributes.write(file, LENGTH_ATTRIBUTE, Long.toString(length));
+        compressedFiles.increment();
+        rawBytes.add(length);
+        storedBytes.add(Files.size(file));
+    }
+
+    /**
+     * Returns the uncompressed length of a stored file, or -1 if it is not
+     * compressed.
+     */
+    public static long uncompressedLength(Path file) {
+        String length = ExtendedAttributes.read(file, LENGTH_ATTRIBUTE);
+        if (length == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(length);
+        } catch (NumberFormatException e) {
+            logger.warn("ContentCompressor.uncompressedLength(): Invalid length {} on {}", length, file);
+            return -1;
+        }
+    }
+
+    public long getCompressedFiles() {
+        return compressedFiles.sum();
+    }
+
+    public long getSkippedFiles() {
+        return skippedFiles.sum();
+    }
+
+    /**
+     * Returns the stored size of the files compressed since startup as a
+     * fraction of their uncompressed size, or 1 before any was.
+     */
+    public double getRatio() {
+        long raw = rawBytes.sum();
+        return raw == 0 ? 1 : (double) storedBytes.sum() / raw;
+    }
+
+    private static Path existingAncestor(Path path) {
+        Path directory = path.toAbsolutePath();
+        while (directory.getParent() != null && !Files.isDirectory(directory)) {
+            directory = directory.getParent();
+        }
+        return directory;
+    }
+
+    private void registerMeters(MeterRegistry registry) {
+        FunctionCounter.builder("filestorage.compression.files", compressedFiles, LongAdder::sum)
+                .description("Uploads considered for compression")
+                .tag("result", "compressed")
+                .register(registry);
+        FunctionCounter.builder("filestorage.compression.files", skippedFiles, LongAdder::sum)
+                .description("Uploads considered for compression")
+                .tag("result", "skipped")
+                .register(registry);
+        FunctionCounter.builder("filestorage.compression.bytes", rawBytes, LongAdder::sum)
+                .description("Content of the compressed uploads")
+                .tag("stage", "raw")
+                .baseUnit("bytes")
+                .register(registry);
+        FunctionCounter.builder("filestorage.compression.bytes", storedBytes, LongAdder::sum)
+                .description("Content of the compressed uploads")
+                .tag("stage", "stored")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("filestorage.compression.ratio", this, ContentCompressor::getRatio)
+                .description("Stored size of the compressed uploads as a fraction of their size")
+                .register(registry);
+    }
+}
@@ -0,0 +1,191 @@
+package com.filestorage.service;
+
+import com.filestorage.util.FileStorageUtil;
+import com.filestorage.util.FolderScanner;
+import com.filestorage.util.ShardLayout;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Incrementally maintained count of the stored files, kept per shard folder.
+ *
+ * The counters are seeded at startup from the storage journal when it is
+ * enabled, otherwise by a parallel scan, and updated by the write and delete
+ * paths, so reading the total never touches the disk. A background verifier
+ * periodically recounts the folders to correct drift caused by changes made
+ * outside of the service.
+ *
+ * Files are counted under the shard of the current layout. While files are
+ * migrated from a previous layout, files still in its folders are counted
+ * under the shard they are moving to, and verification waits for the
+ * migration to end.
+ */
+@Component
+public class FileCounter implements FileStorageListener {
+
+    private static final Logger logger = LogManager.getLogger(FileCounter.class);
+
+    private final FileStorageUtil fileStorageUtil;
+    private final FolderScanner folderScanner;
+    private final StorageJournal storageJournal;
+    private final Path storageRoot;
+    private final Map<String, LongAdder> shards = new ConcurrentHashMap<>();
+
+    // Files packed into segments are counted through events; verify() adds them to the folder counts
+    @Autowired(required = false)
+    private SegmentStore segmentStore;
+
+    public FileCounter(String storageDir) {
+        this(new FileStorageUtil(storageDir));
+    }
+
+    public FileCounter(FileStorageUtil fileStorageUtil) {
+        this(fileStorageUtil, new FolderScanner());
+    }
+
+    public FileCounter(FileStorageUtil fileStorageUtil, FolderScanner folderScanner) {
+        this(fileStorageUtil, folderScanner, null);
+    }
+
+    @Autowired
+    public FileCounter(FileStorageUtil fileStorageUtil, FolderScanner folderScanner, StorageJournal storageJournal) {
+        this.fileStorageUtil = fileStorageUtil;
+        this.folderScanner = folderScanner;
+        this.storageJournal = storageJournal;
+        this.storageRoot = Paths.get(fileStorageUtil.getStorageDir());
+        reconcile();
+    }
+
+    /**
+     * Seeds the counters from the storage journal, or by counting every shard
+     * folder in parallel.
+     */
+    private void reconcile() {
+        logger.info("FileCounter.reconcile(): In... storageRoot={}", storageRoot);
+        long start = System.nanoTime();
+        if (storageJournal != null && storageJournal.isAvailable()) {
+            if (storageJournal.forEachFile(key -> counter(key.getShard()).increment())) {
+                logger.info("FileCounter.reconcile(): Out... Counted {} journaled files in {} ms", getTotal(),
+                        (System.nanoTime() - start) / 1_000_000);
+                return;
+            }
+            // Counted again from scratch
+            shards.clear();
+        }
+        scanShardFolders(fileStorageUtil.getLayout(),
+                listing -> counter(FileKey.shardOf(storageRoot, listing.getFolder())).add(listing.size()));
+        ShardLayout previousLayout = fileStorageUtil.getPreviousLayout();
+        if (previousLayout != null) {
+            // Counted under the shards they are migrated to
+            scanShardFolders(previousLayout, listing -> {
+                for (int i = 0; i < listing.size(); i++) {
+                    onFileCreated(fileStorageUtil.resolveFilePath(listing.getName(i)));
+                }
+            });
+        }
+        logger.info("FileCounter.reconcile(): Out... Counted {} files in {} ms", getTotal(),
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Recounts the shard folders and corrects counters that drifted from the
+     * files on disk. Folders modified while being recounted are skipped and
+     * verified again on the next run.
+     */
+    @Scheduled(initialDelayString = "${file.storage.counter.verify-interval-ms:600000}",
+            fixedDelayString = "${file.storage.counter.verify-interval-ms:600000}")
+    public void verify() {
+        logger.debug("FileCounter.verify(): In...");
+        if (fileStorageUtil.getPreviousLayout() != null) {
+            logger.debug("FileCounter.verify(): Out... Skipped while files are migrated between shard layouts");
+            return;
+        }
+        LongAdder corrected = new LongAdder();
+        forEachShardFolder(fileStorageUtil.getLayout(), folder -> {
+            String shard = FileKey.shardOf(storageRoot, folder);
+            LongAdder counter = counter(shard);
+            long before = counter.sum();
+            long actual = countFiles(folder);
+            if (actual >= 0 && segmentStore != null) {
+                actual += segmentStore.count(shard);
+            }
+            if (actual >= 0 && actual != before && counter.sum() == before) {
+                counter.add(actual - before);
+                corrected.add(actual - before);
+                logger.warn("FileCounter.verify(): Corrected count of {} from {} to {}", folder, before, actual);
+            }
+        });
+        logger.debug("FileCounter.verify(): Out... Net correction={}", corrected.sum());
+    }
+
+    @Override
+    public void onFileCreated(Path filePath) {
+        counter(FileKey.of(storageRoot, filePath).getShard()).increment();
+    }
+
+    @Override
+    public void onFileDeleted(Path filePath) {
+        counter(FileKey.of(storageRoot, filePath).getShard()).decrement();
+    }
+
+    /**
+     * Returns the total number of stored files.
+     */
+    public long getTotal() {
+        long total = 0;
+        for (LongAdder counter : shards.values()) {
+            total += counter.sum();
+        }
+        return total;
+    }
+
+    private LongAdder counter(String shard) {
+        return shards.computeIfAbsent(shard, key -> new LongAdder());
+    }
+
+    /**
+     * Lists the shard folders of a layout in parallel. The folders that could
+     * be listed are counted even if others could not.
+     */
+    private void scanShardFolders(ShardLayout layout, Consumer<FolderScanner.Listing> action) {
+        try {
+            folderScanner.scanFiles("counter", layout.folders(storageRoot), action);
+        } catch (UncheckedIOException e) {
+            logger.error("FileCounter.scanShardFolders(): Error listing storage directory", e);
+        }
+    }
+
+    private void forEachShardFolder(ShardLayout layout, Consumer<Path> action) {
+        try {
+            layout.folders(storageRoot).forEach(action);
+        } catch (UncheckedIOException e) {
+            logger.error("FileCounter.forEachShardFolder(): Error listing storage directory", e);
+        }
+    }
+
+    /**
+     * Returns the number of regular files in a folder, or -1 if it cannot be
+     * listed.
+     */
+    private static long countFiles(Path folder) {
+        try {
+            return FolderScanner.list(folder).size();
+        } catch (IOException e) {
+            logger.error("FileCounter.countFiles(): Error listing files in {}", folder, e);
+            return -1;
+        }
+    }
+}
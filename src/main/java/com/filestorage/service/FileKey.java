@@ -0,0 +1,118 @@
+package com.filestorage.service;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Objects;
+
+/**
+ * Position of a stored file in search order: its shard folder, then its name.
+ * Shards of multi-level layouts are folder paths such as {@code abc/def};
+ * their fixed width makes string order match the order of the folders.
+ *
+ * Keys are handed to clients as opaque cursors so a search can resume right
+ * after the last returned entry instead of skipping an offset.
+ */
+public final class FileKey implements Comparable<FileKey> {
+
+    private final String shard;
+    private final String fileName;
+
+    public FileKey(String shard, String fileName) {
+        this.shard = shard;
+        this.fileName = fileName;
+    }
+
+    /**
+     * Builds the key of a resolved storage path. The shard is the path of the
+     * file's folder relative to the storage directory, with {@code /} between
+     * levels.
+     *
+     * @param storageRoot The storage directory.
+     * @param filePath    The path of the file in the current shard layout.
+     */
+    public static FileKey of(Path storageRoot, Path filePath) {
+        return new FileKey(shardOf(storageRoot, filePath.getParent()), filePath.getFileName().toString());
+    }
+
+    /**
+     * Returns the shard of a shard folder.
+     *
+     * @param storageRoot The storage directory.
+     * @param folder      The shard folder.
+     */
+    public static String shardOf(Path storageRoot, Path folder) {
+        StringBuilder shard = new StringBuilder();
+        for (Path level : storageRoot.relativize(folder)) {
+            if (shard.length() > 0) {
+                shard.append('/');
+            }
+            shard.append(level);
+        }
+        return shard.toString();
+    }
+
+    /**
+     * Decodes a cursor previously returned by {@link #toCursor()}.
+     *
+     * @param cursor The opaque cursor.
+     * @return The key the cursor points at.
+     */
+    public static FileKey fromCursor(String cursor) {
+        String decoded;
+        try {
+            decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+        int separator = decoded.lastIndexOf('/');
+        if (separator <= 0 || separator == decoded.length() - 1) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+        return new FileKey(decoded.substring(0, separator), decoded.substring(separator + 1));
+    }
+
+    /**
+     * Encodes this key as an opaque, URL safe cursor.
+     */
+    public String toCursor() {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((shard + "/" + fileName).getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String getShard() {
+        return shard;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    @Override
+    public int compareTo(FileKey other) {
+        int byShard = shard.compareTo(other.shard);
+        return byShard != 0 ? byShard : fileName.compareTo(other.fileName);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FileKey)) {
+            return false;
+        }
+        FileKey other = (FileKey) o;
+        return shard.equals(other.shard) && fileName.equals(other.fileName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(shard, fileName);
+    }
+
+    @Override
+    public String toString() {
+        return shard + "/" + fileName;
+    }
+}
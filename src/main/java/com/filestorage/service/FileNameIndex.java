@@ -0,0 +1,471 @@
+package com.filestorage.service;
+
+import com.filestorage.util.FileNameMatcher;
+import com.filestorage.util.FileStorageUtil;
+import com.filestorage.util.FolderScanner;
+import com.filestorage.util.ShardLayout;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Sorted, concurrent in-memory index of the stored file names, grouped by
+ * shard folder.
+ *
+ * The index is built once at startup and kept up to date through the
+ * {@link FileStorageListener} callbacks of {@link FileStorageService}, so
+ * searches can be answered without listing the shard folders. If the estimated
+ * heap usage grows past the configured budget the index disables itself and
+ * callers fall back to scanning the storage directory.
+ *
+ * While it is disabled, a periodic check estimates the size of the stored
+ * names with a scan of the folders and rebuilds the index once they fit in
+ * {@value #REBUILD_BUDGET_PERCENT}% of the budget, so it does not flip back
+ * and forth at the limit. Writes during the rebuild are replayed over the
+ * scanned names before searches use the index again.
+ *
+ * Published meters: {@code filestorage.index.available} (1 while searches
+ * are answered from the index, 0 while they scan the folders).
+ */
+@Component
+public class FileNameIndex implements FileStorageListener {
+
+    private static final Logger logger = LogManager.getLogger(FileNameIndex.class);
+
+    /**
+     * Approximate heap cost of one entry excluding the characters themselves:
+     * String header, backing array header, skip list node and index levels.
+     */
+    private static final long ENTRY_OVERHEAD_BYTES = 80;
+
+    private static final int REBUILD_BUDGET_PERCENT = 90;
+
+    private final FileStorageUtil fileStorageUtil;
+    private final FolderScanner folderScanner;
+    private final StorageJournal storageJournal;
+    private final Path storageRoot;
+    private final boolean enabled;
+    private final long maxMemoryBytes;
+    private final ConcurrentSkipListMap<String, NavigableSet<String>> shards = new ConcurrentSkipListMap<>();
+    private final AtomicLong entryCount = new AtomicLong();
+    private final AtomicLong estimatedBytes = new AtomicLong();
+
+    // Files packed into segments are not seen by the folder scan
+    @Autowired(required = false)
+    private SegmentStore segmentStore;
+
+    // Whether searches may use the index
+    private volatile boolean available;
+    // Whether names are added, while the index is available or being built
+    private volatile boolean indexing;
+    // Writes made during a rebuild, replayed once the scan is done; guarded by itself
+    private volatile List<Runnable> pending;
+
+    public FileNameIndex(String storageDir, boolean enabled, long maxMemoryMb, MeterRegistry registry) {
+        this(new FileStorageUtil(storageDir), new FolderScanner(), enabled, maxMemoryMb, registry);
+    }
+
+    public FileNameIndex(FileStorageUtil fileStorageUtil, FolderScanner folderScanner, boolean enabled,
+            long maxMemoryMb, MeterRegistry registry) {
+        this(fileStorageUtil, folderScanner, null, enabled, maxMemoryMb, registry);
+    }
+
+    @Autowired
+    public FileNameIndex(FileStorageUtil fileStorageUtil, FolderScanner folderScanner, StorageJournal storageJournal,
+            @Value("${file.storage.index.enabled:true}") boolean enabled,
+            @Value("${file.storage.index.max-memory-mb:1024}") long maxMemoryMb, MeterRegistry registry) {
+        this.fileStorageUtil = fileStorageUtil;
+        this.folderScanner = folderScanner;
+        this.storageJournal = storageJournal;
+        this.storageRoot = Paths.get(fileStorageUtil.getStorageDir());
+        this.enabled = enabled;
+        this.maxMemoryBytes = maxMemoryMb * 1024 * 1024;
+        registerMeters(registry);
+        if (enabled) {
+            build(true);
+            available = indexing;
+        } else {
+            logger.info("FileNameIndex(): Index disabled by configuration, searches will scan the storage directory.");
+        }
+    }
+
+    /**
+     * Loads the file names into the index from the storage journal when it is
+     * enabled and allowed, otherwise from a scan of every shard folder. While
+     * files are migrated between shard layouts, the folders of the previous
+     * layout are scanned too and their files indexed under the shard of the
+     * current layout. Leaves {@link #indexing} false if the index had to be
+     * disabled.
+     */
+    private void build(boolean fromJournal) {
+        logger.info("FileNameIndex.build(): In... storageRoot={}", storageRoot);
+        long start = System.nanoTime();
+        indexing = true;
+
+        if (fromJournal && storageJournal != null && storageJournal.isAvailable()) {
+            if (storageJournal.forEachFile(key -> add(key.getShard(), key.getFileName()))) {
+                if (indexing) {
+                    logger.info("FileNameIndex.build(): Out... Indexed {} journaled files in {} folders in {} ms "
+                            + "(~{} KB)", entryCount.get(), shards.size(), (System.nanoTime() - start) / 1_000_000,
+                            estimatedBytes.get() / 1024);
+                }
+                return;
+            }
+            // Scanned again from scratch
+            disable();
+            indexing = true;
+        }
+
+        if (!Files.isDirectory(storageRoot)) {
+            logger.info("FileNameIndex.build(): Out... Storage directory does not exist yet, index is empty.");
+            return;
+        }
+
+        ShardLayout previousLayout = fileStorageUtil.getPreviousLayout();
+        try {
+            folderScanner.scanFiles("index", fileStorageUtil.getLayout().folders(storageRoot),
+                    listing -> indexFolder(listing, false));
+            if (previousLayout != null) {
+                folderScanner.scanFiles("index", previousLayout.folders(storageRoot),
+                        listing -> indexFolder(listing, true));
+            }
+        } catch (UncheckedIOException e) {
+            logger.error("FileNameIndex.build(): Error listing storage directory, index disabled", e);
+            disable();
+            return;
+        }
+        // At startup it is not injected yet; FileStorageService announces the packed files instead
+        if (segmentStore != null) {
+            segmentStore.forEach(key -> add(key.getShard(), key.getFileName()));
+        }
+
+        if (indexing) {
+            logger.info("FileNameIndex.build(): Out... Indexed {} files in {} folders in {} ms (~{} KB)",
+                    entryCount.get(), shards.size(), (System.nanoTime() - start) / 1_000_000,
+                    estimatedBytes.get() / 1024);
+        }
+    }
+
+    private void indexFolder(FolderScanner.Listing listing, boolean previousLayout) {
+        String shard = FileKey.shardOf(storageRoot, listing.getFolder());
+        for (int i = 0; i < listing.size() && indexing; i++) {
+            if (previousLayout) {
+                add(fileStorageUtil.resolveFilePath(listing.getName(i)));
+            } else {
+                add(shard, listing.getName(i));
+            }
+        }
+    }
+
+    /**
+     * Returns whether the index is complete and can be used to answer searches.
+     */
+    public boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * Rebuilds the index from a scan of the storage directory once the
+     * estimated size of the stored names fits in
+     * {@value #REBUILD_BUDGET_PERCENT}% of the memory budget again. Does
+     * nothing while the index is available or disabled by configuration.
+     */
+    @Scheduled(initialDelayString = "${file.storage.index.rebuild-check-interval-ms:600000}",
+            fixedDelayString = "${file.storage.index.rebuild-check-interval-ms:600000}")
+    public synchronized void rebuildIfUnderBudget() {
+        if (!enabled || available) {
+            return;
+        }
+        long estimate;
+        try {
+            estimate = estimateStoredBytes();
+        } catch (UncheckedIOException e) {
+            logger.error("FileNameIndex.rebuildIfUnderBudget(): Error listing storage directory, index stays disabled",
+                    e);
+            return;
+        }
+        if (estimate > maxMemoryBytes / 100 * REBUILD_BUDGET_PERCENT) {
+            logger.info("FileNameIndex.rebuildIfUnderBudget(): Stored names need ~{} KB, index stays disabled",
+                    estimate / 1024);
+            return;
+        }
+        logger.info("FileNameIndex.rebuildIfUnderBudget(): Rebuilding, stored names need ~{} KB", estimate / 1024);
+        List<Runnable> updates = new ArrayList<>();
+        pending = updates;
+        try {
+            // Later builds scan, to pick up files added behind the service's back
+            build(false);
+        } finally {
+            synchronized (updates) {
+                updates.forEach(Runnable::run);
+                pending = null;
+                available = indexing;
+            }
+        }
+    }
+
+    private long estimateStoredBytes() {
+        if (!Files.isDirectory(storageRoot)) {
+            return 0;
+        }
+        long estimate = folderScanner.sum("index", fileStorageUtil.getLayout().folders(storageRoot),
+                FileNameIndex::estimateFolder);
+        ShardLayout previousLayout = fileStorageUtil.getPreviousLayout();
+        if (previousLayout != null) {
+            estimate += folderScanner.sum("index", previousLayout.folders(storageRoot), FileNameIndex::estimateFolder);
+        }
+        if (segmentStore != null) {
+            AtomicLong packed = new AtomicLong();
+            segmentStore.forEach(key -> packed.addAndGet(estimateEntrySize(key.getFileName())));
+            estimate += packed.get();
+        }
+        return estimate;
+    }
+
+    private static long estimateFolder(Path folder) {
+        long estimate = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                // Names only, like the budget; temporary files make the estimate err on the safe side
+                if (!FileStorageUtil.isInternalName(fileName)) {
+                    estimate += estimateEntrySize(fileName);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return estimate;
+    }
+
+    @Override
+    public void onFileCreated(Path filePath) {
+        if (!defer(() -> add(filePath))) {
+            add(filePath);
+        }
+    }
+
+    @Override
+    public void onFileUpdated(Path filePath) {
+        // Heals entries for files that were added outside of the service
+        onFileCreated(filePath);
+    }
+
+    @Override
+    public void onFileDeleted(Path filePath) {
+        if (!defer(() -> remove(filePath))) {
+            remove(filePath);
+        }
+    }
+
+    /**
+     * Queues a write made while the index is rebuilt, to be applied after the
+     * scan in the order it was made. Returns false if no rebuild is running.
+     */
+    private boolean defer(Runnable update) {
+        List<Runnable> updates = pending;
+        if (updates == null) {
+            return false;
+        }
+        synchronized (updates) {
+            // Replayed meanwhile: the rebuilt index takes writes directly
+            if (pending != updates) {
+                return false;
+            }
+            updates.add(update);
+            return true;
+        }
+    }
+
+    /**
+     * Registers a stored file in the index.
+     *
+     * @param filePath The resolved storage path of the file.
+     */
+    public void add(Path filePath) {
+        FileKey key = FileKey.of(storageRoot, filePath);
+        add(key.getShard(), key.getFileName());
+    }
+
+    private void add(String shard, String fileName) {
+        if (!indexing) {
+            return;
+        }
+        NavigableSet<String> names = shards.computeIfAbsent(shard, key -> new ConcurrentSkipListSet<>());
+        if (names.add(fileName)) {
+            entryCount.incrementAndGet();
+            if (estimatedBytes.addAndGet(estimateEntrySize(fileName)) > maxMemoryBytes) {
+                logger.warn("FileNameIndex.add(): Memory budget of {} MB exceeded at {} entries, index disabled",
+                        maxMemoryBytes / (1024 * 1024), entryCount.get());
+                disable();
+            }
+        }
+    }
+
+    /**
+     * Removes a deleted file from the index.
+     *
+     * @param filePath The resolved storage path of the file.
+     */
+    public void remove(Path filePath) {
+        if (!indexing) {
+            return;
+        }
+        FileKey key = FileKey.of(storageRoot, filePath);
+        NavigableSet<String> names = shards.get(key.getShard());
+        String fileName = key.getFileName();
+        if (names != null && names.remove(fileName)) {
+            entryCount.decrementAndGet();
+            estimatedBytes.addAndGet(-estimateEntrySize(fileName));
+        }
+    }
+
+    /**
+     * Counts the indexed file names matching the search, processing the shards
+     * in parallel. Only the range of names starting with the required literal
+     * prefix is visited.
+     */
+    public int countMatching(FileNameMatcher matcher) {
+        return (int) shards.values().parallelStream()
+                .mapToLong(names -> candidates(names, matcher.getPrefix(), null).stream()
+                        .filter(matcher::matches)
+                        .count())
+                .sum();
+    }
+
+    /**
+     * Returns one page of files matching the search, ordered by shard folder
+     * and then by name.
+     *
+     * @param matcher The search file names must match.
+     * @param offset  The number of matches to skip.
+     * @param size    The maximum number of files to return.
+     * @return The matching files for the requested page.
+     */
+    public List<FileKey> findMatching(FileNameMatcher matcher, int offset, int size) {
+        return collect(shards, null, matcher, offset, size);
+    }
+
+    /**
+     * Returns up to {@code size} files matching the search that come strictly
+     * after the given key, in the same order as {@link #findMatching}.
+     *
+     * @param matcher The search file names must match.
+     * @param after   The last key returned by the previous page.
+     * @param size    The maximum number of files to return.
+     * @return The matching files following the key.
+     */
+    public List<FileKey> findMatchingAfter(FileNameMatcher matcher, FileKey after, int size) {
+        return collect(shards.tailMap(after.getShard(), true), after, matcher, 0, size);
+    }
+
+    /**
+     * Passes every indexed file matching the search to the action, in the same
+     * order as {@link #findMatching}, without materializing the results.
+     */
+    public void forEachMatching(FileNameMatcher matcher, Consumer<FileKey> action) {
+        for (Map.Entry<String, NavigableSet<String>> shard : shards.entrySet()) {
+            for (String name : candidates(shard.getValue(), matcher.getPrefix(), null)) {
+                if (matcher.matches(name)) {
+                    action.accept(new FileKey(shard.getKey(), name));
+                }
+            }
+        }
+    }
+
+    private List<FileKey> collect(NavigableMap<String, NavigableSet<String>> fromShards, FileKey after,
+            FileNameMatcher matcher, int offset, int size) {
+        List<FileKey> page = new ArrayList<>(Math.max(0, Math.min(size, 1024)));
+        int skipped = 0;
+        for (Map.Entry<String, NavigableSet<String>> shard : fromShards.entrySet()) {
+            String afterName = after != null && shard.getKey().equals(after.getShard()) ? after.getFileName() : null;
+            for (String name : candidates(shard.getValue(), matcher.getPrefix(), afterName)) {
+                if (page.size() >= size) {
+                    return page;
+                }
+                if (matcher.matches(name)) {
+                    if (skipped < offset) {
+                        skipped++;
+                    } else {
+                        page.add(new FileKey(shard.getKey(), name));
+                    }
+                }
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Returns the names of a shard that start with the prefix and, when given,
+     * come strictly after {@code after}.
+     */
+    private static NavigableSet<String> candidates(NavigableSet<String> names, String prefix, String after) {
+        if (prefix.isEmpty()) {
+            return after == null ? names : names.tailSet(after, false);
+        }
+        String upper = prefix + Character.MAX_VALUE;
+        if (after == null || after.compareTo(prefix) < 0) {
+            return names.subSet(prefix, true, upper, true);
+        }
+        if (after.compareTo(upper) >= 0) {
+            return Collections.emptyNavigableSet();
+        }
+        return names.subSet(after, false, upper, true);
+    }
+
+    /**
+     * Returns the number of indexed file names.
+     */
+    public long size() {
+        return entryCount.get();
+    }
+
+    /**
+     * Returns the estimated heap usage of the index in bytes.
+     */
+    public long getEstimatedMemoryBytes() {
+        return estimatedBytes.get();
+    }
+
+    private void disable() {
+        available = false;
+        indexing = false;
+        shards.clear();
+        entryCount.set(0);
+        estimatedBytes.set(0);
+    }
+
+    private static long estimateEntrySize(String fileName) {
+        return ENTRY_OVERHEAD_BYTES + 2L * fileName.length();
+    }
+
+    private void registerMeters(MeterRegistry registry) {
+        Gauge.builder("filestorage.index.available", this, index -> index.isAvailable() ? 1 : 0)
+                .description("Whether searches are answered from the file name index rather than a folder scan")
+                .register(registry);
+    }
+}
@@ -0,0 +1,33 @@
+package com.filestorage.service;
+
+import java.nio.file.Path;
+
+/**
+ * Callback notified by {@link FileStorageService} after a stored file changes,
+ * so in-memory views of the storage directory can be kept up to date without
+ * rescanning it.
+ */
+public interface FileStorageListener {
+
+    /**
+     * Called after a new file has been written.
+     *
+     * @param filePath The resolved storage path of the file.
+     */
+    void onFileCreated(Path filePath);
+
+    /**
+     * Called after the content of an existing file has been replaced.
+     *
+     * @param filePath The resolved storage path of the file.
+     */
+    default void onFileUpdated(Path filePath) {
+    }
+
+    /**
+     * Called after a file has been deleted.
+     *
+     * @param filePath The resolved storage path of the file.
+     */
+    void onFileDeleted(Path filePath);
+}
@@ -4,24 +4,44 @@ import com.filestorage.dto.FileDto;
 import com.filestorage.model.BaseResponseMetadata;
 import com.filestorage.model.GetFileResponse;
 import com.filestorage.model.Metadata;
+import com.filestorage.util.AsyncBodyReceiver;
+import com.filestorage.util.BufferPool;
+import com.filestorage.util.FileNameMatcher;
 import com.filestorage.util.FileStorageUtil;
+import com.filestorage.util.FolderScanner;
+import com.filestorage.util.ShardLayout;
+import com.filestorage.util.StripedLocks;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.annotation.PostConstruct;
+import javax.servlet.ServletInputStream;
+
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
@@ -33,19 +53,162 @@ public class FileStorageService {
 
     private static final Logger logger = LogManager.getLogger(FileStorageService.class);
     private static final String STORAGE_DIR = "data-storage";
+    private static final int UPLOAD_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_UPLOAD_BUFFERS = 256;
+    private static final int NAME_LOCK_STRIPES = 4096;
+
+    @Value("${file.storage.location:" + STORAGE_DIR + "}")
+    private String storageDir = STORAGE_DIR;
+
+    // Hash content as it is written, so downloads can be revalidated by entity tag
+    @Value("${file.storage.etag.enabled:true}")
+    private boolean etagEnabled = true;
 
     @Autowired
     private FileStorageUtil fileStorageUtil;
 
-    public FileStorageService() {
-        initializeStorage();
+    @Autowired
+    private FileNameIndex fileNameIndex;
+
+    @Autowired
+    private FileCounter fileCounter;
+
+    @Autowired
+    private BlobStore blobStore;
+
+    @Autowired
+    private ContentCompressor contentCompressor;
+
+    @Autowired
+    private SegmentStore segmentStore;
+
+    @Autowired
+    private StorageMetrics storageMetrics;
+
+    @Autowired
+    private FolderScanner folderScanner;
+
+    @Autowired
+    private ReadCache readCache;
+
+    @Autowired
+    private NameFilter nameFilter;
+
+    @Autowired
+    private StorageJournal storageJournal;
+
+    @Autowired(required = false)
+    private List<FileStorageListener> listeners = Collections.emptyList();
+
+    private final BufferPool uploadBuffers = new BufferPool(UPLOAD_BUFFER_SIZE, MAX_POOLED_UPLOAD_BUFFERS);
+
+    // Serializes the changes to each file name
+    private final StripedLocks nameLocks = new StripedLocks(NAME_LOCK_STRIPES);
+
+    /**
+     * How a write treats an existing file of the same name.
+     */
+    private enum WriteMode {
+        /** Creates the file, leaving an existing one as it is. */
+        CREATE,
+        /** Replaces an existing file, failing if there is none. */
+        REPLACE,
+        /** Creates the file or replaces an existing one. */
+        CREATE_OR_REPLACE
+    }
+
+    /**
+     * The content of a write, received but not visible under the file's name
+     * yet: either in memory, to be packed into a segment, or in a temporary
+     * file.
+     */
+    private static final class PendingWrite {
+
+        private final FileKey key;
+        private final byte[] buffer;
+        private byte[] head;
+        private int headLength;
+        private boolean packed;
+        private Path tempFilePath;
+        // The journal operation, until its outcome is recorded
+        private long operation = -1;
+
+        private PendingWrite(FileKey key, byte[] buffer) {
+            this.key = key;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * An upload read without blocking, from {@link #createUpload(String)} to
+     * {@link #storeUpload(Upload)}. Its body is hashed, and compressed when
+     * the name is a candidate, chunk by chunk as it arrives, and held in
+     * memory when it fits in a segment.
+     */
+    public static final class Upload implements AsyncBodyReceiver.Encoder {
+
+        private final String fileName;
+        private final Path file;
+        private final int headLimit;
+        private final boolean hashed;
+        // Null unless the name is a candidate for compression
+        private final ContentCompressor compressor;
+        private AsyncBodyReceiver receiver;
+        private boolean compressed;
+
+        private Upload(String fileName, Path file, int headLimit, boolean hashed, ContentCompressor compressor) {
+            this.fileName = fileName;
+            this.file = file;
+            this.headLimit = headLimit;
+            this.hashed = hashed;
+            this.compressor = compressor;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * Returns the temporary file receiving the body.
+         */
+        public Path getFile() {
+            return file;
+        }
+
+        /**
+         * Starts reading the body, which must be in asynchronous mode. The
+         * completion may be called before this returns.
+         */
+        public void receive(ServletInputStream in, long contentLength, AsyncBodyReceiver.Completion completion)
+                throws IOException {
+            receiver = new AsyncBodyReceiver(in, file, contentLength, headLimit,
+                    hashed ? BlobStore.newDigest() : null, compressor != null ? this : null, completion);
+            receiver.start();
+        }
+
+        @Override
+        public OutputStream open(OutputStream out, byte[] sample, int length) throws IOException {
+            if (!compressor.isWorthCompressing(sample, length)) {
+                return out;
+            }
+            compressed = true;
+            return compressor.compressing(out);
+        }
+
+        /**
+         * Deletes the temporary file of an upload that failed.
+         */
+        public void discard() {
+            AsyncBodyReceiver.discard(file);
+        }
     }
 
     /**
      * Ensures the storage directory exists when the application starts.
      */
+    @PostConstruct
     private void initializeStorage() {
-        Path storagePath = Paths.get(STORAGE_DIR);
+        Path storagePath = Paths.get(storageDir);
         if (!Files.exists(storagePath)) {
             try {
                 Files.createDirectories(storagePath);
@@ -55,6 +218,16 @@ public class FileStorageService {
                 throw new RuntimeException("Storage initialization failed", e);
             }
         }
+
+        if (storageJournal.isAvailable()) {
+            // The listeners were seeded from the journal, which lists the packed files too
+            return;
+        }
+        // Files packed into segments are not seen by folder scans, announce them instead
+        segmentStore.forEach(key -> {
+            Path filePath = Paths.get(storageDir, key.getShard(), key.getFileName());
+            listeners.forEach(listener -> listener.onFileCreated(filePath));
+        });
     }
 
     /**
@@ -65,76 +238,678 @@ public class FileStorageService {
      * 10MB in the app.properties file)
      */
     public String saveFile(MultipartFile file) {
-        logger.info("FileStorageService.saveFile(): In... fileName={}", file.getOriginalFilename());
+        long started = storageMetrics.start(StorageMetrics.SAVE);
+        try {
+            logger.info("FileStorageService.saveFile(): In... fileName={}", file.getOriginalFilename());
 
-        String fileName = file.getOriginalFilename();
-        if (fileName == null || fileName.isEmpty()) {
-            throw new IllegalArgumentException("File name cannot be empty");
+            String fileName = file.getOriginalFilename();
+            if (fileName == null || fileName.isEmpty()) {
+                throw new IllegalArgumentException("File name cannot be empty");
+            }
+
+            fileStorageUtil.validateFileName(fileName);
+            Path filePath = fileStorageUtil.resolveFilePath(fileName);
+            storageMetrics.recordShardHit(fileName);
+
+            try {
+                Files.createDirectories(filePath.getParent());
+
+                if (locateFile(filePath) != null || segmentStore.contains(keyOf(filePath))) {
+                    logger.debug("FileStorageService.saveFile(): File already exists at {}", filePath);
+                    return storageDir + "/" + Paths.get(storageDir).relativize(filePath).toString().replace("\\", "/");
+                }
+
+                if (writeFile(filePath, file.getInputStream(), file.getSize(), WriteMode.CREATE)) {
+                    logger.debug("FileStorageService.saveFile(): File created concurrently at {}", filePath);
+                    return storageDir + "/" + Paths.get(storageDir).relativize(filePath).toString().replace("\\", "/");
+                }
+                logger.info("FileStorageService.saveFile(): Out... File successfully stored at {}", filePath);
+                return storageDir + "/" + Paths.get(storageDir).relativize(filePath).toString().replace("\\", "/");
+            } catch (IOException e) {
+                logger.error("FileStorageService.saveFile(): Error saving file {}", fileName, e);
+                throw new RuntimeException("File saving failed", e);
+            }
+        } finally {
+            storageMetrics.stop(StorageMetrics.SAVE, started);
         }
+    }
+
+    /**
+     * Updates an existing file's content.
+     */
+    public String updateFile(String fileName, MultipartFile newFile) throws Exception {
+        long started = storageMetrics.start(StorageMetrics.UPDATE);
+        try {
+            logger.info("FileStorageService.updateFile(): In... fileName={}", fileName);
 
+            String uploadedFileName = newFile.getOriginalFilename();
+            if (uploadedFileName != null && !uploadedFileName.equals(fileName)) {
+                logger.debug("FileStorageService.updateFile(): File name mismatch - expected '{}', but got '{}'",
+                        fileName, uploadedFileName);
+                throw new IllegalArgumentException(
+                        "File name mismatch: expected '" + fileName + "', but received '" + uploadedFileName + "'.");
+            }
+
+            fileStorageUtil.validateFileName(fileName);
+            Path filePath = fileStorageUtil.resolveFilePath(fileName);
+            storageMetrics.recordShardHit(fileName);
+
+            if (locateFile(filePath) == null && !segmentStore.contains(keyOf(filePath))) {
+                logger.debug("FileStorageService.updateFile(): File not found {}", filePath);
+                throw new FileNotFoundException("File not found: " + fileName);
+            }
+
+            try {
+                writeFile(filePath, newFile.getInputStream(), newFile.getSize(), WriteMode.REPLACE);
+                logger.info("FileStorageService.updateFile(): Out... File updated at {}", filePath);
+                return storageDir + "/" + Paths.get(storageDir).relativize(filePath).toString().replace("\\", "/");
+            } catch (FileNotFoundException e) {
+                logger.debug("FileStorageService.updateFile(): File deleted concurrently {}", filePath);
+                throw e;
+            } catch (IOException e) {
+                logger.error("FileStorageService.updateFile(): Error updating file {}", fileName, e);
+                throw new RuntimeException("File update failed", e);
+            }
+        } finally {
+            storageMetrics.stop(StorageMetrics.UPDATE, started);
+        }
+    }
+
+    /**
+     * Stores a file from a raw stream, creating it or replacing its content.
+     *
+     * The content is copied through a pooled buffer into a temporary file in
+     * the target shard folder, which is then atomically moved into place, so
+     * each byte is written once and readers never see a partial file. There is
+     * no size limit.
+     *
+     * @param fileName      The name of the file.
+     * @param content       The raw file content.
+     * @param contentLength The announced length in bytes, or -1 if unknown. A
+     *                      stream ending early fails the upload.
+     * @return The stored file path.
+     */
+    public String storeFile(String fileName, InputStream content, long contentLength) {
+        long started = storageMetrics.start(StorageMetrics.STORE);
+        try {
+            logger.info("FileStorageService.storeFile(): In... fileName={}, contentLength={}", fileName, contentLength);
+            fileStorageUtil.validateFileName(fileName);
+            Path filePath = fileStorageUtil.resolveFilePath(fileName);
+            storageMetrics.recordShardHit(fileName);
+
+            try {
+                Files.createDirectories(filePath.getParent());
+                writeFile(filePath, content, contentLength, WriteMode.CREATE_OR_REPLACE);
+                logger.info("FileStorageService.storeFile(): Out... File stored at {}", filePath);
+                return storageDir + "/" + Paths.get(storageDir).relativize(filePath).toString().replace("\\", "/");
+            } catch (IOException e) {
+                logger.error("FileStorageService.storeFile(): Error storing file {}", fileName, e);
+                throw new RuntimeException("File saving failed", e);
+            }
+        } finally {
+            storageMetrics.stop(StorageMetrics.STORE, started);
+        }
+    }
+
+    /**
+     * Prepares an upload that is read without blocking: its temporary file,
+     * in the shard folder of the file so that {@link #storeUpload(Upload)}
+     * can move it into place, and what is done to the body as it arrives,
+     * which is what a blocking upload does while writing.
+     *
+     * @param fileName The name of the file being uploaded.
+     * @return The upload, to be discarded by the caller if it fails.
+     */
+    public Upload createUpload(String fileName) {
         fileStorageUtil.validateFileName(fileName);
         Path filePath = fileStorageUtil.resolveFilePath(fileName);
-
         try {
             Files.createDirectories(filePath.getParent());
+            return new Upload(fileName, fileStorageUtil.createTempFile(filePath),
+                    segmentStore.isEnabled() ? segmentStore.getMaxFileSize() : 0,
+                    etagEnabled || blobStore.isEnabled(),
+                    contentCompressor.appliesTo(fileName) ? contentCompressor : null);
+        } catch (IOException e) {
+            logger.error("FileStorageService.createUpload(): Error creating upload file for {}", fileName, e);
+            throw new RuntimeException("File saving failed", e);
+        }
+    }
+
+    /**
+     * Stores an upload from {@link #createUpload(String)} once its body is
+     * complete, creating the file or replacing its content. The received file
+     * is moved into place, or the body held in memory packed into a segment;
+     * the file is deleted if storing fails.
+     *
+     * @param upload The completed upload.
+     * @return The stored file path.
+     */
+    public String storeUpload(Upload upload) {
+        long started = storageMetrics.start(StorageMetrics.STORE);
+        String fileName = upload.fileName;
+        try {
+            logger.info("FileStorageService.storeUpload(): In... fileName={}", fileName);
+            fileStorageUtil.validateFileName(fileName);
+            Path filePath = fileStorageUtil.resolveFilePath(fileName);
+            storageMetrics.recordShardHit(fileName);
+
+            try {
+                PendingWrite pending = adopt(filePath, upload);
+                try {
+                    apply(filePath, pending, WriteMode.CREATE_OR_REPLACE);
+                } finally {
+                    discard(pending);
+                }
+                logger.info("FileStorageService.storeUpload(): Out... File stored at {}", filePath);
+                return storageDir + "/" + Paths.get(storageDir).relativize(filePath).toString().replace("\\", "/");
+            } catch (IOException e) {
+                logger.error("FileStorageService.storeUpload(): Error storing file {}", fileName, e);
+                throw new RuntimeException("File saving failed", e);
+            }
+        } finally {
+            storageMetrics.stop(StorageMetrics.STORE, started);
+        }
+    }
+
+    /**
+     * Stores a file from a raw stream unless a file of that name exists.
+     *
+     * @param fileName      The name of the file.
+     * @param content       The raw file content.
+     * @param contentLength The announced length in bytes, or -1 if unknown.
+     * @return Whether the file was created; false if a file of that name
+     *         existed and was left as it was.
+     */
+    public boolean createFile(String fileName, InputStream content, long contentLength) {
+        long started = storageMetrics.start(StorageMetrics.SAVE);
+        try {
+            logger.info("FileStorageService.createFile(): In... fileName={}, contentLength={}", fileName,
+                    contentLength);
+            fileStorageUtil.validateFileName(fileName);
+            Path filePath = fileStorageUtil.resolveFilePath(fileName);
+            storageMetrics.recordShardHit(fileName);
+
+            try {
+                if (locateFile(filePath) != null || segmentStore.contains(keyOf(filePath))) {
+                    logger.debug("FileStorageService.createFile(): File already exists at {}", filePath);
+                    return false;
+                }
+                Files.createDirectories(filePath.getParent());
+                boolean existed = writeFile(filePath, content, contentLength, WriteMode.CREATE);
+                logger.info("FileStorageService.createFile(): Out... created={}", !existed);
+                return !existed;
+            } catch (IOException e) {
+                logger.error("FileStorageService.createFile(): Error saving file {}", fileName, e);
+                throw new RuntimeException("File saving failed", e);
+            }
+        } finally {
+            storageMetrics.stop(StorageMetrics.SAVE, started);
+        }
+    }
+
+    /**
+     * Writes the content of a file. Small files are packed into the segment
+     * store when it is enabled; other files are written to a temporary file in
+     * the target's shard folder through a pooled buffer and atomically moved
+     * into place, so readers never see a partial file. With deduplication
+     * enabled their content is hashed on the way and stored once in the blob
+     * store. A file changing size class moves between the two layouts, and a
+     * copy still waiting in the previous shard layout is removed.
+     *
+     * The content is received without holding any lock. Only checking the
+     * existing file, making the new content visible and notifying the
+     * listeners happen under the lock of the file name, so concurrent changes
+     * to one name are applied one at a time and in the order the listeners
+     * see them, while other names are not held up by slow uploads.
+     *
+     * @return Whether a file existed: it was replaced, or left as it was in
+     *         {@link WriteMode#CREATE} mode.
+     * @throws FileNotFoundException In {@link WriteMode#REPLACE} mode, when the
+     *                               file does not exist.
+     */
+    private boolean writeFile(Path filePath, InputStream content, long contentLength, WriteMode mode)
+            throws IOException {
+        PendingWrite pending = receive(filePath, content, contentLength);
+        try {
+            return apply(filePath, pending, mode);
+        } finally {
+            discard(pending);
+        }
+    }
+
+    /**
+     * Makes received content visible under the lock of the file name, as
+     * {@link #writeFile(Path, InputStream, long, WriteMode)} does.
+     */
+    private boolean apply(Path filePath, PendingWrite pending, WriteMode mode) throws IOException {
+        String fileName = filePath.getFileName().toString();
+        Lock lock = nameLocks.lockFor(fileName);
+        lock.lock();
+        try {
+            boolean exists = locateFile(filePath) != null || segmentStore.contains(pending.key);
+            if (mode == WriteMode.CREATE && exists) {
+                return true;
+            }
+            if (mode == WriteMode.REPLACE && !exists) {
+                throw new FileNotFoundException("File not found: " + fileName);
+            }
+
+            boolean existed;
+            try {
+                existed = commit(filePath, pending);
+            } catch (IOException | RuntimeException e) {
+                recordFailedChange(pending.operation, filePath, pending.key);
+                pending.operation = -1;
+                throw e;
+            }
+            storageJournal.stored(pending.operation, fileName);
+            pending.operation = -1;
+            if (existed) {
+                listeners.forEach(listener -> listener.onFileUpdated(filePath));
+            } else {
+                listeners.forEach(listener -> listener.onFileCreated(filePath));
+            }
+            return existed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the content of a write: into memory when it fits in a segment,
+     * otherwise into a temporary file.
+     */
+    private PendingWrite receive(Path filePath, InputStream content, long contentLength) throws IOException {
+        PendingWrite pending = new PendingWrite(keyOf(filePath), uploadBuffers.acquire());
+        // Journaled before the temporary file exists, so a crash while receiving leaves none behind
+        pending.operation = storageJournal.begin(filePath.getFileName().toString());
+        try {
+            byte[] buffer = pending.buffer;
+            pending.head = buffer;
+            if (segmentStore.isEnabled() && contentLength <= segmentStore.getMaxFileSize()) {
+                // Read one byte past the threshold to tell whether the file fits in a segment
+                int limit = segmentStore.getMaxFileSize() + 1;
+                byte[] head = limit <= buffer.length ? buffer : new byte[limit];
+                int headLength = 0;
+                for (int read; headLength < limit && (read = content.read(head, headLength, limit - headLength)) != -1;) {
+                    headLength += read;
+                }
+                pending.head = head;
+                pending.headLength = headLength;
+                if (headLength < limit) {
+                    checkLength(headLength, contentLength);
+                    storageMetrics.recordBytesIn(headLength);
+                    pending.packed = true;
+                    return pending;
+                }
+            }
+
+            pending.tempFilePath = writeTempFile(filePath, pending.head, pending.headLength, content, contentLength,
+                    buffer);
+            return pending;
+        } catch (IOException | RuntimeException e) {
+            discard(pending);
+            throw e;
+        }
+    }
 
-            if (Files.exists(filePath)) {
-                logger.debug("FileStorageService.saveFile(): File already exists at {}", filePath);
-                return STORAGE_DIR + "/" + Paths.get(STORAGE_DIR).relativize(filePath).toString().replace("\\", "/");
+    /**
+     * Turns a completed upload into a pending write, from what its receiver
+     * did as the body arrived: packed from memory when it was held there,
+     * otherwise kept as the temporary file, marked when it was compressed,
+     * with its digest as its entity tag and deduplicated when the blob store
+     * is enabled. The file is not read here.
+     */
+    private PendingWrite adopt(Path filePath, Upload upload) throws IOException {
+        // No buffer; the body was received by the upload's own
+        PendingWrite pending = new PendingWrite(keyOf(filePath), null);
+        pending.operation = storageJournal.begin(filePath.getFileName().toString());
+        // Deleted by discard() unless moved into place
+        pending.tempFilePath = upload.file;
+        try {
+            AsyncBodyReceiver receiver = upload.receiver;
+            long size = receiver.getReceived();
+            storageMetrics.recordBytesIn(size);
+            if (segmentStore.isEnabled() && receiver.isHeld()) {
+                pending.head = receiver.getHead();
+                pending.headLength = receiver.getHeadLength();
+                pending.packed = true;
+                return pending;
             }
+            if (upload.compressed) {
+                // Before deduplication, so a new blob is marked too
+                contentCompressor.markCompressed(upload.file, size);
+            }
+            if (receiver.getHash() != null) {
+                // Empty files occupy no data blocks, so sharing them saves nothing
+                recordHash(upload.file, receiver.getHash(), blobStore.isEnabled() && size > 0);
+            }
+            return pending;
+        } catch (IOException | RuntimeException e) {
+            discard(pending);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a file to a new temporary file next to it, starting with the
+     * bytes already read into {@code head}. The content is hashed on the way
+     * when entity tags or deduplication need it, and compressed when it is a
+     * candidate for compression whose first bytes compress well.
+     */
+    private Path writeTempFile(Path filePath, byte[] head, int headLength, InputStream content, long contentLength,
+            byte[] buffer) throws IOException {
+        Path tempFilePath = fileStorageUtil.createTempFile(filePath);
+        try {
+            boolean compress = false;
+            if (contentCompressor.appliesTo(filePath.getFileName().toString())) {
+                if (headLength == 0) {
+                    // The first buffer is the sample, written before the buffer is reused
+                    head = buffer;
+                    headLength = readFully(content, buffer);
+                }
+                compress = contentCompressor.isWorthCompressing(head, headLength);
+            }
+            MessageDigest digest = etagEnabled || blobStore.isEnabled() ? BlobStore.newDigest() : null;
+            long written = headLength;
+            try (OutputStream file = Files.newOutputStream(tempFilePath);
+                    OutputStream out = compress ? contentCompressor.compressing(file) : file) {
+                out.write(head, 0, headLength);
+                if (digest != null) {
+                    digest.update(head, 0, headLength);
+                }
+                for (int read; (read = content.read(buffer)) != -1;) {
+                    out.write(buffer, 0, read);
+                    if (digest != null) {
+                        digest.update(buffer, 0, read);
+                    }
+                    written += read;
+                }
+            }
+            checkLength(written, contentLength);
+            storageMetrics.recordBytesIn(written);
+            if (compress) {
+                // Before deduplication, so a new blob is marked too
+                contentCompressor.markCompressed(tempFilePath, written);
+            }
+            if (digest != null) {
+                // Empty files occupy no data blocks, so sharing them saves nothing
+                recordHash(tempFilePath, digest.digest(), blobStore.isEnabled() && written > 0);
+            }
+            Path received = tempFilePath;
+            tempFilePath = null;
+            return received;
+        } finally {
+            deleteQuietly(tempFilePath);
+        }
+    }
 
-            Files.copy(file.getInputStream(), filePath, StandardCopyOption.REPLACE_EXISTING);
-            logger.info("FileStorageService.saveFile(): Out... File successfully stored at {}", filePath);
-            return STORAGE_DIR + "/" + Paths.get(STORAGE_DIR).relativize(filePath).toString().replace("\\", "/");
+    /**
+     * Records the hash of a received file, which becomes its entity tag, and
+     * deduplicates the file if asked to, which records the hash as well.
+     */
+    private void recordHash(Path receivedFile, byte[] digest, boolean deduplicate) throws IOException {
+        if (deduplicate) {
+            blobStore.deduplicate(receivedFile, digest);
+        } else {
+            BlobStore.recordHash(receivedFile, digest);
+        }
+    }
+
+    /**
+     * Makes received content visible under the file's name, replacing any
+     * other copy of the file. Called under the lock of the file name.
+     *
+     * @return Whether the write replaced an existing file.
+     */
+    private boolean commit(Path filePath, PendingWrite pending) throws IOException {
+        if (pending.packed) {
+            boolean existed = segmentStore.put(pending.key, pending.head, pending.headLength);
+            return deleteAllCopies(filePath) || existed;
+        }
+
+        String previousBlob = blobStore.isEnabled() ? blobStore.hashOf(filePath) : null;
+        boolean existed = Files.exists(filePath);
+        Files.move(pending.tempFilePath, filePath, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        pending.tempFilePath = null;
+        blobStore.release(previousBlob);
+
+        // The new content supersedes a copy not migrated yet
+        Path previousPath = fileStorageUtil.resolvePreviousFilePath(filePath.getFileName().toString());
+        existed = (previousPath != null && deleteFromDisk(previousPath)) || existed;
+        return segmentStore.delete(pending.key) || existed;
+    }
+
+    /**
+     * Releases what a write still holds: its buffer and, unless it was moved
+     * into place, its temporary file. A write that was not applied is
+     * journaled as cancelled.
+     */
+    private void discard(PendingWrite pending) {
+        deleteQuietly(pending.tempFilePath);
+        pending.tempFilePath = null;
+        if (pending.operation >= 0) {
+            storageJournal.cancelled(pending.operation, pending.key.getFileName());
+            pending.operation = -1;
+        }
+        if (pending.buffer != null) {
+            uploadBuffers.release(pending.buffer);
+        }
+    }
+
+    /**
+     * Journals the outcome of a change that failed part way, as found on
+     * disk. Called under the lock of the file name.
+     */
+    private void recordFailedChange(long operation, Path filePath, FileKey key) {
+        String fileName = filePath.getFileName().toString();
+        if (locateFile(filePath) != null || segmentStore.contains(key)) {
+            storageJournal.stored(operation, fileName);
+        } else {
+            storageJournal.deleted(operation, fileName);
+        }
+    }
+
+    /**
+     * Deletes a file stored in its own file, releasing its blob.
+     *
+     * @return Whether the file existed.
+     */
+    private boolean deleteFromDisk(Path filePath) throws IOException {
+        String blob = blobStore.isEnabled() ? blobStore.hashOf(filePath) : null;
+        boolean deleted = Files.deleteIfExists(filePath);
+        if (deleted) {
+            blobStore.release(blob);
+        }
+        return deleted;
+    }
+
+    /**
+     * Deletes a file stored in its own file from both shard layouts while
+     * files are migrated between them.
+     *
+     * @return Whether any copy existed.
+     */
+    private boolean deleteAllCopies(Path filePath) throws IOException {
+        boolean deleted = deleteFromDisk(filePath);
+        Path previousPath = fileStorageUtil.resolvePreviousFilePath(filePath.getFileName().toString());
+        if (previousPath != null) {
+            // Deleting the new path again catches a file the migrator moved in between
+            deleted |= deleteFromDisk(previousPath) || deleteFromDisk(filePath);
+        }
+        return deleted;
+    }
+
+    /**
+     * Returns the path holding a file stored in its own file: its path in the
+     * current shard layout or, while files are migrated, in the previous one.
+     *
+     * @param filePath The path of the file in the current layout.
+     * @return The path holding the file, or null if there is none.
+     */
+    private Path locateFile(Path filePath) {
+        if (Files.isRegularFile(filePath)) {
+            return filePath;
+        }
+        Path previousPath = fileStorageUtil.resolvePreviousFilePath(filePath.getFileName().toString());
+        if (previousPath == null) {
+            return null;
+        }
+        if (Files.isRegularFile(previousPath)) {
+            return previousPath;
+        }
+        // Checked again in case the migrator moved it in between
+        return Files.isRegularFile(filePath) ? filePath : null;
+    }
+
+    /**
+     * Returns whether the name filter rules out a file of this name, so the
+     * lookup can be answered without the disk.
+     */
+    private boolean isDefinitelyMissing(String fileName) {
+        return nameFilter.isEnabled() && !nameFilter.mightExist(fileName);
+    }
+
+    private FileKey keyOf(Path filePath) {
+        return FileKey.of(Paths.get(storageDir), filePath);
+    }
+
+    private static int readFully(InputStream content, byte[] buffer) throws IOException {
+        int length = 0;
+        for (int read; length < buffer.length && (read = content.read(buffer, length, buffer.length - length)) != -1;) {
+            length += read;
+        }
+        return length;
+    }
+
+    private static void checkLength(long written, long contentLength) throws IOException {
+        if (contentLength >= 0 && written != contentLength) {
+            throw new IOException("Upload ended after " + written + " of " + contentLength + " bytes");
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
         } catch (IOException e) {
-            logger.error("FileStorageService.saveFile(): Error saving file {}", fileName, e);
-            throw new RuntimeException("File saving failed", e);
+            logger.warn("FileStorageService.deleteQuietly(): Could not delete {}", path, e);
         }
     }
 
     /**
-     * Updates an existing file's content.
+     * Returns where the content of a stored file can be read, whichever
+     * layout holds it. While files are migrated between shard layouts, files
+     * not moved yet are read from the previous layout.
      */
-    public String updateFile(String fileName, MultipartFile newFile) throws Exception {
-        logger.info("FileStorageService.updateFile(): In... fileName={}", fileName);
+    public StoredFile getStoredFile(String fileName) throws FileNotFoundException {
+        long started = storageMetrics.start(StorageMetrics.GET);
+        try {
+            logger.info("FileStorageService.getStoredFile(): In... fileName={}", fileName);
+            StoredFile storedFile = findStoredFile(fileName);
+            logger.info("FileStorageService.getStoredFile(): Out... File retrieved {}", storedFile.getPath());
+            return storedFile;
+        } finally {
+            storageMetrics.stop(StorageMetrics.GET, started);
+        }
+    }
+
+    /**
+     * Returns a stored file for a download. With the read cache enabled, hot
+     * files are returned with their content in memory, without touching the
+     * disk; other files are found as by {@link #getStoredFile(String)}, and
+     * read into the cache once they are requested often enough.
+     */
+    public StoredFile getDownloadFile(String fileName) throws FileNotFoundException {
+        if (!readCache.isEnabled()) {
+            return getStoredFile(fileName);
+        }
+        long started = storageMetrics.start(StorageMetrics.GET);
+        try {
+            logger.info("FileStorageService.getDownloadFile(): In... fileName={}", fileName);
+            StoredFile storedFile = readCache.get(fileName);
+            if (storedFile != null) {
+                storageMetrics.recordShardHit(fileName);
+                logger.info("FileStorageService.getDownloadFile(): Out... File served from the read cache");
+                return storedFile;
+            }
 
-        String uploadedFileName = newFile.getOriginalFilename();
-        if (uploadedFileName != null && !uploadedFileName.equals(fileName)) {
-            logger.debug("FileStorageService.updateFile(): File name mismatch - expected '{}', but got '{}'", fileName,
-                    uploadedFileName);
-            throw new IllegalArgumentException(
-                    "File name mismatch: expected '" + fileName + "', but received '" + uploadedFileName + "'.");
+            // Taken before the lookup, so a write in between keeps the old content out of the cache
+            long stamp = readCache.stamp(fileName);
+            storedFile = readCache.load(fileName, findStoredFile(fileName), stamp);
+            logger.info("FileStorageService.getDownloadFile(): Out... File retrieved {}, inMemory={}",
+                    storedFile.getPath(), storedFile.isInMemory());
+            return storedFile;
+        } finally {
+            storageMetrics.stop(StorageMetrics.GET, started);
         }
+    }
 
-        fileStorageUtil.validateFileName(fileName);
+    /**
+     * Finds where a file is stored, as {@link #getStoredFile(String)} does.
+     */
+    private StoredFile findStoredFile(String fileName) throws FileNotFoundException {
+        if (isDefinitelyMissing(fileName)) {
+            logger.debug("FileStorageService.findStoredFile(): File not found {}, rejected by the name filter",
+                    fileName);
+            throw new FileNotFoundException("File not found: " + fileName);
+        }
         Path filePath = fileStorageUtil.resolveFilePath(fileName);
+        storageMetrics.recordShardHit(fileName);
 
-        if (!Files.exists(filePath)) {
-            logger.debug("FileStorageService.updateFile(): File not found {}", filePath);
+        StoredFile storedFile = segmentStore.find(keyOf(filePath));
+        if (storedFile == null) {
+            storedFile = readStoredFile(filePath);
+        }
+        if (storedFile == null) {
+            Path previousPath = fileStorageUtil.resolvePreviousFilePath(fileName);
+            if (previousPath != null) {
+                // Read the new path again in case the migrator moved the file in between
+                storedFile = readStoredFile(previousPath);
+                storedFile = storedFile != null ? storedFile : readStoredFile(filePath);
+            }
+        }
+        if (storedFile == null) {
+            logger.debug("FileStorageService.findStoredFile(): File not found {}", filePath);
             throw new FileNotFoundException("File not found: " + fileName);
         }
+        return storedFile;
+    }
 
+    /**
+     * Returns the whole of a file stored in its own file, or null if the path
+     * does not hold one. Its entity tag is the content hash recorded when it
+     * was written. Compressed files are recognized whether or not compression
+     * is enabled.
+     */
+    private StoredFile readStoredFile(Path filePath) {
         try {
-            Path tempFilePath = Paths.get(STORAGE_DIR, fileName + ".tmp");
-            Files.copy(newFile.getInputStream(), tempFilePath, StandardCopyOption.REPLACE_EXISTING);
-            Files.move(tempFilePath, filePath, StandardCopyOption.REPLACE_EXISTING);
-            logger.info("FileStorageService.updateFile(): Out... File updated at {}", filePath);
-            return STORAGE_DIR + "/" + Paths.get(STORAGE_DIR).relativize(filePath).toString().replace("\\", "/");
+            BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+            if (attributes.isRegularFile()) {
+                String etag = etagEnabled ? BlobStore.readRecordedHash(filePath) : null;
+                return new StoredFile(filePath, 0, attributes.size(), attributes.lastModifiedTime().toMillis(), etag,
+                        ContentCompressor.uncompressedLength(filePath));
+            }
         } catch (IOException e) {
-            logger.error("FileStorageService.updateFile(): Error updating file {}", fileName, e);
-            throw new RuntimeException("File update failed", e);
+            logger.debug("FileStorageService.readStoredFile(): Cannot read attributes of {}", filePath);
         }
+        return null;
     }
 
     /**
-     * Retrieves the file from storage.
+     * Retrieves a file stored in its own file. Files packed into segments are
+     * only available through {@link #getStoredFile(String)}, which also tells
+     * whether the file holds compressed content.
      */
     public Path getFile(String fileName) throws FileNotFoundException {
         logger.info("FileStorageService.getFile(): In... fileName={}", fileName);
-        Path filePath = fileStorageUtil.resolveFilePath(fileName);
+        Path filePath = isDefinitelyMissing(fileName) ? null : locateFile(fileStorageUtil.resolveFilePath(fileName));
 
-        if (!Files.exists(filePath) || !Files.isRegularFile(filePath)) {
-            logger.debug("FileStorageService.getFile(): File not found {}", filePath);
+        if (filePath == null) {
+            logger.debug("FileStorageService.getFile(): File not found {}", fileName);
             throw new FileNotFoundException("File not found: " + fileName);
         }
 
@@ -146,106 +921,477 @@ public class FileStorageService {
      * Deletes a file.
      */
     public boolean deleteFile(String fileName) throws Exception {
-        logger.info("FileStorageService.deleteFile(): In... fileName={}", fileName);
-        Path filePath = getFile(fileName);
+        long started = storageMetrics.start(StorageMetrics.DELETE);
         try {
-            boolean deleted = Files.deleteIfExists(filePath);
+            logger.info("FileStorageService.deleteFile(): In... fileName={}", fileName);
+            boolean deleted = removeFile(fileName);
+            if (!deleted) {
+                logger.debug("FileStorageService.deleteFile(): File not found {}", fileName);
+                throw new FileNotFoundException("File not found: " + fileName);
+            }
             logger.info("FileStorageService.deleteFile(): Out... File deleted={}", deleted);
             return deleted;
-        } catch (IOException e) {
-            logger.error("FileStorageService.deleteFile(): Error deleting file {}", fileName, e);
-            throw new RuntimeException("File deletion failed", e);
+        } finally {
+            storageMetrics.stop(StorageMetrics.DELETE, started);
         }
     }
 
     /**
-     * Lists files matching a regex with pagination.
+     * Deletes a file if it exists, for bulk deletes where missing files are
+     * expected and counted rather than reported as errors.
+     *
+     * @return Whether the file existed.
      */
-    public BaseResponseMetadata<GetFileResponse> listFilesMatchingRegex(String regex, int page, int size) {
-        logger.info("FileStorageService.listFilesMatchingRegex(): In... regex={}, page={}, size={}", regex, page, size);
+    public boolean deleteIfExists(String fileName) {
+        long started = storageMetrics.start(StorageMetrics.DELETE);
+        try {
+            logger.debug("FileStorageService.deleteIfExists(): In... fileName={}", fileName);
+            boolean deleted = removeFile(fileName);
+            logger.debug("FileStorageService.deleteIfExists(): Out... File deleted={}", deleted);
+            return deleted;
+        } finally {
+            storageMetrics.stop(StorageMetrics.DELETE, started);
+        }
+    }
 
-        Pattern pattern;
+    /**
+     * Deletes every copy of a file under its name lock and notifies the
+     * listeners.
+     *
+     * @return Whether the file existed.
+     */
+    private boolean removeFile(String fileName) {
+        if (isDefinitelyMissing(fileName)) {
+            return false;
+        }
+        Path filePath = fileStorageUtil.resolveFilePath(fileName);
+        storageMetrics.recordShardHit(fileName);
+        Lock lock = nameLocks.lockFor(fileName);
+        lock.lock();
         try {
-            pattern = Pattern.compile(regex);
-        } catch (PatternSyntaxException e) {
-            logger.error("FileStorageService.listFilesMatchingRegex(): Invalid regex pattern: {}", regex);
-            throw new IllegalArgumentException("Invalid regex pattern: " + regex);
+            long operation = storageJournal.begin(fileName);
+            boolean deleted;
+            try {
+                deleted = segmentStore.delete(keyOf(filePath)) || deleteAllCopies(filePath);
+            } catch (IOException e) {
+                recordFailedChange(operation, filePath, keyOf(filePath));
+                logger.error("FileStorageService.removeFile(): Error deleting file {}", fileName, e);
+                throw new RuntimeException("File deletion failed", e);
+            }
+            if (deleted) {
+                storageJournal.deleted(operation, fileName);
+                listeners.forEach(listener -> listener.onFileDeleted(filePath));
+            } else {
+                storageJournal.cancelled(operation, fileName);
+            }
+            return deleted;
+        } finally {
+            lock.unlock();
         }
+    }
+
+    /**
+     * Lists files matching a regex with pagination.
+     */
+    public BaseResponseMetadata<GetFileResponse> listFilesMatchingRegex(String regex, int page, int size) {
+        long started = storageMetrics.start(StorageMetrics.SEARCH);
+        try {
+            logger.info("FileStorageService.listFilesMatchingRegex(): In... regex={}, page={}, size={}", regex, page,
+                    size);
+
+            FileNameMatcher matcher = compileMatcher(regex);
+            List<FileKey> matches = new ArrayList<>();
+            int offset = page * size;
+            AtomicInteger matchedFilesCounter = new AtomicInteger(0); // Ensures thread-safe counting
+
+            if (matcher.isExact()) {
+                // A regex without metacharacters names a single file: resolve it instead of searching
+                List<FileKey> exactMatches = findExact(matcher.getExactName(), null);
+                if (offset == 0) {
+                    matches.addAll(exactMatches.subList(0, Math.min(size, exactMatches.size())));
+                }
 
-        List<FileDto> fileDtoList = new ArrayList<>();
-        int offset = page * size;
-        AtomicInteger matchedFilesCounter = new AtomicInteger(0); // Ensures thread-safe counting
+                storageMetrics.recordSearch(matcher.getTestedCount(), exactMatches.size());
+                logger.info("FileStorageService.listFilesMatchingRegex(): Out... Exact name lookup found {} files",
+                        exactMatches.size());
+                return new BaseResponseMetadata<>(toFileResponse(matches),
+                        new Metadata(exactMatches.size(), page, size, nextCursor(matches, size)), null);
+            }
+
+            if (fileNameIndex.isAvailable()) {
+                // Answer both the count and the page from memory, without listing the folders
+                int totalMatchingFiles = fileNameIndex.countMatching(matcher);
+                matches.addAll(fileNameIndex.findMatching(matcher, offset, size));
 
-        try (Stream<Path> foldersStream = Files.list(Paths.get(STORAGE_DIR)).filter(Files::isDirectory)) {
-            // Sort folders ascending before parallel processing
-            List<Path> sortedFolders = foldersStream.sorted(Comparator.comparing(Path::toString))
-                    .collect(Collectors.toList());
+                storageMetrics.recordSearch(matcher.getTestedCount(), totalMatchingFiles);
+                logger.info(
+                        "FileStorageService.listFilesMatchingRegex(): Out... Found {} indexed files for this page, Total matching items: {}",
+                        matches.size(), totalMatchingFiles);
+                return new BaseResponseMetadata<>(toFileResponse(matches),
+                        new Metadata(totalMatchingFiles, page, size, nextCursor(matches, size)), null);
+            }
 
             // Parallel processing for counting total matching files
-            int totalMatchingFiles = sortedFolders.parallelStream()
-                    .mapToInt(folder -> {
-                        String threadName = Thread.currentThread().getName();
-                        logger.info("FileStorageService.listFilesMatchingRegex(): Processing folder: {} on thread: {}",
-                                folder, threadName);
-
-                        try (Stream<Path> files = Files.list(folder).filter(Files::isRegularFile)) {
-                            return (int) files.filter(file -> pattern.matcher(file.getFileName().toString()).matches())
-                                    .count();
-                        } catch (IOException e) {
-                            logger.error("Error counting files in {}", folder, e);
-                            return 0;
-                        }
-                    })
-                    .sum();
+            int totalMatchingFiles = (int) folderScanner.sum("search", listShardFolders(), folder -> {
+                String threadName = Thread.currentThread().getName();
+                logger.info("FileStorageService.listFilesMatchingRegex(): Processing folder: {} on thread: {}",
+                        folder, threadName);
+
+                // Match the name before the stat so non matching entries cost no system call
+                try (Stream<Path> files = Files.list(folder)) {
+                    return files.map(Path::getFileName).map(Path::toString)
+                            .filter(fileName -> !FileStorageUtil.isInternalName(fileName)
+                                    && matcher.matches(fileName))
+                            .map(folder::resolve)
+                            .filter(Files::isRegularFile)
+                            .count()
+                            + countPacked(folder, matcher);
+                } catch (IOException e) {
+                    logger.error("Error counting files in {}", folder, e);
+                    return 0;
+                }
+            });
 
             // Sequential processing for collecting paginated results (ensuring order)
-            for (Path folder : sortedFolders) {
-                try (Stream<Path> files = Files.list(folder).filter(Files::isRegularFile)) {
-                    for (Path file : (Iterable<Path>) files::iterator) {
-                        String fileName = file.getFileName().toString();
-                        if (pattern.matcher(fileName).matches()) {
-                            int currentMatchCount = matchedFilesCounter.incrementAndGet();
-                            if (currentMatchCount > offset && fileDtoList.size() < size) {
-                                fileDtoList.add(new FileDto(fileName));
-                            }
-                        }
+            for (Iterator<Path> folders = listShardFolders().iterator(); folders.hasNext();) {
+                Path folder = folders.next();
+                String shard = shardOf(folder);
+                for (String fileName : listMatchingNames(folder, matcher, null, Integer.MAX_VALUE)) {
+                    int currentMatchCount = matchedFilesCounter.incrementAndGet();
+                    if (currentMatchCount > offset && matches.size() < size) {
+                        matches.add(new FileKey(shard, fileName));
                     }
-                } catch (IOException e) {
-                    logger.error("Error listing files in {}", folder, e);
                 }
-                if (fileDtoList.size() >= size) {
+                if (matches.size() >= size) {
                     break; // Stop once enough results are collected
                 }
             }
 
+            // Files not migrated yet from the previous shard layout come last
+            AtomicInteger previousMatches = new AtomicInteger();
+            forEachPreviousMatch(matcher, key -> {
+                previousMatches.incrementAndGet();
+                if (matchedFilesCounter.incrementAndGet() > offset && matches.size() < size) {
+                    matches.add(key);
+                }
+            }, false);
+            totalMatchingFiles += previousMatches.get();
+
+            storageMetrics.recordSearch(matcher.getTestedCount(), totalMatchingFiles);
             logger.info(
                     "FileStorageService.listFilesMatchingRegex(): Out... Found {} files for this page, Total matching items: {}",
-                    fileDtoList.size(), totalMatchingFiles);
+                    matches.size(), totalMatchingFiles);
 
-            return new BaseResponseMetadata<>(new GetFileResponse(fileDtoList),
-                    new Metadata(totalMatchingFiles, page, size), null);
+            return new BaseResponseMetadata<>(toFileResponse(matches),
+                    new Metadata(totalMatchingFiles, page, size, nextCursor(matches, size)), null);
+        } finally {
+            storageMetrics.stop(StorageMetrics.SEARCH, started);
+        }
+    }
+
+    /**
+     * Lists files matching a regex, resuming right after the file the cursor
+     * points at, so pages stay stable while files are added. With the name
+     * index available each call only visits the entries of the returned page,
+     * and deep pages cost the same as the first one. Without it, the folders
+     * from the cursor's on are listed until the page is full, keeping only the
+     * {@code size} first names after the cursor of each, and during a shard
+     * migration every folder of the previous layout is listed too.
+     */
+    public BaseResponseMetadata<GetFileResponse> listFilesMatchingRegex(String regex, String cursor, int size) {
+        long started = storageMetrics.start(StorageMetrics.SEARCH);
+        try {
+            logger.info("FileStorageService.listFilesMatchingRegex(): In... regex={}, cursor={}, size={}", regex,
+                    cursor, size);
+
+            FileNameMatcher matcher = compileMatcher(regex);
+            FileKey after = FileKey.fromCursor(cursor);
+            List<FileKey> matches = new ArrayList<>();
+
+            if (matcher.isExact()) {
+                List<FileKey> exactMatches = findExact(matcher.getExactName(), after);
+                matches.addAll(exactMatches.subList(0, Math.min(size, exactMatches.size())));
+            } else if (fileNameIndex.isAvailable()) {
+                matches.addAll(fileNameIndex.findMatchingAfter(matcher, after, size));
+            } else {
+                for (Iterator<Path> folders = listShardFolders().iterator(); folders.hasNext();) {
+                    Path folder = folders.next();
+                    String shard = shardOf(folder);
+                    int order = shard.compareTo(after.getShard());
+                    if (order < 0) {
+                        continue; // Folder was fully returned by earlier pages
+                    }
+                    String afterName = order == 0 ? after.getFileName() : null;
+                    for (String fileName : listMatchingNames(folder, matcher, afterName, size - matches.size())) {
+                        matches.add(new FileKey(shard, fileName));
+                    }
+                    if (matches.size() >= size) {
+                        break; // Stop once enough results are collected
+                    }
+                }
+                mergePreviousMatches(matcher, after, matches, size);
+            }
+
+            storageMetrics.recordSearch(matcher.getTestedCount(), matches.size());
+            logger.info("FileStorageService.listFilesMatchingRegex(): Out... Found {} files after cursor",
+                    matches.size());
+            return new BaseResponseMetadata<>(toFileResponse(matches), new Metadata(nextCursor(matches, size)),
+                    null);
+        } finally {
+            storageMetrics.stop(StorageMetrics.SEARCH, started);
+        }
+    }
+
+    /**
+     * Passes the name of every file matching the search to the consumer as soon
+     * as it is found, so callers can stream results of any size with bounded
+     * memory. Names are ordered by shard folder, and by name within a folder
+     * when the name index is available.
+     *
+     * Without the index a folder that cannot be listed fails the call with
+     * an {@link UncheckedIOException}, as exports, archives and bulk deletes
+     * must not complete over a partial listing. A folder removed meanwhile
+     * holds no files and is passed over.
+     *
+     * @param matcher  The search compiled with {@link #compileMatcher(String)}.
+     * @param consumer Receives each matching file name.
+     * @return The number of matching files.
+     */
+    public long streamFilesMatching(FileNameMatcher matcher, Consumer<String> consumer) {
+        long started = storageMetrics.start(StorageMetrics.STREAM);
+        try {
+            logger.info("FileStorageService.streamFilesMatching(): In... regex={}", matcher.getPattern());
+            AtomicLong matched = new AtomicLong();
+            Consumer<FileKey> action = key -> {
+                consumer.accept(key.getFileName());
+                matched.incrementAndGet();
+            };
+
+            if (matcher.isExact()) {
+                findExact(matcher.getExactName(), null).forEach(action);
+            } else if (fileNameIndex.isAvailable()) {
+                fileNameIndex.forEachMatching(matcher, action);
+            } else {
+                for (Iterator<Path> folders = listShardFolders().iterator(); folders.hasNext();) {
+                    Path folder = folders.next();
+                    String shard = shardOf(folder);
+                    try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+                        for (Path file : files) {
+                            String fileName = file.getFileName().toString();
+                            if (!FileStorageUtil.isInternalName(fileName) && matcher.matches(fileName)
+                                    && Files.isRegularFile(file)) {
+                                action.accept(new FileKey(shard, fileName));
+                            }
+                        }
+                    } catch (NoSuchFileException e) {
+                        logger.debug("FileStorageService.streamFilesMatching(): Folder {} removed meanwhile", folder);
+                    } catch (IOException e) {
+                        logger.error("Error listing files in {}", folder, e);
+                        throw new UncheckedIOException(e);
+                    }
+                    for (String fileName : segmentStore.names(shard)) {
+                        if (matcher.matches(fileName)) {
+                            action.accept(new FileKey(shard, fileName));
+                        }
+                    }
+                }
+                forEachPreviousMatch(matcher, action, true);
+            }
+
+            storageMetrics.recordSearch(matcher.getTestedCount(), matched.get());
+            logger.info("FileStorageService.streamFilesMatching(): Out... Streamed {} files", matched.get());
+            return matched.get();
+        } finally {
+            storageMetrics.stop(StorageMetrics.STREAM, started);
+        }
+    }
+
+    /**
+     * Compiles a search regex, rejecting invalid patterns.
+     */
+    public FileNameMatcher compileMatcher(String regex) {
+        try {
+            return new FileNameMatcher(Pattern.compile(regex));
+        } catch (PatternSyntaxException e) {
+            logger.error("FileStorageService.listFilesMatchingRegex(): Invalid regex pattern: {}", regex);
+            throw new IllegalArgumentException("Invalid regex pattern: " + regex);
+        }
+    }
+
+    /**
+     * Looks up a single file name with one stat of its resolved path, returning
+     * its key if it exists and comes after the optional cursor position.
+     */
+    private List<FileKey> findExact(String fileName, FileKey after) {
+        if (fileName.trim().isEmpty() || fileName.contains("/") || fileName.contains("\\")
+                || fileName.equals(".") || fileName.equals("..")) {
+            return Collections.emptyList();
+        }
+        Path filePath = fileStorageUtil.resolveFilePath(fileName);
+        FileKey key = keyOf(filePath);
+        if (!segmentStore.contains(key) && locateFile(filePath) == null) {
+            return Collections.emptyList();
+        }
+        if (after != null && key.compareTo(after) <= 0) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(key);
+    }
+
+    /**
+     * Returns the shard folders of the current layout sorted by name. The
+     * folders are listed lazily as the stream is consumed.
+     */
+    private Stream<Path> listShardFolders() {
+        return fileStorageUtil.getLayout().folders(Paths.get(storageDir));
+    }
+
+    private String shardOf(Path folder) {
+        return FileKey.shardOf(Paths.get(storageDir), folder);
+    }
+
+    /**
+     * Passes the key of every file matching the search that is still stored
+     * in the previous shard layout, in no particular order. Does nothing when
+     * no migration is running.
+     *
+     * @param complete Whether a folder that cannot be listed fails the call
+     *                 with an {@link UncheckedIOException}, rather than being
+     *                 logged and left out. Folders removed meanwhile are
+     *                 passed over either way.
+     */
+    private void forEachPreviousMatch(FileNameMatcher matcher, Consumer<FileKey> action, boolean complete) {
+        ShardLayout previousLayout = fileStorageUtil.getPreviousLayout();
+        if (previousLayout == null) {
+            return;
+        }
+        previousLayout.folders(Paths.get(storageDir)).forEach(folder -> {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+                for (Path file : files) {
+                    String fileName = file.getFileName().toString();
+                    if (!FileStorageUtil.isInternalName(fileName) && matcher.matches(fileName)
+                            && Files.isRegularFile(file)) {
+                        action.accept(keyOf(fileStorageUtil.resolveFilePath(fileName)));
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                // Emptied and removed by the migration meanwhile
+                logger.debug("FileStorageService.forEachPreviousMatch(): Folder {} removed meanwhile", folder);
+            } catch (IOException e) {
+                logger.error("Error listing files in {}", folder, e);
+                if (complete) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Merges the files of the previous shard layout into a page of files
+     * found after the cursor, keeping the page in key order and at most
+     * {@code size} long.
+     */
+    private void mergePreviousMatches(FileNameMatcher matcher, FileKey after, List<FileKey> matches, int size) {
+        if (fileStorageUtil.getPreviousLayout() == null) {
+            return;
+        }
+        TreeSet<FileKey> merged = new TreeSet<>(matches);
+        forEachPreviousMatch(matcher, key -> {
+            if (key.compareTo(after) > 0) {
+                merged.add(key);
+                if (merged.size() > size) {
+                    merged.pollLast();
+                }
+            }
+        }, false);
+        matches.clear();
+        matches.addAll(merged);
+    }
+
+    /**
+     * Returns the sorted names of the files in a folder matching the search,
+     * optionally only those after the given name, and at most the first
+     * {@code limit} of them. Every entry is read, but only the names kept so
+     * far bound memory, and names that cannot make the cut cost no stat.
+     */
+    private List<String> listMatchingNames(Path folder, FileNameMatcher matcher, String after, int limit) {
+        TreeSet<String> names = new TreeSet<>();
+        Predicate<String> candidate = fileName -> (after == null || fileName.compareTo(after) > 0)
+                && (names.size() < limit || fileName.compareTo(names.last()) < 0) && matcher.matches(fileName);
+        Consumer<String> keep = fileName -> {
+            names.add(fileName);
+            if (names.size() > limit) {
+                names.pollLast();
+            }
+        };
+        for (String fileName : segmentStore.names(shardOf(folder))) {
+            if (limit > 0 && candidate.test(fileName)) {
+                keep.accept(fileName);
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                if (limit > 0 && !FileStorageUtil.isInternalName(fileName) && candidate.test(fileName)
+                        && Files.isRegularFile(file)) {
+                    keep.accept(fileName);
+                }
+            }
         } catch (IOException e) {
-            logger.error("FileStorageService.listFilesMatchingRegex(): Error listing files", e);
-            throw new RuntimeException("File listing failed", e);
+            logger.error("Error listing files in {}", folder, e);
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * Returns the number of files of a shard folder packed into segments that
+     * match the search.
+     */
+    private long countPacked(Path folder, FileNameMatcher matcher) {
+        return segmentStore.names(shardOf(folder)).stream().filter(matcher::matches).count();
+    }
+
+    private static GetFileResponse toFileResponse(List<FileKey> matches) {
+        List<FileDto> fileDtoList = new ArrayList<>(matches.size());
+        for (FileKey match : matches) {
+            fileDtoList.add(new FileDto(match.getFileName()));
+        }
+        return new GetFileResponse(fileDtoList);
+    }
+
+    /**
+     * Returns the cursor of the last match when the page is full, or null when
+     * there are no further results.
+     */
+    private static String nextCursor(List<FileKey> matches, int size) {
+        if (matches.isEmpty() || matches.size() < size) {
+            return null;
         }
+        return matches.get(matches.size() - 1).toCursor();
     }
 
     /**
-     * Counts the total number of files stored in the structured directory.
-     * TODO: Cache file count and update on add/delete to improve performance.
+     * Returns the total number of files stored in the structured directory from
+     * the incrementally maintained counters.
      */
     public long countFiles() {
-        logger.info("FileStorageService.countFiles(): In... Counting total stored files.");
+        long started = storageMetrics.start(StorageMetrics.COUNT);
         try {
-            long totalFiles = Files.walk(Paths.get(STORAGE_DIR))
-                    .filter(Files::isRegularFile)
-                    .count();
-
+            logger.info("FileStorageService.countFiles(): In... Counting total stored files.");
+            long totalFiles = fileCounter.getTotal();
             logger.info("FileStorageService.countFiles(): Out... Total files counted={}", totalFiles);
             return totalFiles;
-        } catch (IOException e) {
-            logger.error("FileStorageService.countFiles(): Error accessing storage directory", e);
-            throw new RuntimeException("Error counting files", e);
+        } finally {
+            storageMetrics.stop(StorageMetrics.COUNT, started);
         }
     }
+
+    /**
+     * Returns the locks serializing the changes to each file name, for the
+     * components that move stored files outside the service.
+     */
+    StripedLocks getNameLocks() {
+        return nameLocks;
+    }
 }
@@ -0,0 +1,278 @@
+package com.filestorage.service;
+
+import com.filestorage.util.BloomFilter;
+import com.filestorage.util.FileStorageUtil;
+import com.filestorage.util.FolderScanner;
+import com.filestorage.util.ShardLayout;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bloom filter over the names of all stored files, so that downloads and
+ * deletes of names that do not exist are answered without hashing the name
+ * into a path or touching the disk. Off by default.
+ *
+ * The filter is built at startup from the storage journal when it is enabled,
+ * otherwise from a scan of the shard folders plus the files packed into
+ * segments, and every file written through the service is added to it. A name
+ * it rejects was definitely not stored; a name it accepts is looked up on disk
+ * as before, which happens for stored files and for a share of missing names
+ * bounded by the false positive rate.
+ *
+ * A Bloom filter cannot forget names, so deleted names keep being looked up
+ * on disk. Once deletes reach a share of the names in the filter, it is
+ * rebuilt in the background by the periodic check; it can also be rebuilt on
+ * demand through the {@code namefilter} actuator endpoint, e.g. after files
+ * were added to the storage directory behind the service's back, which the
+ * filter would otherwise report as missing. Writes during a rebuild are added
+ * to both the old and the new filter, so no name is lost in the swap.
+ *
+ * Published meters: {@code filestorage.namefilter.rejected} (lookups
+ * answered without the disk), {@code filestorage.namefilter.names} and
+ * {@code filestorage.namefilter.size} (bytes).
+ */
+@Component
+public class NameFilter implements FileStorageListener {
+
+    private static final Logger logger = LogManager.getLogger(NameFilter.class);
+
+    // The first layer gets room to grow before a second one is needed
+    private static final long MIN_EXPECTED_NAMES = 1 << 20;
+    private static final int HEADROOM = 2;
+
+    private final FileStorageUtil fileStorageUtil;
+    private final FolderScanner folderScanner;
+    private final StorageJournal storageJournal;
+    private final Path storageRoot;
+    private final boolean enabled;
+    private final double falsePositiveRate;
+    private final double rebuildDeletedRatio;
+
+    // Files packed into segments are not seen by the folder scan
+    @Autowired(required = false)
+    private SegmentStore segmentStore;
+
+    private volatile BloomFilter filter;
+    // The filter being rebuilt, which receives the writes made during the rebuild
+    private volatile BloomFilter building;
+    private final LongAdder deletes = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public NameFilter(FileStorageUtil fileStorageUtil, FolderScanner folderScanner, boolean enabled,
+            double falsePositiveRate, double rebuildDeletedRatio, MeterRegistry registry) {
+        this(fileStorageUtil, folderScanner, null, enabled, falsePositiveRate, rebuildDeletedRatio, registry);
+    }
+
+    @Autowired
+    public NameFilter(FileStorageUtil fileStorageUtil, FolderScanner folderScanner, StorageJournal storageJournal,
+            @Value("${file.storage.name-filter.enabled:false}") boolean enabled,
+            @Value("${file.storage.name-filter.false-positive-rate:0.01}") double falsePositiveRate,
+            @Value("${file.storage.name-filter.rebuild-deleted-ratio:0.25}") double rebuildDeletedRatio,
+            MeterRegistry registry) {
+        this.fileStorageUtil = fileStorageUtil;
+        this.folderScanner = folderScanner;
+        this.storageJournal = storageJournal;
+        this.storageRoot = Paths.get(fileStorageUtil.getStorageDir());
+        this.enabled = enabled;
+        this.falsePositiveRate = falsePositiveRate;
+        this.rebuildDeletedRatio = rebuildDeletedRatio;
+        if (enabled) {
+            // Fails fast on an invalid rate
+            new BloomFilter(1, falsePositiveRate);
+            registerMeters(registry);
+            rebuild();
+        } else {
+            logger.info("NameFilter(): Filter disabled by configuration, every lookup goes to the disk.");
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns false if no file of this name is stored, true if one may be.
+     * Always true while the filter is disabled or not built yet.
+     */
+    public boolean mightExist(String fileName) {
+        BloomFilter current = filter;
+        if (current == null || current.mightContain(fileName)) {
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Rebuilds the filter from a scan of the storage directory, sized for the
+     * names found. The current filter keeps answering meanwhile. The first
+     * build reads the storage journal instead when it is enabled. Does nothing
+     * when the filter is disabled.
+     */
+    public synchronized void rebuild() {
+        if (!enabled) {
+            return;
+        }
+        logger.info("NameFilter.rebuild(): In... storageRoot={}", storageRoot);
+        long start = System.nanoTime();
+        BloomFilter current = filter;
+        long expected = Math.max(MIN_EXPECTED_NAMES, HEADROOM * (current != null ? current.getKeys() : 0));
+        BloomFilter next = new BloomFilter(expected, falsePositiveRate);
+        building = next;
+        deletes.reset();
+        try {
+            // Later rebuilds scan, to pick up files added behind the service's back
+            if (current != null || storageJournal == null || !storageJournal.isAvailable()
+                    || !storageJournal.forEachFile(key -> next.add(key.getFileName()))) {
+                scan(next);
+            }
+        } catch (UncheckedIOException e) {
+            logger.error("NameFilter.rebuild(): Error listing storage directory, keeping the current filter", e);
+            building = null;
+            return;
+        }
+        // Swapped before building is cleared, so a concurrent write always reaches the new filter
+        filter = next;
+        building = null;
+        logger.info("NameFilter.rebuild(): Out... Filtered {} names in {} ms (~{} KB, {} layers)", next.getKeys(),
+                (System.nanoTime() - start) / 1_000_000, next.getSizeBytes() / 1024, next.getLayers());
+    }
+
+    /**
+     * Rebuilds the filter once deletes since the last build reach
+     * {@code rebuild-deleted-ratio} of its names, or once it had to add
+     * layers, so it is right-sized again.
+     */
+    @Scheduled(initialDelayString = "${file.storage.name-filter.rebuild-check-interval-ms:600000}",
+            fixedDelayString = "${file.storage.name-filter.rebuild-check-interval-ms:600000}")
+    public void rebuildIfStale() {
+        BloomFilter current = filter;
+        if (current == null) {
+            return;
+        }
+        long deleted = deletes.sum();
+        if (deleted > rebuildDeletedRatio * current.getKeys() || current.getLayers() > 1) {
+            logger.info("NameFilter.rebuildIfStale(): Rebuilding after {} deletes, {} layers", deleted,
+                    current.getLayers());
+            rebuild();
+        }
+    }
+
+    @Override
+    public void onFileCreated(Path filePath) {
+        add(filePath.getFileName().toString());
+    }
+
+    @Override
+    public void onFileUpdated(Path filePath) {
+        // Heals names of files that were added outside of the service
+        add(filePath.getFileName().toString());
+    }
+
+    @Override
+    public void onFileDeleted(Path filePath) {
+        if (filter != null) {
+            deletes.increment();
+        }
+    }
+
+    /**
+     * Returns the number of names added to the filter, including deleted
+     * ones, or 0 when it is disabled.
+     */
+    public long getNames() {
+        BloomFilter current = filter;
+        return current != null ? current.getKeys() : 0;
+    }
+
+    public long getSizeBytes() {
+        BloomFilter current = filter;
+        return current != null ? current.getSizeBytes() : 0;
+    }
+
+    public int getLayers() {
+        BloomFilter current = filter;
+        return current != null ? current.getLayers() : 0;
+    }
+
+    public long getDeletesSinceBuild() {
+        return deletes.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    private void add(String fileName) {
+        // The rebuild target is read first: once it is cleared, filter is already the new one
+        BloomFilter next = building;
+        BloomFilter current = filter;
+        if (current != null) {
+            current.add(fileName);
+        }
+        if (next != null) {
+            next.add(fileName);
+        }
+    }
+
+    private void scan(BloomFilter target) {
+        if (!Files.isDirectory(storageRoot)) {
+            return;
+        }
+        folderScanner.forEach("namefilter", fileStorageUtil.getLayout().folders(storageRoot),
+                folder -> addFolder(folder, target));
+        ShardLayout previousLayout = fileStorageUtil.getPreviousLayout();
+        if (previousLayout != null) {
+            folderScanner.forEach("namefilter", previousLayout.folders(storageRoot),
+                    folder -> addFolder(folder, target));
+        }
+        // At startup it is not injected yet; FileStorageService announces the packed files instead
+        if (segmentStore != null) {
+            segmentStore.forEach(key -> target.add(key.getFileName()));
+        }
+    }
+
+    private static void addFolder(Path folder, BloomFilter target) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                // Names only: a stat per file would double the cost of the scan, and extra names are harmless
+                if (!FileStorageUtil.isInternalName(fileName)) {
+                    target.add(fileName);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void registerMeters(MeterRegistry registry) {
+        FunctionCounter.builder("filestorage.namefilter.rejected", rejected, LongAdder::sum)
+                .description("Lookups of missing names answered by the name filter without the disk")
+                .register(registry);
+        Gauge.builder("filestorage.namefilter.names", this, NameFilter::getNames)
+                .description("Names added to the name filter since it was built")
+                .register(registry);
+        Gauge.builder("filestorage.namefilter.size", this, NameFilter::getSizeBytes)
+                .description("Memory taken by the name filter")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+}
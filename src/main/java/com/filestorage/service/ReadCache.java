@@ -0,0 +1,397 @@
+package com.filestorage.service;
+
+import com.filestorage.util.FrequencySketch;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory copy of the most requested files, so downloads of hot files cost
+ * neither a file system lookup nor a read. Off by default.
+ *
+ * Contents are held in direct buffers, outside the heap, within a byte
+ * budget. Eviction follows W-TinyLFU: new files enter a small LRU window
+ * (1% of the budget); files leaving it compete for the main area with its
+ * least recently used file, and the one requested more often according to a
+ * {@link FrequencySketch} stays. The main area is a segmented LRU whose
+ * protected part (80%) holds files requested again since they entered it,
+ * so a scan of many files once cannot flush the popular ones.
+ *
+ * A file is only read into the cache on its second recent request, which
+ * keeps one-off downloads from costing an extra read. Writes and deletes
+ * through {@link FileStorageService} drop the file's entry; files changed
+ * behind the service's back are served from the cache until evicted.
+ *
+ * Published meters: {@code filestorage.cache.gets} by {@code result} (hit or
+ * miss), {@code filestorage.cache.hit.ratio}, {@code filestorage.cache.evictions},
+ * {@code filestorage.cache.size} (bytes) and {@code filestorage.cache.entries}.
+ */
+@Component
+public class ReadCache implements FileStorageListener {
+
+    private static final Logger logger = LogManager.getLogger(ReadCache.class);
+
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+    private static final int MIN_LOAD_FREQUENCY = 2;
+    private static final int STAMP_STRIPES = 1024;
+    // Used to size the frequency sketch from the byte budget
+    private static final int AVERAGE_ENTRY_SIZE = 4096;
+
+    private enum Region {
+        WINDOW, PROBATION, PROTECTED
+    }
+
+    private static final class Entry {
+
+        private final String fileName;
+        private final ByteBuffer content;
+        private final long lastModified;
+        private final String etag;
+        private final long uncompressedLength;
+        private final int weight;
+        private Region region;
+
+        private Entry(String fileName, ByteBuffer content, StoredFile storedFile) {
+            this.fileName = fileName;
+            this.content = content;
+            this.lastModified = storedFile.getLastModified();
+            this.etag = storedFile.getEtag();
+            this.uncompressedLength = storedFile.getUncompressedLength();
+            this.weight = content.remaining();
+        }
+    }
+
+    private final boolean enabled;
+    private final long maxBytes;
+    private final long maxFileSize;
+    private final long windowMaxBytes;
+    private final long protectedMaxBytes;
+    private final long mainMaxBytes;
+
+    // Guarded by this; the region maps are in LRU to MRU order
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Entry> protectedRegion = new LinkedHashMap<>();
+    private final FrequencySketch sketch;
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+
+    // Bumped by every change to a name in the stripe, so a read racing a write is not cached
+    private final AtomicLongArray stamps = new AtomicLongArray(STAMP_STRIPES);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ReadCache(@Value("${file.storage.cache.enabled:false}") boolean enabled,
+            @Value("${file.storage.cache.max-size-mb:256}") long maxSizeMb,
+            @Value("${file.storage.cache.max-file-size:1048576}") long maxFileSize,
+            MeterRegistry registry) {
+        this.enabled = enabled && maxSizeMb > 0;
+        this.maxBytes = maxSizeMb * 1024 * 1024;
+        this.maxFileSize = Math.min(maxFileSize, Integer.MAX_VALUE);
+        this.windowMaxBytes = Math.max(1, maxBytes * WINDOW_PERCENT / 100);
+        this.mainMaxBytes = maxBytes - windowMaxBytes;
+        this.protectedMaxBytes = mainMaxBytes * PROTECTED_PERCENT / 100;
+        this.sketch = new FrequencySketch(
+                (int) Math.max(1024, Math.min(Integer.MAX_VALUE, maxBytes / AVERAGE_ENTRY_SIZE)));
+        if (this.enabled) {
+            registerMeters(registry);
+            logger.info("ReadCache(): Caching files up to {} bytes in {} MB", this.maxFileSize, maxSizeMb);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns a file from the cache and counts the request towards its
+     * popularity.
+     *
+     * @return The file held in memory, or null if it is not cached.
+     */
+    public StoredFile get(String fileName) {
+        Entry entry;
+        synchronized (this) {
+            sketch.increment(fileName);
+            entry = entries.get(fileName);
+            if (entry != null) {
+                onHit(entry);
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return new StoredFile(entry.content.duplicate(), entry.lastModified, entry.etag, entry.uncompressedLength);
+    }
+
+    /**
+     * Returns the stamp to pass to {@link #load(String, StoredFile, long)},
+     * taken before the file is looked up on disk.
+     */
+    public long stamp(String fileName) {
+        return stamps.get(stripe(fileName));
+    }
+
+    /**
+     * Reads a file missing from the cache into memory when it is small and
+     * popular enough, and adds it unless it changed since the stamp was
+     * taken.
+     *
+     * @param storedFile The file as found on disk.
+     * @param stamp      The stamp taken before looking it up.
+     * @return The file held in memory, or {@code storedFile} when it was not
+     *         read.
+     */
+    public StoredFile load(String fileName, StoredFile storedFile, long stamp) {
+        if (!enabled || storedFile.isInMemory() || storedFile.getLength() > maxFileSize) {
+            return storedFile;
+        }
+        synchronized (this) {
+            if (sketch.frequency(fileName) < MIN_LOAD_FREQUENCY) {
+                return storedFile;
+            }
+        }
+
+        ByteBuffer content;
+        try {
+            content = read(storedFile);
+        } catch (IOException e) {
+            // Most likely deleted or compacted meanwhile, the download reports it
+            logger.debug("ReadCache.load(): Cannot read {}: {}", fileName, e.getMessage());
+            return storedFile;
+        }
+
+        Entry entry = new Entry(fileName, content, storedFile);
+        synchronized (this) {
+            if (stamps.get(stripe(fileName)) == stamp && !entries.containsKey(fileName)) {
+                add(entry);
+            }
+        }
+        return new StoredFile(content.duplicate(), storedFile.getLastModified(), storedFile.getEtag(),
+                storedFile.getUncompressedLength());
+    }
+
+    /**
+     * Drops a file from the cache.
+     */
+    public void invalidate(String fileName) {
+        if (!enabled) {
+            return;
+        }
+        stamps.incrementAndGet(stripe(fileName));
+        synchronized (this) {
+            Entry entry = entries.get(fileName);
+            if (entry != null) {
+                remove(entry);
+            }
+        }
+    }
+
+    @Override
+    public void onFileCreated(Path filePath) {
+        invalidate(filePath.getFileName().toString());
+    }
+
+    @Override
+    public void onFileUpdated(Path filePath) {
+        invalidate(filePath.getFileName().toString());
+    }
+
+    @Override
+    public void onFileDeleted(Path filePath) {
+        invalidate(filePath.getFileName().toString());
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public synchronized long getSizeBytes() {
+        return windowBytes + probationBytes + protectedBytes;
+    }
+
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    private static ByteBuffer read(StoredFile storedFile) throws IOException {
+        ByteBuffer content = ByteBuffer.allocateDirect((int) storedFile.getLength());
+        try (FileChannel channel = FileChannel.open(storedFile.getPath(), StandardOpenOption.READ)) {
+            long position = storedFile.getOffset();
+            while (content.hasRemaining()) {
+                int read = channel.read(content, position);
+                if (read < 0) {
+                    throw new IOException("File shorter than expected: " + storedFile.getPath());
+                }
+                position += read;
+            }
+        }
+        content.flip();
+        return content.asReadOnlyBuffer();
+    }
+
+    /**
+     * Moves a requested entry to the most recently used end of its region,
+     * promoting it to the protected region on its first hit in probation.
+     */
+    private void onHit(Entry entry) {
+        switch (entry.region) {
+        case WINDOW:
+            touch(window, entry);
+            break;
+        case PROBATION:
+            probation.remove(entry.fileName);
+            probationBytes -= entry.weight;
+            entry.region = Region.PROTECTED;
+            protectedRegion.put(entry.fileName, entry);
+            protectedBytes += entry.weight;
+            // The least recently used protected files go back to probation
+            while (protectedBytes > protectedMaxBytes) {
+                Entry demoted = first(protectedRegion);
+                protectedRegion.remove(demoted.fileName);
+                protectedBytes -= demoted.weight;
+                demoted.region = Region.PROBATION;
+                probation.put(demoted.fileName, demoted);
+                probationBytes += demoted.weight;
+            }
+            break;
+        default:
+            touch(protectedRegion, entry);
+            break;
+        }
+    }
+
+    /**
+     * Adds a new entry to the window, moving the files that overflow it to
+     * the main area.
+     */
+    private void add(Entry entry) {
+        if (entry.weight > mainMaxBytes) {
+            return;
+        }
+        entry.region = Region.WINDOW;
+        entries.put(entry.fileName, entry);
+        window.put(entry.fileName, entry);
+        windowBytes += entry.weight;
+        while (windowBytes > windowMaxBytes) {
+            Entry candidate = first(window);
+            window.remove(candidate.fileName);
+            windowBytes -= candidate.weight;
+            admit(candidate);
+        }
+    }
+
+    /**
+     * Lets a file leaving the window into probation, evicting the least
+     * recently used files of the main area as long as the newcomer is more
+     * popular than each of them; otherwise the newcomer is evicted.
+     */
+    private void admit(Entry candidate) {
+        int candidateFrequency = sketch.frequency(candidate.fileName);
+        while (probationBytes + protectedBytes + candidate.weight > mainMaxBytes) {
+            Entry victim = !probation.isEmpty() ? first(probation) : first(protectedRegion);
+            if (candidateFrequency <= sketch.frequency(victim.fileName)) {
+                entries.remove(candidate.fileName);
+                evictions.increment();
+                return;
+            }
+            remove(victim);
+            evictions.increment();
+        }
+        candidate.region = Region.PROBATION;
+        probation.put(candidate.fileName, candidate);
+        probationBytes += candidate.weight;
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.fileName);
+        switch (entry.region) {
+        case WINDOW:
+            window.remove(entry.fileName);
+            windowBytes -= entry.weight;
+            break;
+        case PROBATION:
+            probation.remove(entry.fileName);
+            probationBytes -= entry.weight;
+            break;
+        default:
+            protectedRegion.remove(entry.fileName);
+            protectedBytes -= entry.weight;
+            break;
+        }
+    }
+
+    private static void touch(LinkedHashMap<String, Entry> region, Entry entry) {
+        region.remove(entry.fileName);
+        region.put(entry.fileName, entry);
+    }
+
+    private static Entry first(LinkedHashMap<String, Entry> region) {
+        return region.values().iterator().next();
+    }
+
+    private static int stripe(String fileName) {
+        int hash = fileName.hashCode();
+        hash ^= hash >>> 16;
+        return hash & (STAMP_STRIPES - 1);
+    }
+
+    private void registerMeters(MeterRegistry registry) {
+        FunctionCounter.builder("filestorage.cache.gets", hits, LongAdder::sum)
+                .description("Downloads looked up in the read cache")
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("filestorage.cache.gets", misses, LongAdder::sum)
+                .description("Downloads looked up in the read cache")
+                .tag("result", "miss")
+                .register(registry);
+        FunctionCounter.builder("filestorage.cache.evictions", evictions, LongAdder::sum)
+                .description("Files evicted from or refused by the read cache")
+                .register(registry);
+        Gauge.builder("filestorage.cache.hit.ratio", this, cache -> {
+            long lookups = cache.getHits() + cache.getMisses();
+            return lookups == 0 ? 0 : (double) cache.getHits() / lookups;
+        })
+                .description("Share of downloads served from the read cache")
+                .register(registry);
+        Gauge.builder("filestorage.cache.size", this, ReadCache::getSizeBytes)
+                .description("File content held by the read cache")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("filestorage.cache.entries", this, ReadCache::getEntries)
+                .description("Files held by the read cache")
+                .register(registry);
+    }
+}
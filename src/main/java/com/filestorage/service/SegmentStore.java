@@ -0,0 +1,564 @@
+package com.filestorage.service;
+
+import com.filestorage.util.FileStorageUtil;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Storage engine packing small files into large append-only segment files.
+ *
+ * Giving every tiny file its own inode makes inode usage, directory sizes and
+ * {@code readdir} the limits of the storage. When enabled, writes of at most
+ * {@code file.storage.segments.max-file-size} bytes are instead appended as
+ * records to the active segment under {@code <storage>/.segments}, and an
+ * in-memory table maps each name to the region of the segment holding its
+ * content. Larger files keep the one-file-per-object layout.
+ *
+ * A record is {@code type, name length, data length, last modified, CRC32,
+ * name, data}. Deletes append a tombstone record, synced to disk before the
+ * file is dropped from the table, which is rebuilt at startup by replaying
+ * the segments in order; a torn record at the end of a segment, left by a
+ * crash, is truncated. Segments are sealed once they reach
+ * {@code file.storage.segments.segment-size-mb}, and a background compaction
+ * copies the live records of sealed segments that are mostly dead space into
+ * the active segment and deletes them on its next run, giving readers that
+ * already resolved a location time to finish.
+ *
+ * Existing segments are always read, so disabling the engine only stops new
+ * small files from being packed.
+ */
+@Component
+public class SegmentStore {
+
+    private static final Logger logger = LogManager.getLogger(SegmentStore.class);
+
+    private static final String SEGMENTS_DIR = ".segments";
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d{10})\\.seg");
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    // type (1) + name length (2) + data length (4) + last modified (8) + CRC32 (4)
+    private static final int HEADER_SIZE = 19;
+
+    private final FileStorageUtil fileStorageUtil;
+    private final Path storageRoot;
+    private final Path segmentDir;
+    private final boolean enabled;
+    private final int maxFileSize;
+    private final long maxSegmentSize;
+    private final double compactionThreshold;
+
+    private final NavigableMap<FileKey, Location> locations = new ConcurrentSkipListMap<>();
+    private final NavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final List<Segment> retired = new ArrayList<>();
+    private final Object appendLock = new Object();
+    private Segment active;
+
+    @Autowired
+    public SegmentStore(FileStorageUtil fileStorageUtil,
+            @Value("${file.storage.segments.enabled:false}") boolean enabled,
+            @Value("${file.storage.segments.max-file-size:16384}") int maxFileSize,
+            @Value("${file.storage.segments.segment-size-mb:256}") long segmentSizeMb,
+            @Value("${file.storage.segments.compaction-threshold:0.5}") double compactionThreshold) {
+        this.fileStorageUtil = fileStorageUtil;
+        this.storageRoot = Paths.get(fileStorageUtil.getStorageDir());
+        this.segmentDir = storageRoot.resolve(SEGMENTS_DIR);
+        this.enabled = enabled;
+        this.maxFileSize = maxFileSize;
+        this.maxSegmentSize = segmentSizeMb * 1024 * 1024;
+        this.compactionThreshold = compactionThreshold;
+        load();
+    }
+
+    /**
+     * Returns whether new small files are packed into segments.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the size up to which files are packed into segments.
+     */
+    public int getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    public boolean contains(FileKey key) {
+        return locations.containsKey(key);
+    }
+
+    /**
+     * Returns where the content of a packed file can be read, or null if the
+     * file is not in a segment.
+     */
+    public StoredFile find(FileKey key) {
+        Location location = locations.get(key);
+        if (location == null) {
+            return null;
+        }
+        return new StoredFile(location.segment.path, location.dataOffset(), location.dataLength,
+                location.lastModified, location.etag());
+    }
+
+    /**
+     * Packs the content of a file into the active segment, replacing any
+     * previous version.
+     *
+     * @return Whether the file was already in a segment.
+     */
+    public boolean put(FileKey key, byte[] data, int length) throws IOException {
+        if (length > maxFileSize) {
+            throw new IllegalArgumentException("File too large for a segment: " + length + " bytes");
+        }
+        byte[] name = key.getFileName().getBytes(StandardCharsets.UTF_8);
+        synchronized (appendLock) {
+            Location location = append(PUT, name, data, length, System.currentTimeMillis());
+            Location previous = locations.put(key, location);
+            release(previous);
+            return previous != null;
+        }
+    }
+
+    /**
+     * Removes a file from the segments.
+     *
+     * @return Whether the file was in a segment.
+     */
+    public boolean delete(FileKey key) throws IOException {
+        if (!locations.containsKey(key)) {
+            return false;
+        }
+        byte[] name = key.getFileName().getBytes(StandardCharsets.UTF_8);
+        synchronized (appendLock) {
+            Location previous = locations.get(key);
+            if (previous == null) {
+                return false;
+            }
+            // Durable before the file disappears, so a failed delete does not come back at restart
+            Location tombstone = append(DELETE, name, new byte[0], 0, System.currentTimeMillis());
+            tombstone.segment.channel.force(false);
+            locations.remove(key);
+            release(previous);
+            return true;
+        }
+    }
+
+    /**
+     * Passes the key of every packed file to the action, in search order.
+     */
+    public void forEach(Consumer<FileKey> action) {
+        locations.keySet().forEach(action);
+    }
+
+    /**
+     * Returns the names of the packed files of a shard folder, in order.
+     */
+    public List<String> names(String shard) {
+        List<String> names = new ArrayList<>();
+        for (FileKey key : shardKeys(shard).keySet()) {
+            names.add(key.getFileName());
+        }
+        return names;
+    }
+
+    /**
+     * Returns the number of packed files of a shard folder.
+     */
+    public long count(String shard) {
+        return shardKeys(shard).size();
+    }
+
+    /**
+     * Returns the number of packed files.
+     */
+    public long size() {
+        return locations.size();
+    }
+
+    /**
+     * Rewrites sealed segments whose share of dead records reached the
+     * compaction threshold, and deletes the segments compacted by the
+     * previous run.
+     */
+    @Scheduled(initialDelayString = "${file.storage.segments.compaction-interval-ms:600000}",
+            fixedDelayString = "${file.storage.segments.compaction-interval-ms:600000}")
+    public void compact() {
+        deleteRetired();
+        List<Segment> sealed = new ArrayList<>();
+        synchronized (appendLock) {
+            // Under the lock, so a segment rolled over just now is not taken for a sealed one
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.size > 0
+                        && 1.0 - (double) segment.liveBytes.get() / segment.size >= compactionThreshold) {
+                    sealed.add(segment);
+                }
+            }
+        }
+        // Segments never become active again once sealed
+        for (Segment segment : sealed) {
+            try {
+                compact(segment);
+            } catch (IOException e) {
+                logger.error("SegmentStore.compact(): Error compacting {}", segment.path, e);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        synchronized (appendLock) {
+            for (Segment segment : segments.values()) {
+                closeQuietly(segment);
+            }
+            deleteRetired();
+        }
+    }
+
+    /**
+     * Copies the live records of a sealed segment to the active one and
+     * retires it.
+     */
+    private void compact(Segment segment) throws IOException {
+        logger.info("SegmentStore.compact(): In... segment={}, size={}, live={}", segment.path, segment.size,
+                segment.liveBytes.get());
+        long start = System.nanoTime();
+        long copied = 0;
+        try (DataInputStream in = openRecords(segment)) {
+            long position = 0;
+            while (position < segment.size) {
+                Record record = Record.read(in, segment.size - position);
+                if (record == null) {
+                    throw new IOException("Corrupt record at " + position + " in " + segment.path);
+                }
+                FileKey key = keyOf(record.name);
+                synchronized (appendLock) {
+                    Location current = locations.get(key);
+                    if (record.type == PUT && current != null && current.segment == segment
+                            && current.recordOffset == position) {
+                        Location moved = append(PUT, record.name, record.data, record.data.length,
+                                record.lastModified);
+                        locations.put(key, moved);
+                        release(current);
+                        copied++;
+                    } else if (record.type == DELETE && current == null && hasOlderSegment(segment)) {
+                        // Still hides a version of the file in an older segment
+                        append(DELETE, record.name, record.data, 0, record.lastModified);
+                    }
+                }
+                position += record.length();
+            }
+        }
+
+        synchronized (appendLock) {
+            segments.remove(segment.id);
+            retired.add(segment);
+        }
+        logger.info("SegmentStore.compact(): Out... Moved {} live files out of {} in {} ms", copied, segment.path,
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Appends a record to the active segment, rolling over to a new segment
+     * when it is full. Callers hold the append lock.
+     */
+    private Location append(byte type, byte[] name, byte[] data, int length, long lastModified)
+            throws IOException {
+        int recordLength = HEADER_SIZE + name.length + length;
+        if (active == null || (active.size > 0 && active.size + recordLength > maxSegmentSize)) {
+            active = createSegment(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+        }
+
+        CRC32 crc = new CRC32();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(type).putShort((short) name.length).putInt(length).putLong(lastModified);
+        crc.update(header.array(), 0, HEADER_SIZE - 4);
+        crc.update(name, 0, name.length);
+        crc.update(data, 0, length);
+        header.putInt((int) crc.getValue());
+        header.flip();
+
+        ByteBuffer[] buffers = { header, ByteBuffer.wrap(name), ByteBuffer.wrap(data, 0, length) };
+        long position = active.size;
+        long remaining = recordLength;
+        while (remaining > 0) {
+            remaining -= active.channel.write(buffers);
+        }
+        active.size += recordLength;
+
+        Location location = new Location(active, position, name.length, length, lastModified,
+                (int) crc.getValue());
+        if (type == PUT) {
+            active.liveBytes.addAndGet(recordLength);
+        }
+        return location;
+    }
+
+    private void release(Location location) {
+        if (location != null) {
+            location.segment.liveBytes.addAndGet(-location.recordLength());
+        }
+    }
+
+    private boolean hasOlderSegment(Segment segment) {
+        if (segments.firstKey() < segment.id) {
+            return true;
+        }
+        for (Segment other : retired) {
+            if (other.id < segment.id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private NavigableMap<FileKey, Location> shardKeys(String shard) {
+        return locations.subMap(new FileKey(shard, ""), true, new FileKey(shard, String.valueOf(Character.MAX_VALUE)),
+                true);
+    }
+
+    private FileKey keyOf(byte[] name) {
+        return FileKey.of(storageRoot, fileStorageUtil.resolveFilePath(new String(name, StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Rebuilds the table by replaying every segment in order.
+     */
+    private void load() {
+        if (!Files.isDirectory(segmentDir)) {
+            return;
+        }
+        logger.info("SegmentStore.load(): In... segmentDir={}", segmentDir);
+        long start = System.nanoTime();
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(segmentDir)) {
+            for (Path file : files) {
+                Matcher matcher = SEGMENT_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    ids.add(Long.parseLong(matcher.group(1)));
+                }
+            }
+            ids.sort(null);
+            for (long id : ids) {
+                replay(openSegment(id));
+            }
+        } catch (IOException e) {
+            logger.error("SegmentStore.load(): Error loading segments", e);
+            throw new RuntimeException("Segment loading failed", e);
+        }
+        active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        logger.info("SegmentStore.load(): Out... Loaded {} files from {} segments in {} ms", locations.size(),
+                segments.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void replay(Segment segment) throws IOException {
+        long fileSize = segment.channel.size();
+        long position = 0;
+        try (DataInputStream in = openRecords(segment)) {
+            while (position < fileSize) {
+                Record record = Record.read(in, fileSize - position);
+                if (record == null) {
+                    break;
+                }
+                FileKey key = keyOf(record.name);
+                Location previous;
+                if (record.type == PUT) {
+                    Location location = new Location(segment, position, record.name.length, record.data.length,
+                            record.lastModified, record.checksum);
+                    segment.liveBytes.addAndGet(location.recordLength());
+                    previous = locations.put(key, location);
+                } else {
+                    previous = locations.remove(key);
+                }
+                release(previous);
+                position += record.length();
+            }
+        } catch (EOFException e) {
+            // Torn record at the end, truncated below
+        }
+
+        if (position < fileSize) {
+            logger.warn("SegmentStore.replay(): Truncating {} from {} to {} bytes after an incomplete record",
+                    segment.path, fileSize, position);
+            segment.channel.truncate(position);
+        }
+        segment.size = position;
+        segment.channel.position(position);
+    }
+
+    /**
+     * Opens a sequential reader over the records of a segment, independent of
+     * the channel used for appends.
+     */
+    private static DataInputStream openRecords(Segment segment) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.path), 64 * 1024));
+    }
+
+    private Segment createSegment(long id) throws IOException {
+        Files.createDirectories(segmentDir);
+        Segment segment = openSegment(id);
+        logger.info("SegmentStore.createSegment(): Created {}", segment.path);
+        return segment;
+    }
+
+    private Segment openSegment(long id) throws IOException {
+        Path path = segmentDir.resolve(String.format("segment-%010d.seg", id));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        Segment segment = new Segment(id, path, channel);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private void deleteRetired() {
+        synchronized (appendLock) {
+            for (Segment segment : retired) {
+                closeQuietly(segment);
+                try {
+                    Files.deleteIfExists(segment.path);
+                    logger.info("SegmentStore.deleteRetired(): Deleted compacted segment {}", segment.path);
+                } catch (IOException e) {
+                    logger.warn("SegmentStore.deleteRetired(): Could not delete {}", segment.path, e);
+                }
+            }
+            retired.clear();
+        }
+    }
+
+    private static void closeQuietly(Segment segment) {
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            logger.warn("SegmentStore.closeQuietly(): Could not close {}", segment.path, e);
+        }
+    }
+
+    private static final class Segment {
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        private final AtomicLong liveBytes = new AtomicLong();
+        private volatile long size;
+
+        private Segment(long id, Path path, FileChannel channel) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    private static final class Location {
+        private final Segment segment;
+        private final long recordOffset;
+        private final int nameLength;
+        private final int dataLength;
+        private final long lastModified;
+        private final int checksum;
+
+        private Location(Segment segment, long recordOffset, int nameLength, int dataLength, long lastModified,
+                int checksum) {
+            this.segment = segment;
+            this.recordOffset = recordOffset;
+            this.nameLength = nameLength;
+            this.dataLength = dataLength;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+        }
+
+        /**
+         * The record's CRC32 covers the content and the time of the write,
+         * which compaction copies unchanged, so together they tell versions
+         * apart without keeping a digest per packed file.
+         */
+        private String etag() {
+            return String.format("%x-%08x", lastModified, checksum);
+        }
+
+        private long dataOffset() {
+            return recordOffset + HEADER_SIZE + nameLength;
+        }
+
+        private int recordLength() {
+            return HEADER_SIZE + nameLength + dataLength;
+        }
+    }
+
+    private static final class Record {
+        private final byte type;
+        private final byte[] name;
+        private final byte[] data;
+        private final long lastModified;
+        private final int checksum;
+
+        private Record(byte type, byte[] name, byte[] data, long lastModified, int checksum) {
+            this.type = type;
+            this.name = name;
+            this.data = data;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+        }
+
+        /**
+         * Reads the next record, returning null if it is malformed, longer
+         * than the bytes left in the segment or fails its checksum.
+         */
+        private static Record read(DataInputStream in, long remaining) throws IOException {
+            if (remaining < HEADER_SIZE) {
+                return null;
+            }
+            byte type = in.readByte();
+            int nameLength = in.readUnsignedShort();
+            int dataLength = in.readInt();
+            long lastModified = in.readLong();
+            int checksum = in.readInt();
+            if ((type != PUT && type != DELETE) || nameLength == 0 || dataLength < 0
+                    || HEADER_SIZE + (long) nameLength + dataLength > remaining) {
+                return null;
+            }
+            byte[] name = new byte[nameLength];
+            in.readFully(name);
+            byte[] data = new byte[dataLength];
+            in.readFully(data);
+
+            CRC32 crc = new CRC32();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE - 4);
+            header.put(type).putShort((short) nameLength).putInt(dataLength).putLong(lastModified);
+            crc.update(header.array(), 0, header.capacity());
+            crc.update(name, 0, name.length);
+            crc.update(data, 0, data.length);
+            return (int) crc.getValue() == checksum ? new Record(type, name, data, lastModified, checksum) : null;
+        }
+
+        private long length() {
+            return HEADER_SIZE + name.length + data.length;
+        }
+    }
+}
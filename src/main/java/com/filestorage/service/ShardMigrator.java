@@ -0,0 +1,287 @@
+package com.filestorage.service;
+
+import com.filestorage.util.FileStorageUtil;
+import com.filestorage.util.ShardLayout;
+import com.filestorage.util.StripedLocks;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Moves stored files from the previous shard layout to the configured one in
+ * the background, so the layout can change without downtime.
+ *
+ * While the migration runs, new files are written with the new layout and
+ * lookups fall back to the previous one (see {@link FileStorageUtil}). Each
+ * file is hard linked to its new path before its old name is removed, so it
+ * is readable at all times; a file written again in the meantime already has
+ * its new path, and its old copy is simply dropped. Each file is moved under
+ * the lock of its name, so a concurrent write or delete of the same name
+ * never sees it half moved. Once every previous
+ * folder is empty the new layout is recorded in the storage directory and
+ * the fallback ends. A migration interrupted by a shutdown resumes at the
+ * next start.
+ */
+@Component
+public class ShardMigrator {
+
+    private static final Logger logger = LogManager.getLogger(ShardMigrator.class);
+    private static final int PROGRESS_LOG_FOLDERS = 256;
+
+    private final FileStorageUtil fileStorageUtil;
+    private final BlobStore blobStore;
+    private final FileCounter fileCounter;
+    private final StripedLocks nameLocks;
+    private final Path storageRoot;
+    private final boolean enabled;
+    private final int filesPerSecond;
+
+    private final AtomicLong movedFiles = new AtomicLong();
+    private final AtomicLong staleFiles = new AtomicLong();
+    private final AtomicLong failedFiles = new AtomicLong();
+    private volatile boolean running;
+    private volatile boolean stopped;
+    private Thread worker;
+
+    @Autowired
+    public ShardMigrator(FileStorageUtil fileStorageUtil, BlobStore blobStore, FileCounter fileCounter,
+            FileStorageService fileStorageService,
+            @Value("${file.storage.sharding.migration.enabled:true}") boolean enabled,
+            @Value("${file.storage.sharding.migration.files-per-second:0}") int filesPerSecond) {
+        this(fileStorageUtil, blobStore, fileCounter, fileStorageService.getNameLocks(), enabled, filesPerSecond);
+    }
+
+    public ShardMigrator(FileStorageUtil fileStorageUtil, BlobStore blobStore, FileCounter fileCounter,
+            StripedLocks nameLocks, boolean enabled, int filesPerSecond) {
+        this.fileStorageUtil = fileStorageUtil;
+        this.blobStore = blobStore;
+        this.fileCounter = fileCounter;
+        this.nameLocks = nameLocks;
+        this.storageRoot = Paths.get(fileStorageUtil.getStorageDir());
+        this.enabled = enabled;
+        this.filesPerSecond = filesPerSecond;
+    }
+
+    /**
+     * Records the layout of a new storage directory, or starts migrating the
+     * stored files if the configured layout differs from theirs.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() {
+        if (fileStorageUtil.getPreviousLayout() == null) {
+            if (!fileStorageUtil.isLayoutRecorded() && Files.isDirectory(storageRoot)) {
+                try {
+                    fileStorageUtil.completeMigration();
+                } catch (IOException e) {
+                    logger.error("ShardMigrator.start(): Could not record the shard layout", e);
+                }
+            }
+            return;
+        }
+        if (!enabled) {
+            logger.warn("ShardMigrator.start(): Migration from shard layout {} to {} is disabled, "
+                    + "lookups keep falling back to the previous layout", fileStorageUtil.getPreviousLayout(),
+                    fileStorageUtil.getLayout());
+            return;
+        }
+        worker = new Thread(this::migrate, "shard-migrator");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        stopped = true;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Moves every file of the previous layout and, if all of them could be
+     * moved, completes the migration. Runs on the calling thread.
+     */
+    public void migrate() {
+        ShardLayout previousLayout = fileStorageUtil.getPreviousLayout();
+        if (previousLayout == null) {
+            return;
+        }
+        logger.info("ShardMigrator.migrate(): In... from={}, to={}", previousLayout, fileStorageUtil.getLayout());
+        running = true;
+        long start = System.nanoTime();
+        long folderCount = 0;
+        try {
+            for (Iterator<Path> folders = previousLayout.folders(storageRoot).iterator(); folders.hasNext();) {
+                Path folder = folders.next();
+                migrateFolder(folder, start);
+                deleteEmptyFolders(folder);
+                if (stopped) {
+                    logger.info("ShardMigrator.migrate(): Out... Stopped after {} files, resuming at next start",
+                            movedFiles.get());
+                    return;
+                }
+                if (++folderCount % PROGRESS_LOG_FOLDERS == 0) {
+                    logger.info("ShardMigrator.migrate(): Moved {} files from {} folders", movedFiles.get(),
+                            folderCount);
+                }
+            }
+
+            if (failedFiles.get() > 0) {
+                logger.warn("ShardMigrator.migrate(): Out... {} files could not be moved, "
+                        + "lookups keep falling back to shard layout {} until the next start", failedFiles.get(),
+                        previousLayout);
+                return;
+            }
+            fileStorageUtil.completeMigration();
+            fileCounter.verify();
+            logger.info("ShardMigrator.migrate(): Out... Moved {} files ({} stale copies dropped) in {} ms",
+                    movedFiles.get(), staleFiles.get(), (System.nanoTime() - start) / 1_000_000);
+        } catch (IOException | UncheckedIOException e) {
+            logger.error("ShardMigrator.migrate(): Migration failed, resuming at next start", e);
+        } finally {
+            running = false;
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Returns the number of files moved to the new layout.
+     */
+    public long getMovedFiles() {
+        return movedFiles.get();
+    }
+
+    private void migrateFolder(Path folder, long start) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                if (FileStorageUtil.isInternalName(fileName)) {
+                    // New writes never use the previous folders: this is a leftover of a crashed write
+                    Files.deleteIfExists(file);
+                } else if (Files.isRegularFile(file)) {
+                    migrateFile(file, fileName);
+                    throttle(start);
+                }
+                if (stopped) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            logger.error("ShardMigrator.migrateFolder(): Error listing files in {}", folder, e);
+            failedFiles.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stopped = true;
+        }
+    }
+
+    private void migrateFile(Path file, String fileName) {
+        Path target = fileStorageUtil.resolveFilePath(fileName);
+        Lock lock = nameLocks.lockFor(fileName);
+        lock.lock();
+        try {
+            Files.createDirectories(target.getParent());
+            if (relocate(file, target)) {
+                movedFiles.incrementAndGet();
+            } else {
+                // Written again since the migration started, so the old copy is stale
+                String blob = blobStore.isEnabled() ? blobStore.hashOf(file) : null;
+                if (Files.deleteIfExists(file)) {
+                    blobStore.release(blob);
+                }
+                staleFiles.incrementAndGet();
+            }
+        } catch (NoSuchFileException e) {
+            // Deleted or written again in the meantime
+        } catch (IOException e) {
+            logger.warn("ShardMigrator.migrateFile(): Could not move {} to {}", file, target, e);
+            failedFiles.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives a file its new path and removes the old one, never replacing a
+     * file written at the new path in the meantime.
+     *
+     * @return False if the new path already holds the file.
+     */
+    private static boolean relocate(Path file, Path target) throws IOException {
+        try {
+            Files.createLink(target, file);
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } catch (NoSuchFileException e) {
+            throw e;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // No hard links on this file system, or the link limit of a shared blob is reached
+            try {
+                Files.move(file, target);
+                return true;
+            } catch (FileAlreadyExistsException alreadyMoved) {
+                return false;
+            }
+        }
+        Files.deleteIfExists(file);
+        return true;
+    }
+
+    /**
+     * Deletes a folder of the previous layout and its parents once they are
+     * empty, keeping folders the current layout may use.
+     */
+    private void deleteEmptyFolders(Path folder) {
+        ShardLayout layout = fileStorageUtil.getLayout();
+        for (Path dir = folder; !dir.equals(storageRoot); dir = dir.getParent()) {
+            int depth = storageRoot.relativize(dir).getNameCount();
+            if (depth <= layout.getLevels() && layout.isFolderName(dir.getFileName().toString())) {
+                return;
+            }
+            try {
+                Files.deleteIfExists(dir);
+            } catch (DirectoryNotEmptyException e) {
+                return;
+            } catch (IOException e) {
+                logger.warn("ShardMigrator.deleteEmptyFolders(): Could not delete {}", dir, e);
+                return;
+            }
+        }
+    }
+
+    private void throttle(long start) throws InterruptedException {
+        if (filesPerSecond <= 0) {
+            return;
+        }
+        long processed = movedFiles.get() + staleFiles.get();
+        long wait = start + processed * 1_000_000_000L / filesPerSecond - System.nanoTime();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+}
@@ -0,0 +1,690 @@
+package com.filestorage.service;
+
+import com.filestorage.util.FileStorageUtil;
+import com.filestorage.util.FolderScanner;
+import com.filestorage.util.ShardLayout;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Write-ahead journal of the changes to the set of stored files, with a
+ * periodically compacted snapshot of that set, so the index, counters and name
+ * filter are seeded at startup by reading one file instead of listing every
+ * shard folder. Off by default.
+ *
+ * Every write and delete through the service appends a {@code BEGIN} record
+ * before it changes anything on disk, and a record of its outcome once done:
+ * {@code STORED}, {@code DELETED}, or {@code CANCELLED} when nothing changed.
+ * A record is {@code type, operation, name length, name, CRC32}; a torn record
+ * at the end of a journal, left by a crash, ends its replay.
+ *
+ * The snapshot under {@code <storage>/.journal} lists the shard and name of
+ * every stored file, packed ones included. The compaction replays the journals
+ * over it into a new snapshot, which is synced and renamed over the previous
+ * one before the journals are deleted; it runs at startup and every
+ * {@code compaction-interval-ms}. Operations that began but never ended were
+ * interrupted by a crash: at startup their temporary files are deleted and
+ * their names looked up on disk, which tells whether the change was made.
+ * Without a readable snapshot, e.g. on the first start, the folders are
+ * scanned once to write one.
+ *
+ * Changes made to the storage directory behind the service's back are not
+ * seen; deleting {@code .journal} makes the next start scan again. If the
+ * journal cannot be written, it deletes its snapshot and stops, with the same
+ * effect. Records are not synced unless {@code file.storage.journal.sync} is
+ * set, so they survive a crash of the service but not of the machine.
+ *
+ * Published meters: {@code filestorage.journal.records} and
+ * {@code filestorage.journal.snapshot.files}.
+ */
+@Component
+public class StorageJournal {
+
+    private static final Logger logger = LogManager.getLogger(StorageJournal.class);
+
+    private static final String JOURNAL_DIR = ".journal";
+    private static final String SNAPSHOT_FILE = "snapshot";
+    private static final String SNAPSHOT_TEMP_FILE = "snapshot.tmp";
+    private static final Pattern JOURNAL_NAME = Pattern.compile("journal-(\\d{10})\\.log");
+    private static final int SNAPSHOT_MAGIC = 0x46534a53;
+    private static final byte SNAPSHOT_VERSION = 1;
+    private static final byte BEGIN = 1;
+    private static final byte STORED = 2;
+    private static final byte DELETED = 3;
+    private static final byte CANCELLED = 4;
+    // type (1) + operation (8) + name length (2)
+    private static final int HEADER_SIZE = 11;
+
+    private final FileStorageUtil fileStorageUtil;
+    private final FolderScanner folderScanner;
+    private final SegmentStore segmentStore;
+    private final Path storageRoot;
+    private final Path journalDir;
+    private final Path snapshotFile;
+    private final boolean sync;
+    private volatile boolean available;
+
+    private final Object appendLock = new Object();
+    private FileChannel active;
+    private long activeId;
+    private long activeRecords;
+    private final AtomicLong nextOperation = new AtomicLong();
+    // Operations that began and have not ended, carried into the next journal by compactions
+    private final Map<Long, String> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder records = new LongAdder();
+    private volatile long snapshotFiles;
+
+    @Autowired
+    public StorageJournal(FileStorageUtil fileStorageUtil, FolderScanner folderScanner, SegmentStore segmentStore,
+            @Value("${file.storage.journal.enabled:false}") boolean enabled,
+            @Value("${file.storage.journal.sync:false}") boolean sync,
+            MeterRegistry registry) {
+        this.fileStorageUtil = fileStorageUtil;
+        this.folderScanner = folderScanner;
+        this.segmentStore = segmentStore;
+        this.storageRoot = Paths.get(fileStorageUtil.getStorageDir());
+        this.journalDir = storageRoot.resolve(JOURNAL_DIR);
+        this.snapshotFile = journalDir.resolve(SNAPSHOT_FILE);
+        this.sync = sync;
+        if (!enabled) {
+            logger.info("StorageJournal(): Journal disabled by configuration, startup scans the storage directory.");
+            return;
+        }
+        try {
+            recover();
+            available = true;
+            registerMeters(registry);
+        } catch (IOException | UncheckedIOException e) {
+            logger.error("StorageJournal(): Error recovering the journal, startup scans the storage directory", e);
+            deleteSnapshot();
+        }
+    }
+
+    /**
+     * Returns whether changes are journaled and the snapshot lists every
+     * stored file.
+     */
+    public boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * Passes the key of every stored file to the action, in no particular
+     * order, as of the last compaction: at startup, every file stored. Meant
+     * for seeding at startup what a scan of the storage directory would.
+     *
+     * @return Whether every file was passed; false if the journal is not
+     *         available, and the storage directory must be scanned instead.
+     */
+    public boolean forEachFile(Consumer<FileKey> action) {
+        if (!available) {
+            return false;
+        }
+        if (!readSnapshot((shard, fileName) -> action.accept(new FileKey(shard, fileName)))) {
+            fail(new IOException("Unreadable snapshot " + snapshotFile));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records that a file is about to be written or deleted, before anything
+     * changes on disk.
+     *
+     * @return The operation, to pass to the record of its outcome; -1 when the
+     *         journal is not available.
+     */
+    public long begin(String fileName) {
+        if (!available) {
+            return -1;
+        }
+        long operation = nextOperation.incrementAndGet();
+        synchronized (appendLock) {
+            inFlight.put(operation, fileName);
+            append(BEGIN, operation, fileName);
+        }
+        return operation;
+    }
+
+    /**
+     * Records that an operation stored the file.
+     */
+    public void stored(long operation, String fileName) {
+        end(STORED, operation, fileName);
+    }
+
+    /**
+     * Records that an operation deleted the file.
+     */
+    public void deleted(long operation, String fileName) {
+        end(DELETED, operation, fileName);
+    }
+
+    /**
+     * Records that an operation ended without changing the file.
+     */
+    public void cancelled(long operation, String fileName) {
+        end(CANCELLED, operation, fileName);
+    }
+
+    /**
+     * Folds the journal written since the last compaction into a new snapshot
+     * and deletes it. Operations still in flight are recorded again in the
+     * next journal, so their outcome is matched after a crash.
+     */
+    @Scheduled(initialDelayString = "${file.storage.journal.compaction-interval-ms:600000}",
+            fixedDelayString = "${file.storage.journal.compaction-interval-ms:600000}")
+    public synchronized void compact() {
+        if (!available) {
+            return;
+        }
+        long sealedId;
+        synchronized (appendLock) {
+            if (activeRecords == 0) {
+                return;
+            }
+            try {
+                roll();
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            sealedId = activeId - 1;
+        }
+
+        logger.info("StorageJournal.compact(): In... sealedId={}", sealedId);
+        long start = System.nanoTime();
+        try {
+            List<Long> sealed = journalIds(sealedId);
+            Replay replay = replay(sealed);
+            if (!writeMergedSnapshot(replay.changes)) {
+                throw new IOException("Unreadable snapshot " + snapshotFile);
+            }
+            synchronized (appendLock) {
+                inFlight.forEach((operation, fileName) -> append(BEGIN, operation, fileName));
+            }
+            deleteJournals(sealed);
+            logger.info("StorageJournal.compact(): Out... Folded {} changes into {} files in {} ms",
+                    replay.changes.size(), snapshotFiles, (System.nanoTime() - start) / 1_000_000);
+        } catch (IOException | UncheckedIOException e) {
+            fail(e);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        synchronized (appendLock) {
+            closeActive();
+        }
+    }
+
+    public long getRecords() {
+        return records.sum();
+    }
+
+    /**
+     * Returns the number of files in the snapshot written by the last
+     * compaction.
+     */
+    public long getSnapshotFiles() {
+        return snapshotFiles;
+    }
+
+    private void end(byte type, long operation, String fileName) {
+        if (operation < 0 || !available) {
+            return;
+        }
+        synchronized (appendLock) {
+            inFlight.remove(operation);
+            append(type, operation, fileName);
+        }
+    }
+
+    /**
+     * Appends a record to the active journal. Callers hold the append lock.
+     */
+    private void append(byte type, long operation, String fileName) {
+        if (active == null) {
+            return;
+        }
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + name.length + 4);
+        record.put(type).putLong(operation).putShort((short) name.length).put(name);
+        record.putInt(checksum(record.array(), HEADER_SIZE + name.length));
+        record.flip();
+        try {
+            while (record.hasRemaining()) {
+                active.write(record);
+            }
+            if (sync && type == BEGIN) {
+                active.force(false);
+            }
+            activeRecords++;
+            records.increment();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Starts a new active journal. Callers hold the append lock.
+     */
+    private void roll() throws IOException {
+        closeActive();
+        activeId++;
+        active = FileChannel.open(journalPath(activeId), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        activeRecords = 0;
+    }
+
+    /**
+     * Stops journaling, and deletes the snapshot so that the next start scans
+     * the storage directory rather than trust a journal with missing changes.
+     */
+    private void fail(Exception cause) {
+        synchronized (appendLock) {
+            if (!available) {
+                return;
+            }
+            available = false;
+            logger.error("StorageJournal.fail(): Journal disabled, the next start scans the storage directory", cause);
+            deleteSnapshot();
+            closeActive();
+        }
+    }
+
+    /**
+     * Brings the snapshot up to date with the journals left by the previous
+     * run, settling the operations it left unfinished, and starts a new
+     * journal.
+     */
+    private void recover() throws IOException {
+        logger.info("StorageJournal.recover(): In... journalDir={}", journalDir);
+        long start = System.nanoTime();
+        Files.createDirectories(journalDir);
+        List<Long> ids = journalIds(Long.MAX_VALUE);
+        Replay replay = replay(ids);
+        for (String fileName : replay.interrupted.values()) {
+            deleteTemporaryFiles(fileName);
+            boolean stored = isStored(fileName);
+            replay.changes.put(fileName, stored);
+            logger.info("StorageJournal.recover(): Interrupted change of {}, stored={}", fileName, stored);
+        }
+
+        boolean scanned = false;
+        if (!writeMergedSnapshot(replay.changes)) {
+            writeScannedSnapshot();
+            scanned = true;
+        }
+        deleteJournals(ids);
+        synchronized (appendLock) {
+            activeId = ids.isEmpty() ? 0 : ids.get(ids.size() - 1);
+            roll();
+        }
+        logger.info("StorageJournal.recover(): Out... {} {} files with {} changes and {} interrupted in {} ms",
+                scanned ? "Scanned" : "Loaded", snapshotFiles, replay.changes.size(), replay.interrupted.size(),
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Replays journals in order, collecting the last outcome for each name and
+     * the operations that did not end.
+     */
+    private Replay replay(List<Long> ids) throws IOException {
+        Replay replay = new Replay();
+        for (long id : ids) {
+            replay(journalPath(id), replay);
+        }
+        return replay;
+    }
+
+    private void replay(Path journal, Replay replay) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journal),
+                64 * 1024))) {
+            while (true) {
+                int first = in.read();
+                if (first == -1) {
+                    break;
+                }
+                header[0] = (byte) first;
+                in.readFully(header, 1, HEADER_SIZE - 1);
+                ByteBuffer fields = ByteBuffer.wrap(header);
+                byte type = fields.get();
+                long operation = fields.getLong();
+                byte[] name = new byte[fields.getShort() & 0xffff];
+                in.readFully(name);
+                int checksum = in.readInt();
+                byte[] record = new byte[HEADER_SIZE + name.length];
+                System.arraycopy(header, 0, record, 0, HEADER_SIZE);
+                System.arraycopy(name, 0, record, HEADER_SIZE, name.length);
+                if (checksum != checksum(record, record.length) || type < BEGIN || type > CANCELLED) {
+                    logger.warn("StorageJournal.replay(): Ignoring the end of {} after a corrupt record", journal);
+                    break;
+                }
+                replay.apply(type, operation, new String(name, StandardCharsets.UTF_8));
+            }
+        } catch (EOFException e) {
+            // Torn record at the end, left by a crash
+        }
+    }
+
+    /**
+     * Writes a new snapshot made of the current one with the changes applied.
+     *
+     * @return Whether it was written; false if the current snapshot is missing
+     *         or corrupt.
+     */
+    private boolean writeMergedSnapshot(Map<String, Boolean> changes) throws IOException {
+        ShardLayout layout = fileStorageUtil.getLayout();
+        try (SnapshotWriter writer = new SnapshotWriter(journalDir.resolve(SNAPSHOT_TEMP_FILE), layout)) {
+            boolean read = readSnapshot((shard, fileName) -> {
+                if (!changes.containsKey(fileName)) {
+                    writer.add(shard, fileName);
+                }
+            });
+            if (!read) {
+                return false;
+            }
+            for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+                if (change.getValue()) {
+                    writer.add(layout.shardOf(change.getKey()), change.getKey());
+                }
+            }
+            snapshotFiles = writer.commit(snapshotFile);
+            return true;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Writes the snapshot from a scan of the shard folders of both layouts
+     * while files are migrated, plus the files packed into segments.
+     */
+    private void writeScannedSnapshot() throws IOException {
+        ShardLayout layout = fileStorageUtil.getLayout();
+        try (SnapshotWriter writer = new SnapshotWriter(journalDir.resolve(SNAPSHOT_TEMP_FILE), layout)) {
+            folderScanner.scanFiles("journal", layout.folders(storageRoot),
+                    listing -> addFolder(listing, layout, writer));
+            ShardLayout previousLayout = fileStorageUtil.getPreviousLayout();
+            if (previousLayout != null) {
+                folderScanner.scanFiles("journal", previousLayout.folders(storageRoot),
+                        listing -> addFolder(listing, layout, writer));
+            }
+            segmentStore.forEach(key -> writer.add(key.getShard(), key.getFileName()));
+            snapshotFiles = writer.commit(snapshotFile);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void addFolder(FolderScanner.Listing listing, ShardLayout layout, SnapshotWriter writer) {
+        // Files of the previous layout are listed under the shard they are migrated to
+        for (int i = 0; i < listing.size(); i++) {
+            writer.add(layout.shardOf(listing.getName(i)), listing.getName(i));
+        }
+    }
+
+    /**
+     * Passes the shard, in the current layout, and the name of every file in
+     * the snapshot to the action.
+     *
+     * @return Whether the whole snapshot was read and its checksum matched;
+     *         false if it is missing or corrupt.
+     */
+    private boolean readSnapshot(BiConsumer<String, String> action) {
+        if (!Files.exists(snapshotFile)) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(snapshotFile), 64 * 1024), crc))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readByte() != SNAPSHOT_VERSION) {
+                logger.warn("StorageJournal.readSnapshot(): {} is not a snapshot", snapshotFile);
+                return false;
+            }
+            ShardLayout layout = fileStorageUtil.getLayout();
+            // Shards are recomputed for a snapshot written with another layout
+            boolean sameLayout = layout.toString().equals(in.readUTF());
+            long files = 0;
+            while (in.readByte() != 0) {
+                String shard = in.readUTF();
+                String fileName = in.readUTF();
+                action.accept(sameLayout ? shard : layout.shardOf(fileName), fileName);
+                files++;
+            }
+            long recordedFiles = in.readLong();
+            int checksum = (int) crc.getValue();
+            if (recordedFiles != files || in.readInt() != checksum) {
+                logger.warn("StorageJournal.readSnapshot(): Checksum mismatch in {}", snapshotFile);
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            logger.warn("StorageJournal.readSnapshot(): Error reading {}", snapshotFile, e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns whether a file is stored, in either shard layout or a segment.
+     */
+    private boolean isStored(String fileName) {
+        Path filePath = fileStorageUtil.resolveFilePath(fileName);
+        Path previousPath = fileStorageUtil.resolvePreviousFilePath(fileName);
+        return Files.isRegularFile(filePath) || (previousPath != null && Files.isRegularFile(previousPath))
+                || segmentStore.contains(FileKey.of(storageRoot, filePath));
+    }
+
+    /**
+     * Deletes the temporary files an interrupted write of a file left in its
+     * shard folder.
+     */
+    private void deleteTemporaryFiles(String fileName) throws IOException {
+        Path folder = fileStorageUtil.resolveFilePath(fileName).getParent();
+        if (!Files.isDirectory(folder)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, FileStorageUtil.tempFileGlob(fileName))) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+                logger.info("StorageJournal.deleteTemporaryFiles(): Deleted {}", file);
+            }
+        }
+    }
+
+    /**
+     * Returns the ids of the journals up to the given one, in order.
+     */
+    private List<Long> journalIds(long maxId) throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(journalDir)) {
+            for (Path file : files) {
+                Matcher matcher = JOURNAL_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches() && Long.parseLong(matcher.group(1)) <= maxId) {
+                    ids.add(Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        ids.sort(null);
+        return ids;
+    }
+
+    private Path journalPath(long id) {
+        return journalDir.resolve(String.format("journal-%010d.log", id));
+    }
+
+    private void deleteJournals(List<Long> ids) throws IOException {
+        for (long id : ids) {
+            Files.deleteIfExists(journalPath(id));
+        }
+    }
+
+    private void deleteSnapshot() {
+        try {
+            Files.deleteIfExists(snapshotFile);
+        } catch (IOException e) {
+            logger.error("StorageJournal.deleteSnapshot(): Could not delete {}, delete it before the next start",
+                    snapshotFile, e);
+        }
+    }
+
+    private void closeActive() {
+        if (active == null) {
+            return;
+        }
+        try {
+            active.close();
+        } catch (IOException e) {
+            logger.warn("StorageJournal.closeActive(): Could not close {}", journalPath(activeId), e);
+        }
+        active = null;
+    }
+
+    private static int checksum(byte[] record, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, length);
+        return (int) crc.getValue();
+    }
+
+    private void registerMeters(MeterRegistry registry) {
+        FunctionCounter.builder("filestorage.journal.records", records, LongAdder::sum)
+                .description("Records appended to the storage journal")
+                .register(registry);
+        Gauge.builder("filestorage.journal.snapshot.files", this, StorageJournal::getSnapshotFiles)
+                .description("Files listed in the last snapshot of the storage journal")
+                .register(registry);
+    }
+
+    /**
+     * What a replay of journals found: the last outcome for each name, true
+     * when it was stored, and the operations that began without ending.
+     */
+    private static final class Replay {
+        private final Map<String, Boolean> changes = new HashMap<>();
+        private final Map<Long, String> interrupted = new HashMap<>();
+
+        private void apply(byte type, long operation, String fileName) {
+            if (type == BEGIN) {
+                interrupted.put(operation, fileName);
+                return;
+            }
+            interrupted.remove(operation);
+            if (type == STORED) {
+                changes.put(fileName, true);
+            } else if (type == DELETED) {
+                changes.put(fileName, false);
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot aside, to replace the current one once complete and
+     * synced. An entry is {@code 1, shard, name}; the entries are followed by
+     * {@code 0}, their count and the CRC32 of everything before it.
+     */
+    private static final class SnapshotWriter implements Closeable {
+        private final Path tempFile;
+        private final FileChannel channel;
+        private final CRC32 crc = new CRC32();
+        private final DataOutputStream out;
+        private long files;
+        private boolean committed;
+
+        private SnapshotWriter(Path tempFile, ShardLayout layout) throws IOException {
+            this.tempFile = tempFile;
+            this.channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                    new CheckedOutputStream(Channels.newOutputStream(channel), crc), 64 * 1024));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeByte(SNAPSHOT_VERSION);
+            out.writeUTF(layout.toString());
+        }
+
+        /**
+         * Adds a file; safe to call from the threads of a folder scan.
+         */
+        private synchronized void add(String shard, String fileName) {
+            try {
+                out.writeByte(1);
+                out.writeUTF(shard);
+                out.writeUTF(fileName);
+                files++;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Completes and syncs the snapshot and moves it over the target.
+         *
+         * @return The number of files in the snapshot.
+         */
+        private synchronized long commit(Path target) throws IOException {
+            out.writeByte(0);
+            out.writeLong(files);
+            out.flush();
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            channel.force(true);
+            out.close();
+            Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            committed = true;
+            return files;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                out.close();
+                Files.deleteIfExists(tempFile);
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.filestorage.service;
+
+import com.filestorage.util.FileStorageUtil;
+import com.filestorage.util.ShardLayout;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Micrometer meters of the storage operations, published on the actuator
+ * {@code metrics} and {@code prometheus} endpoints:
+ * <ul>
+ * <li>{@code filestorage.operations}: latency of each service operation, with
+ * p50, p99 and p999 and a histogram for Prometheus, tagged by
+ * {@code operation};</li>
+ * <li>{@code filestorage.operations.active}: operations in flight, by
+ * {@code operation};</li>
+ * <li>{@code filestorage.bytes.in} and {@code filestorage.bytes.out}: file
+ * content written by uploads and sent by downloads;</li>
+ * <li>{@code filestorage.search.scanned} and
+ * {@code filestorage.search.matched}: names tested against the regex and
+ * files matched per search;</li>
+ * <li>{@code filestorage.shard.hits}: single-file operations per shard folder,
+ * tagged by the first two hex characters of the top-level folder so wide
+ * layouts keep at most 256 series.</li>
+ * </ul>
+ */
+@Component
+public class StorageMetrics {
+
+    public static final String SAVE = "save";
+    public static final String UPDATE = "update";
+    public static final String STORE = "store";
+    public static final String GET = "get";
+    public static final String DELETE = "delete";
+    public static final String SEARCH = "search";
+    public static final String STREAM = "stream";
+    public static final String COUNT = "count";
+
+    private final MeterRegistry registry;
+    private final Map<String, Operation> operations = new ConcurrentHashMap<>();
+    private final Counter bytesIn;
+    private final Counter bytesOut;
+    private final DistributionSummary scanned;
+    private final DistributionSummary matched;
+    private final ShardLayout layout;
+    private final int shardBits;
+    private final Counter[] shardHits;
+
+    public StorageMetrics(MeterRegistry registry, FileStorageUtil fileStorageUtil) {
+        this.registry = registry;
+        this.bytesIn = Counter.builder("filestorage.bytes.in")
+                .description("File content received by uploads")
+                .baseUnit("bytes")
+                .register(registry);
+        this.bytesOut = Counter.builder("filestorage.bytes.out")
+                .description("File content sent by downloads")
+                .baseUnit("bytes")
+                .register(registry);
+        this.scanned = DistributionSummary.builder("filestorage.search.scanned")
+                .description("File names tested against the regex per search")
+                .baseUnit("files")
+                .publishPercentiles(0.5, 0.99)
+                .register(registry);
+        this.matched = DistributionSummary.builder("filestorage.search.matched")
+                .description("Files matched per search")
+                .baseUnit("files")
+                .publishPercentiles(0.5, 0.99)
+                .register(registry);
+
+        // The layout only changes on restart
+        this.layout = fileStorageUtil.getLayout();
+        this.shardBits = Math.min(8, Integer.numberOfTrailingZeros(layout.getFanOut()));
+        this.shardHits = new Counter[1 << shardBits];
+        for (int i = 0; i < shardHits.length; i++) {
+            String shard = String.format("%0" + shardBits / 4 + "x", i);
+            shardHits[i] = Counter.builder("filestorage.shard.hits")
+                    .description("Single-file operations by top-level shard folder")
+                    .tag("shard", shard)
+                    .register(registry);
+        }
+    }
+
+    /**
+     * Marks the start of an operation.
+     *
+     * @return The start time to pass to {@link #stop(String, long)}.
+     */
+    public long start(String operation) {
+        operation(operation).active.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the latency of an operation started with
+     * {@link #start(String)}, whether it succeeded or not.
+     */
+    public void stop(String operation, long startNanos) {
+        Operation meters = operation(operation);
+        meters.timer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        meters.active.decrementAndGet();
+    }
+
+    public void recordBytesIn(long bytes) {
+        bytesIn.increment(bytes);
+    }
+
+    public void recordBytesOut(long bytes) {
+        bytesOut.increment(bytes);
+    }
+
+    /**
+     * Records the outcome of a search.
+     *
+     * @param scannedNames The names tested against the regex.
+     * @param matchedFiles The files found.
+     */
+    public void recordSearch(long scannedNames, long matchedFiles) {
+        scanned.record(scannedNames);
+        matched.record(matchedFiles);
+    }
+
+    /**
+     * Counts an operation on a single file under its top-level shard folder.
+     */
+    public void recordShardHit(String fileName) {
+        long hash = layout.getStrategy().hash(fileName);
+        shardHits[(int) (hash >>> (Long.SIZE - shardBits))].increment();
+    }
+
+    private Operation operation(String operation) {
+        Operation meters = operations.get(operation);
+        return meters != null ? meters : operations.computeIfAbsent(operation, Operation::new);
+    }
+
+    private final class Operation {
+
+        private final Timer timer;
+        private final AtomicInteger active = new AtomicInteger();
+
+        private Operation(String operation) {
+            this.timer = Timer.builder("filestorage.operations")
+                    .description("Latency of storage operations")
+                    .tag("operation", operation)
+                    .publishPercentiles(0.5, 0.99, 0.999)
+                    .publishPercentileHistogram()
+                    .register(registry);
+            Gauge.builder("filestorage.operations.active", active, AtomicInteger::get)
+                    .description("Storage operations in flight")
+                    .tag("operation", operation)
+                    .register(registry);
+        }
+    }
+}
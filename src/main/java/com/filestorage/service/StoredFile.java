@@ -0,0 +1,152 @@
+package com.filestorage.service;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Where the content of a stored file can be read: a byte region of a file on
+ * disk. Files kept in their own file span the whole of it, while small files
+ * packed by the {@link SegmentStore} are a region of a segment. Hot files
+ * served by the {@link ReadCache} are held in memory instead and have no
+ * path.
+ *
+ * The entity tag, when known, identifies the content: it is derived from
+ * checksums computed when the file was written, so it is read without
+ * reading the content.
+ *
+ * Files compressed by the {@link ContentCompressor} are stored as gzip: the
+ * region then holds the compressed bytes, and
+ * {@link #getContentLength()} is the length of the content once
+ * uncompressed.
+ */
+public final class StoredFile {
+
+    private final Path path;
+    private final long offset;
+    private final long length;
+    private final long lastModified;
+    private final ByteBuffer content;
+    private final String etag;
+    private final long uncompressedLength;
+
+    public StoredFile(Path path, long offset, long length, long lastModified) {
+        this(path, offset, length, lastModified, null);
+    }
+
+    public StoredFile(Path path, long offset, long length, long lastModified, String etag) {
+        this(path, offset, length, lastModified, etag, -1);
+    }
+
+    /**
+     * A region of a file on disk.
+     *
+     * @param uncompressedLength The length of the content once uncompressed
+     *                           if the region holds it gzip-compressed,
+     *                           otherwise -1.
+     */
+    public StoredFile(Path path, long offset, long length, long lastModified, String etag,
+            long uncompressedLength) {
+        this.path = path;
+        this.offset = offset;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.content = null;
+        this.etag = etag;
+        this.uncompressedLength = uncompressedLength;
+    }
+
+    public StoredFile(ByteBuffer content, long lastModified) {
+        this(content, lastModified, null, -1);
+    }
+
+    /**
+     * A file held in memory.
+     *
+     * @param content      The content, from its position to its limit. It is
+     *                     not copied and must not be changed afterwards.
+     * @param lastModified The time of the last write.
+     * @param etag         The entity tag, or null if unknown.
+     * @param uncompressedLength The length of the content once uncompressed
+     *                     if it is held gzip-compressed, otherwise -1.
+     */
+    public StoredFile(ByteBuffer content, long lastModified, String etag, long uncompressedLength) {
+        this.path = null;
+        this.offset = 0;
+        this.length = content.remaining();
+        this.lastModified = lastModified;
+        this.content = content.slice().asReadOnlyBuffer();
+        this.etag = etag;
+        this.uncompressedLength = uncompressedLength;
+    }
+
+    /**
+     * Returns the file holding the content, or null when the content is held
+     * in memory.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the position of the content in {@link #getPath()}.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the number of bytes stored, compressed or not.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the length of the file's content: the bytes stored, or their
+     * uncompressed length for compressed files.
+     */
+    public long getContentLength() {
+        return uncompressedLength >= 0 ? uncompressedLength : length;
+    }
+
+    /**
+     * Returns whether the stored bytes are the gzip-compressed content.
+     */
+    public boolean isCompressed() {
+        return uncompressedLength >= 0;
+    }
+
+    /**
+     * Returns the uncompressed length of a compressed file, or -1.
+     */
+    public long getUncompressedLength() {
+        return uncompressedLength;
+    }
+
+    /**
+     * Returns the time of the last write, in milliseconds since the epoch.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Returns the strong entity tag of the content, unquoted, or null if it
+     * is unknown, e.g. for files written before entity tags were recorded.
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    public boolean isInMemory() {
+        return content != null;
+    }
+
+    /**
+     * Returns a read-only view of the content held in memory, positioned at
+     * its start, or null when the content is on disk.
+     */
+    public ByteBuffer getContent() {
+        return content != null ? content.duplicate() : null;
+    }
+}
@@ -0,0 +1,299 @@
+package com.filestorage.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * Receives a request body into a file with servlet non-blocking reads, so a
+ * slow client holds no container thread while its bytes trickle in: the
+ * container calls back whenever data is available, and each call reads only
+ * what has arrived.
+ *
+ * The request must be in asynchronous mode before the receiver is set as the
+ * input stream's {@link ReadListener}. The file is written in chunks of the
+ * buffer size as data arrives. Once the whole body is in, or on failure, the
+ * {@link Completion} is called exactly once.
+ *
+ * Everything done to the body on its way to storage happens per chunk as it
+ * arrives, so nothing reads the file back once it is complete: a digest, if
+ * given, is updated with each chunk; a body of at most the head limit is held
+ * in memory and never written; a longer one is written through the stream an
+ * {@link Encoder} chooses from its first bytes, e.g. a compressing one.
+ */
+public final class AsyncBodyReceiver implements ReadListener {
+
+    private static final Logger logger = LogManager.getLogger(AsyncBodyReceiver.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Receives the outcome of an upload.
+     */
+    public interface Completion {
+
+        /**
+         * Called once the whole body has been written to the file.
+         *
+         * @param bytes The size of the body.
+         */
+        void completed(long bytes);
+
+        /**
+         * Called when reading the body or writing the file failed.
+         */
+        void failed(Throwable error);
+    }
+
+    /**
+     * Chooses how a body is written once it is known not to be held in
+     * memory.
+     */
+    public interface Encoder {
+
+        /**
+         * @param file   The stream of the receiving file.
+         * @param sample The first bytes of the body.
+         * @param length The number of bytes in the sample.
+         * @return The stream the body is written to: the file's own, or one
+         *         wrapping it, which is closed once the body is in.
+         */
+        OutputStream open(OutputStream file, byte[] sample, int length) throws IOException;
+    }
+
+    private final ServletInputStream in;
+    private final FileChannel channel;
+    private final long contentLength;
+    private final Completion completion;
+    private final MessageDigest digest;
+    private final Encoder encoder;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final byte[] head;
+    private int headLength;
+    // The stream the body is written to, once it no longer fits in the head
+    private OutputStream out;
+    private byte[] hash;
+    private long received;
+    private boolean done;
+
+    /**
+     * Creates a receiver writing the body to the file as it is.
+     *
+     * @param in            The request body.
+     * @param target        The file receiving it, emptied first.
+     * @param contentLength The announced length in bytes, or -1 if unknown. A
+     *                      body of another length fails the upload.
+     * @param completion    Receives the outcome.
+     */
+    public AsyncBodyReceiver(ServletInputStream in, Path target, long contentLength, Completion completion)
+            throws IOException {
+        this(in, target, contentLength, 0, null, null, completion);
+    }
+
+    /**
+     * @param in            The request body.
+     * @param target        The file receiving it, emptied first.
+     * @param contentLength The announced length in bytes, or -1 if unknown. A
+     *                      body of another length fails the upload.
+     * @param headLimit     The longest body held in memory instead of being
+     *                      written, 0 for none.
+     * @param digest        Updated with every byte of the body, or null.
+     * @param encoder       Chooses the stream the body is written to, or
+     *                      null to write it as it is.
+     * @param completion    Receives the outcome.
+     */
+    public AsyncBodyReceiver(ServletInputStream in, Path target, long contentLength, int headLimit,
+            MessageDigest digest, Encoder encoder, Completion completion) throws IOException {
+        if (headLimit < 0) {
+            throw new IllegalArgumentException("Head limit must not be negative: " + headLimit);
+        }
+        this.in = in;
+        this.channel = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.contentLength = contentLength;
+        this.head = new byte[headLimit];
+        this.digest = digest;
+        this.encoder = encoder;
+        this.completion = completion;
+    }
+
+    /**
+     * Creates a receiver and registers it on the request body, which starts
+     * the reads.
+     */
+    public static AsyncBodyReceiver receive(ServletInputStream in, Path target, long contentLength,
+            Completion completion) throws IOException {
+        AsyncBodyReceiver receiver = new AsyncBodyReceiver(in, target, contentLength, completion);
+        receiver.start();
+        return receiver;
+    }
+
+    /**
+     * Registers the receiver on the request body, which starts the reads. The
+     * completion may be called before this returns.
+     */
+    public void start() {
+        try {
+            in.setReadListener(this);
+        } catch (RuntimeException e) {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    @Override
+    public void onDataAvailable() throws IOException {
+        try {
+            // Reading only while data is ready; the container calls again when more arrives
+            while (in.isReady() && !in.isFinished()) {
+                int read = in.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                received += read;
+                if (contentLength >= 0 && received > contentLength) {
+                    throw new IOException("Upload longer than its announced " + contentLength + " bytes");
+                }
+                if (digest != null) {
+                    digest.update(buffer, 0, read);
+                }
+                if (out == null && received <= head.length) {
+                    System.arraycopy(buffer, 0, head, headLength, read);
+                    headLength += read;
+                    continue;
+                }
+                if (out == null) {
+                    open(read);
+                }
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public void onAllDataRead() {
+        if (done) {
+            return;
+        }
+        try {
+            if (out != null) {
+                // Finishes an encoding stream before closing the file
+                out.close();
+            } else {
+                channel.close();
+            }
+            if (contentLength >= 0 && received != contentLength) {
+                throw new IOException("Upload ended after " + received + " of " + contentLength + " bytes");
+            }
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        done = true;
+        if (digest != null) {
+            hash = digest.digest();
+        }
+        completion.completed(received);
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        logger.debug("AsyncBodyReceiver.onError(): Upload aborted after {} bytes: {}", received, error.toString());
+        fail(error);
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * Returns whether the body is held in memory, at most the head limit
+     * long, and the file left empty.
+     */
+    public boolean isHeld() {
+        return out == null;
+    }
+
+    /**
+     * Returns the first bytes of the body, all of it when it is held.
+     */
+    public byte[] getHead() {
+        return head;
+    }
+
+    public int getHeadLength() {
+        return headLength;
+    }
+
+    /**
+     * Returns the digest of the complete body, or null before it is complete
+     * or when no digest was given.
+     */
+    public byte[] getHash() {
+        return hash;
+    }
+
+    /**
+     * Starts writing the file once the body outgrew the head, with the longer
+     * of the head and the chunk just read as the sample for the encoder.
+     */
+    private void open(int read) throws IOException {
+        OutputStream file = Channels.newOutputStream(channel);
+        if (encoder == null) {
+            out = file;
+        } else if (headLength >= read) {
+            out = encoder.open(file, head, headLength);
+        } else {
+            out = encoder.open(file, buffer, read);
+        }
+        out.write(head, 0, headLength);
+    }
+
+    private void fail(Throwable error) {
+        if (done) {
+            return;
+        }
+        done = true;
+        closeQuietly();
+        completion.failed(error);
+    }
+
+    private void closeQuietly() {
+        if (out != null) {
+            try {
+                // Releases an encoder's resources too; the file is discarded anyway
+                out.close();
+            } catch (IOException e) {
+                logger.debug("AsyncBodyReceiver.closeQuietly(): Could not finish upload file: {}", e.toString());
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("AsyncBodyReceiver.closeQuietly(): Could not close upload file", e);
+        }
+    }
+
+    /**
+     * Deletes a file that received a failed upload.
+     */
+    public static void discard(Path target) {
+        try {
+            Files.deleteIfExists(target);
+        } catch (IOException e) {
+            logger.warn("AsyncBodyReceiver.discard(): Could not delete {}", target, e);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.filestorage.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sends a region of a file with servlet non-blocking writes, so a slow client
+ * holds no container thread while its socket drains: the container calls back
+ * whenever the response can take more bytes, and each call writes only as
+ * much as it accepts.
+ *
+ * The request must be in asynchronous mode before the sender is set as the
+ * output stream's {@link WriteListener}; the asynchronous cycle is completed
+ * once the region is sent or the client goes away, and the file channel is
+ * closed then.
+ */
+public final class AsyncRegionSender implements WriteListener {
+
+    private static final Logger logger = LogManager.getLogger(AsyncRegionSender.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final AsyncContext asyncContext;
+    private final ServletOutputStream out;
+    private final FileChannel channel;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private long position;
+    private final long end;
+    private boolean done;
+
+    /**
+     * @param asyncContext The asynchronous cycle of the request.
+     * @param out          The response body.
+     * @param channel      The file, closed once sent.
+     * @param position     The start of the region.
+     * @param count        The length of the region.
+     */
+    public AsyncRegionSender(AsyncContext asyncContext, ServletOutputStream out, FileChannel channel, long position,
+            long count) {
+        this.asyncContext = asyncContext;
+        this.out = out;
+        this.channel = channel;
+        this.position = position;
+        this.end = position + count;
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        try {
+            // Writing only while the response accepts more; the container calls again when it drains
+            while (position < end && out.isReady()) {
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, end - position));
+                int read = channel.read(chunk, position);
+                if (read <= 0) {
+                    throw new IOException("File truncated while being sent");
+                }
+                out.write(buffer, 0, read);
+                position += read;
+            }
+            if (position >= end) {
+                finish();
+            }
+        } catch (IOException | RuntimeException e) {
+            onError(e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        logger.debug("AsyncRegionSender.onError(): Download aborted with {} bytes left: {}", end - position,
+                error.toString());
+        finish();
+    }
+
+    /**
+     * Returns the bytes of the region not sent yet.
+     */
+    public long getRemaining() {
+        return end - position;
+    }
+
+    private void finish() {
+        if (done) {
+            return;
+        }
+        done = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("AsyncRegionSender.finish(): Could not close file", e);
+        }
+        asyncContext.complete();
+    }
+}
@@ -0,0 +1,178 @@
+package com.filestorage.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A scalable Bloom filter of strings: answers whether a key may have been
+ * added, with no false negatives and a bounded rate of false positives.
+ *
+ * The filter starts with one layer sized for the expected number of keys.
+ * When a layer is full, a layer twice as large with half the false positive
+ * rate is added, so the overall rate stays below the configured one however
+ * many keys are added, at the cost of one more lookup per layer. Keys cannot
+ * be removed; callers rebuild the filter once enough of its keys are gone.
+ *
+ * Keys are hashed with {@link Fnv1aShardingStrategy} and the probe positions
+ * derived by double hashing, so adds and lookups allocate nothing. Safe for
+ * concurrent use without locking, except when a layer is added.
+ */
+public final class BloomFilter {
+
+    private static final double LN2 = Math.log(2);
+    // Each new layer halves the false positive rate, so the rates of all layers add up to at most twice the first's
+    private static final double TIGHTENING_RATIO = 0.5;
+
+    private final double falsePositiveRate;
+    private volatile Layer[] layers;
+
+    /**
+     * @param expectedKeys      The number of keys the first layer is sized for.
+     * @param falsePositiveRate The highest rate of false positives, between 0
+     *                          and 1 exclusive.
+     */
+    public BloomFilter(long expectedKeys, double falsePositiveRate) {
+        if (expectedKeys <= 0) {
+            throw new IllegalArgumentException("Expected keys must be positive: " + expectedKeys);
+        }
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1: " + falsePositiveRate);
+        }
+        this.falsePositiveRate = falsePositiveRate;
+        this.layers = new Layer[] { new Layer(expectedKeys, falsePositiveRate * (1 - TIGHTENING_RATIO)) };
+    }
+
+    /**
+     * Adds a key. Keys the filter already reports are not added again, so
+     * they do not use up capacity.
+     */
+    public void add(String key) {
+        long hash1 = Fnv1aShardingStrategy.INSTANCE.hash(key);
+        long hash2 = secondHash(hash1);
+        Layer[] current = layers;
+        if (contains(current, hash1, hash2)) {
+            return;
+        }
+        Layer last = current[current.length - 1];
+        last.add(hash1, hash2);
+        if (last.keys.incrementAndGet() >= last.capacity) {
+            grow(last);
+        }
+    }
+
+    /**
+     * Returns false if the key was definitely never added, true if it may have
+     * been.
+     */
+    public boolean mightContain(String key) {
+        long hash1 = Fnv1aShardingStrategy.INSTANCE.hash(key);
+        return contains(layers, hash1, secondHash(hash1));
+    }
+
+    /**
+     * Returns the number of keys added, not counting keys the filter already
+     * reported.
+     */
+    public long getKeys() {
+        long keys = 0;
+        for (Layer layer : layers) {
+            keys += layer.keys.get();
+        }
+        return keys;
+    }
+
+    public int getLayers() {
+        return layers.length;
+    }
+
+    /**
+     * Returns the memory taken by the bits of all layers.
+     */
+    public long getSizeBytes() {
+        long bits = 0;
+        for (Layer layer : layers) {
+            bits += layer.bitCount;
+        }
+        return bits / 8;
+    }
+
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    private synchronized void grow(Layer full) {
+        Layer[] current = layers;
+        if (current[current.length - 1] != full) {
+            return;
+        }
+        Layer[] grown = Arrays.copyOf(current, current.length + 1);
+        grown[current.length] = new Layer(full.capacity * 2, full.falsePositiveRate * TIGHTENING_RATIO);
+        layers = grown;
+    }
+
+    private static boolean contains(Layer[] layers, long hash1, long hash2) {
+        for (Layer layer : layers) {
+            if (layer.contains(hash1, hash2)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long secondHash(long hash1) {
+        long hash = hash1 * 0x9e3779b97f4a7c15L;
+        hash ^= hash >>> 32;
+        // Odd, so the probes of one key never repeat a position before cycling
+        return hash | 1;
+    }
+
+    private static final class Layer {
+
+        private final AtomicLongArray words;
+        private final long bitCount;
+        private final int probes;
+        private final long capacity;
+        private final double falsePositiveRate;
+        private final AtomicLong keys = new AtomicLong();
+
+        private Layer(long capacity, double falsePositiveRate) {
+            long bits = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (LN2 * LN2));
+            long wordCount = Math.max(1, (bits + 63) / 64);
+            if (wordCount > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Bloom filter layer too large for " + capacity + " keys");
+            }
+            this.words = new AtomicLongArray((int) wordCount);
+            this.bitCount = wordCount * 64;
+            this.probes = Math.max(1, (int) Math.round((double) bitCount / capacity * LN2));
+            this.capacity = capacity;
+            this.falsePositiveRate = falsePositiveRate;
+        }
+
+        private void add(long hash1, long hash2) {
+            for (int i = 0; i < probes; i++) {
+                long bit = position(hash1, hash2, i);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long value;
+                while (((value = words.get(word)) & mask) == 0 && !words.compareAndSet(word, value, value | mask)) {
+                    // Another bit of the word was set concurrently, try again
+                }
+            }
+        }
+
+        private boolean contains(long hash1, long hash2) {
+            for (int i = 0; i < probes; i++) {
+                long bit = position(hash1, hash2, i);
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private long position(long hash1, long hash2, int i) {
+            return ((hash1 + i * hash2) & Long.MAX_VALUE) % bitCount;
+        }
+    }
+}
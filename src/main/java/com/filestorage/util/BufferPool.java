@@ -0,0 +1,39 @@
+package com.filestorage.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of equally sized byte buffers, so that streaming requests
+ * reuse their copy buffers instead of allocating one per request.
+ *
+ * Buffers are handed out with {@link #acquire()} and must be returned with
+ * {@link #release(byte[])}. When the pool is empty a new buffer is allocated,
+ * and buffers returned to a full pool are left to the garbage collector, so
+ * the pool never blocks.
+ */
+public final class BufferPool {
+
+    private final int bufferSize;
+    private final BlockingQueue<byte[]> buffers;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    public byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        return buffer != null ? buffer : new byte[bufferSize];
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer.length == bufferSize) {
+            buffers.offer(buffer);
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
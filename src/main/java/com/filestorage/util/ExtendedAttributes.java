@@ -0,0 +1,74 @@
+package com.filestorage.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+
+/**
+ * Short text values kept in user-defined extended attributes of stored
+ * files ({@code user.} attributes on Linux). They belong to the inode, so
+ * they move with a file renamed into place and are shared by hard links.
+ */
+public final class ExtendedAttributes {
+
+    // Values are hashes and numbers; one buffer this large reads any of them in a single call
+    private static final int MAX_VALUE_SIZE = 128;
+
+    private ExtendedAttributes() {
+    }
+
+    /**
+     * Returns whether files in this directory can have extended attributes.
+     */
+    public static boolean isSupported(Path directory) {
+        try {
+            return Files.getFileStore(directory).supportsFileAttributeView(UserDefinedFileAttributeView.class);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sets an attribute of a file.
+     *
+     * @throws IOException If the value cannot be stored, including on file
+     *                     systems without extended attributes.
+     */
+    public static void write(Path file, String name, String value) throws IOException {
+        ByteBuffer encoded = StandardCharsets.US_ASCII.encode(value);
+        if (encoded.remaining() > MAX_VALUE_SIZE) {
+            throw new IllegalArgumentException("Attribute value too long: " + value);
+        }
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            throw new IOException("Extended attributes unavailable for " + file);
+        }
+        try {
+            view.write(name, encoded);
+        } catch (UnsupportedOperationException e) {
+            throw new IOException("Extended attributes unavailable for " + file, e);
+        }
+    }
+
+    /**
+     * Returns the value of an attribute of a file, or null if the file does
+     * not have it or cannot have extended attributes.
+     */
+    public static String read(Path file, String name) {
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(MAX_VALUE_SIZE);
+            view.read(name, buffer);
+            buffer.flip();
+            return StandardCharsets.US_ASCII.decode(buffer).toString();
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package com.filestorage.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Matches file names against a search regex, using the literal parts the
+ * regex requires to reject names cheaply.
+ *
+ * The pattern is analysed once: a regex made only of literal characters is
+ * an exact name, otherwise the literal characters every match must start or
+ * end with are extracted (for example {@code users_} from {@code users_.*} or
+ * the extension {@code .txt} from {@code .*\.txt}). Callers use the prefix to
+ * restrict sorted ranges and the exact name to resolve a single path. The
+ * analysis is conservative: anything it does not understand yields no
+ * constraint, and the regex itself always has the final word.
+ */
+public final class FileNameMatcher {
+
+    private static final int LITERAL = 0;
+    private static final int LITERAL_REPEATED = 1;
+    private static final int VARIABLE = 2;
+
+    private final Pattern pattern;
+    private final String prefix;
+    private final String suffix;
+    private final String exactName;
+    private final LongAdder tested = new LongAdder();
+
+    public FileNameMatcher(Pattern pattern) {
+        this.pattern = pattern;
+
+        List<int[]> atoms = pattern.flags() == 0 ? parse(pattern.pattern()) : null;
+        if (atoms == null) {
+            this.prefix = "";
+            this.suffix = "";
+            this.exactName = null;
+            return;
+        }
+
+        StringBuilder head = new StringBuilder();
+        for (int[] atom : atoms) {
+            if (atom[0] == VARIABLE) {
+                break;
+            }
+            head.append((char) atom[1]);
+            if (atom[0] == LITERAL_REPEATED) {
+                break;
+            }
+        }
+
+        StringBuilder tail = new StringBuilder();
+        for (int i = atoms.size() - 1; i >= 0; i--) {
+            int[] atom = atoms.get(i);
+            if (atom[0] == VARIABLE) {
+                break;
+            }
+            tail.append((char) atom[1]);
+            if (atom[0] == LITERAL_REPEATED) {
+                break;
+            }
+        }
+
+        boolean exact = atoms.stream().allMatch(atom -> atom[0] == LITERAL);
+        this.prefix = head.toString();
+        this.suffix = tail.reverse().toString();
+        this.exactName = exact ? prefix : null;
+    }
+
+    /**
+     * Returns whether the file name fully matches the regex.
+     */
+    public boolean matches(String fileName) {
+        tested.increment();
+        if (exactName != null) {
+            return exactName.equals(fileName);
+        }
+        return fileName.startsWith(prefix) && fileName.endsWith(suffix) && pattern.matcher(fileName).matches();
+    }
+
+    public Pattern getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Returns the literal every matching name starts with, or an empty string.
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Returns the literal every matching name ends with, such as an extension,
+     * or an empty string.
+     */
+    public String getSuffix() {
+        return suffix;
+    }
+
+    /**
+     * Returns the only name the regex can match, or null if it matches more
+     * than one name.
+     */
+    public String getExactName() {
+        return exactName;
+    }
+
+    public boolean isExact() {
+        return exactName != null;
+    }
+
+    /**
+     * Returns how many names were tested so far, which tells how much of the
+     * storage a search had to scan.
+     */
+    public long getTestedCount() {
+        return tested.sum();
+    }
+
+    /**
+     * Splits the regex into top-level atoms of the form {kind, char}. Returns
+     * null when the regex uses constructs the analysis does not support, such
+     * as top-level alternation or embedded flags.
+     */
+    private static List<int[]> parse(String regex) {
+        for (int at = regex.indexOf("(?"); at >= 0; at = regex.indexOf("(?", at + 1)) {
+            if (!regex.startsWith("(?:", at)) {
+                return null; // Embedded flags and lookarounds, possibly inside a group
+            }
+        }
+
+        List<int[]> atoms = new ArrayList<>();
+        int length = regex.length();
+        int i = 0;
+        if (length > 0 && regex.charAt(0) == '^') {
+            i++; // matches() is anchored already
+        }
+        if (length > i && regex.charAt(length - 1) == '$' && !isEscaped(regex, length - 1)) {
+            length--;
+        }
+
+        while (i < length) {
+            char c = regex.charAt(i);
+            switch (c) {
+                case '\\':
+                    if (i + 1 >= length) {
+                        return null;
+                    }
+                    char escaped = regex.charAt(i + 1);
+                    if (escaped == 'Q') {
+                        int end = regex.indexOf("\\E", i + 2);
+                        int quotedEnd = end < 0 ? length : Math.min(end, length);
+                        for (int j = i + 2; j < quotedEnd; j++) {
+                            atoms.add(new int[] { LITERAL, regex.charAt(j) });
+                        }
+                        i = end < 0 ? length : end + 2;
+                        continue;
+                    }
+                    i = parseEscape(regex, i, length, atoms);
+                    if (i < 0) {
+                        return null;
+                    }
+                    break;
+                case '[':
+                    i = skipClass(regex, i, length);
+                    if (i < 0) {
+                        return null;
+                    }
+                    atoms.add(new int[] { VARIABLE, 0 });
+                    break;
+                case '(':
+                    i = skipGroup(regex, i, length);
+                    if (i < 0) {
+                        return null;
+                    }
+                    atoms.add(new int[] { VARIABLE, 0 });
+                    break;
+                case '|':
+                    return null;
+                case '*':
+                case '?':
+                case '+':
+                case '{':
+                    if (atoms.isEmpty()) {
+                        return null;
+                    }
+                    int[] previous = atoms.get(atoms.size() - 1);
+                    if (c == '+' && previous[0] == LITERAL) {
+                        previous[0] = LITERAL_REPEATED;
+                    } else {
+                        previous[0] = VARIABLE;
+                    }
+                    if (c == '{') {
+                        i = regex.indexOf('}', i);
+                        if (i < 0) {
+                            return null;
+                        }
+                    }
+                    i++;
+                    if (i < length && (regex.charAt(i) == '?' || regex.charAt(i) == '+')) {
+                        i++; // Lazy or possessive modifier
+                    }
+                    break;
+                case '.':
+                case '^':
+                case '$':
+                    atoms.add(new int[] { VARIABLE, 0 });
+                    i++;
+                    break;
+                default:
+                    atoms.add(new int[] { LITERAL, c });
+                    i++;
+            }
+        }
+        return atoms;
+    }
+
+    /**
+     * Adds the atom of the escape sequence starting at {@code start}, other
+     * than a quote, and returns the index right after it, or -1 if the
+     * sequence is not supported. Escaped characters, as well as hexadecimal,
+     * octal, Unicode and control characters, are decoded to literals;
+     * predefined classes such as {@code \d} match a variable character.
+     */
+    private static int parseEscape(String regex, int start, int length, List<int[]> atoms) {
+        char escaped = regex.charAt(start + 1);
+        int i = start + 2;
+        switch (escaped) {
+            case 'x':
+                if (i < length && regex.charAt(i) == '{') {
+                    int end = regex.indexOf('}', i);
+                    if (end < 0 || end >= length) {
+                        return -1;
+                    }
+                    int codePoint = parseHex(regex, i + 1, end);
+                    // Supplementary characters take two chars, which the atoms do not model
+                    if (codePoint < 0 || codePoint > Character.MAX_VALUE) {
+                        return -1;
+                    }
+                    atoms.add(new int[] { LITERAL, codePoint });
+                    return end + 1;
+                }
+                return addHex(regex, i, 2, length, atoms);
+            case 'u':
+                return addHex(regex, i, 4, length, atoms);
+            case '0': {
+                // One to three octal digits, three only when the first is at most 3
+                int digits = 0;
+                int value = 0;
+                while (i < length && digits < 3 && regex.charAt(i) >= '0' && regex.charAt(i) <= '7'
+                        && (digits < 2 || value < 040)) {
+                    value = value * 8 + (regex.charAt(i) - '0');
+                    digits++;
+                    i++;
+                }
+                if (digits == 0) {
+                    return -1;
+                }
+                atoms.add(new int[] { LITERAL, value });
+                return i;
+            }
+            case 'c':
+                if (i >= length) {
+                    return -1;
+                }
+                atoms.add(new int[] { LITERAL, regex.charAt(i) ^ 64 });
+                return i + 1;
+            case 'p':
+            case 'P':
+                if (i < length && regex.charAt(i) == '{') {
+                    int end = regex.indexOf('}', i);
+                    if (end < 0 || end >= length) {
+                        return -1;
+                    }
+                    i = end;
+                }
+                atoms.add(new int[] { VARIABLE, 0 });
+                return i + 1;
+            case 'd':
+            case 'D':
+            case 's':
+            case 'S':
+            case 'w':
+            case 'W':
+            case 'h':
+            case 'H':
+            case 'v':
+            case 'V':
+                atoms.add(new int[] { VARIABLE, 0 });
+                return i;
+            case 't':
+                atoms.add(new int[] { LITERAL, '\t' });
+                return i;
+            case 'n':
+                atoms.add(new int[] { LITERAL, '\n' });
+                return i;
+            case 'r':
+                atoms.add(new int[] { LITERAL, '\r' });
+                return i;
+            case 'f':
+                atoms.add(new int[] { LITERAL, '\f' });
+                return i;
+            case 'a':
+                atoms.add(new int[] { LITERAL, '\u0007' });
+                return i;
+            case 'e':
+                atoms.add(new int[] { LITERAL, '\u001b' });
+                return i;
+            default:
+                // Back references, boundaries, named sequences and the like
+                if (Character.isLetterOrDigit(escaped)) {
+                    return -1;
+                }
+                atoms.add(new int[] { LITERAL, escaped });
+                return i;
+        }
+    }
+
+    /**
+     * Adds the character given by {@code digits} hexadecimal digits at
+     * {@code start} and returns the index right after them, or -1 if they are
+     * not all there.
+     */
+    private static int addHex(String regex, int start, int digits, int length, List<int[]> atoms) {
+        int end = start + digits;
+        if (end > length) {
+            return -1;
+        }
+        int value = parseHex(regex, start, end);
+        if (value < 0) {
+            return -1;
+        }
+        atoms.add(new int[] { LITERAL, value });
+        return end;
+    }
+
+    /**
+     * Returns the value of the hexadecimal digits between {@code start} and
+     * {@code end}, or -1 if there are none or one is not a digit.
+     */
+    private static int parseHex(String regex, int start, int end) {
+        if (start >= end || end - start > 8) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(regex.charAt(i), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = value * 16 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the index right after the character class starting at
+     * {@code start}, or -1 if it is not terminated.
+     */
+    private static int skipClass(String regex, int start, int length) {
+        int depth = 0;
+        int i = start;
+        while (i < length) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '[') {
+                depth++;
+                if (i + 1 < length && regex.charAt(i + 1) == '^') {
+                    i++;
+                }
+                if (i + 1 < length && regex.charAt(i + 1) == ']') {
+                    i++; // A leading ']' is a literal member
+                }
+            } else if (c == ']' && --depth == 0) {
+                return i + 1;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index right after the group starting at {@code start}, or -1
+     * if it is not terminated.
+     */
+    private static int skipGroup(String regex, int start, int length) {
+        int depth = 0;
+        int i = start;
+        while (i < length) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '[') {
+                i = skipClass(regex, i, length);
+                if (i < 0) {
+                    return -1;
+                }
+                continue;
+            }
+            if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return i + 1;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    private static boolean isEscaped(String regex, int index) {
+        int backslashes = 0;
+        for (int i = index - 1; i >= 0 && regex.charAt(i) == '\\'; i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+}
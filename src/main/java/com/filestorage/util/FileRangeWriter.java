@@ -0,0 +1,366 @@
+package com.filestorage.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.util.MimeTypeUtils;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Writes a stored file, or byte ranges of it, to a servlet response without
+ * copying it through the heap.
+ *
+ * Full bodies and single ranges are handed to the container's sendfile
+ * support when it is available (Tomcat NIO), so the kernel copies the bytes
+ * straight from the page cache to the socket. Otherwise, and for multi-range
+ * responses, the bytes are moved with {@link FileChannel#transferTo}. Range
+ * requests follow RFC 7233: one range yields a 206 with
+ * {@code Content-Range}, several ranges a {@code multipart/byteranges} body
+ * and unsatisfiable ranges a 416.
+ *
+ * The file may be a region of a larger file, given by its offset and length,
+ * or held in memory by the read cache, in which case the bytes are written
+ * from the buffer in the calling thread.
+ *
+ * In non-blocking mode, bodies the container does not take over with
+ * sendfile are sent with servlet non-blocking writes by an
+ * {@link AsyncRegionSender}, so a slow client holds no thread either way.
+ * Multi-range responses, and compressed files decompressed for clients that
+ * do not accept gzip, are always written in the calling thread.
+ */
+public final class FileRangeWriter {
+
+    private static final Logger logger = LogManager.getLogger(FileRangeWriter.class);
+
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    // Below this size a plain write is cheaper than setting up sendfile
+    private static final long SENDFILE_MIN_SIZE = 48 * 1024;
+    private static final int DECOMPRESS_BUFFER_SIZE = 64 * 1024;
+
+    private FileRangeWriter() {
+    }
+
+    /**
+     * Writes the response for a download of {@code length} bytes stored at
+     * {@code offset} in {@code file}, honouring the request's
+     * {@code Range} and {@code If-Range} headers. Headers such as
+     * {@code Content-Disposition} must be set before calling.
+     *
+     * @return The number of bytes of the file sent, or handed over to the
+     *         container to send.
+     */
+    public static long write(HttpServletRequest request, HttpServletResponse response, Path file, long offset,
+            long length, MediaType contentType, long lastModified) throws IOException {
+        return write(request, response, file, offset, length, contentType, lastModified, null, false);
+    }
+
+    /**
+     * Writes a download as {@link #write(HttpServletRequest,
+     * HttpServletResponse, Path, long, long, MediaType, long)} does, with the
+     * strong entity tag {@code etag} (unquoted, may be null) as a validator
+     * besides the modification time, and sending the body without blocking
+     * when {@code nonBlocking} is set and the request supports asynchronous
+     * processing. The response is then still being written when this method
+     * returns.
+     */
+    public static long write(HttpServletRequest request, HttpServletResponse response, Path file, long offset,
+            long length, MediaType contentType, long lastModified, String etag, boolean nonBlocking)
+            throws IOException {
+        return write(request, response, file, offset, null, length, contentType, lastModified, etag, nonBlocking);
+    }
+
+    /**
+     * Writes a download held in memory, from the position of {@code content}
+     * to its limit, as {@link #write(HttpServletRequest,
+     * HttpServletResponse, Path, long, long, MediaType, long, String,
+     * boolean)} does.
+     */
+    public static long write(HttpServletRequest request, HttpServletResponse response, ByteBuffer content,
+            MediaType contentType, long lastModified, String etag) throws IOException {
+        return write(request, response, null, 0, content.slice(), content.remaining(), contentType, lastModified,
+                etag, false);
+    }
+
+    /**
+     * Writes a download of gzip-compressed content, read from {@code file} at
+     * {@code offset} or from {@code content} when it is not null, for a
+     * client that does not accept gzip: the content is decompressed on the
+     * fly. Ranges of the uncompressed content would need everything before
+     * them decompressed, so {@code Range} is ignored and the whole content
+     * sent, and {@code Accept-Ranges: none} tells clients not to try.
+     *
+     * @param length The length of the uncompressed content.
+     * @return The number of uncompressed bytes sent.
+     */
+    public static long writeDecompressed(HttpServletRequest request, HttpServletResponse response, Path file,
+            long offset, ByteBuffer content, long length, MediaType contentType, long lastModified, String etag)
+            throws IOException {
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "none");
+        if (lastModified > 0) {
+            response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        }
+        if (etag != null) {
+            response.setHeader(HttpHeaders.ETAG, quote(etag));
+        }
+        response.setContentType(contentType.toString());
+        response.setContentLengthLong(length);
+        if (isHead(request) || length == 0) {
+            return 0;
+        }
+
+        FileChannel channel = content == null ? FileChannel.open(file, StandardOpenOption.READ) : null;
+        try (InputStream in = channel != null ? GzipCodec.decompress(Channels.newInputStream(channel.position(offset)))
+                : GzipCodec.decompress(content)) {
+            OutputStream out = response.getOutputStream();
+            byte[] buffer = new byte[DECOMPRESS_BUFFER_SIZE];
+            long sent = 0;
+            for (int read; sent < length && (read = in.read(buffer, 0, (int) Math.min(buffer.length,
+                    length - sent))) != -1;) {
+                out.write(buffer, 0, read);
+                sent += read;
+            }
+            if (sent < length) {
+                throw new IOException("Compressed content shorter than its recorded length");
+            }
+            return sent;
+        } finally {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Writes a download read from {@code file} at {@code offset}, or from
+     * {@code content} when it is not null.
+     */
+    private static long write(HttpServletRequest request, HttpServletResponse response, Path file, long offset,
+            ByteBuffer content, long length, MediaType contentType, long lastModified, String etag,
+            boolean nonBlocking) throws IOException {
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (lastModified > 0) {
+            response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        }
+        if (etag != null) {
+            response.setHeader(HttpHeaders.ETAG, quote(etag));
+        }
+
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader == null || length == 0 || !ifRangeMatches(request, lastModified, etag)) {
+            response.setContentType(contentType.toString());
+            response.setContentLengthLong(length);
+            return writeRegion(request, response, file, offset, content, length, nonBlocking);
+        }
+
+        List<HttpRange> ranges;
+        long[][] bounds;
+        try {
+            ranges = HttpRange.parseRanges(rangeHeader);
+            bounds = resolve(ranges, length);
+        } catch (IllegalArgumentException e) {
+            logger.debug("FileRangeWriter.write(): Unsatisfiable range {} for {} bytes", rangeHeader, length);
+            response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            return 0;
+        }
+
+        response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+        if (bounds.length == 1) {
+            long start = bounds[0][0];
+            long end = bounds[0][1];
+            response.setContentType(contentType.toString());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, contentRange(start, end, length));
+            response.setContentLengthLong(end - start + 1);
+            return writeRegion(request, response, file, offset + start, content, end - start + 1, nonBlocking);
+        }
+
+        return writeMultipart(request, response, file, offset, content, length, contentType, bounds);
+    }
+
+    /**
+     * Resolves the ranges against the length. Throws
+     * {@link IllegalArgumentException} when a range is unsatisfiable or the
+     * ranges add up to more than the file, which would let a client amplify a
+     * small request into a large response.
+     */
+    private static long[][] resolve(List<HttpRange> ranges, long length) {
+        long[][] bounds = new long[ranges.size()][];
+        long total = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            long start = ranges.get(i).getRangeStart(length);
+            long end = ranges.get(i).getRangeEnd(length);
+            if (start >= length || end < start) {
+                throw new IllegalArgumentException("Range starts past the end of the file");
+            }
+            bounds[i] = new long[] { start, end };
+            total += end - start + 1;
+        }
+        if (bounds.length > 1 && total > length) {
+            throw new IllegalArgumentException("Ranges exceed the file length");
+        }
+        return bounds;
+    }
+
+    /**
+     * A range request only applies if the {@code If-Range} validator, when
+     * present, still matches the file. Entity tags are compared strongly, so
+     * weak tags never match.
+     */
+    private static boolean ifRangeMatches(HttpServletRequest request, long lastModified, String etag) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return etag != null && ifRange.equals(quote(etag));
+        }
+        try {
+            long since = request.getDateHeader(HttpHeaders.IF_RANGE);
+            // HTTP dates have a resolution of one second
+            return lastModified > 0 && since / 1000 == lastModified / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static String quote(String etag) {
+        return '"' + etag + '"';
+    }
+
+    private static long writeMultipart(HttpServletRequest request, HttpServletResponse response, Path file,
+            long offset, ByteBuffer content, long length, MediaType contentType, long[][] bounds)
+            throws IOException {
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        byte[][] partHeaders = new byte[bounds.length][];
+        long contentLength = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            partHeaders[i] = ("\r\n--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+                    + HttpHeaders.CONTENT_RANGE + ": " + contentRange(bounds[i][0], bounds[i][1], length) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            contentLength += partHeaders[i].length + bounds[i][1] - bounds[i][0] + 1;
+        }
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        contentLength += end.length;
+
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        if (isHead(request)) {
+            return 0;
+        }
+
+        ServletOutputStream out = response.getOutputStream();
+        WritableByteChannel target = Channels.newChannel(out);
+        long sent = 0;
+        if (content != null) {
+            for (int i = 0; i < bounds.length; i++) {
+                out.write(partHeaders[i]);
+                transfer(content, bounds[i][0], bounds[i][1] - bounds[i][0] + 1, target);
+                sent += bounds[i][1] - bounds[i][0] + 1;
+            }
+            out.write(end);
+            return sent;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (int i = 0; i < bounds.length; i++) {
+                out.write(partHeaders[i]);
+                transfer(channel, offset + bounds[i][0], bounds[i][1] - bounds[i][0] + 1, target);
+                sent += bounds[i][1] - bounds[i][0] + 1;
+            }
+        }
+        out.write(end);
+        return sent;
+    }
+
+    private static long writeRegion(HttpServletRequest request, HttpServletResponse response, Path file,
+            long position, ByteBuffer content, long count, boolean nonBlocking) throws IOException {
+        if (isHead(request) || count == 0) {
+            return 0;
+        }
+        if (content != null) {
+            transfer(content, position, count, Channels.newChannel(response.getOutputStream()));
+            return count;
+        }
+        if (count >= SENDFILE_MIN_SIZE && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))) {
+            // The container sends the file once the handler returns
+            request.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, position);
+            request.setAttribute(SENDFILE_END, position + count);
+            return count;
+        }
+        if (nonBlocking && request.isAsyncSupported()) {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            AsyncContext asyncContext = null;
+            try {
+                asyncContext = request.startAsync();
+                // Stalled clients are dropped by the connector's socket timeout instead
+                asyncContext.setTimeout(0);
+                ServletOutputStream out = response.getOutputStream();
+                out.setWriteListener(new AsyncRegionSender(asyncContext, out, channel, position, count));
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                if (asyncContext != null) {
+                    asyncContext.complete();
+                }
+                throw e;
+            }
+            return count;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            transfer(channel, position, count, Channels.newChannel(response.getOutputStream()));
+        }
+        return count;
+    }
+
+    private static void transfer(FileChannel channel, long position, long count, WritableByteChannel target)
+            throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long transferred = channel.transferTo(position, end - position, target);
+            if (transferred <= 0) {
+                throw new IOException("File truncated while being sent");
+            }
+            position += transferred;
+        }
+    }
+
+    private static void transfer(ByteBuffer content, long position, long count, WritableByteChannel target)
+            throws IOException {
+        ByteBuffer region = content.duplicate();
+        region.limit((int) (position + count)).position((int) position);
+        while (region.hasRemaining()) {
+            target.write(region);
+        }
+    }
+
+    private static String contentRange(long start, long end, long length) {
+        return "bytes " + start + "-" + end + "/" + length;
+    }
+
+    private static boolean isHead(HttpServletRequest request) {
+        return "HEAD".equals(request.getMethod());
+    }
+}
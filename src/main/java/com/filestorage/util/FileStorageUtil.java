@@ -2,12 +2,15 @@ package com.filestorage.util;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 /**
  * Utility class for file storage operations such as hashing, validation, and
@@ -19,27 +22,109 @@ public class FileStorageUtil {
     private static final Logger logger = LogManager.getLogger(FileStorageUtil.class);
     private static final String FILE_NAME_PATTERN = "^[a-zA-Z0-9_-]{1,64}$";
     private static final String STORAGE_DIR = "data-storage";
+    private static final String INTERNAL_PREFIX = ".";
+    private static final String LAYOUT_FILE = ".layout";
+
+    private final String storageDir;
+    private final Path storageRoot;
+    private final ShardLayout layout;
+    private volatile ShardLayout previousLayout;
+
+    public FileStorageUtil() {
+        this(STORAGE_DIR);
+    }
+
+    public FileStorageUtil(String storageDir) {
+        this(storageDir, ShardLayout.LEGACY.getLevels(), ShardLayout.LEGACY.getFanOut(),
+                ShardLayout.LEGACY.getStrategy().getName());
+    }
+
+    /**
+     * Creates the utility for the configured shard layout. If the files on
+     * disk were stored with a different layout, that layout is kept as the
+     * previous one until {@link #completeMigration()}, and lookups fall back to
+     * it.
+     */
+    @Autowired
+    public FileStorageUtil(@Value("${file.storage.location:" + STORAGE_DIR + "}") String storageDir,
+            @Value("${file.storage.sharding.levels:1}") int levels,
+            @Value("${file.storage.sharding.fan-out:256}") int fanOut,
+            @Value("${file.storage.sharding.hash:" + Sha256ShardingStrategy.NAME + "}") String hash) {
+        this.storageDir = storageDir;
+        this.storageRoot = Paths.get(storageDir);
+        this.layout = ShardLayout.of(levels, fanOut, ShardingStrategy.forName(hash));
+        ShardLayout storedLayout = readStoredLayout();
+        if (storedLayout != null && !storedLayout.equals(layout)) {
+            if (storedLayout.getLevels() == layout.getLevels() && storedLayout.getFanOut() == layout.getFanOut()) {
+                // Both layouts would use the same folders, so files could not be told apart while migrating
+                throw new IllegalArgumentException("Shard layouts " + storedLayout + " and " + layout
+                        + " use the same folders: change the levels or fan-out together with the hash");
+            }
+            logger.info("FileStorageUtil(): Files are stored with shard layout {}, configured layout is {}",
+                    storedLayout, layout);
+            this.previousLayout = storedLayout;
+        }
+    }
 
     /**
-     * Generates a SHA-256 hash for the given file name.
+     * Returns the root directory under which all shard folders are created.
      *
-     * @param fileName The file name to hash.
-     * @return The hexadecimal hash representation.
+     * @return The configured storage directory.
+     */
+    public String getStorageDir() {
+        return storageDir;
+    }
+
+    /**
+     * Returns the layout new files are stored with.
+     */
+    public ShardLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Returns the layout files are being migrated from, or null when every
+     * file is stored with the current layout.
+     */
+    public ShardLayout getPreviousLayout() {
+        return previousLayout;
+    }
+
+    /**
+     * Records the current layout as the one of all stored files, ending the
+     * fallback to the previous layout.
+     */
+    public void completeMigration() throws IOException {
+        layout.save(Paths.get(storageDir, LAYOUT_FILE));
+        previousLayout = null;
+    }
+
+    /**
+     * Returns whether the layout of the stored files has been recorded.
      */
-    public String generateFileHash(String fileName) {
-        logger.debug("FileStorageUtil.generateFileHash(): Hashing file name '{}'", fileName);
+    public boolean isLayoutRecorded() {
+        return Files.exists(Paths.get(storageDir, LAYOUT_FILE));
+    }
+
+    /**
+     * Returns the layout recorded in the storage directory. Storage written
+     * before the layout was recorded uses the legacy layout if it holds any
+     * shard folder.
+     */
+    private ShardLayout readStoredLayout() {
+        Path root = Paths.get(storageDir);
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hashBytes = digest.digest(fileName.getBytes());
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hashBytes) {
-                hexString.append(String.format("%02x", b));
+            ShardLayout recorded = ShardLayout.load(root.resolve(LAYOUT_FILE));
+            if (recorded != null || !Files.isDirectory(root)) {
+                return recorded;
             }
-            logger.debug("FileStorageUtil.generateFileHash(): Generated hash '{}' for file '{}'", hexString, fileName);
-            return hexString.toString();
-        } catch (NoSuchAlgorithmException e) {
-            logger.error("FileStorageUtil.generateFileHash(): Error hashing file name '{}'", fileName, e);
-            throw new RuntimeException("Error hashing file name", e);
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(root,
+                    entry -> ShardLayout.LEGACY.isFolderName(entry.getFileName().toString()))) {
+                return entries.iterator().hasNext() ? ShardLayout.LEGACY : null;
+            }
+        } catch (IOException e) {
+            logger.error("FileStorageUtil.readStoredLayout(): Error reading shard layout of {}", storageDir, e);
+            throw new RuntimeException("Storage initialization failed", e);
         }
     }
 
@@ -71,7 +156,8 @@ public class FileStorageUtil {
     }
 
     /**
-     * Resolves the full storage path for a given file based on its hash.
+     * Resolves the full storage path for a given file based on the hash of its
+     * name.
      *
      * @param fileName The original file name.
      * @return The resolved storage path.
@@ -81,10 +167,57 @@ public class FileStorageUtil {
             throw new IllegalArgumentException("File name cannot be null or empty when resolving path");
         }
         logger.debug("FileStorageUtil.resolveFilePath(): Resolving path for file '{}'", fileName);
-        String hash = generateFileHash(fileName);
-        String subfolder = hash.substring(0, 2); // First 2 characters for subfolder distribution
-        Path path = Paths.get(STORAGE_DIR, subfolder, fileName);
+        Path path = layout.resolve(storageRoot, fileName);
         logger.debug("FileStorageUtil.resolveFilePath(): Resolved path '{}'", path);
         return path;
     }
+
+    /**
+     * Resolves the path a file had in the previous shard layout while files
+     * are being migrated, or returns null when there is no migration.
+     *
+     * @param fileName The original file name.
+     * @return The path in the previous layout, or null.
+     */
+    public Path resolvePreviousFilePath(String fileName) {
+        ShardLayout previous = previousLayout;
+        return previous == null ? null : previous.resolve(storageRoot, fileName);
+    }
+
+    /**
+     * Creates a uniquely named temporary file next to the given target path,
+     * so that it can be atomically moved into place once written. Temporary
+     * names start with a dot, which no valid file name does.
+     *
+     * @param target The final path of the file being written.
+     * @return The created temporary file.
+     */
+    public Path createTempFile(Path target) throws IOException {
+        return Files.createTempFile(target.getParent(), INTERNAL_PREFIX + target.getFileName() + ".", ".tmp");
+    }
+
+    /**
+     * Returns a glob matching the temporary files
+     * {@link #createTempFile(Path)} creates for a file name, e.g. to delete
+     * those left by a crash. Valid file names hold no glob characters.
+     *
+     * @param fileName The name of the file being written.
+     * @return The glob, for the file's shard folder.
+     */
+    public static String tempFileGlob(String fileName) {
+        return INTERNAL_PREFIX + fileName + ".*.tmp";
+    }
+
+    /**
+     * Returns whether a name found in the storage tree is internal to the
+     * service, such as a file still being written or the blob store, rather
+     * than a stored file or shard folder. Internal names start with a dot,
+     * which no valid file name does.
+     *
+     * @param name The name found on disk.
+     * @return True for internal names.
+     */
+    public static boolean isInternalName(String name) {
+        return name.startsWith(INTERNAL_PREFIX);
+    }
 }
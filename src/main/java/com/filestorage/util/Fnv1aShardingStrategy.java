@@ -0,0 +1,43 @@
+package com.filestorage.util;
+
+/**
+ * Shards files by the 64-bit FNV-1a hash of their name, computed directly on
+ * its characters without encoding, digest state or allocation.
+ *
+ * FNV-1a spreads its low bits better than its high ones, while the shard
+ * levels are taken from the high bits, so the hash goes through the MurmurHash3
+ * finalizer. Switching an existing storage to this strategy changes every
+ * file's folder and migrates the files like any other layout change; the
+ * levels or fan-out must change with it so both layouts use distinct folders.
+ */
+public final class Fnv1aShardingStrategy implements ShardingStrategy {
+
+    public static final String NAME = "fnv1a";
+    public static final Fnv1aShardingStrategy INSTANCE = new Fnv1aShardingStrategy();
+
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private Fnv1aShardingStrategy() {
+    }
+
+    @Override
+    public long hash(String fileName) {
+        long hash = OFFSET_BASIS;
+        for (int i = 0; i < fileName.length(); i++) {
+            hash ^= fileName.charAt(i);
+            hash *= PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+}
@@ -0,0 +1,429 @@
+package com.filestorage.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs an action on many shard folders at once, for the scans that list every
+ * folder: building the name index, seeding the file counters and the name
+ * filter, writing the first journal snapshot and counting the matches of a
+ * search.
+ *
+ * This implementation splits the folders of a scan in halves down to single
+ * folders on a dedicated fork-join pool of {@code file.storage.scan.parallelism}
+ * threads, one per CPU by default, so scans neither compete with parallel
+ * streams on the common pool nor are limited by its size. Directory reads
+ * block, so storage with high latency, e.g. network file systems, gains from
+ * more threads than CPUs. Builds with the {@code virtual-threads} profile
+ * replace it with one that lists each folder on its own virtual thread.
+ *
+ * {@link #scanFiles(String, Stream, Consumer)} lists the stored files of each
+ * folder with their attributes, read by the one {@code stat} per file that
+ * tells regular files apart, for subsystems that need a full inventory.
+ * Running and recent scans are reported with their progress and throughput
+ * by the {@code scans} actuator endpoint.
+ */
+@Component
+public class FolderScanner {
+
+    private static final Logger logger = LogManager.getLogger(FolderScanner.class);
+
+    private static final int COMPLETED_SCANS_KEPT = 10;
+
+    private final int parallelism;
+    private final ForkJoinPool pool;
+    private final Set<Scan> running = ConcurrentHashMap.newKeySet();
+    private final Deque<Progress> completed = new ArrayDeque<>();
+    private final LongAdder scannedFolders = new LongAdder();
+    private final LongAdder listedEntries = new LongAdder();
+
+    public FolderScanner() {
+        this(0);
+    }
+
+    /**
+     * @param parallelism The threads listing folders, over all scans; 0 for
+     *                    one per CPU.
+     */
+    @Autowired
+    public FolderScanner(@Value("${file.storage.scan.parallelism:0}") int parallelism) {
+        if (parallelism < 0) {
+            throw new IllegalArgumentException("Scan parallelism must not be negative: " + parallelism);
+        }
+        this.parallelism = parallelism == 0 ? Runtime.getRuntime().availableProcessors() : parallelism;
+        // Threads are only started once a scan runs
+        this.pool = new ForkJoinPool(this.parallelism, FolderScanner::newWorker, null, false);
+    }
+
+    /**
+     * Runs the action on every folder, returning once all are done. An
+     * exception thrown by the action is rethrown once the others have
+     * finished.
+     */
+    public void forEach(Stream<Path> folders, Consumer<Path> action) {
+        forEach("scan", folders, action);
+    }
+
+    /**
+     * Runs the action on every folder, as {@link #forEach(Stream, Consumer)}
+     * does, reporting the progress under the given name.
+     */
+    public void forEach(String name, Stream<Path> folders, Consumer<Path> action) {
+        scan(name, folders, (scan, folder) -> action.accept(folder));
+    }
+
+    /**
+     * Adds up a value computed for every folder, as
+     * {@link #forEach(Stream, Consumer)} does.
+     */
+    public long sum(Stream<Path> folders, ToLongFunction<Path> function) {
+        return sum("scan", folders, function);
+    }
+
+    /**
+     * Adds up a value computed for every folder, reporting the progress under
+     * the given name.
+     */
+    public long sum(String name, Stream<Path> folders, ToLongFunction<Path> function) {
+        LongAdder total = new LongAdder();
+        forEach(name, folders, folder -> total.add(function.applyAsLong(folder)));
+        return total.sum();
+    }
+
+    /**
+     * Lists the stored files of every folder in parallel and passes each
+     * folder's listing to the action, as {@link #forEach(Stream, Consumer)}
+     * does. A folder that cannot be listed fails the scan with an
+     * {@link UncheckedIOException} once the others have finished.
+     */
+    public void scanFiles(String name, Stream<Path> folders, Consumer<Listing> action) {
+        scan(name, folders, (scan, folder) -> {
+            Listing listing;
+            try {
+                listing = list(folder);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            scan.entries.add(listing.entries);
+            listedEntries.add(listing.entries);
+            action.accept(listing);
+        });
+    }
+
+    /**
+     * Lists the stored files of a folder: the regular files, with their
+     * attributes, leaving out internal names. Files deleted while the folder
+     * is listed are left out too.
+     */
+    public static Listing list(Path folder) throws IOException {
+        Listing listing = new Listing(folder);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file : files) {
+                listing.entries++;
+                String fileName = file.getFileName().toString();
+                if (FileStorageUtil.isInternalName(fileName)) {
+                    continue;
+                }
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                if (attributes.isRegularFile()) {
+                    listing.names.add(fileName);
+                    listing.attributes.add(attributes);
+                }
+            }
+        }
+        return listing;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Returns the progress of the scans running now.
+     */
+    public List<Progress> getRunningScans() {
+        List<Progress> progress = new ArrayList<>();
+        for (Scan scan : running) {
+            progress.add(scan.progress(false));
+        }
+        return progress;
+    }
+
+    /**
+     * Returns the outcome of the last scans that completed, most recent
+     * first.
+     */
+    public List<Progress> getCompletedScans() {
+        synchronized (completed) {
+            return new ArrayList<>(completed);
+        }
+    }
+
+    /**
+     * Returns the number of folders scanned since startup, by every scan.
+     */
+    public long getScannedFolders() {
+        return scannedFolders.sum();
+    }
+
+    /**
+     * Returns the number of directory entries listed since startup by
+     * {@link #scanFiles(String, Stream, Consumer)}.
+     */
+    public long getListedEntries() {
+        return listedEntries.sum();
+    }
+
+    @PreDestroy
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * Runs the action on every folder of a list, returning once all are done.
+     * Subclasses running the folders elsewhere override this.
+     */
+    protected void run(List<Path> folders, Consumer<Path> action) {
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        pool.invoke(new FolderTask(folders, 0, folders.size(), action, failure));
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private void scan(String name, Stream<Path> folders, BiConsumer<Scan, Path> action) {
+        List<Path> list = folders.collect(Collectors.toList());
+        Scan scan = new Scan(name, list.size());
+        running.add(scan);
+        try {
+            run(list, folder -> {
+                try {
+                    action.accept(scan, folder);
+                } finally {
+                    scan.folders.increment();
+                    scannedFolders.increment();
+                }
+            });
+        } finally {
+            running.remove(scan);
+            Progress progress = scan.progress(true);
+            synchronized (completed) {
+                completed.addFirst(progress);
+                if (completed.size() > COMPLETED_SCANS_KEPT) {
+                    completed.removeLast();
+                }
+            }
+            logger.debug("FolderScanner.scan(): {} scanned {} folders and {} entries in {} ms", name,
+                    progress.getScannedFolders(), progress.getEntries(), progress.getElapsedMillis());
+        }
+    }
+
+    private static ForkJoinWorkerThread newWorker(ForkJoinPool pool) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("folder-scan-" + thread.getPoolIndex());
+        return thread;
+    }
+
+    /**
+     * The stored files of a folder, with their attributes, in directory
+     * order.
+     */
+    public static final class Listing {
+        private final Path folder;
+        private final List<String> names = new ArrayList<>();
+        private final List<BasicFileAttributes> attributes = new ArrayList<>();
+        private long entries;
+
+        private Listing(Path folder) {
+            this.folder = folder;
+        }
+
+        public Path getFolder() {
+            return folder;
+        }
+
+        /**
+         * Returns the number of stored files.
+         */
+        public int size() {
+            return names.size();
+        }
+
+        public String getName(int index) {
+            return names.get(index);
+        }
+
+        public BasicFileAttributes getAttributes(int index) {
+            return attributes.get(index);
+        }
+
+        public List<String> getNames() {
+            return Collections.unmodifiableList(names);
+        }
+
+        /**
+         * Returns the number of directory entries listed, including internal
+         * names and entries that are not regular files.
+         */
+        public long getEntries() {
+            return entries;
+        }
+    }
+
+    /**
+     * The progress of a scan at one point in time.
+     */
+    public static final class Progress {
+        private final String name;
+        private final long folders;
+        private final long scannedFolders;
+        private final long entries;
+        private final long elapsedMillis;
+        private final boolean done;
+
+        private Progress(String name, long folders, long scannedFolders, long entries, long elapsedMillis,
+                boolean done) {
+            this.name = name;
+            this.folders = folders;
+            this.scannedFolders = scannedFolders;
+            this.entries = entries;
+            this.elapsedMillis = elapsedMillis;
+            this.done = done;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the number of folders the scan covers.
+         */
+        public long getFolders() {
+            return folders;
+        }
+
+        public long getScannedFolders() {
+            return scannedFolders;
+        }
+
+        /**
+         * Returns the directory entries listed so far, or 0 for scans that do
+         * not list the folders themselves.
+         */
+        public long getEntries() {
+            return entries;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        public double getFoldersPerSecond() {
+            return perSecond(scannedFolders);
+        }
+
+        public double getEntriesPerSecond() {
+            return perSecond(entries);
+        }
+
+        private double perSecond(long count) {
+            return elapsedMillis == 0 ? 0 : count * 1000.0 / elapsedMillis;
+        }
+    }
+
+    private static final class Scan {
+        private final String name;
+        private final long folderCount;
+        private final long started = System.nanoTime();
+        private final LongAdder folders = new LongAdder();
+        private final LongAdder entries = new LongAdder();
+
+        private Scan(String name, long folderCount) {
+            this.name = name;
+            this.folderCount = folderCount;
+        }
+
+        private Progress progress(boolean done) {
+            return new Progress(name, folderCount, folders.sum(), entries.sum(),
+                    (System.nanoTime() - started) / 1_000_000, done);
+        }
+    }
+
+    /**
+     * Splits a range of folders in halves until single folders are left, so
+     * idle workers steal the other halves. Exceptions of the action are kept
+     * rather than thrown, so every folder is visited before the scan fails.
+     */
+    private static final class FolderTask extends RecursiveAction {
+        private final List<Path> folders;
+        private final int from;
+        private final int to;
+        private final Consumer<Path> action;
+        private final AtomicReference<RuntimeException> failure;
+
+        private FolderTask(List<Path> folders, int from, int to, Consumer<Path> action,
+                AtomicReference<RuntimeException> failure) {
+            this.folders = folders;
+            this.from = from;
+            this.to = to;
+            this.action = action;
+            this.failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new FolderTask(folders, from, middle, action, failure),
+                        new FolderTask(folders, middle, to, action, failure));
+            } else if (to > from) {
+                try {
+                    action.accept(folders.get(from));
+                } catch (RuntimeException e) {
+                    if (!failure.compareAndSet(null, e)) {
+                        failure.get().addSuppressed(e);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.filestorage.util;
+
+/**
+ * Estimates how often each key was seen recently, in a fixed amount of
+ * memory: a count-min sketch of four 4-bit counters per key, as used by
+ * TinyLFU admission policies.
+ *
+ * Counters saturate at 15. Once as many keys as ten times the expected
+ * number of entries have been counted, every counter is halved, so the
+ * estimates follow changes in popularity instead of keeping old favourites
+ * forever. Estimates may be too high when keys collide, never too low
+ * (until halved).
+ *
+ * Not thread-safe: callers serialize access.
+ */
+public final class FrequencySketch {
+
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+            0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MAX_TABLE_SIZE = 1 << 24;
+
+    // Sixteen 4-bit counters per slot
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedEntries The number of keys worth tracking, typically the
+     *                        capacity of the cache using the sketch.
+     */
+    public FrequencySketch(int expectedEntries) {
+        if (expectedEntries <= 0) {
+            throw new IllegalArgumentException("Expected entries must be positive: " + expectedEntries);
+        }
+        int size = expectedEntries >= MAX_TABLE_SIZE ? MAX_TABLE_SIZE
+                : Integer.highestOneBit(Math.max(1, expectedEntries - 1) << 1);
+        this.table = new long[size];
+        this.tableMask = size - 1;
+        this.sampleSize = (int) Math.min(Integer.MAX_VALUE, 10L * expectedEntries);
+    }
+
+    /**
+     * Counts one more occurrence of a key.
+     */
+    public void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Returns the estimated number of recent occurrences of a key, at most 15.
+     */
+    public int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int count = (int) ((table[indexOf(hash, i)] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halves every counter, dropping the odd occurrences lost to rounding
+     * from the addition count.
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions = (additions >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    // String hashes of similar names differ in few bits, mix them before indexing
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,149 @@
+package com.filestorage.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip encoding of stored files: compressing uploads, estimating whether
+ * content is worth compressing, decompressing for clients that do not
+ * accept gzip, and negotiating {@code Accept-Encoding}.
+ */
+public final class GzipCodec {
+
+    public static final String ENCODING = "gzip";
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private GzipCodec() {
+    }
+
+    /**
+     * Wraps a stream so that what is written to it is stored gzip-compressed
+     * at the given level (1 fastest to 9 smallest). Closing it finishes the
+     * gzip member and closes {@code out}.
+     */
+    public static OutputStream compress(OutputStream out, int level) throws IOException {
+        return new GZIPOutputStream(out, STREAM_BUFFER_SIZE) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+
+    /**
+     * Returns the size of a sample once deflated at the given level, as a
+     * fraction of its size: close to or above 1 for content that is already
+     * compressed or random, low for text.
+     */
+    public static double ratio(byte[] sample, int length, int level) {
+        if (length == 0) {
+            return 1;
+        }
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] out = new byte[STREAM_BUFFER_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(out);
+            }
+            return (double) compressed / length;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns a stream of the content decompressed from a gzip stream.
+     * Closing it closes {@code compressed}.
+     */
+    public static InputStream decompress(InputStream compressed) throws IOException {
+        return new GZIPInputStream(compressed, STREAM_BUFFER_SIZE);
+    }
+
+    /**
+     * Returns a stream of the content decompressed from gzip bytes held in
+     * memory, from the position of {@code compressed} to its limit, leaving
+     * the buffer itself unchanged.
+     */
+    public static InputStream decompress(ByteBuffer compressed) throws IOException {
+        return decompress(new ByteBufferInputStream(compressed.duplicate()));
+    }
+
+    /**
+     * Returns whether an {@code Accept-Encoding} header value accepts gzip,
+     * explicitly or through {@code *}, with a non-zero quality.
+     */
+    public static boolean isAccepted(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        boolean accepted = false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            boolean gzip = name.equals(ENCODING) || name.equals("x-gzip");
+            if (!gzip && !name.equals("*")) {
+                continue;
+            }
+            boolean allowed = parts.length < 2 || quality(parts[1]) > 0;
+            if (gzip) {
+                // An explicit entry overrides the wildcard
+                return allowed;
+            }
+            accepted = allowed;
+        }
+        return accepted;
+    }
+
+    private static double quality(String parameter) {
+        String[] pair = parameter.split("=", 2);
+        if (pair.length < 2 || !pair[0].trim().equalsIgnoreCase("q")) {
+            return 1;
+        }
+        try {
+            return Double.parseDouble(pair[1].trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.filestorage.util;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Shards files by the SHA-256 of their name, the layout files have always
+ * been stored with.
+ *
+ * Each thread reuses its own digest and buffers, and names are encoded
+ * directly into the buffer, so hashing allocates nothing. Names with
+ * characters outside ASCII, which valid file names never have, are encoded
+ * with the platform charset as before.
+ */
+public final class Sha256ShardingStrategy implements ShardingStrategy {
+
+    public static final String NAME = "sha256";
+    public static final Sha256ShardingStrategy INSTANCE = new Sha256ShardingStrategy();
+
+    private static final int NAME_BUFFER_SIZE = 256;
+    private static final ThreadLocal<State> STATE = ThreadLocal.withInitial(State::new);
+
+    private Sha256ShardingStrategy() {
+    }
+
+    @Override
+    public long hash(String fileName) {
+        State state = STATE.get();
+        if (!encodeAscii(fileName, state.name)) {
+            state.digest.update(fileName.getBytes());
+        } else {
+            state.digest.update(state.name, 0, fileName.length());
+        }
+        try {
+            state.digest.digest(state.hash, 0, state.hash.length);
+        } catch (DigestException e) {
+            throw new IllegalStateException("Error hashing file name", e);
+        }
+
+        long hash = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            hash = (hash << 8) | (state.hash[i] & 0xff);
+        }
+        return hash;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Writes the name into the buffer one byte per character, returning false
+     * if it is too long or not ASCII.
+     */
+    private static boolean encodeAscii(String fileName, byte[] buffer) {
+        int length = fileName.length();
+        if (length > buffer.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = fileName.charAt(i);
+            if (c >= 0x80) {
+                return false;
+            }
+            buffer[i] = (byte) c;
+        }
+        return true;
+    }
+
+    private static final class State {
+        private final MessageDigest digest;
+        private final byte[] name = new byte[NAME_BUFFER_SIZE];
+        private final byte[] hash;
+
+        private State() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("Error hashing file name", e);
+            }
+            hash = new byte[digest.getDigestLength()];
+        }
+    }
+}
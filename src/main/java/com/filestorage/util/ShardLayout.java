@@ -0,0 +1,255 @@
+package com.filestorage.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * Layout of the shard folders: how many levels of folders a stored file is
+ * nested in, how many folders each level fans out to and the hash placing
+ * files in them.
+ *
+ * Each level is named by the next hex characters of the hash of the file
+ * name, so the fan-out must be a power of 16. The original layout is one
+ * level of 256 folders by SHA-256 ({@code ab/file.txt}); two levels of 4096
+ * would store the same file as {@code abc/def/file.txt}.
+ */
+public final class ShardLayout {
+
+    /**
+     * The layout used before sharding became configurable.
+     */
+    public static final ShardLayout LEGACY = new ShardLayout(1, 256, Sha256ShardingStrategy.INSTANCE);
+
+    private static final int MAX_LEVELS = 4;
+    private static final int MAX_FAN_OUT = 65536;
+    private static final String LEVELS_KEY = "levels";
+    private static final String FAN_OUT_KEY = "fan-out";
+    private static final String HASH_KEY = "hash";
+
+    private final int levels;
+    private final int fanOut;
+    private final int width;
+    private final ShardingStrategy strategy;
+    // Folder names by index, so resolving a path formats no hex
+    private final String[] folderNames;
+
+    private ShardLayout(int levels, int fanOut, ShardingStrategy strategy) {
+        this.levels = levels;
+        this.fanOut = fanOut;
+        this.width = Integer.numberOfTrailingZeros(fanOut) / 4;
+        this.strategy = strategy;
+        this.folderNames = new String[fanOut];
+        for (int i = 0; i < fanOut; i++) {
+            folderNames[i] = String.format("%0" + width + "x", i);
+        }
+    }
+
+    /**
+     * Returns the SHA-256 layout with the given number of levels and folders
+     * per level.
+     *
+     * @param levels The folder depth, between 1 and 4.
+     * @param fanOut The folders per level: 16, 256, 4096 or 65536.
+     */
+    public static ShardLayout of(int levels, int fanOut) {
+        return of(levels, fanOut, Sha256ShardingStrategy.INSTANCE);
+    }
+
+    /**
+     * Returns the layout with the given number of levels, folders per level
+     * and hash.
+     *
+     * @param levels   The folder depth, between 1 and 4.
+     * @param fanOut   The folders per level: 16, 256, 4096 or 65536.
+     * @param strategy The hash placing files in the folders.
+     */
+    public static ShardLayout of(int levels, int fanOut, ShardingStrategy strategy) {
+        if (levels < 1 || levels > MAX_LEVELS) {
+            throw new IllegalArgumentException("Shard levels must be between 1 and " + MAX_LEVELS + ": " + levels);
+        }
+        if (fanOut < 16 || fanOut > MAX_FAN_OUT || Integer.bitCount(fanOut) != 1
+                || Integer.numberOfTrailingZeros(fanOut) % 4 != 0) {
+            throw new IllegalArgumentException("Shard fan-out must be 16, 256, 4096 or 65536: " + fanOut);
+        }
+        return new ShardLayout(levels, fanOut, strategy);
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    public int getFanOut() {
+        return fanOut;
+    }
+
+    public ShardingStrategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Returns the shard of a file as its folder path relative to the storage
+     * directory, with {@code /} between levels.
+     *
+     * @param fileName The file name.
+     */
+    public String shardOf(String fileName) {
+        long hash = strategy.hash(fileName);
+        if (levels == 1) {
+            return folderNames[folderIndex(hash, 0)];
+        }
+        StringBuilder shard = new StringBuilder(levels * (width + 1));
+        for (int level = 0; level < levels; level++) {
+            if (level > 0) {
+                shard.append('/');
+            }
+            shard.append(folderNames[folderIndex(hash, level)]);
+        }
+        return shard.toString();
+    }
+
+    /**
+     * Resolves the path of a file in this layout.
+     *
+     * @param root     The storage directory.
+     * @param fileName The file name.
+     */
+    public Path resolve(Path root, String fileName) {
+        long hash = strategy.hash(fileName);
+        Path folder = root;
+        for (int level = 0; level < levels; level++) {
+            folder = folder.resolve(folderNames[folderIndex(hash, level)]);
+        }
+        return folder.resolve(fileName);
+    }
+
+    /**
+     * Returns the folder of a level: the level's hex digits of the hash.
+     */
+    private int folderIndex(long hash, int level) {
+        int bits = 4 * width;
+        return (int) (hash >>> (Long.SIZE - (level + 1) * bits)) & (fanOut - 1);
+    }
+
+    /**
+     * Returns whether a name found in the storage tree names a folder of this
+     * layout: the expected number of lower case hex characters.
+     */
+    public boolean isFolderName(String name) {
+        if (name.length() != width) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.digit(name.charAt(i), 16) < 0 || Character.isUpperCase(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the shard folders holding the stored files, sorted by path. The
+     * tree is listed one folder at a time as the stream is consumed, so even
+     * millions of folders are enumerated with bounded memory.
+     *
+     * @param root The storage directory.
+     * @throws UncheckedIOException if a folder cannot be listed.
+     */
+    public Stream<Path> folders(Path root) {
+        if (!Files.isDirectory(root)) {
+            return Stream.empty();
+        }
+        return folders(root, 0);
+    }
+
+    private Stream<Path> folders(Path parent, int level) {
+        Stream<Path> children = listFolders(parent).stream();
+        return level + 1 == levels ? children : children.flatMap(child -> folders(child, level + 1));
+    }
+
+    private List<Path> listFolders(Path parent) {
+        List<Path> children = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(parent,
+                entry -> isFolderName(entry.getFileName().toString()) && Files.isDirectory(entry))) {
+            entries.forEach(children::add);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        children.sort(Comparator.comparing(Path::toString));
+        return children;
+    }
+
+    /**
+     * Reads a layout saved with {@link #save(Path)}, or returns null if the
+     * file does not exist.
+     */
+    public static ShardLayout load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        try {
+            return of(Integer.parseInt(properties.getProperty(LEVELS_KEY, "")),
+                    Integer.parseInt(properties.getProperty(FAN_OUT_KEY, "")),
+                    ShardingStrategy.forName(properties.getProperty(HASH_KEY, Sha256ShardingStrategy.NAME)));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid shard layout in " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Records this layout in the given file, replacing it atomically.
+     */
+    public void save(Path file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(LEVELS_KEY, String.valueOf(levels));
+        properties.setProperty(FAN_OUT_KEY, String.valueOf(fanOut));
+        properties.setProperty(HASH_KEY, strategy.getName());
+        Path tempFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tempFile)) {
+                properties.store(out, "Shard layout of the stored files");
+            }
+            Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ShardLayout)) {
+            return false;
+        }
+        ShardLayout other = (ShardLayout) o;
+        return levels == other.levels && fanOut == other.fanOut
+                && strategy.getName().equals(other.strategy.getName());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(levels, fanOut, strategy.getName());
+    }
+
+    @Override
+    public String toString() {
+        return levels + "x" + fanOut + " " + strategy.getName();
+    }
+}
@@ -0,0 +1,41 @@
+package com.filestorage.util;
+
+/**
+ * Hash function placing stored files in the shard folders.
+ *
+ * Only the leading bits of the hash are used: each level of a
+ * {@link ShardLayout} takes the next hex digits, most significant first, so a
+ * strategy returns the first 64 bits of its hash. Implementations are called
+ * for every request and must be thread safe and avoid allocating.
+ */
+public interface ShardingStrategy {
+
+    /**
+     * Returns the first 64 bits of the hash of a file name, big-endian.
+     *
+     * @param fileName The file name.
+     */
+    long hash(String fileName);
+
+    /**
+     * Returns the name the strategy is configured and recorded with.
+     */
+    String getName();
+
+    /**
+     * Returns the strategy of the given name: {@code sha256}, the original
+     * layout, or {@code fnv1a}, a faster non-cryptographic hash.
+     *
+     * @throws IllegalArgumentException for unknown names.
+     */
+    static ShardingStrategy forName(String name) {
+        switch (name) {
+            case Sha256ShardingStrategy.NAME:
+                return Sha256ShardingStrategy.INSTANCE;
+            case Fnv1aShardingStrategy.NAME:
+                return Fnv1aShardingStrategy.INSTANCE;
+            default:
+                throw new IllegalArgumentException("Unknown sharding hash: " + name);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.filestorage.util;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks shared out among file names by hash, so that changes
+ * to the same name are serialized while changes to different names almost
+ * always proceed in parallel.
+ *
+ * Two names share a lock only when their hashes fall in the same stripe,
+ * which costs some unneeded waiting but never correctness. The locks are
+ * reentrant and must be released by the thread holding them.
+ */
+public final class StripedLocks {
+
+    private final Lock[] locks;
+
+    /**
+     * @param stripes The number of locks, a power of two.
+     */
+    public StripedLocks(int stripes) {
+        if (stripes <= 0 || Integer.bitCount(stripes) != 1) {
+            throw new IllegalArgumentException("Lock stripes must be a power of two: " + stripes);
+        }
+        this.locks = new Lock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Returns the lock guarding a file name.
+     */
+    public Lock lockFor(String fileName) {
+        int hash = fileName.hashCode();
+        // String hashes vary little in their high bits for similar names, fold them in
+        hash ^= hash >>> 16;
+        return locks[hash & (locks.length - 1)];
+    }
+
+    public int getStripes() {
+        return locks.length;
+    }
+}
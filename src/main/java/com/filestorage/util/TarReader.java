@@ -0,0 +1,290 @@
+package com.filestorage.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the regular files of a tar stream one after the other, without
+ * buffering them: each entry's content is read straight from the stream.
+ *
+ * POSIX ustar archives are supported, with the GNU long name and pax
+ * {@code path} and {@code size} extensions. Directories, links and other
+ * special entries are skipped.
+ */
+public final class TarReader {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private final InputStream in;
+    private final byte[] header = new byte[BLOCK_SIZE];
+    private EntryStream current;
+
+    public TarReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * A regular file of the archive. Its content is only readable until the
+     * next call to {@link TarReader#next()}.
+     */
+    public static final class Entry {
+
+        private final String name;
+        private final long size;
+        private final InputStream content;
+
+        private Entry(String name, long size, InputStream content) {
+            this.name = name;
+            this.size = size;
+            this.content = content;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public InputStream getContent() {
+            return content;
+        }
+    }
+
+    /**
+     * Skips what is left of the current entry and returns the next regular
+     * file, or null at the end of the archive.
+     */
+    public Entry next() throws IOException {
+        String longName = null;
+        long paxSize = -1;
+        while (true) {
+            skipCurrent();
+            if (!readBlock(header, true) || isZeroBlock(header)) {
+                return null;
+            }
+            verifyChecksum();
+
+            char type = (char) header[156];
+            long size = parseSize();
+            switch (type) {
+                case 'L':
+                    current = new EntryStream(size);
+                    longName = trimNul(readString(current, size));
+                    break;
+                case 'x':
+                    current = new EntryStream(size);
+                    String pax = readString(current, size);
+                    String path = paxValue(pax, "path");
+                    String paxSizeValue = paxValue(pax, "size");
+                    longName = path != null ? path : longName;
+                    paxSize = paxSizeValue != null ? parsePaxSize(paxSizeValue) : -1;
+                    break;
+                case '0':
+                case '7':
+                case '\0':
+                    long fileSize = paxSize >= 0 ? paxSize : size;
+                    current = new EntryStream(fileSize);
+                    return new Entry(longName != null ? longName : parseName(), fileSize, current);
+                default:
+                    // Directories, links, devices and global pax headers
+                    current = new EntryStream(size);
+                    longName = null;
+                    paxSize = -1;
+            }
+        }
+    }
+
+    private void skipCurrent() throws IOException {
+        if (current == null) {
+            return;
+        }
+        long remaining = current.remaining + padding(current.size);
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Tar stream ended inside an entry");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+        current = null;
+    }
+
+    private boolean readBlock(byte[] block, boolean endAllowed) throws IOException {
+        int read = 0;
+        while (read < block.length) {
+            int n = in.read(block, read, block.length - read);
+            if (n < 0) {
+                if (read == 0 && endAllowed) {
+                    return false; // Archives missing their end blocks are common enough
+                }
+                throw new EOFException("Tar stream ended inside a header");
+            }
+            read += n;
+        }
+        return true;
+    }
+
+    private void verifyChecksum() throws IOException {
+        long expected = parseOctal(148, 8);
+        long sum = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            sum += (i >= 148 && i < 156) ? ' ' : (header[i] & 0xff);
+        }
+        if (sum != expected) {
+            throw new IOException("Invalid tar header checksum");
+        }
+    }
+
+    private String parseName() {
+        String name = trimNul(new String(header, 0, 100, StandardCharsets.UTF_8));
+        boolean ustar = header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a'
+                && header[261] == 'r';
+        if (ustar && header[345] != 0) {
+            name = trimNul(new String(header, 345, 155, StandardCharsets.UTF_8)) + "/" + name;
+        }
+        return name;
+    }
+
+    private long parseSize() throws IOException {
+        if ((header[124] & 0x80) != 0) {
+            // Base-256 encoding of sizes over 8 GB
+            long size = 0;
+            for (int i = 125; i < 136; i++) {
+                size = (size << 8) | (header[i] & 0xff);
+            }
+            return size;
+        }
+        return parseOctal(124, 12);
+    }
+
+    private long parseOctal(int offset, int length) throws IOException {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = header[i];
+            if (b == 0 || b == ' ') {
+                if (value > 0) {
+                    break;
+                }
+                continue;
+            }
+            if (b < '0' || b > '7') {
+                throw new IOException("Invalid tar header");
+            }
+            value = (value << 3) + (b - '0');
+        }
+        return value;
+    }
+
+    private static long parsePaxSize(String value) throws IOException {
+        try {
+            long size = Long.parseLong(value);
+            if (size >= 0) {
+                return size;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below like any other malformed header
+        }
+        throw new IOException("Invalid tar header");
+    }
+
+    private static String readString(InputStream content, long size) throws IOException {
+        if (size > 1024 * 1024) {
+            throw new IOException("Tar extended header too large");
+        }
+        byte[] bytes = new byte[(int) size];
+        int read = 0;
+        while (read < bytes.length) {
+            int n = content.read(bytes, read, bytes.length - read);
+            if (n < 0) {
+                throw new EOFException("Tar stream ended inside an entry");
+            }
+            read += n;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns a value of pax extended header records, each of the form
+     * {@code "<length> <key>=<value>\n"}.
+     */
+    private static String paxValue(String records, String key) {
+        String value = null;
+        for (String record : records.split("\n")) {
+            int space = record.indexOf(' ');
+            int equals = record.indexOf('=', space + 1);
+            if (space > 0 && equals > space && record.substring(space + 1, equals).equals(key)) {
+                value = record.substring(equals + 1);
+            }
+        }
+        return value;
+    }
+
+    private static String trimNul(String value) {
+        int end = value.indexOf('\0');
+        return end >= 0 ? value.substring(0, end) : value;
+    }
+
+    private static long padding(long size) {
+        long partial = size % BLOCK_SIZE;
+        return partial == 0 ? 0 : BLOCK_SIZE - partial;
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The content of the current entry, ending at its size.
+     */
+    private final class EntryStream extends InputStream {
+
+        private final long size;
+        private long remaining;
+
+        private EntryStream(long size) {
+            this.size = size;
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (current != this || remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) {
+                throw new EOFException("Tar stream ended inside an entry");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return current != this ? 0 : (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public void close() {
+            // The archive stream stays open for the next entries
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.filestorage.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes regular files as a POSIX ustar stream, one entry after the other,
+ * without buffering their content: each entry is announced with its size and
+ * its bytes follow straight away.
+ *
+ * Names longer than the 100 bytes of the ustar header and sizes of 8 GB or
+ * more are written as pax extended headers, which {@link TarReader} and
+ * common tar tools read.
+ */
+public final class TarWriter {
+
+    private static final int BLOCK_SIZE = 512;
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+    private final OutputStream out;
+    private final byte[] header = new byte[BLOCK_SIZE];
+    private long remaining = -1;
+    private long entrySize;
+
+    public TarWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Starts a regular file, whose exact content must then be passed to
+     * {@link #write(byte[], int, int)} before {@link #closeEntry()}.
+     *
+     * @param name         The path of the file in the archive.
+     * @param size         The size of the content in bytes.
+     * @param lastModified The time of the last write, in milliseconds since
+     *                     the epoch.
+     */
+    public void putEntry(String name, long size, long lastModified) throws IOException {
+        if (remaining >= 0) {
+            throw new IllegalStateException("Previous tar entry not closed");
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 100 || size > MAX_OCTAL_SIZE) {
+            writePaxHeader(name, nameBytes.length > 100, size);
+        }
+        writeHeader(nameBytes, '0', size > MAX_OCTAL_SIZE ? 0 : size, lastModified);
+        remaining = size;
+        entrySize = size;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > remaining) {
+            throw new IOException("Tar entry content longer than its size");
+        }
+        out.write(b, off, len);
+        remaining -= len;
+    }
+
+    /**
+     * Ends the current file, checking that all of its content was written.
+     */
+    public void closeEntry() throws IOException {
+        if (remaining != 0) {
+            throw new IOException("Tar entry content shorter than its size by " + remaining + " bytes");
+        }
+        writePadding(entrySize);
+        remaining = -1;
+    }
+
+    /**
+     * Writes the end of the archive. The underlying stream is left open.
+     */
+    public void finish() throws IOException {
+        if (remaining >= 0) {
+            throw new IllegalStateException("Last tar entry not closed");
+        }
+        out.write(new byte[2 * BLOCK_SIZE]);
+    }
+
+    private void writePaxHeader(String name, boolean longName, long size) throws IOException {
+        StringBuilder records = new StringBuilder();
+        if (longName) {
+            records.append(paxRecord("path", name));
+        }
+        if (size > MAX_OCTAL_SIZE) {
+            records.append(paxRecord("size", Long.toString(size)));
+        }
+        byte[] content = records.toString().getBytes(StandardCharsets.UTF_8);
+        writeHeader("././@PaxHeader".getBytes(StandardCharsets.US_ASCII), 'x', content.length, 0);
+        out.write(content);
+        writePadding(content.length);
+    }
+
+    /**
+     * Formats a pax record, {@code "<length> <key>=<value>\n"}, whose length
+     * counts its own digits.
+     */
+    private static String paxRecord(String key, String value) {
+        int length = key.length() + value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int digits = Integer.toString(length).length();
+        if (Integer.toString(length + digits).length() > digits) {
+            digits++;
+        }
+        return (length + digits) + " " + key + "=" + value + "\n";
+    }
+
+    private void writeHeader(byte[] name, char type, long size, long lastModified) throws IOException {
+        Arrays.fill(header, (byte) 0);
+        System.arraycopy(name, 0, header, 0, Math.min(name.length, 100));
+        putOctal(100, 8, 0644);
+        putOctal(108, 8, 0);
+        putOctal(116, 8, 0);
+        putOctal(124, 12, size);
+        putOctal(136, 12, lastModified / 1000);
+        header[156] = (byte) type;
+        System.arraycopy(("ustar\0" + "00").getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+        long sum = 8 * ' ';
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            sum += header[i] & 0xff;
+        }
+        putOctal(148, 7, sum);
+        out.write(header);
+    }
+
+    private void putOctal(int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        for (int i = 0; i < length - 1; i++) {
+            int digit = octal.length() - (length - 1) + i;
+            header[offset + i] = (byte) (digit >= 0 ? octal.charAt(digit) : '0');
+        }
+    }
+
+    private void writePadding(long size) throws IOException {
+        long partial = size % BLOCK_SIZE;
+        if (partial != 0) {
+            out.write(new byte[(int) (BLOCK_SIZE - partial)]);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.filestorage.config;
+
+import com.filestorage.util.FolderScanner;
+import com.filestorage.util.VirtualThreadFolderScanner;
+
+import org.apache.coyote.ProtocolHandler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the blocking work of the service on virtual threads: Tomcat request
+ * handling, the asynchronous MVC responses (streamed searches and archives)
+ * and the parallel scans of the shard folders.
+ *
+ * Only compiled by the {@code virtual-threads} build profile, which needs
+ * JDK 21. Tomcat keeps accepting and polling connections on its own platform
+ * threads and hands each request to a new virtual thread, so
+ * {@code server.tomcat.threads.max} no longer applies and concurrent requests
+ * are bounded by {@code server.tomcat.max-connections} instead.
+ */
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnProperty(name = "file.storage.virtual-threads.enabled", havingValue = "true", matchIfMissing = true)
+public class VirtualThreadConfiguration {
+
+    private static final Logger logger = LogManager.getLogger(VirtualThreadConfiguration.class);
+
+    /**
+     * Starts a named virtual thread per task, so log lines still tell
+     * requests apart.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService virtualThreadExecutor() {
+        logger.info("VirtualThreadConfiguration.virtualThreadExecutor(): Requests run on virtual threads");
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("http-vt-", 0).factory());
+    }
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<ProtocolHandler> virtualThreadProtocolHandler(
+            ExecutorService virtualThreadExecutor) {
+        return protocolHandler -> protocolHandler.setExecutor(virtualThreadExecutor);
+    }
+
+    @Bean
+    public WebMvcConfigurer virtualThreadAsyncSupport(ExecutorService virtualThreadExecutor) {
+        return new WebMvcConfigurer() {
+            @Override
+            public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+                configurer.setTaskExecutor(new TaskExecutorAdapter(virtualThreadExecutor));
+            }
+        };
+    }
+
+    @Bean
+    @Primary
+    public FolderScanner virtualThreadFolderScanner(
+            @Value("${file.storage.virtual-threads.scan-parallelism:64}") int parallelism) {
+        return new VirtualThreadFolderScanner(parallelism);
+    }
+}
@@ -0,0 +1,71 @@
+package com.filestorage.util;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+
+/**
+ * Lists each shard folder on its own virtual thread, so a scan keeps many
+ * directory reads in flight instead of one per CPU. A semaphore shared by all
+ * scans bounds the folders read at once, which keeps the open directory
+ * handles and the carrier threads the JDK adds for blocking file system calls
+ * in check.
+ */
+public class VirtualThreadFolderScanner extends FolderScanner {
+
+    private final ThreadFactory threadFactory = Thread.ofVirtual().name("folder-scan-", 0).factory();
+    private final Semaphore permits;
+
+    /**
+     * @param parallelism The most folders read at once, over all scans.
+     */
+    public VirtualThreadFolderScanner(int parallelism) {
+        // Reported as the parallelism; the fork-join pool of the superclass never starts a thread
+        super(parallelism);
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Scan parallelism must be positive: " + parallelism);
+        }
+        this.permits = new Semaphore(parallelism);
+    }
+
+    @Override
+    protected void run(List<Path> folders, Consumer<Path> action) {
+        List<Future<?>> tasks = new ArrayList<>();
+        // Closing the executor waits for every folder to be done
+        try (ExecutorService executor = Executors.newThreadPerTaskExecutor(threadFactory)) {
+            folders.forEach(folder -> {
+                permits.acquireUninterruptibly();
+                try {
+                    tasks.add(executor.submit(() -> {
+                        try {
+                            action.accept(folder);
+                        } finally {
+                            permits.release();
+                        }
+                    }));
+                } catch (RuntimeException e) {
+                    permits.release();
+                    throw e;
+                }
+            });
+        }
+        for (Future<?> task : tasks) {
+            if (task.state() == Future.State.FAILED) {
+                Throwable error = task.exceptionNow();
+                if (error instanceof RuntimeException runtimeException) {
+                    throw runtimeException;
+                }
+                if (error instanceof Error fatal) {
+                    throw fatal;
+                }
+                throw new IllegalStateException("Folder scan failed", error);
+            }
+        }
+    }
+}
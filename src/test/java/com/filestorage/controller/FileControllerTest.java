@@ -1,10 +1,16 @@
 package com.filestorage.controller;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 import org.json.JSONObject;
 import org.junit.Before;
@@ -22,25 +28,41 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import com.filestorage.dto.BatchFileResult;
 import com.filestorage.dto.FileDto;
 import com.filestorage.model.BaseResponseMetadata;
 import com.filestorage.model.GetFileResponse;
+import com.filestorage.model.Metadata;
+import com.filestorage.service.ArchiveService;
+import com.filestorage.service.BatchUploadService;
+import com.filestorage.service.BulkDeleteJob;
+import com.filestorage.service.BulkDeleteService;
 import com.filestorage.service.FileStorageService;
+import com.filestorage.service.StorageMetrics;
+import com.filestorage.service.StoredFile;
+import com.filestorage.util.FileNameMatcher;
+import com.filestorage.util.GzipCodec;
 
 @WebMvcTest(FileController.class)
 public class FileControllerTest {
@@ -48,6 +70,18 @@ public class FileControllerTest {
     @Mock
     private FileStorageService fileStorageService;
 
+    @Mock
+    private StorageMetrics storageMetrics;
+
+    @Mock
+    private BatchUploadService batchUploadService;
+
+    @Mock
+    private BulkDeleteService bulkDeleteService;
+
+    @Mock
+    private ArchiveService archiveService;
+
     @Autowired
     private MockMvc mockMvc;
 
@@ -60,6 +94,10 @@ public class FileControllerTest {
         mockMvc = MockMvcBuilders.standaloneSetup(fileController).build();
     }
 
+    private static StoredFile storedFile(Path filePath) throws Exception {
+        return new StoredFile(filePath, 0, Files.size(filePath), Files.getLastModifiedTime(filePath).toMillis());
+    }
+
     @Test
     public void testUploadFile_Success() throws Exception {
         /**
@@ -108,6 +146,68 @@ public class FileControllerTest {
         assertTrue(response.contains("File name is empty"));
     }
 
+    @Test
+    public void testUploadFiles_ReturnsOneResultPerFile() throws Exception {
+        // GIVEN: Two files, one of which already exists
+        MockMultipartFile first = new MockMultipartFile("files", "a.txt", "text/plain", "A".getBytes());
+        MockMultipartFile second = new MockMultipartFile("files", "b.txt", "text/plain", "B".getBytes());
+        when(batchUploadService.uploadFiles(anyList(), eq(false))).thenReturn(Arrays.asList(
+                new BatchFileResult("a.txt", BatchFileResult.CREATED, null),
+                new BatchFileResult("b.txt", BatchFileResult.EXISTS, null)));
+
+        // WHEN: They are uploaded in one batch
+        MvcResult result = mockMvc.perform(multipart("/files/batch").file(first).file(second))
+                .andExpect(status().isOk())
+                .andReturn();
+
+        // THEN: Each file has its own result
+        String response = result.getResponse().getContentAsString();
+        assertEquals("created", new JSONObject(response).getJSONArray("data").getJSONObject(0).getString("status"));
+        assertEquals("exists", new JSONObject(response).getJSONArray("data").getJSONObject(1).getString("status"));
+    }
+
+    @Test
+    public void testUploadTar_StreamsRequestBody() throws Exception {
+        // GIVEN: A tar body to be stored with overwrite
+        when(batchUploadService.uploadTar(any(InputStream.class), eq(true))).thenReturn(Collections.singletonList(
+                new BatchFileResult("a.txt", BatchFileResult.STORED, null)));
+
+        // WHEN: It is posted as application/x-tar
+        mockMvc.perform(post("/files/batch").param("overwrite", "true")
+                .contentType("application/x-tar").content(new byte[1024]))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.data[0].fileName").value("a.txt"))
+                .andExpect(jsonPath("$.data[0].status").value("stored"));
+    }
+
+    @Test
+    public void testBulkDelete_StartsJob() throws Exception {
+        // GIVEN: A bulk delete by regex
+        when(bulkDeleteService.deleteMatching("users_.*")).thenReturn(new BulkDeleteJob("job-1", "users_.*", -1));
+
+        // WHEN: It is requested
+        mockMvc.perform(post("/files/bulk-delete").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"regex\":\"users_.*\"}"))
+                // THEN: The job is accepted and returned to be polled
+                .andExpect(status().isAccepted())
+                .andExpect(jsonPath("$.data.id").value("job-1"))
+                .andExpect(jsonPath("$.data.status").value("running"));
+    }
+
+    @Test
+    public void testBulkDelete_RegexAndNamesRejected() throws Exception {
+        // GIVEN: A request with both a regex and names
+        String body = "{\"regex\":\"users_.*\",\"fileNames\":[\"a.txt\"]}";
+
+        // WHEN / THEN: It is rejected without starting a job
+        try {
+            mockMvc.perform(post("/files/bulk-delete").contentType(MediaType.APPLICATION_JSON).content(body));
+        } catch (Exception e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        verifyNoInteractions(bulkDeleteService);
+    }
+
     @Test
     public void testUpdateFile_Success() throws Exception {
         // GIVE: A file to upload
@@ -154,6 +254,41 @@ public class FileControllerTest {
         assertTrue(response.isEmpty());
     }
 
+    @Test
+    public void testPutFile_StreamsRawBody() throws Exception {
+        // GIVEN: A raw body larger than the multipart limit
+        byte[] content = new byte[11 * 1024 * 1024];
+        when(fileStorageService.storeFile(eq("large.bin"), any(InputStream.class), eq((long) content.length)))
+                .thenAnswer(invocation -> {
+                    InputStream in = invocation.getArgument(1);
+                    long read = 0;
+                    while (in.read() != -1) {
+                        read++;
+                    }
+                    return "data-storage/ab/large.bin:" + read;
+                });
+
+        // WHEN: The file is uploaded with PUT
+        mockMvc.perform(put("/files/large.bin")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .content(content))
+
+                // THEN: The whole body reaches the service as a stream
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.data").value("data-storage/ab/large.bin:" + content.length));
+    }
+
+    @Test
+    public void testPutFile_RequiresOctetStream() throws Exception {
+        // GIVEN / WHEN: A PUT with a form content type
+        mockMvc.perform(put("/files/example.txt")
+                .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+                .content("a=b"))
+
+                // THEN: The request is rejected without reaching the service
+                .andExpect(status().isUnsupportedMediaType());
+    }
+
     @Test
     public void testGetFile_Success() throws Exception {
         /**
@@ -163,7 +298,7 @@ public class FileControllerTest {
         Path filePath = Files.createTempFile("example", ".txt");
         Files.write(filePath, "Hello World".getBytes());
 
-        when(fileStorageService.getFile(fileName)).thenReturn(filePath);
+        when(fileStorageService.getDownloadFile(fileName)).thenReturn(storedFile(filePath));
 
         /**
          * WHEN: Get file request is made
@@ -183,6 +318,186 @@ public class FileControllerTest {
         Files.delete(filePath);
     }
 
+    @Test
+    public void testGetFile_SingleRange() throws Exception {
+        // GIVEN: A stored file
+        Path filePath = Files.createTempFile("example", ".txt");
+        Files.write(filePath, "Hello World".getBytes());
+        when(fileStorageService.getDownloadFile("example.txt")).thenReturn(storedFile(filePath));
+
+        // WHEN: The end of the file is requested
+        MvcResult result = mockMvc.perform(get("/files/download/example.txt").header(HttpHeaders.RANGE, "bytes=6-"))
+
+                // THEN: Only the requested bytes are returned as partial content
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.ACCEPT_RANGES, "bytes"))
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 6-10/11"))
+                .andReturn();
+        assertEquals("World", result.getResponse().getContentAsString());
+
+        Files.delete(filePath);
+    }
+
+    @Test
+    public void testGetFile_RegionOfSegment() throws Exception {
+        // GIVEN: A small file packed in the middle of a segment
+        Path segment = Files.createTempFile("segment", ".seg");
+        Files.write(segment, "xxHello Worldyy".getBytes());
+        when(fileStorageService.getDownloadFile("example.txt")).thenReturn(new StoredFile(segment, 2, 11, 0));
+
+        // WHEN: A range of the file is requested
+        MvcResult result = mockMvc.perform(get("/files/download/example.txt").header(HttpHeaders.RANGE, "bytes=6-"))
+
+                // THEN: The range is relative to the file, not to the segment
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 6-10/11"))
+                .andReturn();
+        assertEquals("World", result.getResponse().getContentAsString());
+
+        Files.delete(segment);
+    }
+
+    @Test
+    public void testGetFile_FromReadCache() throws Exception {
+        // GIVEN: A hot file held in memory by the read cache
+        ByteBuffer content = ByteBuffer.allocateDirect(11);
+        content.put("Hello World".getBytes()).flip();
+        when(fileStorageService.getDownloadFile("example.txt")).thenReturn(new StoredFile(content, 0));
+
+        // WHEN: The whole file and a range of it are requested
+        MvcResult full = mockMvc.perform(get("/files/download/example.txt"))
+                .andExpect(status().isOk())
+                .andReturn();
+        MvcResult range = mockMvc.perform(get("/files/download/example.txt").header(HttpHeaders.RANGE, "bytes=6-"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 6-10/11"))
+                .andReturn();
+
+        // THEN: Both are served from the buffer, which is left as it was for the next request
+        assertEquals("Hello World", full.getResponse().getContentAsString());
+        assertEquals("World", range.getResponse().getContentAsString());
+    }
+
+    @Test
+    public void testGetFile_NotModified() throws Exception {
+        // GIVEN: A stored file with an entity tag
+        Path filePath = Files.createTempFile("example", ".txt");
+        Files.write(filePath, "Hello World".getBytes());
+        when(fileStorageService.getDownloadFile("example.txt"))
+                .thenReturn(new StoredFile(filePath, 0, 11, 1_000_000_000_000L, "abc123"));
+
+        // WHEN: A client revalidates its copy, then asks again with a stale tag
+        MvcResult notModified = mockMvc.perform(get("/files/download/example.txt")
+                .header(HttpHeaders.IF_NONE_MATCH, "\"abc123\""))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"abc123\""))
+                .andReturn();
+        mockMvc.perform(get("/files/download/example.txt").header(HttpHeaders.IF_NONE_MATCH, "\"old\""))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"abc123\""));
+
+        // THEN: The unchanged copy is confirmed without a body, the stale one replaced
+        assertEquals(0, notModified.getResponse().getContentAsByteArray().length);
+
+        Files.delete(filePath);
+    }
+
+    @Test
+    public void testGetFile_IfRangeEtag() throws Exception {
+        // GIVEN: A stored file with an entity tag
+        Path filePath = Files.createTempFile("example", ".txt");
+        Files.write(filePath, "Hello World".getBytes());
+        when(fileStorageService.getDownloadFile("example.txt"))
+                .thenReturn(new StoredFile(filePath, 0, 11, 0, "abc123"));
+
+        // WHEN: A download is resumed with the current tag, then with an outdated one
+        MvcResult resumed = mockMvc.perform(get("/files/download/example.txt")
+                .header(HttpHeaders.RANGE, "bytes=6-").header(HttpHeaders.IF_RANGE, "\"abc123\""))
+                .andExpect(status().isPartialContent())
+                .andReturn();
+        MvcResult restarted = mockMvc.perform(get("/files/download/example.txt")
+                .header(HttpHeaders.RANGE, "bytes=6-").header(HttpHeaders.IF_RANGE, "\"old\""))
+                .andExpect(status().isOk())
+                .andReturn();
+
+        // THEN: Only the matching tag resumes, the other gets the whole file
+        assertEquals("World", resumed.getResponse().getContentAsString());
+        assertEquals("Hello World", restarted.getResponse().getContentAsString());
+
+        Files.delete(filePath);
+    }
+
+    @Test
+    public void testGetFile_CompressedPassedThroughOrDecompressed() throws Exception {
+        // GIVEN: A file stored gzip-compressed
+        Path filePath = Files.createTempFile("example", ".txt");
+        try (OutputStream out = GzipCodec.compress(Files.newOutputStream(filePath), 6)) {
+            out.write("Hello World".getBytes());
+        }
+        when(fileStorageService.getDownloadFile("example.txt"))
+                .thenReturn(new StoredFile(filePath, 0, Files.size(filePath), 0, "abc123", 11));
+
+        // WHEN: It is downloaded by a client accepting gzip, then by one that does not
+        MvcResult gzip = mockMvc.perform(get("/files/download/example.txt")
+                .header(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"))
+                .andExpect(header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING))
+                .andExpect(header().string(HttpHeaders.ETAG, "\"abc123-gzip\""))
+                .andReturn();
+        MvcResult plain = mockMvc.perform(get("/files/download/example.txt").header(HttpHeaders.RANGE, "bytes=6-"))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING))
+                .andExpect(header().string(HttpHeaders.ETAG, "\"abc123\""))
+                .andReturn();
+
+        // THEN: The first gets the stored bytes, the second the whole content decompressed
+        assertEquals(Files.size(filePath), gzip.getResponse().getContentAsByteArray().length);
+        assertEquals("Hello World", plain.getResponse().getContentAsString());
+        assertEquals(11, plain.getResponse().getContentLengthLong());
+
+        Files.delete(filePath);
+    }
+
+    @Test
+    public void testGetFile_MultipleRanges() throws Exception {
+        // GIVEN: A stored file
+        Path filePath = Files.createTempFile("example", ".txt");
+        Files.write(filePath, "Hello World".getBytes());
+        when(fileStorageService.getDownloadFile("example.txt")).thenReturn(storedFile(filePath));
+
+        // WHEN: Two ranges are requested
+        MvcResult result = mockMvc.perform(get("/files/download/example.txt").header(HttpHeaders.RANGE, "bytes=0-1,-2"))
+                .andExpect(status().isPartialContent())
+                .andReturn();
+
+        // THEN: Both ranges are returned as parts of a multipart/byteranges body
+        String body = result.getResponse().getContentAsString();
+        assertTrue(result.getResponse().getContentType().startsWith("multipart/byteranges; boundary="));
+        assertTrue(body.contains("Content-Range: bytes 0-1/11\r\n\r\nHe\r\n"));
+        assertTrue(body.contains("Content-Range: bytes 9-10/11\r\n\r\nld\r\n"));
+        assertEquals(body.getBytes().length, result.getResponse().getContentLength());
+
+        Files.delete(filePath);
+    }
+
+    @Test
+    public void testGetFile_UnsatisfiableRange() throws Exception {
+        // GIVEN: A stored file
+        Path filePath = Files.createTempFile("example", ".txt");
+        Files.write(filePath, "Hello World".getBytes());
+        when(fileStorageService.getDownloadFile("example.txt")).thenReturn(storedFile(filePath));
+
+        // WHEN: A range past the end of the file is requested
+        mockMvc.perform(get("/files/download/example.txt").header(HttpHeaders.RANGE, "bytes=20-30"))
+
+                // THEN: The range is rejected with the actual length
+                .andExpect(status().isRequestedRangeNotSatisfiable())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes */11"));
+
+        Files.delete(filePath);
+    }
+
     @Test
     public void testDeleteFile_Success() throws Exception {
         /**
@@ -286,6 +601,87 @@ public class FileControllerTest {
                 .andExpect(jsonPath("$.data.files[0].fileName").value("file1.txt"));
     }
 
+    @Test
+    public void testListFiles_WithCursor() throws Exception {
+        // GIVEN: A cursor returned by a previous page and a mocked service response
+        String cursor = "MGEvdXNlcnNfMS50eHQ";
+        GetFileResponse fileResponse = new GetFileResponse(Collections.singletonList(new FileDto("users_2.txt")));
+        BaseResponseMetadata<GetFileResponse> response = new BaseResponseMetadata<>(fileResponse,
+                new Metadata("MGEvdXNlcnNfMi50eHQ"), null);
+        when(fileStorageService.listFilesMatchingRegex("users_.*", cursor, 1)).thenReturn(response);
+
+        // WHEN: A search request is made with the cursor
+        mockMvc.perform(get("/files/search")
+                .param("regex", "users_.*")
+                .param("size", "1")
+                .param("cursor", cursor))
+
+                // THEN: The page after the cursor and the next cursor are returned
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.data.files[0].fileName").value("users_2.txt"))
+                .andExpect(jsonPath("$.metadata.nextCursor").value("MGEvdXNlcnNfMi50eHQ"));
+    }
+
+    @Test
+    public void testStreamFiles_WritesOneJsonLinePerFile() throws Exception {
+        // GIVEN: A search matching two files
+        FileNameMatcher matcher = new FileNameMatcher(Pattern.compile(".*\\.txt"));
+        when(fileStorageService.compileMatcher(".*\\.txt")).thenReturn(matcher);
+        when(fileStorageService.streamFilesMatching(eq(matcher), any())).thenAnswer(invocation -> {
+            Consumer<String> consumer = invocation.getArgument(1);
+            consumer.accept("a.txt");
+            consumer.accept("b.txt");
+            return 2L;
+        });
+
+        // WHEN: The results are streamed
+        MvcResult asyncResult = mockMvc.perform(get("/files/search/stream").param("regex", ".*\\.txt"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        MvcResult result = mockMvc.perform(asyncDispatch(asyncResult))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, "application/x-ndjson"))
+                .andReturn();
+
+        // THEN: Each match is written as its own JSON line
+        String[] lines = result.getResponse().getContentAsString().split("\n");
+        assertEquals(2, lines.length);
+        assertEquals("a.txt", new JSONObject(lines[0]).getString("fileName"));
+        assertEquals("b.txt", new JSONObject(lines[1]).getString("fileName"));
+    }
+
+    @Test
+    public void testDownloadArchive_StreamsZip() throws Exception {
+        // GIVEN: A search whose archive is written by the archive service
+        FileNameMatcher matcher = new FileNameMatcher(Pattern.compile("users_.*"));
+        when(fileStorageService.compileMatcher("users_.*")).thenReturn(matcher);
+        when(archiveService.writeMatching(eq(matcher), eq("zip"), eq(false), any())).thenAnswer(invocation -> {
+            OutputStream out = invocation.getArgument(3);
+            out.write("PK".getBytes());
+            return 1L;
+        });
+
+        // WHEN: The archive is downloaded
+        MvcResult asyncResult = mockMvc.perform(get("/files/archive").param("regex", "users_.*"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        // THEN: It is streamed as an attachment
+        mockMvc.perform(asyncDispatch(asyncResult))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, "application/zip"))
+                .andExpect(header().string(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"files.zip\""))
+                .andExpect(content().string("PK"));
+    }
+
+    @Test(expected = Exception.class)
+    public void testDownloadArchive_UnsupportedFormat() throws Exception {
+        // GIVEN / WHEN: An archive is requested in an unknown format
+        mockMvc.perform(get("/files/archive").param("regex", "users_.*").param("format", "rar"));
+
+        // THEN: The request fails before streaming
+    }
+
     @Test(expected = Exception.class)
     public void testListFiles_Exception() throws Exception {
         // GIVEN: A valid regex and pagination parameters, and an exception from
@@ -0,0 +1,182 @@
+package com.filestorage.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.filestorage.util.FileNameMatcher;
+import com.filestorage.util.FileStorageUtil;
+import com.filestorage.util.GzipCodec;
+import com.filestorage.util.StripedLocks;
+import com.filestorage.util.TarReader;
+
+public class ArchiveServiceTest {
+
+    @Rule
+    public TemporaryFolder storage = new TemporaryFolder();
+
+    private FileStorageService fileStorageService;
+    private ArchiveService archiveService;
+
+    @Before
+    public void setup() throws Exception {
+        fileStorageService = mock(FileStorageService.class);
+        FileStorageUtil fileStorageUtil = new FileStorageUtil(storage.getRoot().toString());
+        archiveService = new ArchiveService(fileStorageService, fileStorageUtil,
+                mock(StorageMetrics.class));
+
+        // a.txt has its own file, b.txt is packed in the middle of a segment
+        Path a = storage.newFile("a.txt").toPath();
+        Files.write(a, "Hello".getBytes(StandardCharsets.UTF_8));
+        Path segment = storage.newFile("segment").toPath();
+        Files.write(segment, "xxWorldyy".getBytes(StandardCharsets.UTF_8));
+        when(fileStorageService.getStoredFile("a.txt")).thenReturn(new StoredFile(a, 0, 5, 1_600_000_000_000L));
+        when(fileStorageService.getStoredFile("b.txt")).thenReturn(new StoredFile(segment, 2, 5, 1_600_000_000_000L));
+        when(fileStorageService.getStoredFile("gone.txt")).thenThrow(new FileNotFoundException("gone.txt"));
+        when(fileStorageService.getNameLocks()).thenReturn(new StripedLocks(16));
+    }
+
+    @Test
+    public void testWriteNamed_LooksUpFileAgainAfterCompaction() throws Exception {
+        // GIVEN: A packed file whose segment is compacted between its lookup and its open
+        Path compacted = storage.getRoot().toPath().resolve("compacted-segment");
+        Path segment = storage.newFile("new-segment").toPath();
+        Files.write(segment, "Moved".getBytes(StandardCharsets.UTF_8));
+        when(fileStorageService.getStoredFile("m.txt")).thenReturn(
+                new StoredFile(compacted, 0, 5, 1_600_000_000_000L),
+                new StoredFile(segment, 0, 5, 1_600_000_000_000L));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // WHEN: It is archived
+        archiveService.writeNamed(Arrays.asList("m.txt"), ArchiveService.ZIP, false, out);
+
+        // THEN: The entry is read from the segment it moved to rather than skipped
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            assertEquals("m.txt", zip.getNextEntry().getName());
+            assertEquals("Moved", read(zip));
+        }
+    }
+
+    @Test
+    public void testWriteNamed_DecompressesCompressedFiles() throws Exception {
+        // GIVEN: A file stored gzip-compressed
+        Path c = storage.newFile("c.txt").toPath();
+        try (OutputStream gzip = GzipCodec.compress(Files.newOutputStream(c), 6)) {
+            gzip.write("Compressed".getBytes(StandardCharsets.UTF_8));
+        }
+        when(fileStorageService.getStoredFile("c.txt"))
+                .thenReturn(new StoredFile(c, 0, Files.size(c), 1_600_000_000_000L, null, 10));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // WHEN: It is archived as an uncompressed ZIP
+        archiveService.writeNamed(Arrays.asList("c.txt"), ArchiveService.ZIP, false, out);
+
+        // THEN: The entry holds the original content
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry = zip.getNextEntry();
+            assertEquals(10, entry.getSize());
+            assertEquals("Compressed", read(zip));
+        }
+    }
+
+    @Test
+    public void testWriteNamed_StoredZipEntries() throws Exception {
+        // GIVEN: Two stored files, a missing one and an invalid name
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // WHEN: They are archived as a ZIP
+        long files = archiveService.writeNamed(Arrays.asList("a.txt", "gone.txt", "../x", "b.txt"),
+                ArchiveService.ZIP, false, out);
+
+        // THEN: The stored files are uncompressed entries, in list order
+        assertEquals(2, files);
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry = zip.getNextEntry();
+            assertEquals("a.txt", entry.getName());
+            assertEquals(ZipEntry.STORED, entry.getMethod());
+            assertEquals("Hello", read(zip));
+            entry = zip.getNextEntry();
+            assertEquals("b.txt", entry.getName());
+            assertEquals("World", read(zip));
+            assertNull(zip.getNextEntry());
+        }
+    }
+
+    @Test
+    public void testWriteMatching_Tar() throws Exception {
+        // GIVEN: A search matching both files
+        FileNameMatcher matcher = new FileNameMatcher(Pattern.compile(".*\\.txt"));
+        when(fileStorageService.streamFilesMatching(eq(matcher), any())).thenAnswer(invocation -> {
+            Consumer<String> consumer = invocation.getArgument(1);
+            consumer.accept("a.txt");
+            consumer.accept("b.txt");
+            return 2L;
+        });
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // WHEN: They are archived as a TAR
+        archiveService.writeMatching(matcher, ArchiveService.TAR, false, out);
+
+        // THEN: The archive holds both files
+        TarReader tar = new TarReader(new ByteArrayInputStream(out.toByteArray()));
+        TarReader.Entry entry = tar.next();
+        assertEquals("a.txt", entry.getName());
+        assertEquals("Hello", read(entry.getContent()));
+        entry = tar.next();
+        assertEquals("b.txt", entry.getName());
+        assertEquals("World", read(entry.getContent()));
+        assertNull(tar.next());
+    }
+
+    @Test
+    public void testWriteNamed_CompressedZip() throws Exception {
+        // GIVEN / WHEN: A file archived with compression
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        archiveService.writeNamed(Arrays.asList("a.txt"), ArchiveService.ZIP, true, out);
+
+        // THEN: Its entry is deflated
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry = zip.getNextEntry();
+            assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+            assertEquals("Hello", read(zip));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWriteNamed_UnsupportedFormat() throws Exception {
+        // GIVEN / WHEN / THEN: An unknown format is rejected
+        archiveService.writeNamed(Arrays.asList("a.txt"), "rar", false, new ByteArrayOutputStream());
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        for (int n; (n = in.read(buffer)) > 0;) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,102 @@
+package com.filestorage.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.mock.web.MockMultipartFile;
+
+import com.filestorage.dto.BatchFileResult;
+import com.filestorage.util.FileStorageUtil;
+
+public class BatchUploadServiceTest {
+
+    @Rule
+    public TemporaryFolder storage = new TemporaryFolder();
+
+    private FileStorageService fileStorageService;
+    private BatchUploadService batchUploadService;
+
+    @Before
+    public void setup() {
+        fileStorageService = mock(FileStorageService.class);
+        batchUploadService = new BatchUploadService(fileStorageService,
+                new FileStorageUtil(storage.getRoot().toString()), 2, 2);
+    }
+
+    @After
+    public void tearDown() {
+        batchUploadService.stop();
+    }
+
+    @Test
+    public void testUploadFiles_ResultPerFileInRequestOrder() {
+        // GIVEN: A new file, an existing file and an invalid name
+        when(fileStorageService.createFile(eq("a.txt"), any(InputStream.class), eq(1L))).thenReturn(true);
+        when(fileStorageService.createFile(eq("b.txt"), any(InputStream.class), eq(1L))).thenReturn(false);
+
+        // WHEN: They are uploaded in one batch
+        List<BatchFileResult> results = batchUploadService.uploadFiles(Arrays.asList(
+                new MockMultipartFile("files", "a.txt", "text/plain", "A".getBytes()),
+                new MockMultipartFile("files", "b.txt", "text/plain", "B".getBytes()),
+                new MockMultipartFile("files", "bad name!.txt", "text/plain", "C".getBytes())), false);
+
+        // THEN: Each gets its own outcome and the invalid one is never written
+        assertEquals(3, results.size());
+        assertEquals(BatchFileResult.CREATED, results.get(0).getStatus());
+        assertEquals(BatchFileResult.EXISTS, results.get(1).getStatus());
+        assertEquals("bad name!.txt", results.get(2).getFileName());
+        assertEquals(BatchFileResult.INVALID, results.get(2).getStatus());
+        verify(fileStorageService, never()).createFile(eq("bad name!.txt"), any(InputStream.class), anyLong());
+    }
+
+    @Test
+    public void testUploadFiles_FailureDoesNotFailOthers() {
+        // GIVEN: A write that fails
+        when(fileStorageService.createFile(eq("a.txt"), any(InputStream.class), anyLong()))
+                .thenThrow(new RuntimeException("File saving failed"));
+        when(fileStorageService.createFile(eq("b.txt"), any(InputStream.class), anyLong())).thenReturn(true);
+
+        // WHEN: It is uploaded with another file
+        List<BatchFileResult> results = batchUploadService.uploadFiles(Arrays.asList(
+                new MockMultipartFile("files", "a.txt", "text/plain", "A".getBytes()),
+                new MockMultipartFile("files", "b.txt", "text/plain", "B".getBytes())), false);
+
+        // THEN: Only that file is reported as failed
+        assertEquals(BatchFileResult.FAILED, results.get(0).getStatus());
+        assertEquals("File saving failed", results.get(0).getMessage());
+        assertEquals(BatchFileResult.CREATED, results.get(1).getStatus());
+    }
+
+    @Test
+    public void testUploadTar_MalformedStreamEndsBatch() throws Exception {
+        // GIVEN: A stream that is not a tar archive
+        byte[] garbage = new byte[512];
+        Arrays.fill(garbage, (byte) 'x');
+
+        // WHEN: It is uploaded with overwrite
+        List<BatchFileResult> results = batchUploadService.uploadTar(new ByteArrayInputStream(garbage), true);
+
+        // THEN: The batch reports the stream error without storing anything
+        assertEquals(1, results.size());
+        assertNull(results.get(0).getFileName());
+        assertEquals(BatchFileResult.FAILED, results.get(0).getStatus());
+        verify(fileStorageService, never()).storeFile(any(), any(InputStream.class), anyLong());
+    }
+}
@@ -0,0 +1,98 @@
+package com.filestorage.service;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BlobStoreTest {
+
+    @Rule
+    public TemporaryFolder storage = new TemporaryFolder();
+
+    private BlobStore blobStore;
+
+    @Before
+    public void setup() {
+        blobStore = new BlobStore(storage.getRoot().toString(), true);
+        assumeTrue("Hard links are not supported here", blobStore.isEnabled());
+    }
+
+    /**
+     * Writes a file the way the service does: content into a temporary file,
+     * deduplicated, then moved to its name.
+     */
+    private Path store(String fileName, String content) throws Exception {
+        Path folder = storage.getRoot().toPath().resolve("0a");
+        Files.createDirectories(folder);
+        Path tempFile = Files.createTempFile(folder, "." + fileName, ".tmp");
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        Files.write(tempFile, bytes);
+        blobStore.deduplicate(tempFile, BlobStore.newDigest().digest(bytes));
+        return Files.move(tempFile, folder.resolve(fileName));
+    }
+
+    private long blobCount() throws Exception {
+        try (Stream<Path> blobs = Files.walk(storage.getRoot().toPath().resolve(".blobs"))) {
+            return blobs.filter(Files::isRegularFile).count();
+        }
+    }
+
+    @Test
+    public void testDeduplicate_SharesIdenticalContent() throws Exception {
+        // GIVEN / WHEN: Two names with the same content and one with different content
+        Path first = store("users_1.txt", "same");
+        Path second = store("users_2.txt", "same");
+        store("users_3.txt", "other");
+
+        // THEN: Identical content is stored once and both names link to it
+        assertEquals(2, blobCount());
+        assertEquals(3, Files.getAttribute(first, "unix:nlink"));
+        assertEquals(1, blobStore.getDeduplicatedFiles());
+        assertEquals("same", new String(Files.readAllBytes(second), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testRelease_CollectsUnreferencedBlobs() throws Exception {
+        // GIVEN: Two names sharing a blob
+        Path first = store("users_1.txt", "same");
+        Path second = store("users_2.txt", "same");
+        String hash = blobStore.hashOf(first);
+
+        // WHEN: One name is deleted
+        Files.delete(first);
+        blobStore.release(hash);
+
+        // THEN: The blob is kept for the remaining name
+        assertEquals(1, blobCount());
+
+        // WHEN: The last name is deleted
+        Files.delete(second);
+        blobStore.release(hash);
+
+        // THEN: The blob is collected
+        assertEquals(0, blobCount());
+        assertNull(blobStore.hashOf(second));
+    }
+
+    @Test
+    public void testCollectGarbage_RemovesOrphanBlobs() throws Exception {
+        // GIVEN: A blob whose only name was removed without releasing it
+        Files.delete(store("users_1.txt", "orphan"));
+
+        // WHEN: The garbage collector runs
+        blobStore.collectGarbage();
+
+        // THEN: The orphan blob is gone
+        assertEquals(0, blobCount());
+    }
+}
@@ -0,0 +1,117 @@
+package com.filestorage.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.FileNotFoundException;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.filestorage.util.FileNameMatcher;
+import com.filestorage.util.FileStorageUtil;
+
+public class BulkDeleteServiceTest {
+
+    @Rule
+    public TemporaryFolder storage = new TemporaryFolder();
+
+    private FileStorageService fileStorageService;
+    private BulkDeleteService bulkDeleteService;
+
+    @Before
+    public void setup() {
+        fileStorageService = mock(FileStorageService.class);
+        bulkDeleteService = new BulkDeleteService(fileStorageService,
+                new FileStorageUtil(storage.getRoot().toString()), 2, 0);
+    }
+
+    @After
+    public void tearDown() {
+        bulkDeleteService.stop();
+    }
+
+    @Test
+    public void testDeleteNamed_CountsEachOutcome() throws Exception {
+        // GIVEN: An existing file, a missing file and an invalid name
+        when(fileStorageService.deleteIfExists("a.txt")).thenReturn(true);
+        when(fileStorageService.deleteIfExists("b.txt")).thenReturn(false);
+
+        // WHEN: They are deleted in bulk
+        BulkDeleteJob job = await(bulkDeleteService.deleteNamed(Arrays.asList("a.txt", "b.txt", "../c.txt")));
+
+        // THEN: The job completes with one of each and never touches the invalid name
+        assertEquals(BulkDeleteJob.COMPLETED, job.getStatus());
+        assertEquals(2, job.getMatched());
+        assertEquals(1, job.getDeleted());
+        assertEquals(1, job.getMissing());
+        assertEquals(1, job.getInvalid());
+        assertTrue(job.getFinishedAt() >= job.getStartedAt());
+        verify(fileStorageService, never()).deleteIfExists("../c.txt");
+    }
+
+    @Test
+    public void testDeleteMatching_DeletesStreamedNames() throws Exception {
+        // GIVEN: A regex matching 1000 files
+        FileNameMatcher matcher = new FileNameMatcher(Pattern.compile("users_.*"));
+        when(fileStorageService.compileMatcher("users_.*")).thenReturn(matcher);
+        when(fileStorageService.streamFilesMatching(eq(matcher), any())).thenAnswer(invocation -> {
+            Consumer<String> consumer = invocation.getArgument(1);
+            for (int i = 0; i < 1000; i++) {
+                consumer.accept("users_" + i + ".txt");
+            }
+            return 1000L;
+        });
+        when(fileStorageService.deleteIfExists(anyString())).thenReturn(true);
+
+        // WHEN: They are deleted in bulk
+        BulkDeleteJob job = await(bulkDeleteService.deleteMatching("users_.*"));
+
+        // THEN: Every match is deleted once the job completes
+        assertEquals(BulkDeleteJob.COMPLETED, job.getStatus());
+        assertEquals(1000, job.getMatched());
+        assertEquals(1000, job.getDeleted());
+        assertEquals(job, bulkDeleteService.getJob(job.getId()));
+    }
+
+    @Test
+    public void testDeleteNamed_FailureIsCounted() throws Exception {
+        // GIVEN: A delete that fails
+        when(fileStorageService.deleteIfExists("a.txt")).thenThrow(new RuntimeException("File deletion failed"));
+        when(fileStorageService.deleteIfExists("b.txt")).thenReturn(true);
+
+        // WHEN: It is deleted in bulk with another file
+        BulkDeleteJob job = await(bulkDeleteService.deleteNamed(Arrays.asList("a.txt", "b.txt")));
+
+        // THEN: The job still completes, reporting the failure
+        assertEquals(BulkDeleteJob.COMPLETED, job.getStatus());
+        assertEquals(1, job.getFailed());
+        assertEquals(1, job.getDeleted());
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testGetJob_Unknown() throws Exception {
+        // GIVEN / WHEN / THEN: An unknown job id is not found
+        bulkDeleteService.getJob("unknown");
+    }
+
+    private static BulkDeleteJob await(BulkDeleteJob job) throws InterruptedException {
+        for (int i = 0; i < 500 && !job.isDone(); i++) {
+            Thread.sleep(10);
+        }
+        return job;
+    }
+}
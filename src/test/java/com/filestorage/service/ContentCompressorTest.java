@@ -0,0 +1,78 @@
+package com.filestorage.service;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.filestorage.util.ExtendedAttributes;
+import com.filestorage.util.FileStorageUtil;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class ContentCompressorTest {
+
+    @Rule
+    public TemporaryFolder storage = new TemporaryFolder();
+
+    private ContentCompressor compressor(boolean enabled) {
+        return new ContentCompressor(new FileStorageUtil(storage.getRoot().toString()), enabled, "txt, LOG", 6, 0.9,
+                new SimpleMeterRegistry());
+    }
+
+    @Test
+    public void testAppliesTo_ConfiguredExtensionsOnly() {
+        // GIVEN: Compression of *.txt and *.log
+        ContentCompressor compressor = compressor(true);
+        assumeTrue("Extended attributes are not supported here", compressor.isEnabled());
+
+        // WHEN / THEN: Only those names are candidates, whatever their case
+        assertTrue(compressor.appliesTo("report.txt"));
+        assertTrue(compressor.appliesTo("server.Log"));
+        assertFalse(compressor.appliesTo("photo.jpg"));
+        assertFalse(compressor.appliesTo("txt"));
+        assertFalse(compressor(false).appliesTo("report.txt"));
+    }
+
+    @Test
+    public void testIsWorthCompressing_SkipsIncompressibleContent() {
+        // GIVEN: An enabled compressor
+        ContentCompressor compressor = compressor(true);
+        assumeTrue("Extended attributes are not supported here", compressor.isEnabled());
+        byte[] text = new String(new char[4096]).replace('\0', 'a').getBytes(StandardCharsets.UTF_8);
+        byte[] random = new byte[4096];
+        new Random(42).nextBytes(random);
+
+        // WHEN / THEN: Text is compressed, random bytes are counted as skipped
+        assertTrue(compressor.isWorthCompressing(text, text.length));
+        assertFalse(compressor.isWorthCompressing(random, random.length));
+        assertEquals(1, compressor.getSkippedFiles());
+    }
+
+    @Test
+    public void testMarkCompressed_RecordsUncompressedLength() throws Exception {
+        // GIVEN: A written file on storage with extended attributes
+        assumeTrue("Extended attributes are not supported here",
+                ExtendedAttributes.isSupported(storage.getRoot().toPath()));
+        ContentCompressor compressor = compressor(true);
+        Path compressed = Files.write(storage.newFile("a.txt").toPath(), new byte[100]);
+        Path plain = Files.write(storage.newFile("b.txt").toPath(), new byte[100]);
+
+        // WHEN: One of them is marked compressed
+        compressor.markCompressed(compressed, 1000);
+
+        // THEN: Only that one reads back as compressed, and the ratio follows
+        assertEquals(1000, ContentCompressor.uncompressedLength(compressed));
+        assertEquals(-1, ContentCompressor.uncompressedLength(plain));
+        assertEquals(0.1, compressor.getRatio(), 1e-9);
+    }
+}
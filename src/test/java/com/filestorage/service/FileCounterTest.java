@@ -0,0 +1,67 @@
+package com.filestorage.service;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileCounterTest {
+
+    @Rule
+    public TemporaryFolder storage = new TemporaryFolder();
+
+    private Path createFile(String shard, String fileName) throws Exception {
+        Path folder = storage.getRoot().toPath().resolve(shard);
+        Files.createDirectories(folder);
+        return Files.createFile(folder.resolve(fileName));
+    }
+
+    @Test
+    public void testReconcile_SeedsCountersAtStartup() throws Exception {
+        // GIVEN: Files stored in two shard folders
+        createFile("0a", "a.txt");
+        createFile("0a", "b.txt");
+        createFile("ff", "c.txt");
+
+        // WHEN: The counter is created
+        FileCounter counter = new FileCounter(storage.getRoot().toString());
+
+        // THEN: The total matches the files on disk
+        assertEquals(3, counter.getTotal());
+    }
+
+    @Test
+    public void testEvents_UpdateTotalWithoutScanning() throws Exception {
+        // GIVEN: A counter over an empty storage directory
+        FileCounter counter = new FileCounter(storage.getRoot().toString());
+        Path first = storage.getRoot().toPath().resolve("0a").resolve("a.txt");
+        Path second = storage.getRoot().toPath().resolve("0b").resolve("b.txt");
+
+        // WHEN: Two files are created and one is deleted
+        counter.onFileCreated(first);
+        counter.onFileCreated(second);
+        counter.onFileDeleted(first);
+
+        // THEN: The total reflects the events
+        assertEquals(1, counter.getTotal());
+    }
+
+    @Test
+    public void testVerify_CorrectsOutOfBandChanges() throws Exception {
+        // GIVEN: A counter seeded with one file and a file added outside of the service
+        createFile("0a", "a.txt");
+        FileCounter counter = new FileCounter(storage.getRoot().toString());
+        createFile("0a", "b.txt");
+        createFile("0c", "c.txt");
+
+        // WHEN: The background verifier runs
+        counter.verify();
+
+        // THEN: The drift is corrected
+        assertEquals(3, counter.getTotal());
+    }
+}
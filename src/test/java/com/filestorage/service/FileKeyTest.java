@@ -0,0 +1,33 @@
+package com.filestorage.service;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class FileKeyTest {
+
+    @Test
+    public void testCursor_RoundTrip() {
+        // GIVEN: The key of a stored file
+        FileKey key = new FileKey("0a", "users_1.txt");
+
+        // WHEN: The key is encoded as a cursor and decoded again
+        String cursor = key.toCursor();
+        FileKey decoded = FileKey.fromCursor(cursor);
+
+        // THEN: The cursor is URL safe and points at the same file
+        assertEquals("MGEvdXNlcnNfMS50eHQ", cursor);
+        assertEquals(key, decoded);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFromCursor_InvalidCursor() {
+        // GIVEN: A cursor that does not contain a shard and a name
+        String cursor = "bm90LWEtY3Vyc29y";
+
+        // WHEN: The cursor is decoded
+        FileKey.fromCursor(cursor);
+
+        // THEN: An IllegalArgumentException is thrown
+    }
+}
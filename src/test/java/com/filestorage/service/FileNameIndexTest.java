@@ -0,0 +1,186 @@
+package com.filestorage.service;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.filestorage.util.FileNameMatcher;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class FileNameIndexTest {
+
+    @Rule
+    public TemporaryFolder storage = new TemporaryFolder();
+
+    private Path createFile(String shard, String fileName) throws Exception {
+        Path folder = storage.getRoot().toPath().resolve(shard);
+        Files.createDirectories(folder);
+        return Files.createFile(folder.resolve(fileName));
+    }
+
+    private static FileNameMatcher matcher(String regex) {
+        return new FileNameMatcher(Pattern.compile(regex));
+    }
+
+    @Test
+    public void testBuild_IndexesExistingFiles() throws Exception {
+        // GIVEN: Files already stored in two shard folders
+        createFile("0a", "users_2.txt");
+        createFile("0a", "users_1.txt");
+        createFile("ff", "demo_1.txt");
+
+        // WHEN: The index is built
+        FileNameIndex index = new FileNameIndex(storage.getRoot().toString(), true, 64, new SimpleMeterRegistry());
+
+        // THEN: All names are indexed and ordered by shard, then name
+        assertTrue(index.isAvailable());
+        assertEquals(3, index.size());
+        assertEquals(Arrays.asList(new FileKey("0a", "users_1.txt"), new FileKey("0a", "users_2.txt"),
+                new FileKey("ff", "demo_1.txt")), index.findMatching(matcher(".*"), 0, 10));
+    }
+
+    @Test
+    public void testCountAndPage_MatchesPattern() throws Exception {
+        // GIVEN: An index with several matching and non matching names
+        for (int i = 0; i < 5; i++) {
+            createFile("1b", "users_" + i + ".txt");
+        }
+        createFile("1b", "other.txt");
+        FileNameIndex index = new FileNameIndex(storage.getRoot().toString(), true, 64, new SimpleMeterRegistry());
+        FileNameMatcher matcher = matcher("users_.*");
+
+        // WHEN: The second page of two is requested
+        int total = index.countMatching(matcher);
+        List<FileKey> page = index.findMatching(matcher, 2, 2);
+
+        // THEN: The total and the page only account for matching names
+        assertEquals(5, total);
+        assertEquals(Arrays.asList(new FileKey("1b", "users_2.txt"), new FileKey("1b", "users_3.txt")), page);
+    }
+
+    @Test
+    public void testFindMatchingAfter_ResumesAcrossShards() throws Exception {
+        // GIVEN: Matching files spread over three shard folders
+        createFile("0a", "users_1.txt");
+        createFile("0a", "users_2.txt");
+        createFile("0b", "other.txt");
+        createFile("0c", "users_3.txt");
+        FileNameIndex index = new FileNameIndex(storage.getRoot().toString(), true, 64, new SimpleMeterRegistry());
+
+        // WHEN: The search resumes after the last file of the first shard
+        List<FileKey> page = index.findMatchingAfter(matcher("users_.*"), new FileKey("0a", "users_2.txt"), 10);
+
+        // THEN: Only the files after the key are returned
+        assertEquals(Arrays.asList(new FileKey("0c", "users_3.txt")), page);
+    }
+
+    @Test
+    public void testFindMatching_PrefixRangeOnly() throws Exception {
+        // GIVEN: Names before, inside and after the prefix range of the regex
+        createFile("0a", "invoice_2023_1.txt");
+        createFile("0a", "invoice_2024_1.txt");
+        createFile("0a", "invoice_2024_2.txt");
+        createFile("0a", "users_1.txt");
+        FileNameIndex index = new FileNameIndex(storage.getRoot().toString(), true, 64, new SimpleMeterRegistry());
+
+        // WHEN: A prefix regex is searched, also resuming from before the range
+        int total = index.countMatching(matcher("invoice_2024.*"));
+        List<FileKey> resumed = index.findMatchingAfter(matcher("invoice_2024.*"),
+                new FileKey("0a", "invoice_2023_1.txt"), 10);
+
+        // THEN: Only the names inside the prefix range are returned
+        assertEquals(2, total);
+        assertEquals(Arrays.asList(new FileKey("0a", "invoice_2024_1.txt"), new FileKey("0a", "invoice_2024_2.txt")),
+                resumed);
+    }
+
+    @Test
+    public void testAddAndRemove_KeepIndexUpToDate() throws Exception {
+        // GIVEN: An empty index
+        FileNameIndex index = new FileNameIndex(storage.getRoot().toString(), true, 64, new SimpleMeterRegistry());
+        Path filePath = storage.getRoot().toPath().resolve("2c").resolve("new.txt");
+
+        // WHEN: A file is added twice and then removed
+        index.add(filePath);
+        index.add(filePath);
+        long sizeAfterAdd = index.size();
+        index.remove(filePath);
+
+        // THEN: The entry is counted once and removed again
+        assertEquals(1, sizeAfterAdd);
+        assertEquals(0, index.size());
+        assertEquals(0, index.getEstimatedMemoryBytes());
+    }
+
+    @Test
+    public void testAdd_DisablesIndexOverMemoryBudget() throws Exception {
+        // GIVEN: An index with no memory budget
+        FileNameIndex index = new FileNameIndex(storage.getRoot().toString(), true, 0, new SimpleMeterRegistry());
+
+        // WHEN: A file is added
+        index.add(storage.getRoot().toPath().resolve("3d").resolve("file.txt"));
+
+        // THEN: The index disables itself so searches fall back to scanning
+        assertFalse(index.isAvailable());
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testDisabledByConfiguration() throws Exception {
+        // GIVEN: A stored file
+        createFile("4e", "file.txt");
+
+        // WHEN: The index is created with indexing disabled
+        FileNameIndex index = new FileNameIndex(storage.getRoot().toString(), false, 64, new SimpleMeterRegistry());
+
+        // THEN: The index is not available
+        assertFalse(index.isAvailable());
+    }
+
+    @Test
+    public void testRebuildIfUnderBudget_RestoresIndex() throws Exception {
+        // GIVEN: A stored file, and an index disabled after going over its budget
+        createFile("0a", "users_1.txt");
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        FileNameIndex index = new FileNameIndex(storage.getRoot().toString(), true, 1, registry);
+        for (int i = 0; index.isAvailable(); i++) {
+            index.add(storage.getRoot().toPath().resolve("ff").resolve("gone_" + i + ".txt"));
+        }
+        double availableWhileDisabled = registry.get("filestorage.index.available").gauge().value();
+
+        // WHEN: The periodic check finds the stored names under the budget
+        index.rebuildIfUnderBudget();
+
+        // THEN: The index is rebuilt from the files actually stored
+        assertEquals(0, availableWhileDisabled, 0);
+        assertTrue(index.isAvailable());
+        assertEquals(1, registry.get("filestorage.index.available").gauge().value(), 0);
+        assertEquals(1, index.size());
+        assertEquals("users_1.txt", index.findMatching(matcher("users_.*"), 0, 10).get(0).getFileName());
+    }
+
+    @Test
+    public void testRebuildIfUnderBudget_StaysDisabledOverBudget() throws Exception {
+        // GIVEN: A stored file and an index with no memory budget
+        createFile("3d", "file.txt");
+        FileNameIndex index = new FileNameIndex(storage.getRoot().toString(), true, 0, new SimpleMeterRegistry());
+
+        // WHEN: The periodic check runs
+        index.rebuildIfUnderBudget();
+
+        // THEN: The stored names still do not fit, so the index stays disabled
+        assertFalse(index.isAvailable());
+        assertEquals(0, index.size());
+    }
+}
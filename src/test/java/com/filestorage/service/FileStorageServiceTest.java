@@ -3,34 +3,50 @@ package com.filestorage.service;
 import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
+import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
-import static org.junit.jupiter.api.Assertions.assertFalse;
-import static org.junit.jupiter.api.Assertions.assertTrue;
-import static org.junit.jupiter.api.Assertions.fail;
-import org.junit.jupiter.api.BeforeEach;
-import org.junit.jupiter.api.Test;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
 import org.junit.runner.RunWith;
-import static org.mockito.ArgumentMatchers.anyString;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import static org.mockito.Mockito.doNothing;
-import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.when;
-import org.mockito.MockitoAnnotations;
 import org.mockito.junit.MockitoJUnitRunner;
 import org.springframework.web.multipart.MultipartFile;
 
+import com.filestorage.dto.FileDto;
 import com.filestorage.model.BaseResponseMetadata;
 import com.filestorage.model.GetFileResponse;
+import com.filestorage.util.AsyncBodyReceiver;
+import com.filestorage.util.ExtendedAttributes;
 import com.filestorage.util.FileStorageUtil;
+import com.filestorage.util.FolderScanner;
 
 @RunWith(MockitoJUnitRunner.class)
 public class FileStorageServiceTest {
@@ -38,8 +54,36 @@ public class FileStorageServiceTest {
     private static final String TEST_FILE_NAME = "testFile.txt";
     private static final String STORAGE_DIR = "data-storage";
 
+    // Real path handling, with single paths stubbed by the tests
+    @Spy
+    private FileStorageUtil fileStorageUtil = new FileStorageUtil(STORAGE_DIR);
+
+    @Spy
+    private FolderScanner folderScanner = new FolderScanner();
+
+    @Mock
+    private FileNameIndex fileNameIndex;
+
+    @Mock
+    private FileCounter fileCounter;
+
+    @Mock
+    private BlobStore blobStore;
+
+    @Mock
+    private SegmentStore segmentStore;
+
+    @Mock
+    private StorageMetrics storageMetrics;
+
+    @Mock
+    private NameFilter nameFilter;
+
+    @Mock
+    private StorageJournal storageJournal;
+
     @Mock
-    private FileStorageUtil fileStorageUtil;
+    private ContentCompressor contentCompressor;
 
     @Mock
     private MultipartFile multipartFile;
@@ -47,11 +91,6 @@ public class FileStorageServiceTest {
     @InjectMocks
     private FileStorageService fileStorageService;
 
-    @BeforeEach
-    public void setup() {
-        MockitoAnnotations.openMocks(this);
-    }
-
     /**
      * Test saving a file when the file name is valid.
      * 
@@ -211,6 +250,7 @@ public class FileStorageServiceTest {
         MultipartFile multipartFile = mock(MultipartFile.class);
         when(multipartFile.getOriginalFilename()).thenReturn(fileName);
         when(multipartFile.getInputStream()).thenReturn(new ByteArrayInputStream("test".getBytes()));
+        when(multipartFile.getSize()).thenReturn(4L);
 
         when(fileStorageUtil.resolveFilePath(fileName)).thenReturn(filePath);
 
@@ -313,8 +353,8 @@ public class FileStorageServiceTest {
      * 
      * Given: A valid file name that does not exist in the storage directory
      * When: Deleting a file
-     * Then: The method should return false and the file should not exist in
-     * the storage directory.
+     * Then: A FileNotFoundException should be thrown with a message indicating
+     * that the file could not be found.
      * 
      * @throws Exception
      */
@@ -325,15 +365,16 @@ public class FileStorageServiceTest {
         Path filePath = Paths.get(STORAGE_DIR, fileName);
         Files.deleteIfExists(filePath);
         when(fileStorageUtil.resolveFilePath(fileName)).thenReturn(filePath);
-        FileStorageService fileStorageServiceSpy = spy(fileStorageService);
-        doReturn(filePath).when(fileStorageServiceSpy).getFile(fileName);
 
         // WHEN
-        boolean result = fileStorageServiceSpy.deleteFile(fileName);
-
-        // THEN
-        assertFalse(result);
-        assertFalse(Files.exists(filePath));
+        try {
+            fileStorageService.deleteFile(fileName);
+            fail("Expected FileNotFoundException");
+        } catch (FileNotFoundException e) {
+            // THEN
+            assertEquals("File not found: " + fileName, e.getMessage());
+            assertFalse(Files.exists(filePath));
+        }
     }
 
     /**
@@ -355,7 +396,6 @@ public class FileStorageServiceTest {
         if (!Files.exists(filePath)) {
             Files.createFile(filePath);
         }
-        when(fileStorageUtil.resolveFilePath(fileName)).thenReturn(filePath);
         FileStorageService fileStorageServiceSpy = spy(fileStorageService);
         doThrow(new RuntimeException("Mocked RuntimeException")).when(fileStorageServiceSpy).deleteFile(fileName);
 
@@ -387,7 +427,6 @@ public class FileStorageServiceTest {
         String regex = "test.*";
         int page = 0;
         int size = 10;
-        when(fileStorageUtil.resolveFilePath(anyString())).thenReturn(Paths.get(STORAGE_DIR, "testFile.txt"));
 
         // WHEN
         BaseResponseMetadata<GetFileResponse> response = fileStorageService.listFilesMatchingRegex(regex, page, size);
@@ -452,4 +491,250 @@ public class FileStorageServiceTest {
         assertEquals(0, response.getData().getFiles().size());
     }
 
+    /**
+     * Test the entity tag of a file stored from a blocking stream.
+     * 
+     * Given: Content spanning several upload buffers
+     * When: Storing it from a stream
+     * Then: The stored entity tag should be the SHA-256 of the uploaded bytes,
+     * as hashed by the writer of the temporary file.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testStoreFile_EtagIsHashOfUploadedBytes() throws Exception {
+        // GIVEN
+        assumeExtendedAttributes();
+        String fileName = "etag-blocking.bin";
+        byte[] content = randomContent();
+
+        try {
+            // WHEN
+            fileStorageService.storeFile(fileName, new ByteArrayInputStream(content), content.length);
+
+            // THEN
+            assertEquals(sha256Hex(content), fileStorageService.getStoredFile(fileName).getEtag());
+        } finally {
+            Files.deleteIfExists(fileStorageUtil.resolveFilePath(fileName));
+        }
+    }
+
+    /**
+     * Test the entity tag of a file received with non-blocking reads.
+     * 
+     * Given: Content spanning several receive buffers
+     * When: Receiving it without blocking and storing the upload
+     * Then: The stored entity tag should be the SHA-256 of the uploaded bytes,
+     * as hashed by the receiver while the chunks arrived.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testStoreUpload_EtagIsHashOfUploadedBytes() throws Exception {
+        // GIVEN
+        assumeExtendedAttributes();
+        String fileName = "etag-async.bin";
+        byte[] content = randomContent();
+        FileStorageService.Upload upload = fileStorageService.createUpload(fileName);
+        BodyInputStream body = new BodyInputStream(content);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+
+        try {
+            // WHEN
+            upload.receive(body, content.length, new AsyncBodyReceiver.Completion() {
+                @Override
+                public void completed(long bytes) {
+                    fileStorageService.storeUpload(upload);
+                }
+
+                @Override
+                public void failed(Throwable failure) {
+                    error.set(failure);
+                }
+            });
+            body.deliver();
+
+            // THEN
+            assertNull(error.get());
+            assertFalse(Files.exists(upload.getFile()));
+            assertEquals(sha256Hex(content), fileStorageService.getStoredFile(fileName).getEtag());
+        } finally {
+            upload.discard();
+            Files.deleteIfExists(fileStorageUtil.resolveFilePath(fileName));
+        }
+    }
+
+    /**
+     * Test paging through files with cursors when the name index is not
+     * available.
+     * 
+     * Given: Five stored files matching a regex and no name index
+     * When: Listing them two at a time, each page after the previous cursor
+     * Then: Every file should be returned exactly once, in key order, and the
+     * last page should carry no cursor.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testListFilesMatchingRegex_CursorPagesWithoutIndex() throws Exception {
+        // GIVEN
+        List<String> fileNames = Arrays.asList("cursorpage-a.bin", "cursorpage-b.bin", "cursorpage-c.bin",
+                "cursorpage-d.bin", "cursorpage-e.bin");
+        for (String fileName : fileNames) {
+            fileStorageService.storeFile(fileName, new ByteArrayInputStream(fileName.getBytes()), -1);
+        }
+
+        try {
+            // WHEN
+            List<FileKey> listed = new ArrayList<>();
+            BaseResponseMetadata<GetFileResponse> response = fileStorageService
+                    .listFilesMatchingRegex("cursorpage-.*", 0, 2);
+            int pages = 1;
+            collectKeys(response, listed);
+            while (response.getMetadata().getNextCursor() != null) {
+                response = fileStorageService.listFilesMatchingRegex("cursorpage-.*",
+                        response.getMetadata().getNextCursor(), 2);
+                pages++;
+                collectKeys(response, listed);
+            }
+
+            // THEN
+            assertEquals(3, pages);
+            assertEquals(new ArrayList<>(new TreeSet<>(listed)), listed);
+            List<String> names = new ArrayList<>();
+            listed.forEach(key -> names.add(key.getFileName()));
+            Collections.sort(names);
+            assertEquals(fileNames, names);
+        } finally {
+            for (String fileName : fileNames) {
+                Files.deleteIfExists(fileStorageUtil.resolveFilePath(fileName));
+            }
+        }
+    }
+
+    private void collectKeys(BaseResponseMetadata<GetFileResponse> response, List<FileKey> keys) {
+        for (FileDto file : response.getData().getFiles()) {
+            Path filePath = fileStorageUtil.resolveFilePath(file.getFileName());
+            keys.add(new FileKey(FileKey.shardOf(Paths.get(STORAGE_DIR), filePath.getParent()), file.getFileName()));
+        }
+    }
+
+    /**
+     * Test streaming matches when a shard folder cannot be listed.
+     * 
+     * Given: Two stored files in different shard folders and no name index
+     * When: Streaming the matches, while the second folder is replaced by a
+     * file before it is listed
+     * Then: The stream should fail instead of completing over a partial
+     * listing.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testStreamFilesMatching_UnlistableFolderFails() throws Exception {
+        // GIVEN
+        String first = "streamfail-1.bin";
+        Path firstFolder = fileStorageUtil.resolveFilePath(first).getParent();
+        String second = null;
+        for (int i = 2; second == null; i++) {
+            Path folder = fileStorageUtil.resolveFilePath("streamfail-" + i + ".bin").getParent();
+            if (folder.getParent().equals(firstFolder.getParent())
+                    && folder.toString().compareTo(firstFolder.toString()) > 0) {
+                second = "streamfail-" + i + ".bin";
+            }
+        }
+        Path secondFolder = fileStorageUtil.resolveFilePath(second).getParent();
+        for (String fileName : Arrays.asList(first, second)) {
+            fileStorageService.storeFile(fileName, new ByteArrayInputStream(fileName.getBytes()), -1);
+        }
+        Path moved = Paths.get(STORAGE_DIR, "streamfail-folder");
+
+        try {
+            // WHEN
+            fileStorageService.streamFilesMatching(fileStorageService.compileMatcher("streamfail-.*"), fileName -> {
+                try {
+                    Files.move(secondFolder, moved);
+                    Files.createFile(secondFolder);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            fail("Expected UncheckedIOException");
+        } catch (UncheckedIOException e) {
+            // THEN
+            assertTrue(e.getCause() instanceof NotDirectoryException);
+        } finally {
+            if (Files.isDirectory(moved)) {
+                Files.delete(secondFolder);
+                Files.move(moved, secondFolder);
+            }
+            Files.deleteIfExists(fileStorageUtil.resolveFilePath(first));
+            Files.deleteIfExists(fileStorageUtil.resolveFilePath(second));
+        }
+    }
+
+    private static void assumeExtendedAttributes() throws IOException {
+        Path storage = Files.createDirectories(Paths.get(STORAGE_DIR));
+        // Entity tags are kept in an extended attribute of the file
+        assumeTrue(ExtendedAttributes.isSupported(storage));
+    }
+
+    private static byte[] randomContent() {
+        byte[] content = new byte[200 * 1024 + 17];
+        new Random(42).nextBytes(content);
+        return content;
+    }
+
+    private static String sha256Hex(byte[] content) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(content)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * A request body that is ready at once, delivered to its listener in
+     * chunks of the receiver's reads.
+     */
+    private static final class BodyInputStream extends ServletInputStream {
+
+        private final ByteArrayInputStream content;
+        private ReadListener listener;
+
+        BodyInputStream(byte[] content) {
+            this.content = new ByteArrayInputStream(content);
+        }
+
+        void deliver() throws IOException {
+            listener.onDataAvailable();
+            listener.onAllDataRead();
+        }
+
+        @Override
+        public boolean isFinished() {
+            return content.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            this.listener = readListener;
+        }
+
+        @Override
+        public int read() {
+            return content.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return content.read(b, off, len);
+        }
+    }
+
 }
@@ -0,0 +1,108 @@
+package com.filestorage.service;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.filestorage.util.FileStorageUtil;
+import com.filestorage.util.FolderScanner;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class NameFilterTest {
+
+    @Rule
+    public TemporaryFolder storage = new TemporaryFolder();
+
+    private NameFilter filter(boolean enabled) {
+        return new NameFilter(new FileStorageUtil(storage.getRoot().toString()), new FolderScanner(), enabled, 0.01,
+                0.25, new SimpleMeterRegistry());
+    }
+
+    private Path createFile(String shard, String fileName) throws Exception {
+        Path folder = storage.getRoot().toPath().resolve(shard);
+        Files.createDirectories(folder);
+        return Files.createFile(folder.resolve(fileName));
+    }
+
+    @Test
+    public void testMightExist_BuiltFromStorageAtStartup() throws Exception {
+        // GIVEN: Files stored before startup
+        createFile("0a", "a.txt");
+        createFile("ff", "b.txt");
+
+        // WHEN: The filter is built
+        NameFilter filter = filter(true);
+
+        // THEN: Stored names may exist, a missing one is rejected
+        assertTrue(filter.mightExist("a.txt"));
+        assertTrue(filter.mightExist("b.txt"));
+        assertFalse(filter.mightExist("missing.txt"));
+        assertEquals(1, filter.getRejected());
+    }
+
+    @Test
+    public void testOnFileCreated_AddsName() throws Exception {
+        // GIVEN: A filter over an empty storage directory
+        NameFilter filter = filter(true);
+
+        // WHEN: A file is saved through the service
+        filter.onFileCreated(storage.getRoot().toPath().resolve("0a").resolve("a.txt"));
+
+        // THEN: Its name is no longer rejected
+        assertTrue(filter.mightExist("a.txt"));
+    }
+
+    @Test
+    public void testRebuildIfStale_ForgetsDeletedNames() throws Exception {
+        // GIVEN: A filter over four files, one of which is then deleted
+        Path deleted = createFile("0a", "a.txt");
+        createFile("0a", "b.txt");
+        createFile("0b", "c.txt");
+        createFile("0c", "d.txt");
+        NameFilter filter = filter(true);
+        Files.delete(deleted);
+        filter.onFileDeleted(deleted);
+        assertTrue(filter.mightExist("a.txt"));
+
+        // WHEN: The periodic check runs with more than a quarter of the names deleted
+        Files.delete(storage.getRoot().toPath().resolve("0a").resolve("b.txt"));
+        filter.onFileDeleted(storage.getRoot().toPath().resolve("0a").resolve("b.txt"));
+        filter.rebuildIfStale();
+
+        // THEN: The filter was rebuilt without the deleted names
+        assertFalse(filter.mightExist("a.txt"));
+        assertTrue(filter.mightExist("c.txt"));
+        assertEquals(0, filter.getDeletesSinceBuild());
+    }
+
+    @Test
+    public void testRebuild_PicksUpFilesAddedBehindTheService() throws Exception {
+        // GIVEN: A built filter and a file copied into the storage directory by hand
+        NameFilter filter = filter(true);
+        createFile("0a", "copied.txt");
+        assertFalse(filter.mightExist("copied.txt"));
+
+        // WHEN: The filter is rebuilt on demand
+        filter.rebuild();
+
+        // THEN: The file is found
+        assertTrue(filter.mightExist("copied.txt"));
+    }
+
+    @Test
+    public void testDisabled_NeverRejects() {
+        // GIVEN / WHEN: A disabled filter
+        NameFilter filter = filter(false);
+
+        // THEN: Every name may exist
+        assertTrue(filter.mightExist("missing.txt"));
+    }
+}
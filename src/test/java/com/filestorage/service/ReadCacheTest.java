@@ -0,0 +1,155 @@
+package com.filestorage.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class ReadCacheTest {
+
+    @Rule
+    public TemporaryFolder storage = new TemporaryFolder();
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private StoredFile store(String fileName, byte[] content) throws Exception {
+        Path filePath = Files.write(storage.getRoot().toPath().resolve(fileName), content);
+        return new StoredFile(filePath, 0, content.length, Files.getLastModifiedTime(filePath).toMillis());
+    }
+
+    /**
+     * Downloads a file as the service does: from the cache, or from disk and
+     * then offered to the cache.
+     */
+    private StoredFile download(ReadCache cache, String fileName, StoredFile onDisk) {
+        StoredFile cached = cache.get(fileName);
+        return cached != null ? cached : cache.load(fileName, onDisk, cache.stamp(fileName));
+    }
+
+    private static String text(StoredFile storedFile) {
+        ByteBuffer content = storedFile.getContent();
+        byte[] bytes = new byte[content.remaining()];
+        content.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testGet_CachesFilesOnSecondRequest() throws Exception {
+        // GIVEN: A stored file and an enabled cache
+        ReadCache cache = new ReadCache(true, 1, 1024, registry);
+        StoredFile onDisk = store("a.txt", "hello".getBytes(StandardCharsets.UTF_8));
+
+        // WHEN: The file is downloaded three times
+        StoredFile first = download(cache, "a.txt", onDisk);
+        StoredFile second = download(cache, "a.txt", onDisk);
+        StoredFile third = download(cache, "a.txt", onDisk);
+
+        // THEN: The first is read from disk, the second loads the cache and the third is a hit
+        assertFalse(first.isInMemory());
+        assertTrue(second.isInMemory());
+        assertEquals("hello", text(third));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(5, cache.getSizeBytes());
+        assertEquals(1.0 / 3, registry.get("filestorage.cache.hit.ratio").gauge().value(), 1e-9);
+    }
+
+    @Test
+    public void testLoad_SkipsFilesAboveMaxFileSize() throws Exception {
+        // GIVEN: A cache of files up to 4 bytes
+        ReadCache cache = new ReadCache(true, 1, 4, registry);
+        StoredFile onDisk = store("a.txt", "hello".getBytes(StandardCharsets.UTF_8));
+
+        // WHEN: A larger file is downloaded repeatedly
+        for (int i = 0; i < 3; i++) {
+            download(cache, "a.txt", onDisk);
+        }
+
+        // THEN: It is never cached
+        assertEquals(0, cache.getEntries());
+    }
+
+    @Test
+    public void testOnFileUpdated_DropsEntry() throws Exception {
+        // GIVEN: A cached file
+        ReadCache cache = new ReadCache(true, 1, 1024, registry);
+        StoredFile onDisk = store("a.txt", "hello".getBytes(StandardCharsets.UTF_8));
+        download(cache, "a.txt", onDisk);
+        download(cache, "a.txt", onDisk);
+
+        // WHEN: The service replaces it
+        cache.onFileUpdated(onDisk.getPath());
+
+        // THEN: The next download misses the cache
+        assertNull(cache.get("a.txt"));
+        assertEquals(0, cache.getEntries());
+    }
+
+    @Test
+    public void testLoad_WriteDuringLookupKeepsContentOut() throws Exception {
+        // GIVEN: A popular file looked up on disk
+        ReadCache cache = new ReadCache(true, 1, 1024, registry);
+        StoredFile onDisk = store("a.txt", "hello".getBytes(StandardCharsets.UTF_8));
+        cache.get("a.txt");
+        cache.get("a.txt");
+        long stamp = cache.stamp("a.txt");
+
+        // WHEN: It is replaced before the content read is added to the cache
+        cache.onFileUpdated(onDisk.getPath());
+        StoredFile loaded = cache.load("a.txt", onDisk, stamp);
+
+        // THEN: The request is served, but the possibly stale content is not cached
+        assertTrue(loaded.isInMemory());
+        assertEquals(0, cache.getEntries());
+    }
+
+    @Test
+    public void testEviction_ScanDoesNotFlushHotFile() throws Exception {
+        // GIVEN: A 1 MB cache holding a frequently requested file of 100 KB
+        ReadCache cache = new ReadCache(true, 1, 1024 * 1024, registry);
+        byte[] content = new byte[100 * 1024];
+        StoredFile hot = store("hot.bin", content);
+        for (int i = 0; i < 8; i++) {
+            download(cache, "hot.bin", hot);
+        }
+
+        // WHEN: Fifty other files of the same size are each downloaded twice
+        for (int i = 0; i < 50; i++) {
+            StoredFile cold = store("cold_" + i + ".bin", content);
+            download(cache, "cold_" + i + ".bin", cold);
+            download(cache, "cold_" + i + ".bin", cold);
+        }
+
+        // THEN: The hot file is still cached and the budget is respected
+        assertNotNull(cache.get("hot.bin"));
+        assertTrue(cache.getSizeBytes() <= 1024 * 1024);
+        assertTrue(cache.getEvictions() > 0);
+    }
+
+    @Test
+    public void testDisabled_NeverCaches() throws Exception {
+        // GIVEN: A disabled cache
+        ReadCache cache = new ReadCache(false, 1, 1024, registry);
+        StoredFile onDisk = store("a.txt", "hello".getBytes(StandardCharsets.UTF_8));
+
+        // WHEN: A file is downloaded repeatedly
+        for (int i = 0; i < 3; i++) {
+            assertFalse(download(cache, "a.txt", onDisk).isInMemory());
+        }
+
+        // THEN: Nothing is held
+        assertEquals(0, cache.getEntries());
+    }
+}
@@ -0,0 +1,181 @@
+package com.filestorage.service;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.filestorage.util.FileStorageUtil;
+
+public class SegmentStoreTest {
+
+    @Rule
+    public TemporaryFolder storage = new TemporaryFolder();
+
+    private SegmentStore segmentStore;
+
+    @After
+    public void tearDown() {
+        if (segmentStore != null) {
+            segmentStore.close();
+        }
+    }
+
+    private SegmentStore open(long segmentSizeMb) {
+        if (segmentStore != null) {
+            segmentStore.close();
+        }
+        segmentStore = new SegmentStore(new FileStorageUtil(storage.getRoot().toString()), true, 1024,
+                segmentSizeMb, 0.5);
+        return segmentStore;
+    }
+
+    private FileKey key(String fileName) {
+        Path root = storage.getRoot().toPath();
+        return FileKey.of(root, new FileStorageUtil(root.toString()).resolveFilePath(fileName));
+    }
+
+    private void put(String fileName, String content) throws Exception {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        segmentStore.put(key(fileName), bytes, bytes.length);
+    }
+
+    private String read(String fileName) throws Exception {
+        StoredFile storedFile = segmentStore.find(key(fileName));
+        byte[] content = new byte[(int) storedFile.getLength()];
+        try (RandomAccessFile file = new RandomAccessFile(storedFile.getPath().toFile(), "r")) {
+            file.seek(storedFile.getOffset());
+            file.readFully(content);
+        }
+        return new String(content, StandardCharsets.UTF_8);
+    }
+
+    private Path[] segmentFiles() throws Exception {
+        try (Stream<Path> files = Files.list(storage.getRoot().toPath().resolve(".segments"))) {
+            return files.sorted().toArray(Path[]::new);
+        }
+    }
+
+    @Test
+    public void testPutAndDelete_ReadBackRegions() throws Exception {
+        // GIVEN: A segment store with two packed files, one of them empty
+        open(256);
+        put("users_1.txt", "hello");
+        put("users_2.txt", "");
+
+        // WHEN: One file is replaced and another deleted
+        put("users_1.txt", "hello again");
+        boolean deleted = segmentStore.delete(key("users_2.txt"));
+
+        // THEN: Reads see the latest content and the deleted file is gone
+        assertTrue(deleted);
+        assertEquals("hello again", read("users_1.txt"));
+        assertNull(segmentStore.find(key("users_2.txt")));
+        assertEquals(1, segmentStore.size());
+        assertEquals(Arrays.asList("users_1.txt"), segmentStore.names(key("users_1.txt").getShard()));
+    }
+
+    @Test
+    public void testDelete_KeepsFileWhenTombstoneCannotBeWritten() throws Exception {
+        // GIVEN: A packed file, and segments that can no longer be written
+        open(256);
+        put("users_1.txt", "hello");
+        segmentStore.close();
+
+        // WHEN: The file is deleted
+        try {
+            segmentStore.delete(key("users_1.txt"));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // THEN: It is still there, as it will be after a restart
+            assertTrue(segmentStore.contains(key("users_1.txt")));
+            assertEquals(1, segmentStore.size());
+        }
+    }
+
+    @Test
+    public void testFind_EtagSurvivesReopenAndChangesWithContent() throws Exception {
+        // GIVEN: A packed file
+        open(256);
+        put("users_1.txt", "hello");
+        String etag = segmentStore.find(key("users_1.txt")).getEtag();
+
+        // WHEN: The store is reopened, then the file replaced
+        open(256);
+        String replayed = segmentStore.find(key("users_1.txt")).getEtag();
+        put("users_1.txt", "hello again");
+
+        // THEN: The tag is rebuilt from the segment, and differs for the new content
+        assertEquals(etag, replayed);
+        assertNotEquals(etag, segmentStore.find(key("users_1.txt")).getEtag());
+    }
+
+    @Test
+    public void testReopen_ReplaysSegmentsAndTruncatesTornRecord() throws Exception {
+        // GIVEN: Packed files, a deleted file and a record torn by a crash
+        open(256);
+        put("users_1.txt", "one");
+        put("users_2.txt", "two");
+        segmentStore.delete(key("users_2.txt"));
+        segmentStore.close();
+        Path segment = segmentFiles()[0];
+        long size = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] { 1, 0, 5 }));
+        }
+
+        // WHEN: The store is opened again
+        open(256);
+
+        // THEN: The table is rebuilt and the torn record removed
+        assertEquals("one", read("users_1.txt"));
+        assertFalse(segmentStore.contains(key("users_2.txt")));
+        assertEquals(size, Files.size(segment));
+    }
+
+    @Test
+    public void testCompact_RewritesMostlyDeadSegments() throws Exception {
+        // GIVEN: Segments of 1 MB where most files of the first one are later deleted
+        open(1);
+        byte[] content = new byte[1000];
+        for (int i = 0; i < 1500; i++) {
+            segmentStore.put(key("users_" + i + ".txt"), content, content.length);
+        }
+        for (int i = 0; i < 1000; i++) {
+            segmentStore.delete(key("users_" + i + ".txt"));
+        }
+        put("users_0.txt", "back");
+        int segmentsBefore = segmentFiles().length;
+
+        // WHEN: Compaction runs twice, the second run deleting what the first retired
+        segmentStore.compact();
+        segmentStore.compact();
+
+        // THEN: The first segment is gone and every remaining file survives a restart
+        assertTrue(segmentFiles().length <= segmentsBefore);
+        assertFalse(Files.exists(storage.getRoot().toPath().resolve(".segments").resolve("segment-0000000001.seg")));
+        open(1);
+        assertEquals(501, segmentStore.size());
+        assertEquals("back", read("users_0.txt"));
+        assertFalse(segmentStore.contains(key("users_1.txt")));
+        assertEquals(1000, segmentStore.find(key("users_1499.txt")).getLength());
+    }
+}
@@ -0,0 +1,123 @@
+package com.filestorage.service;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.locks.Lock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.filestorage.util.FileStorageUtil;
+import com.filestorage.util.ShardLayout;
+import com.filestorage.util.StripedLocks;
+
+public class ShardMigratorTest {
+
+    @Rule
+    public TemporaryFolder storage = new TemporaryFolder();
+
+    private Path store(FileStorageUtil fileStorageUtil, String fileName, String content) throws Exception {
+        Path filePath = fileStorageUtil.resolveFilePath(fileName);
+        Files.createDirectories(filePath.getParent());
+        return Files.write(filePath, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private ShardMigrator migrator(FileStorageUtil fileStorageUtil) {
+        return migrator(fileStorageUtil, new StripedLocks(16));
+    }
+
+    private ShardMigrator migrator(FileStorageUtil fileStorageUtil, StripedLocks nameLocks) {
+        return new ShardMigrator(fileStorageUtil, new BlobStore(fileStorageUtil.getStorageDir(), false),
+                new FileCounter(fileStorageUtil), nameLocks, true, 0);
+    }
+
+    @Test
+    public void testMigrate_MovesFilesToConfiguredLayout() throws Exception {
+        // GIVEN: Files stored with the legacy layout and a service configured for two levels of 4096
+        FileStorageUtil legacy = new FileStorageUtil(storage.getRoot().toString());
+        Path oldPath = store(legacy, "users_1.txt", "one");
+        store(legacy, "users_2.txt", "two");
+        FileStorageUtil fileStorageUtil = new FileStorageUtil(storage.getRoot().toString(), 2, 4096, "sha256");
+        assertEquals(ShardLayout.LEGACY, fileStorageUtil.getPreviousLayout());
+        assertEquals(oldPath, fileStorageUtil.resolvePreviousFilePath("users_1.txt"));
+
+        // WHEN: The migration runs
+        ShardMigrator migrator = migrator(fileStorageUtil);
+        migrator.migrate();
+
+        // THEN: The files are at their new paths, the old folders are gone and the layout is recorded
+        assertEquals(2, migrator.getMovedFiles());
+        assertEquals("one", new String(Files.readAllBytes(fileStorageUtil.resolveFilePath("users_1.txt")),
+                StandardCharsets.UTF_8));
+        assertFalse(Files.exists(oldPath.getParent()));
+        assertNull(fileStorageUtil.getPreviousLayout());
+        assertNull(new FileStorageUtil(storage.getRoot().toString(), 2, 4096, "sha256").getPreviousLayout());
+    }
+
+    @Test
+    public void testMigrate_KeepsFileWrittenAgainDuringMigration() throws Exception {
+        // GIVEN: A legacy file written again before being moved, after switching to the FNV-1a hash
+        FileStorageUtil legacy = new FileStorageUtil(storage.getRoot().toString());
+        Path oldPath = store(legacy, "users_1.txt", "old");
+        FileStorageUtil fileStorageUtil = new FileStorageUtil(storage.getRoot().toString(), 1, 4096, "fnv1a");
+        Path newPath = store(fileStorageUtil, "users_1.txt", "new");
+
+        // WHEN: The migration runs
+        ShardMigrator migrator = migrator(fileStorageUtil);
+        migrator.migrate();
+
+        // THEN: The stale copy is dropped and the new content kept
+        assertEquals(0, migrator.getMovedFiles());
+        assertFalse(Files.exists(oldPath));
+        assertEquals("new", new String(Files.readAllBytes(newPath), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testMigrate_WaitsForDeleteOfSameName() throws Exception {
+        // GIVEN: A legacy file being deleted, under the lock of its name, when the migration reaches it
+        FileStorageUtil legacy = new FileStorageUtil(storage.getRoot().toString());
+        Path oldPath = store(legacy, "users_1.txt", "old");
+        FileStorageUtil fileStorageUtil = new FileStorageUtil(storage.getRoot().toString(), 1, 4096, "fnv1a");
+        StripedLocks nameLocks = new StripedLocks(16);
+        Lock lock = nameLocks.lockFor("users_1.txt");
+        lock.lock();
+        Thread migration = new Thread(migrator(fileStorageUtil, nameLocks)::migrate);
+
+        // WHEN: The migration runs while the delete completes
+        try {
+            migration.start();
+            while (migration.getState() != Thread.State.WAITING && migration.isAlive()) {
+                Thread.sleep(1);
+            }
+            Files.delete(oldPath);
+        } finally {
+            lock.unlock();
+        }
+        migration.join();
+
+        // THEN: The deleted file is not brought back at its new path
+        assertFalse(Files.exists(fileStorageUtil.resolveFilePath("users_1.txt")));
+        assertFalse(Files.exists(oldPath));
+    }
+
+    @Test
+    public void testStart_RecordsLayoutOfNewStorage() throws Exception {
+        // GIVEN: An empty storage directory configured for two levels of 256
+        FileStorageUtil fileStorageUtil = new FileStorageUtil(storage.getRoot().toString(), 2, 256, "sha256");
+
+        // WHEN: The application starts
+        migrator(fileStorageUtil).start();
+
+        // THEN: The layout is recorded, so files stored later are not mistaken for the legacy layout
+        assertTrue(fileStorageUtil.isLayoutRecorded());
+        store(fileStorageUtil, "users_1.txt", "one");
+        assertNull(new FileStorageUtil(storage.getRoot().toString(), 2, 256, "sha256").getPreviousLayout());
+    }
+}
@@ -0,0 +1,184 @@
+package com.filestorage.service;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.filestorage.util.FileStorageUtil;
+import com.filestorage.util.FolderScanner;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class StorageJournalTest {
+
+    @Rule
+    public TemporaryFolder storage = new TemporaryFolder();
+
+    private StorageJournal journal;
+
+    @After
+    public void tearDown() {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    private StorageJournal open(boolean enabled) {
+        if (journal != null) {
+            journal.close();
+        }
+        FileStorageUtil fileStorageUtil = new FileStorageUtil(storage.getRoot().toString());
+        SegmentStore segmentStore = new SegmentStore(fileStorageUtil, false, 1024, 1, 0.5);
+        journal = new StorageJournal(fileStorageUtil, new FolderScanner(), segmentStore, enabled, false,
+                new SimpleMeterRegistry());
+        return journal;
+    }
+
+    private Path pathOf(String fileName) {
+        return new FileStorageUtil(storage.getRoot().toString()).resolveFilePath(fileName);
+    }
+
+    private Path createFile(String fileName) throws Exception {
+        Path filePath = pathOf(fileName);
+        Files.createDirectories(filePath.getParent());
+        return Files.createFile(filePath);
+    }
+
+    private Set<String> journaledNames() {
+        Set<String> names = new TreeSet<>();
+        assertTrue(journal.forEachFile(key -> {
+            assertEquals(pathOf(key.getFileName()), storage.getRoot().toPath().resolve(key.getShard())
+                    .resolve(key.getFileName()));
+            names.add(key.getFileName());
+        }));
+        return names;
+    }
+
+    private long countJournals() throws Exception {
+        try (Stream<Path> files = Files.list(storage.getRoot().toPath().resolve(".journal"))) {
+            return files.filter(file -> file.getFileName().toString().startsWith("journal-")).count();
+        }
+    }
+
+    @Test
+    public void testForEachFile_FirstStartScansStorage() throws Exception {
+        // GIVEN: Files stored before the journal was enabled
+        createFile("a.txt");
+        createFile("b.txt");
+
+        // WHEN: The journal starts
+        open(true);
+
+        // THEN: Its snapshot lists every stored file under its shard
+        assertTrue(journal.isAvailable());
+        assertEquals(new TreeSet<>(Arrays.asList("a.txt", "b.txt")), journaledNames());
+        assertEquals(2, journal.getSnapshotFiles());
+    }
+
+    @Test
+    public void testRecover_ReplaysJournalOverSnapshot() throws Exception {
+        // GIVEN: A file created and another deleted through the journal, before a restart
+        createFile("old.txt");
+        open(true);
+        long created = journal.begin("new.txt");
+        createFile("new.txt");
+        journal.stored(created, "new.txt");
+        long deleted = journal.begin("old.txt");
+        Files.delete(pathOf("old.txt"));
+        journal.deleted(deleted, "old.txt");
+        long cancelled = journal.begin("other.txt");
+        journal.cancelled(cancelled, "other.txt");
+        // Not seen by the journal, which proves the restart does not scan
+        createFile("behind.txt");
+
+        // WHEN: The service restarts
+        open(true);
+
+        // THEN: The snapshot has the changes applied, and the journal was folded into it
+        assertEquals(new TreeSet<>(Arrays.asList("new.txt")), journaledNames());
+        assertEquals(1, countJournals());
+    }
+
+    @Test
+    public void testRecover_SettlesInterruptedChanges() throws Exception {
+        // GIVEN: A crash after one write was moved into place and while another was received
+        open(true);
+        journal.begin("moved.txt");
+        createFile("moved.txt");
+        journal.begin("received.txt");
+        Path temp = pathOf("received.txt").resolveSibling(".received.txt.12345.tmp");
+        Files.createDirectories(temp.getParent());
+        Files.createFile(temp);
+
+        // WHEN: The service restarts
+        open(true);
+
+        // THEN: The names are looked up on disk and the leftover temporary file deleted
+        assertEquals(new TreeSet<>(Arrays.asList("moved.txt")), journaledNames());
+        assertFalse(Files.exists(temp));
+    }
+
+    @Test
+    public void testCompact_FoldsJournalAndCarriesOperationsInFlight() throws Exception {
+        // GIVEN: A stored file and a write still in flight
+        open(true);
+        long stored = journal.begin("a.txt");
+        createFile("a.txt");
+        journal.stored(stored, "a.txt");
+        long inFlight = journal.begin("b.txt");
+
+        // WHEN: The periodic compaction runs, then the write completes and the service restarts
+        journal.compact();
+        long afterCompaction = journal.getSnapshotFiles();
+        createFile("b.txt");
+        journal.stored(inFlight, "b.txt");
+        open(true);
+
+        // THEN: The first snapshot had the stored file, and the write in flight was matched after it
+        assertEquals(1, afterCompaction);
+        assertEquals(new TreeSet<>(Arrays.asList("a.txt", "b.txt")), journaledNames());
+    }
+
+    @Test
+    public void testCorruptSnapshot_ScansAgain() throws Exception {
+        // GIVEN: A snapshot damaged while the service was down
+        createFile("a.txt");
+        open(true);
+        journal.close();
+        Files.write(storage.getRoot().toPath().resolve(".journal").resolve("snapshot"), new byte[] { 1, 2, 3 });
+        createFile("b.txt");
+
+        // WHEN: The service restarts
+        open(true);
+
+        // THEN: The storage directory is scanned again
+        assertEquals(new TreeSet<>(Arrays.asList("a.txt", "b.txt")), journaledNames());
+    }
+
+    @Test
+    public void testDisabled_JournalsNothing() throws Exception {
+        // GIVEN: A stored file
+        createFile("a.txt");
+
+        // WHEN: The journal is disabled
+        open(false);
+
+        // THEN: Callers scan the storage directory, and writes are not journaled
+        assertFalse(journal.isAvailable());
+        assertFalse(journal.forEachFile(key -> { }));
+        assertEquals(-1, journal.begin("b.txt"));
+        assertFalse(Files.exists(storage.getRoot().toPath().resolve(".journal")));
+    }
+}
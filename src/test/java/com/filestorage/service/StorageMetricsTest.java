@@ -0,0 +1,71 @@
+package com.filestorage.service;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.filestorage.util.FileStorageUtil;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class StorageMetricsTest {
+
+    @Rule
+    public TemporaryFolder storage = new TemporaryFolder();
+
+    private SimpleMeterRegistry registry;
+    private StorageMetrics storageMetrics;
+
+    @Before
+    public void setup() {
+        registry = new SimpleMeterRegistry();
+        storageMetrics = new StorageMetrics(registry, new FileStorageUtil(storage.getRoot().toString()));
+    }
+
+    @Test
+    public void testStartStop_RecordsLatencyAndInFlightOperations() {
+        // GIVEN: An upload in progress
+        long started = storageMetrics.start(StorageMetrics.SAVE);
+
+        // WHEN / THEN: It is counted as in flight until it ends, then its latency is recorded
+        assertEquals(1.0, registry.get("filestorage.operations.active").tag("operation", "save").gauge().value(), 0);
+        storageMetrics.stop(StorageMetrics.SAVE, started);
+        assertEquals(0.0, registry.get("filestorage.operations.active").tag("operation", "save").gauge().value(), 0);
+        Timer timer = registry.get("filestorage.operations").tag("operation", "save").timer();
+        assertEquals(1, timer.count());
+        assertEquals(3, timer.takeSnapshot().percentileValues().length);
+    }
+
+    @Test
+    public void testRecordShardHit_CountsTopLevelShardFolder() {
+        // GIVEN: The legacy layout, where users_1.txt is stored in folder 87
+
+        // WHEN: Operations on the file are recorded
+        storageMetrics.recordShardHit("users_1.txt");
+        storageMetrics.recordShardHit("users_1.txt");
+
+        // THEN: Its shard folder is counted, among one series per folder
+        Counter counter = registry.get("filestorage.shard.hits").tag("shard", "87").counter();
+        assertEquals(2.0, counter.count(), 0);
+        assertEquals(256, registry.get("filestorage.shard.hits").counters().size());
+    }
+
+    @Test
+    public void testRecordSearchAndBytes_UpdateSummariesAndCounters() {
+        // GIVEN / WHEN: A search and transfers are recorded
+        storageMetrics.recordSearch(1000, 10);
+        storageMetrics.recordBytesIn(2048);
+        storageMetrics.recordBytesOut(512);
+
+        // THEN: Each meter reflects them
+        assertEquals(1000.0, registry.get("filestorage.search.scanned").summary().totalAmount(), 0);
+        assertEquals(10.0, registry.get("filestorage.search.matched").summary().totalAmount(), 0);
+        assertEquals(2048.0, registry.get("filestorage.bytes.in").counter().count(), 0);
+        assertEquals(512.0, registry.get("filestorage.bytes.out").counter().count(), 0);
+    }
+}
@@ -0,0 +1,215 @@
+package com.filestorage.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AsyncBodyReceiverTest {
+
+    @Rule
+    public TemporaryFolder storage = new TemporaryFolder();
+
+    @Test
+    public void testReceive_WritesChunksAsTheyArrive() throws IOException {
+        // GIVEN: A body arriving in two bursts
+        Path target = storage.newFile().toPath();
+        ChunkedInputStream in = new ChunkedInputStream();
+        Outcome outcome = new Outcome();
+        AsyncBodyReceiver.receive(in, target, 7, outcome);
+
+        // WHEN: The first burst is available, then the rest
+        in.arrive("Hel".getBytes());
+        long receivedFirst = Files.size(target);
+        in.arrive("lo!!".getBytes());
+        in.end();
+
+        // THEN: Each burst is written when it arrives and the upload completes once
+        assertEquals(3, receivedFirst);
+        assertEquals(Long.valueOf(7), outcome.bytes);
+        assertNull(outcome.error);
+        assertArrayEquals("Hello!!".getBytes(), Files.readAllBytes(target));
+    }
+
+    @Test
+    public void testReceive_HoldsAndHashesBodyWithinHeadLimit() throws Exception {
+        // GIVEN: A receiver holding bodies of up to 8 bytes, with a digest
+        Path target = storage.newFile().toPath();
+        ChunkedInputStream in = new ChunkedInputStream();
+        Outcome outcome = new Outcome();
+        AsyncBodyReceiver receiver = new AsyncBodyReceiver(in, target, 7, 8, MessageDigest.getInstance("SHA-256"),
+                null, outcome);
+        receiver.start();
+
+        // WHEN: A 7 byte body arrives in two bursts
+        in.arrive("Hel".getBytes());
+        in.arrive("lo!!".getBytes());
+        in.end();
+
+        // THEN: It is held in memory, the file stays empty and the digest covers every burst
+        assertEquals(Long.valueOf(7), outcome.bytes);
+        assertTrue(receiver.isHeld());
+        assertEquals(7, receiver.getHeadLength());
+        assertArrayEquals("Hello!!".getBytes(), Arrays.copyOf(receiver.getHead(), 7));
+        assertEquals(0, Files.size(target));
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest("Hello!!".getBytes()), receiver.getHash());
+    }
+
+    @Test
+    public void testReceive_EncodesBodyBeyondHeadLimit() throws Exception {
+        // GIVEN: A receiver holding up to 4 bytes and gzipping longer bodies
+        Path target = storage.newFile().toPath();
+        ChunkedInputStream in = new ChunkedInputStream();
+        Outcome outcome = new Outcome();
+        AsyncBodyReceiver receiver = new AsyncBodyReceiver(in, target, 12, 4, MessageDigest.getInstance("SHA-256"),
+                (file, sample, length) -> GzipCodec.compress(file, 6), outcome);
+        receiver.start();
+
+        // WHEN: A 12 byte body arrives in two bursts
+        in.arrive("Hel".getBytes());
+        in.arrive("lo, world".getBytes());
+        in.end();
+
+        // THEN: The file holds the gzipped body and the digest is of the body as sent
+        assertEquals(Long.valueOf(12), outcome.bytes);
+        assertFalse(receiver.isHeld());
+        try (InputStream stored = GzipCodec.decompress(Files.newInputStream(target))) {
+            byte[] content = new byte[32];
+            int length = 0;
+            for (int read; (read = stored.read(content, length, content.length - length)) > 0;) {
+                length += read;
+            }
+            assertEquals("Hello, world", new String(content, 0, length));
+        }
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest("Hello, world".getBytes()),
+                receiver.getHash());
+    }
+
+    @Test
+    public void testReceive_ShortBodyFails() throws IOException {
+        // GIVEN: A body announced as 10 bytes
+        Path target = storage.newFile().toPath();
+        ChunkedInputStream in = new ChunkedInputStream();
+        Outcome outcome = new Outcome();
+        AsyncBodyReceiver.receive(in, target, 10, outcome);
+
+        // WHEN: The client sends only 4
+        in.arrive("abcd".getBytes());
+        in.end();
+
+        // THEN: The upload fails
+        assertNull(outcome.bytes);
+        assertNotNull(outcome.error);
+    }
+
+    @Test
+    public void testReceive_ClientErrorFailsOnce() throws IOException {
+        // GIVEN: An upload in progress
+        Path target = storage.newFile().toPath();
+        ChunkedInputStream in = new ChunkedInputStream();
+        Outcome outcome = new Outcome();
+        AsyncBodyReceiver.receive(in, target, -1, outcome);
+        in.arrive("abc".getBytes());
+
+        // WHEN: The connection breaks, and the container reports it twice
+        IOException reset = new IOException("Connection reset");
+        in.listener.onError(reset);
+        in.listener.onError(new IOException("Again"));
+
+        // THEN: The first error is reported, once
+        assertEquals(reset, outcome.error);
+        assertEquals(1, outcome.calls);
+    }
+
+    private static final class Outcome implements AsyncBodyReceiver.Completion {
+
+        private Long bytes;
+        private Throwable error;
+        private int calls;
+
+        @Override
+        public void completed(long bytes) {
+            this.bytes = bytes;
+            calls++;
+        }
+
+        @Override
+        public void failed(Throwable error) {
+            this.error = error;
+            calls++;
+        }
+    }
+
+    /**
+     * Mimics a container delivering a body in bursts: ready while a burst
+     * lasts, then not until the next one.
+     */
+    private static final class ChunkedInputStream extends ServletInputStream {
+
+        private final Deque<Integer> available = new ArrayDeque<>();
+        private ReadListener listener;
+        private boolean ended;
+
+        void arrive(byte[] bytes) throws IOException {
+            for (byte b : bytes) {
+                available.add(b & 0xff);
+            }
+            listener.onDataAvailable();
+        }
+
+        void end() throws IOException {
+            ended = true;
+            listener.onAllDataRead();
+        }
+
+        @Override
+        public boolean isFinished() {
+            return ended && available.isEmpty();
+        }
+
+        @Override
+        public boolean isReady() {
+            return !available.isEmpty();
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            this.listener = readListener;
+        }
+
+        @Override
+        public int read() {
+            if (available.isEmpty()) {
+                throw new IllegalStateException("Read while not ready");
+            }
+            return available.poll();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int read = 0;
+            while (read < len && !available.isEmpty()) {
+                b[off + read++] = (byte) read();
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.filestorage.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AsyncRegionSenderTest {
+
+    @Rule
+    public TemporaryFolder storage = new TemporaryFolder();
+
+    @Test
+    public void testOnWritePossible_SendsRegionAsClientDrains() throws IOException {
+        // GIVEN: A file of 200 KiB and a client taking one buffer per callback
+        byte[] content = new byte[200 * 1024];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        Path file = storage.newFile().toPath();
+        Files.write(file, content);
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        DrainingOutputStream out = new DrainingOutputStream();
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        AsyncRegionSender sender = new AsyncRegionSender(asyncContext, out, channel, 1000, 150 * 1024);
+
+        // WHEN: The container calls back until the region is sent
+        int callbacks = 0;
+        while (sender.getRemaining() > 0) {
+            out.drain();
+            sender.onWritePossible();
+            callbacks++;
+        }
+
+        // THEN: The exact region is sent over several callbacks, then the request completes
+        byte[] sent = out.bytes.toByteArray();
+        assertEquals(150 * 1024, sent.length);
+        for (int i = 0; i < sent.length; i++) {
+            assertEquals(content[1000 + i], sent[i]);
+        }
+        assertEquals(3, callbacks);
+        assertFalse(channel.isOpen());
+        verify(asyncContext, times(1)).complete();
+    }
+
+    @Test
+    public void testOnError_ClosesAndCompletes() throws IOException {
+        // GIVEN: A download in progress
+        Path file = storage.newFile().toPath();
+        Files.write(file, new byte[100]);
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        AsyncRegionSender sender = new AsyncRegionSender(asyncContext, new DrainingOutputStream(), channel, 0, 100);
+        verify(asyncContext, never()).complete();
+
+        // WHEN: The client goes away, reported twice
+        sender.onError(new IOException("Broken pipe"));
+        sender.onError(new IOException("Broken pipe"));
+
+        // THEN: The file is closed and the request completed once
+        assertFalse(channel.isOpen());
+        verify(asyncContext, times(1)).complete();
+    }
+
+    /**
+     * Mimics a socket that takes one write, then is not ready until drained.
+     */
+    private static final class DrainingOutputStream extends ServletOutputStream {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private boolean ready = true;
+
+        void drain() {
+            ready = true;
+        }
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+
+        @Override
+        public void write(int b) {
+            bytes.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes.write(b, off, len);
+            ready = false;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.filestorage.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BloomFilterTest {
+
+    @Test
+    public void testMightContain_NoFalseNegatives() {
+        // GIVEN: A filter holding 10,000 names
+        BloomFilter filter = new BloomFilter(10_000, 0.01);
+        for (int i = 0; i < 10_000; i++) {
+            filter.add("users_" + i + ".txt");
+        }
+
+        // WHEN / THEN: Every added name is reported
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(filter.mightContain("users_" + i + ".txt"));
+        }
+    }
+
+    @Test
+    public void testMightContain_FalsePositivesWithinRate() {
+        // GIVEN: A filter at 1% holding as many names as it was sized for
+        BloomFilter filter = new BloomFilter(10_000, 0.01);
+        for (int i = 0; i < 10_000; i++) {
+            filter.add("users_" + i + ".txt");
+        }
+
+        // WHEN: Names never added are looked up
+        int falsePositives = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (filter.mightContain("missing_" + i + ".txt")) {
+                falsePositives++;
+            }
+        }
+
+        // THEN: Few of them are reported
+        assertTrue("False positives: " + falsePositives, falsePositives < 1_000);
+    }
+
+    @Test
+    public void testAdd_GrowsPastExpectedKeys() {
+        // GIVEN: A filter sized for 1,000 names
+        BloomFilter filter = new BloomFilter(1_000, 0.01);
+
+        // WHEN: Ten times as many are added
+        for (int i = 0; i < 10_000; i++) {
+            filter.add("users_" + i + ".txt");
+        }
+
+        // THEN: Layers were added, the names are all reported and the rate still holds
+        assertTrue(filter.getLayers() > 1);
+        assertEquals(10_000, filter.getKeys(), 100);
+        int falsePositives = 0;
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(filter.mightContain("users_" + i + ".txt"));
+            if (filter.mightContain("missing_" + i + ".txt")) {
+                falsePositives++;
+            }
+        }
+        assertTrue("False positives: " + falsePositives, falsePositives < 100);
+    }
+}
@@ -0,0 +1,129 @@
+package com.filestorage.util;
+
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FileNameMatcherTest {
+
+    private static FileNameMatcher matcher(String regex) {
+        return new FileNameMatcher(Pattern.compile(regex));
+    }
+
+    @Test
+    public void testPrefix_AnchoredLiteral() {
+        // GIVEN: A regex starting with a literal
+        FileNameMatcher matcher = matcher("^invoice_2024.*");
+
+        // WHEN / THEN: The literal is the required prefix and the regex is not exact
+        assertEquals("invoice_2024", matcher.getPrefix());
+        assertEquals("", matcher.getSuffix());
+        assertFalse(matcher.isExact());
+        assertTrue(matcher.matches("invoice_2024_01.txt"));
+        assertFalse(matcher.matches("invoice_2023_01.txt"));
+    }
+
+    @Test
+    public void testSuffix_Extension() {
+        // GIVEN: A regex constraining the extension only
+        FileNameMatcher matcher = matcher(".*\\.txt$");
+
+        // WHEN / THEN: The escaped extension is the required suffix
+        assertEquals("", matcher.getPrefix());
+        assertEquals(".txt", matcher.getSuffix());
+        assertTrue(matcher.matches("users_1.txt"));
+        assertFalse(matcher.matches("users_1.csv"));
+    }
+
+    @Test
+    public void testExactName() {
+        // GIVEN: A regex made only of literals, including an escaped and a quoted part
+        FileNameMatcher matcher = matcher("users_\\Q0001\\E\\.txt");
+
+        // WHEN / THEN: The regex names exactly one file
+        assertTrue(matcher.isExact());
+        assertEquals("users_0001.txt", matcher.getExactName());
+    }
+
+    @Test
+    public void testQuantifiers_ShortenLiterals() {
+        // GIVEN: Quantifiers applied to literal characters
+        FileNameMatcher optional = matcher("users?_.*");
+        FileNameMatcher repeated = matcher("ab+c");
+
+        // WHEN / THEN: Optional characters end the literal, repeated ones are kept once
+        assertEquals("user", optional.getPrefix());
+        assertEquals("ab", repeated.getPrefix());
+        assertEquals("bc", repeated.getSuffix());
+        assertFalse(repeated.isExact());
+        assertTrue(repeated.matches("abbbc"));
+    }
+
+    @Test
+    public void testUnsupportedConstructs_YieldNoConstraint() {
+        // GIVEN: Top-level alternation and an embedded case-insensitive flag
+        FileNameMatcher alternation = matcher("users_.*|demo_.*");
+        FileNameMatcher caseInsensitive = matcher("(?i)users_.*");
+
+        // WHEN / THEN: No literal is extracted and the regex still decides
+        assertEquals("", alternation.getPrefix());
+        assertNull(alternation.getExactName());
+        assertTrue(alternation.matches("demo_1.txt"));
+        assertEquals("", caseInsensitive.getPrefix());
+        assertTrue(caseInsensitive.matches("USERS_1.txt"));
+    }
+
+    @Test
+    public void testGroupsAndClasses_EndLiterals() {
+        // GIVEN: A regex with a group containing alternation and a character class
+        FileNameMatcher matcher = matcher("report_(a|b)[0-9]+\\.csv");
+
+        // WHEN / THEN: Literals around them are still extracted
+        assertEquals("report_", matcher.getPrefix());
+        assertEquals(".csv", matcher.getSuffix());
+        assertTrue(matcher.matches("report_b12.csv"));
+    }
+
+    @Test
+    public void testCharacterEscapes_DecodedToLiterals() {
+        // GIVEN: Hexadecimal, Unicode, octal and control character escapes
+        FileNameMatcher hex = matcher("file\\x2etxt");
+        FileNameMatcher hexPrefix = matcher("\\x41bc");
+        FileNameMatcher hexBraces = matcher("\\x{41}bc");
+        FileNameMatcher unicode = matcher("a\\u0062c");
+        FileNameMatcher octal = matcher("ab\\0143");
+        FileNameMatcher control = matcher("\\cAbc");
+
+        // WHEN / THEN: Each escape is one character, and names the regex matches are matched
+        assertEquals("file.txt", hex.getExactName());
+        assertTrue(hex.matches("file.txt"));
+        assertTrue(hexPrefix.matches("Abc"));
+        assertTrue(hexBraces.matches("Abc"));
+        assertTrue(unicode.matches("abc"));
+        assertEquals("abc", octal.getExactName());
+        assertTrue(octal.matches("abc"));
+        assertTrue(control.matches("\u0001bc"));
+        assertFalse(hex.matches("file_txt"));
+    }
+
+    @Test
+    public void testOtherEscapes_AgreeWithRegex() {
+        // GIVEN: A class escape, an octal escape of two digits followed by one, and a back reference
+        FileNameMatcher property = matcher("\\pLbc.*");
+        FileNameMatcher shortOctal = matcher("a\\0477");
+        FileNameMatcher backReference = matcher("(a)\\1bc");
+
+        // WHEN / THEN: The extracted literals agree with the names the regex matches
+        assertEquals("", property.getPrefix());
+        assertTrue(property.matches("xbc.txt"));
+        assertEquals("a'7", shortOctal.getExactName());
+        assertTrue(shortOctal.matches("a'7"));
+        assertEquals("", backReference.getSuffix());
+        assertTrue(backReference.matches("aabc"));
+    }
+}
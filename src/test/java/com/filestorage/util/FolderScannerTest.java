@@ -0,0 +1,103 @@
+package com.filestorage.util;
+
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FolderScannerTest {
+
+    @Rule
+    public TemporaryFolder storage = new TemporaryFolder();
+
+    private final FolderScanner folderScanner = new FolderScanner(4);
+
+    @After
+    public void tearDown() {
+        folderScanner.close();
+    }
+
+    private Path createFolder(String name, String... fileNames) throws Exception {
+        Path folder = storage.newFolder(name).toPath();
+        for (String fileName : fileNames) {
+            Files.write(folder.resolve(fileName), fileName.getBytes());
+        }
+        return folder;
+    }
+
+    @Test
+    public void testList_RegularFilesWithAttributes() throws Exception {
+        // GIVEN: A folder with stored files, a file being written and a subfolder
+        Path folder = createFolder("00", "a.txt", "bb.txt", ".a.txt.123.tmp");
+        Files.createDirectory(folder.resolve("sub"));
+
+        // WHEN: The folder is listed
+        FolderScanner.Listing listing = FolderScanner.list(folder);
+
+        // THEN: Only the stored files are returned, with their sizes, and every entry is counted
+        assertEquals(2, listing.size());
+        for (int i = 0; i < listing.size(); i++) {
+            assertEquals(listing.getName(i).length(), listing.getAttributes(i).size());
+        }
+        assertEquals(new TreeSet<>(Arrays.asList("a.txt", "bb.txt")), new TreeSet<>(listing.getNames()));
+        assertEquals(4, listing.getEntries());
+    }
+
+    @Test
+    public void testScanFiles_ListsEveryFolderAndRecordsProgress() throws Exception {
+        // GIVEN: Three shard folders
+        Path first = createFolder("00", "a.txt", "b.txt");
+        Path second = createFolder("01", "c.txt");
+        Path third = createFolder("02");
+        Set<String> names = ConcurrentHashMap.newKeySet();
+
+        // WHEN: They are scanned
+        folderScanner.scanFiles("test", Arrays.asList(first, second, third).stream(),
+                listing -> names.addAll(listing.getNames()));
+
+        // THEN: Every file is listed, and the completed scan is reported
+        assertEquals(3, names.size());
+        assertTrue(folderScanner.getRunningScans().isEmpty());
+        FolderScanner.Progress progress = folderScanner.getCompletedScans().get(0);
+        assertEquals("test", progress.getName());
+        assertEquals(3, progress.getFolders());
+        assertEquals(3, progress.getScannedFolders());
+        assertEquals(3, progress.getEntries());
+        assertTrue(progress.isDone());
+        assertEquals(3, folderScanner.getScannedFolders());
+        assertEquals(3, folderScanner.getListedEntries());
+    }
+
+    @Test
+    public void testScanFiles_FailureRethrownAfterOtherFolders() throws Exception {
+        // GIVEN: Folders of which one cannot be listed
+        Path first = createFolder("00", "a.txt");
+        Path missing = storage.getRoot().toPath().resolve("01");
+        Path third = createFolder("02", "b.txt");
+        ConcurrentLinkedQueue<Path> listed = new ConcurrentLinkedQueue<>();
+
+        // WHEN: They are scanned
+        try {
+            folderScanner.scanFiles("test", Arrays.asList(first, missing, third).stream(),
+                    listing -> listed.add(listing.getFolder()));
+            fail("Expected the scan to fail");
+        } catch (UncheckedIOException e) {
+            // THEN: The failure is reported once the other folders were listed
+            assertEquals(2, listed.size());
+            assertEquals(3, folderScanner.getCompletedScans().get(0).getScannedFolders());
+        }
+    }
+}
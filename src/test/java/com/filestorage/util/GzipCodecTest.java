@@ -0,0 +1,75 @@
+package com.filestorage.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class GzipCodecTest {
+
+    private static byte[] text(int lines) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append("2024-05-01 12:00:").append(i % 60).append(" INFO request served in ").append(i % 97)
+                    .append(" ms\n");
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testCompress_DecompressesToTheSameBytes() throws Exception {
+        // GIVEN: Some text
+        byte[] content = text(1000);
+
+        // WHEN: It is compressed, then decompressed from memory
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = GzipCodec.compress(compressed, 6)) {
+            out.write(content);
+        }
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.wrap(compressed.toByteArray());
+        try (InputStream in = GzipCodec.decompress(buffer)) {
+            byte[] chunk = new byte[1000];
+            for (int n; (n = in.read(chunk)) != -1;) {
+                decompressed.write(chunk, 0, n);
+            }
+        }
+
+        // THEN: The content is restored, smaller in between, and the buffer is left unread
+        assertArrayEquals(content, decompressed.toByteArray());
+        assertTrue(compressed.size() < content.length / 4);
+        assertTrue(buffer.position() == 0);
+    }
+
+    @Test
+    public void testRatio_TellsTextFromRandomBytes() {
+        // GIVEN: Text and random bytes of 64 KiB
+        byte[] text = text(2000);
+        byte[] random = new byte[64 * 1024];
+        new Random(42).nextBytes(random);
+
+        // WHEN / THEN: Text compresses well, random bytes do not
+        assertTrue(GzipCodec.ratio(text, text.length, 6) < 0.3);
+        assertTrue(GzipCodec.ratio(random, random.length, 6) > 0.99);
+    }
+
+    @Test
+    public void testIsAccepted_HonoursQualityAndWildcard() {
+        // GIVEN / WHEN / THEN: Accept-Encoding values as browsers and tools send them
+        assertTrue(GzipCodec.isAccepted("gzip, deflate, br"));
+        assertTrue(GzipCodec.isAccepted("br;q=1.0, GZIP;q=0.5"));
+        assertTrue(GzipCodec.isAccepted("*"));
+        assertFalse(GzipCodec.isAccepted(null));
+        assertFalse(GzipCodec.isAccepted("identity"));
+        assertFalse(GzipCodec.isAccepted("gzip;q=0"));
+        assertFalse(GzipCodec.isAccepted("*, gzip;q=0"));
+    }
+}
@@ -0,0 +1,131 @@
+package com.filestorage.util;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ShardLayoutTest {
+
+    // SHA-256 of users_1.txt: 872ddba3965d75ed...
+    private static final String FILE_NAME = "users_1.txt";
+
+    @Rule
+    public TemporaryFolder storage = new TemporaryFolder();
+
+    @Test
+    public void testResolve_TwoLevelsOf4096() {
+        // GIVEN: Two levels of 4096 folders
+        ShardLayout layout = ShardLayout.of(2, 4096);
+
+        // WHEN / THEN: Each level takes the next three hex characters of the hash
+        assertEquals("872/ddb", layout.shardOf(FILE_NAME));
+        assertEquals(Paths.get("root", "872", "ddb", FILE_NAME), layout.resolve(Paths.get("root"), FILE_NAME));
+        assertTrue(layout.isFolderName("b2c"));
+        assertFalse(layout.isFolderName("0a"));
+        assertFalse(layout.isFolderName("B2C"));
+    }
+
+    @Test
+    public void testResolve_LegacyLayout() {
+        // GIVEN / WHEN / THEN: The legacy layout is one level of two hex characters
+        assertEquals("87", ShardLayout.LEGACY.shardOf(FILE_NAME));
+        assertEquals(ShardLayout.of(1, 256), ShardLayout.LEGACY);
+    }
+
+    @Test
+    public void testShardOf_MatchesOriginalHexHashing() throws Exception {
+        // GIVEN: Generated names, including characters outside ASCII, and the original hashing code
+        Random random = new Random(42);
+        ShardLayout layout = ShardLayout.of(4, 65536);
+        for (int i = 0; i < 1000; i++) {
+            String fileName = "file_" + Long.toHexString(random.nextLong()) + (i % 10 == 0 ? "\u00e9.txt" : ".txt");
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(fileName.getBytes());
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+
+            // WHEN / THEN: The shards are the leading hex characters of the original hash
+            assertEquals(hex.substring(0, 2), ShardLayout.LEGACY.shardOf(fileName));
+            assertEquals(hex.substring(0, 4) + "/" + hex.substring(4, 8) + "/" + hex.substring(8, 12) + "/"
+                    + hex.substring(12, 16), layout.shardOf(fileName));
+        }
+    }
+
+    @Test
+    public void testShardOf_Fnv1aSpreadsNamesEvenly() {
+        // GIVEN: A layout of 16 folders by FNV-1a and sequential names
+        ShardLayout layout = ShardLayout.of(1, 16, Fnv1aShardingStrategy.INSTANCE);
+        Map<String, Integer> counts = new HashMap<>();
+
+        // WHEN: 16000 names are placed
+        for (int i = 0; i < 16000; i++) {
+            counts.merge(layout.shardOf("users_" + i + ".txt"), 1, Integer::sum);
+        }
+
+        // THEN: Every folder receives close to a sixteenth of them
+        assertEquals(16, counts.size());
+        for (int count : counts.values()) {
+            assertTrue(count > 800 && count < 1200);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOf_FanOutNotPowerOf16() {
+        // GIVEN / WHEN: A fan-out that is not a whole number of hex characters
+        ShardLayout.of(2, 1024);
+
+        // THEN: An IllegalArgumentException is thrown
+    }
+
+    @Test
+    public void testFolders_ListsLeafFoldersInOrder() throws Exception {
+        // GIVEN: Folders of a two level layout next to folders of the legacy layout and internal folders
+        Path root = storage.getRoot().toPath();
+        for (String folder : Arrays.asList("b2c/0a1", "0a1/b2c", "0a1/0ff", "0a", ".blobs/0a")) {
+            Files.createDirectories(root.resolve(folder));
+        }
+
+        // WHEN: The folders of each layout are listed
+        List<String> twoLevels = ShardLayout.of(2, 4096).folders(root)
+                .map(folder -> root.relativize(folder).toString().replace('\\', '/'))
+                .collect(Collectors.toList());
+        List<String> legacy = ShardLayout.LEGACY.folders(root)
+                .map(folder -> root.relativize(folder).toString())
+                .collect(Collectors.toList());
+
+        // THEN: Only the leaf folders of each layout are returned, sorted
+        assertEquals(Arrays.asList("0a1/0ff", "0a1/b2c", "b2c/0a1"), twoLevels);
+        assertEquals(Arrays.asList("0a"), legacy);
+    }
+
+    @Test
+    public void testSaveAndLoad_RoundTrip() throws Exception {
+        // GIVEN: A storage directory without a recorded layout
+        Path file = storage.getRoot().toPath().resolve(".layout");
+        assertNull(ShardLayout.load(file));
+
+        // WHEN: A layout is recorded and read back
+        ShardLayout.of(3, 16).save(file);
+
+        // THEN: The same layout is read
+        assertEquals(ShardLayout.of(3, 16), ShardLayout.load(file));
+        assertFalse(ShardLayout.of(3, 16, Fnv1aShardingStrategy.INSTANCE).equals(ShardLayout.load(file)));
+    }
+}
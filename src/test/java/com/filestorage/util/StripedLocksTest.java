@@ -0,0 +1,79 @@
+package com.filestorage.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+import org.junit.Test;
+
+public class StripedLocksTest {
+
+    @Test
+    public void testLockFor_SameNameSameLock() {
+        // GIVEN: Striped locks
+        StripedLocks locks = new StripedLocks(64);
+
+        // WHEN / THEN: A name always maps to the same lock, whatever its string instance
+        assertSame(locks.lockFor("users_1.txt"), locks.lockFor(new String("users_1.txt")));
+    }
+
+    @Test
+    public void testLockFor_SpreadsSimilarNames() {
+        // GIVEN: Striped locks and names differing only in a counter
+        StripedLocks locks = new StripedLocks(64);
+        Set<Lock> used = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        // WHEN: The locks of 1000 names are looked up
+        for (int i = 0; i < 1000; i++) {
+            used.add(locks.lockFor("users_" + i + ".txt"));
+        }
+
+        // THEN: Nearly every stripe is used
+        assertTrue(used.size() > 60);
+    }
+
+    @Test
+    public void testLock_SerializesThreadsOnOneName() throws Exception {
+        // GIVEN: Threads incrementing a shared value under the lock of one name
+        StripedLocks locks = new StripedLocks(16);
+        int[] value = new int[1];
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    Lock lock = locks.lockFor("users_1.txt");
+                    lock.lock();
+                    try {
+                        value[0]++;
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            });
+        }
+
+        // WHEN: They run concurrently
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // THEN: No increment is lost
+        assertEquals(40000, value[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_StripesNotPowerOfTwo() {
+        // GIVEN / WHEN: A stripe count that is not a power of two
+        new StripedLocks(100);
+
+        // THEN: An IllegalArgumentException is thrown
+    }
+}
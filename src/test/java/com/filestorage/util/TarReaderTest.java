@@ -0,0 +1,135 @@
+package com.filestorage.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class TarReaderTest {
+
+    @Test
+    public void testNext_ReadsEntriesInOrder() throws IOException {
+        // GIVEN: An archive with a directory and two files
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        writeEntry(tar, "docs/", '5', new byte[0]);
+        writeEntry(tar, "a.txt", '0', "Hello".getBytes(StandardCharsets.UTF_8));
+        writeEntry(tar, "b.txt", '0', new byte[700]);
+        tar.write(new byte[1024]);
+
+        // WHEN: It is read
+        TarReader reader = new TarReader(new ByteArrayInputStream(tar.toByteArray()));
+        TarReader.Entry first = reader.next();
+        String content = read(first.getContent());
+        TarReader.Entry second = reader.next();
+
+        // THEN: Only the files are returned, each with its content
+        assertEquals("a.txt", first.getName());
+        assertEquals(5, first.getSize());
+        assertEquals("Hello", content);
+        assertEquals("b.txt", second.getName());
+        assertEquals(700, second.getSize());
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void testNext_SkipsUnreadContent() throws IOException {
+        // GIVEN: An archive of two files, without its end blocks
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        writeEntry(tar, "a.txt", '0', new byte[1500]);
+        writeEntry(tar, "b.txt", '0', "B".getBytes(StandardCharsets.UTF_8));
+
+        // WHEN: The first file is not read
+        TarReader reader = new TarReader(new ByteArrayInputStream(tar.toByteArray()));
+        reader.next();
+        TarReader.Entry second = reader.next();
+
+        // THEN: The second file is still found
+        assertEquals("b.txt", second.getName());
+        assertEquals("B", read(second.getContent()));
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void testNext_GnuLongName() throws IOException {
+        // GIVEN: A file whose name needs a GNU long name entry
+        String name = new String(new char[120]).replace('\0', 'n') + ".txt";
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        writeEntry(tar, "././@LongLink", 'L', (name + "\0").getBytes(StandardCharsets.UTF_8));
+        writeEntry(tar, name.substring(0, 99), '0', "X".getBytes(StandardCharsets.UTF_8));
+
+        // WHEN: It is read
+        TarReader.Entry entry = new TarReader(new ByteArrayInputStream(tar.toByteArray())).next();
+
+        // THEN: The full name is used
+        assertEquals(name, entry.getName());
+        assertEquals("X", read(entry.getContent()));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNext_InvalidChecksum() throws IOException {
+        // GIVEN: A corrupted header
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        writeEntry(tar, "a.txt", '0', "A".getBytes(StandardCharsets.UTF_8));
+        byte[] bytes = tar.toByteArray();
+        bytes[0] = 'b';
+
+        // WHEN / THEN: Reading it fails
+        new TarReader(new ByteArrayInputStream(bytes)).next();
+    }
+
+    @Test(expected = IOException.class)
+    public void testNext_InvalidPaxSize() throws IOException {
+        // GIVEN: A pax header whose size record is not a number
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        writeEntry(tar, "PaxHeaders/a.txt", 'x', "13 size=12x4\n".getBytes(StandardCharsets.UTF_8));
+        writeEntry(tar, "a.txt", '0', "A".getBytes(StandardCharsets.UTF_8));
+
+        // WHEN / THEN: Reading it fails as a malformed header
+        new TarReader(new ByteArrayInputStream(tar.toByteArray())).next();
+    }
+
+    private static void writeEntry(ByteArrayOutputStream tar, String name, char type, byte[] content)
+            throws IOException {
+        byte[] header = new byte[512];
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, 100));
+        putOctal(header, 100, 8, 0644);
+        putOctal(header, 124, 12, content.length);
+        putOctal(header, 136, 12, 0);
+        header[156] = (byte) type;
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+        header[263] = '0';
+        header[264] = '0';
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        long sum = 0;
+        for (byte b : header) {
+            sum += b & 0xff;
+        }
+        putOctal(header, 148, 7, sum);
+        tar.write(header);
+        tar.write(content);
+        tar.write(new byte[(512 - content.length % 512) % 512]);
+    }
+
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        String octal = String.format("%0" + (length - 1) + "o", value);
+        System.arraycopy(octal.getBytes(StandardCharsets.US_ASCII), 0, header, offset, length - 1);
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        for (int n; (n = in.read(buffer)) > 0;) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}